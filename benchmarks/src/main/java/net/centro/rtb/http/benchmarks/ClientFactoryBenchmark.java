@@ -0,0 +1,71 @@
+package net.centro.rtb.http.benchmarks;
+
+import net.centro.rtb.http.ClientFactory;
+import net.centro.rtb.http.ClientLease;
+import net.centro.rtb.http.ClientProfile;
+import net.centro.rtb.http.Http;
+import net.centro.rtb.http.HttpConnectorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.client.Client;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention benchmark of the ClientFactory lookup, 64 threads leasing the Client of the same profile and releasing it,
+ * as each request does. No request is sent, so no server is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(64)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClientFactoryBenchmark {
+
+    private ClientProfile profile;
+
+    @Setup
+    public void setup() throws Exception {
+
+        HttpConnectorBuilder builder = builder();
+        builder.prepare();
+        profile = builder.getClientProfile();
+    }
+
+    private static HttpConnectorBuilder builder() throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/")
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .setConnectTimeout(100)
+                .setReadTimeout(100);
+    }
+
+    /** The lookup of a PreparedRequest or of a reused builder, the profile is already resolved. */
+    @Benchmark
+    public Client resolvedProfile() {
+
+        try (ClientLease lease = ClientFactory.leaseClient(profile)) {
+            return lease.getClient();
+        }
+    }
+
+    /** A new builder and its profile, as when a builder is made for each request. */
+    @Benchmark
+    public Client newBuilder() throws Exception {
+
+        try (ClientLease lease = ClientFactory.leaseClient(builder().getClientProfile())) {
+            return lease.getClient();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.centro.rtb.http.benchmarks;
+
+import net.centro.rtb.http.Http;
+import net.centro.rtb.http.HttpConnector;
+import net.centro.rtb.http.HttpConnectorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives HttpConnectorBuilder / HttpConnector.execute() end to end against the in-process LoopbackServer.
+ *
+ * The matrix covers every Http.ConnectorProvider, SYNC and ASYNC execution, every Http.Encoding (used both
+ * for the request body compression and the response Content-Encoding) and several payload sizes.
+ * Each invocation builds a new HttpConnector, the way the library is used on the request path, and reads
+ * the decoded response body.
+ *
+ * Run with "-prof gc" to get the allocation rate per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectorBenchmark {
+
+    @Param({"HttpUrlConnector", "Apache", "Jetty", "Grizzly", "Netty"})
+    public Http.ConnectorProvider provider;
+
+    @Param({"SYNC", "ASYNC"})
+    public Http.SyncType syncType;
+
+    @Param({"NONE", "GZIP", "DEFLATE"})
+    public Http.Encoding encoding;
+
+    @Param({"256", "4096", "65536"})
+    public int payloadSize;
+
+    private LoopbackServer server;
+    private String url;
+    private String requestBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        url = server.url(payloadSize, encoding);
+        requestBody = LoopbackServer.body(payloadSize);
+
+        // fail fast if the combination does not work at all, rather than measuring exceptions
+        String body = execute();
+        if (body == null || body.length() != payloadSize) {
+            throw new IllegalStateException("Unexpected response from " + provider + ": " + (body == null ? null : body.length()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String execute() throws Exception {
+
+        HttpConnectorBuilder builder = HttpConnectorBuilder.newBuilder()
+                .url(url)
+                .setMethod(Http.HttpMethod.POST)
+                .setBody(requestBody)
+                .compress(encoding)
+                .setConnectorProvider(provider);
+
+        if (syncType == Http.SyncType.ASYNC) {
+            builder.async();
+        }
+
+        HttpConnector http = builder.build().execute();
+        return http.getResponseBody();
+    }
+}
@@ -0,0 +1,133 @@
+package net.centro.rtb.http.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process HTTP/2 server bound to the loopback interface, speaking h2c with prior knowledge.
+ *
+ * Requests to /payload/N/identity are answered with N bytes of body, the same as LoopbackServer, from the event loop.
+ * Request bodies are discarded. The connections accepted are counted.
+ */
+public class H2LoopbackServer implements AutoCloseable {
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<Integer, ByteBuf> payloads = new ConcurrentHashMap<>();
+
+    public H2LoopbackServer() throws InterruptedException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public H2LoopbackServer(int threads) throws InterruptedException {
+
+        group = new NioEventLoopGroup(threads);
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        connections.incrementAndGet();
+                        channel.pipeline().addLast(new Handler().handler);
+                    }
+                })
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).sync().channel();
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * @return the url of the payload resource for the given size.
+     */
+    public String url(int size) {
+        return "http://127.0.0.1:" + getPort() + "/payload/" + size + "/identity";
+    }
+
+    /**
+     * @return the number of connections accepted since the server started.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private ByteBuf payload(int size) {
+        return payloads.computeIfAbsent(size, k -> Unpooled.unreleasableBuffer(
+                Unpooled.copiedBuffer(LoopbackServer.body(size), StandardCharsets.US_ASCII)));
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    /** The streams of a connection. */
+    private final class Handler extends Http2FrameAdapter {
+
+        final Http2ConnectionHandler handler = new Http2ConnectionHandlerBuilder().server(true).frameListener(this).build();
+        final Map<Integer, Http2Headers> requests = new ConcurrentHashMap<>();
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int padding, boolean endOfStream) {
+
+            if (endOfStream) {
+                respond(context, streamId, headers);
+            } else {
+                requests.put(streamId, headers);
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int streamDependency,
+                                  short weight, boolean exclusive, int padding, boolean endOfStream) {
+            onHeadersRead(context, streamId, headers, padding, endOfStream);
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext context, int streamId, ByteBuf data, int padding, boolean endOfStream) {
+
+            int processed = data.readableBytes() + padding;
+            if (endOfStream) {
+                respond(context, streamId, requests.remove(streamId));
+            }
+            return processed;
+        }
+
+        private void respond(ChannelHandlerContext context, int streamId, Http2Headers request) {
+
+            // /payload/{size}/identity
+            String[] segments = request.path().toString().split("/");
+            int size = (segments.length > 2) ? Integer.parseInt(segments[2]) : 0;
+
+            Http2Headers headers = new DefaultHttp2Headers().status("200").set("content-type", "text/plain");
+            handler.encoder().writeHeaders(context, streamId, headers, 0, size == 0, context.newPromise());
+            if (size > 0) {
+                handler.encoder().writeData(context, streamId, payload(size).duplicate(), 0, true, context.newPromise());
+            }
+            context.channel().flush();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.centro.rtb.http.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import net.centro.rtb.http.BufferedResponse;
+import net.centro.rtb.http.Http;
+import net.centro.rtb.http.HttpConnectorBuilder;
+import net.centro.rtb.http.PreparedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding JSON bid responses, the body read as a String then mapped, as HttpConnector.getResponseBody() does, against
+ * the bindings with a reader kept per type: from the byte[] of an HttpResult, from the connection's stream with
+ * PreparedRequest.executeJson(), and in place from the pooled buffer of a BufferedResponse.
+ *
+ * The decode...() benchmarks map bytes already in memory, the decode time and allocation of a response on its own; the
+ * others include the request. Run with "-prof gc" to get the allocation per response (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonDecodeBenchmark {
+
+    @Param({"NettyEngine", "Apache", "HttpUrlConnector"})
+    public Http.ConnectorProvider provider;
+
+    @Param({"1", "10"})
+    public int bids;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader READER = MAPPER.reader(BidResponse.class);
+
+    private LoopbackServer server;
+    private PreparedRequest request;
+    private byte[] json;
+
+    public static class BidResponse {
+        public String id;
+        public String cur;
+        public List<SeatBid> seatbid;
+    }
+
+    public static class SeatBid {
+        public String seat;
+        public List<Bid> bid;
+    }
+
+    public static class Bid {
+        public String id;
+        public String impid;
+        public double price;
+        public List<String> adomain;
+        public String crid;
+        public int w;
+        public int h;
+        public String adm;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        server = new LoopbackServer();
+        request = HttpConnectorBuilder.newBuilder()
+                .url(server.bidsUrl(bids))
+                .setConnectorProvider(provider)
+                .prepare();
+        json = LoopbackServer.bidResponse(bids).getBytes(StandardCharsets.UTF_8);
+
+        // fail fast if the combination does not work at all, rather than measuring exceptions
+        if (executeJson().seatbid.get(0).bid.size() != bids) {
+            throw new IllegalStateException("Unexpected response from " + provider);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    /** A String of the body, mapped by a fresh lookup of the ObjectMapper. */
+    @Benchmark
+    public BidResponse decodeString() throws Exception {
+        return MAPPER.readValue(new String(json, StandardCharsets.UTF_8), BidResponse.class);
+    }
+
+    /** The bytes bound with a kept reader. */
+    @Benchmark
+    public BidResponse decodeBytes() throws Exception {
+        return READER.readValue(json);
+    }
+
+    @Benchmark
+    public BidResponse stringThenMap() throws Exception {
+        return MAPPER.readValue(request.execute().getBody(), BidResponse.class);
+    }
+
+    @Benchmark
+    public BidResponse resultBody() throws Exception {
+        return request.execute().getBody(BidResponse.class);
+    }
+
+    @Benchmark
+    public BidResponse executeJson() throws Exception {
+        return request.executeJson(BidResponse.class).get();
+    }
+
+    @Benchmark
+    public BidResponse bufferedInPlace() throws Exception {
+        try (BufferedResponse response = request.executeBuffered().get()) {
+            return response.getBody(BidResponse.class);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.centro.rtb.http.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.centro.rtb.http.Http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process http server bound to the loopback interface, used as the target of the benchmarks.
+ *
+ * GET and POST requests to /payload/N/gzip|deflate|identity are answered with N bytes of body, compressed with
+ * the requested Content-Encoding, and GET and POST requests to /bids/N with a JSON bid response of N bids.
+ * Request bodies are drained and discarded. The parameters are kept in the path since not every connector forwards
+ * the query string.
+ */
+public class LoopbackServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, byte[]> payloads = new ConcurrentHashMap<>();
+
+    static {
+        // otherwise delayed ACKs on the server side dominate the measured latency
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public LoopbackServer() throws IOException {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public LoopbackServer(int threads) throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/payload", this::payload);
+        server.createContext("/bids", this::bids);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the url of the payload resource for the given size and encoding.
+     */
+    public String url(int size, Http.Encoding encoding) {
+        String name = (encoding == Http.Encoding.NONE) ? "identity" : encoding.getText();
+        return "http://127.0.0.1:" + getPort() + "/payload/" + size + "/" + name;
+    }
+
+    /**
+     * @return the url of a JSON bid response of the given number of bids.
+     */
+    public String bidsUrl(int bids) {
+        return "http://127.0.0.1:" + getPort() + "/bids/" + bids;
+    }
+
+    private void payload(HttpExchange exchange) throws IOException {
+
+        drain(exchange);
+
+        // /payload/{size}/{encoding}
+        String[] segments = exchange.getRequestURI().getRawPath().split("/");
+        int size = (segments.length > 2) ? Integer.parseInt(segments[2]) : 0;
+        String encoding = (segments.length > 3) ? segments[3] : "";
+
+        Http.Encoding contentEncoding = Http.Encoding.fromString(encoding);
+        if (contentEncoding == null) contentEncoding = Http.Encoding.NONE;
+        byte[] body = payload(size, contentEncoding);
+
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        if (contentEncoding != Http.Encoding.NONE) {
+            exchange.getResponseHeaders().add("Content-Encoding", contentEncoding.getText());
+        }
+        exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void bids(HttpExchange exchange) throws IOException {
+
+        drain(exchange);
+        // /bids/{count}
+        String[] segments = exchange.getRequestURI().getRawPath().split("/");
+        int count = (segments.length > 2) ? Integer.parseInt(segments[2]) : 1;
+        byte[] body = payloads.computeIfAbsent("bids" + count, k -> bidResponse(count).getBytes(StandardCharsets.UTF_8));
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] drain = new byte[8192];
+            while (in.read(drain) != -1) {
+                // discard the request body
+            }
+        }
+    }
+
+    /**
+     * Builds an OpenRTB style bid response of the given number of bids, one seat. Also used by the decode benchmarks.
+     */
+    public static String bidResponse(int bids) {
+
+        StringBuilder json = new StringBuilder("{\"id\":\"req-1\",\"cur\":\"USD\",\"seatbid\":[{\"seat\":\"seat-1\",\"bid\":[");
+        for (int i = 0; i < bids; i++) {
+            json.append((i > 0) ? "," : "")
+                    .append("{\"id\":\"bid-").append(i).append("\",\"impid\":\"").append(i + 1)
+                    .append("\",\"price\":").append(0.5 + i / 100.0)
+                    .append(",\"adomain\":[\"advertiser.example.com\"],\"crid\":\"creative-").append(i)
+                    .append("\",\"w\":300,\"h\":250,\"adm\":\"<a href=\\\"https://click.example.com/").append(i)
+                    .append("\\\"><img src=\\\"https://cdn.example.com/").append(i).append(".png\\\"/></a>\"}");
+        }
+        return json.append("]}]}").toString();
+    }
+
+    private byte[] payload(int size, Http.Encoding encoding) {
+        return payloads.computeIfAbsent(size + encoding.getText(), k -> encode(body(size), encoding));
+    }
+
+    /**
+     * Builds a plain text body of the given size. Also used by the benchmarks as the request body.
+     */
+    public static String body(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        for (int i = 0; i < size; i += 64) {
+            chars[i] = (char) ('a' + (i / 64) % 26);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] encode(String body, Http.Encoding encoding) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            switch (encoding) {
+                case GZIP:
+                    try (OutputStream out = new GZIPOutputStream(bytes)) {
+                        out.write(body.getBytes("US-ASCII"));
+                    }
+                    break;
+                case DEFLATE:
+                    try (OutputStream out = new DeflaterOutputStream(bytes)) {
+                        out.write(body.getBytes("US-ASCII"));
+                    }
+                    break;
+                default:
+                    bytes.write(body.getBytes("US-ASCII"));
+                    break;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
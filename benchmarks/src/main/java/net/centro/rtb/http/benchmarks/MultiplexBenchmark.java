@@ -0,0 +1,100 @@
+package net.centro.rtb.http.benchmarks;
+
+import net.centro.rtb.http.ClientFactory;
+import net.centro.rtb.http.Http;
+import net.centro.rtb.http.HttpConnectorBuilder;
+import net.centro.rtb.http.HttpResult;
+import net.centro.rtb.http.PoolStats;
+import net.centro.rtb.http.PreparedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of concurrent requests to a single host, the way an auction fans out to a bidder: the Http2 connector
+ * multiplexing them over an HTTP/2 connection (H2LoopbackServer), against the HTTP/1.1 connectors, which need a
+ * connection per request in flight (LoopbackServer).
+ *
+ * Each operation sends `concurrency` asynchronous requests of a PreparedRequest and waits for all of them.
+ * The connections each connector ended up with are printed at the end of the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiplexBenchmark {
+
+    @Param({"Http2", "Apache", "Jetty", "Grizzly", "Netty", "HttpUrlConnector"})
+    public Http.ConnectorProvider provider;
+
+    @Param({"1", "16", "64"})
+    public int concurrency;
+
+    @Param({"256", "4096"})
+    public int payloadSize;
+
+    private LoopbackServer http1;
+    private H2LoopbackServer h2;
+    private PreparedRequest request;
+
+    @SuppressWarnings("unchecked")
+    private final CompletableFuture<HttpResult>[] futures = new CompletableFuture[64];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        http1 = new LoopbackServer();
+        h2 = new H2LoopbackServer();
+        String url = (provider == Http.ConnectorProvider.Http2) ? h2.url(payloadSize) : http1.url(payloadSize, Http.Encoding.NONE);
+        request = HttpConnectorBuilder.newBuilder()
+                .url(url)
+                .setConnectorProvider(provider)
+                .prepare();
+
+        // fail fast if the combination does not work at all, rather than measuring exceptions
+        if (burst() != concurrency * payloadSize) {
+            throw new IllegalStateException("Unexpected responses from " + provider);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        int connections = 0;
+        for (PoolStats stats : ClientFactory.getPoolStats(request.getClientProfile()).values()) {
+            connections += stats.getLeased() + stats.getIdle();
+        }
+        System.out.println(provider + " x" + concurrency + ": " + ((provider == Http.ConnectorProvider.Http2)
+                ? h2.getConnectionCount() + " connections accepted" : connections + " pooled connections (Apache and Jetty only)"));
+        http1.close();
+        h2.close();
+    }
+
+    @Benchmark
+    public int burst() throws Exception {
+
+        for (int i = 0; i < concurrency; i++) {
+            futures[i] = request.executeAsync();
+        }
+        int length = 0;
+        for (int i = 0; i < concurrency; i++) {
+            length += futures[i].get().getBody().length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,88 @@
+package net.centro.rtb.http.benchmarks;
+
+import net.centro.rtb.http.BufferedResponse;
+import net.centro.rtb.http.Http;
+import net.centro.rtb.http.HttpConnectorBuilder;
+import net.centro.rtb.http.PreparedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small JSON bid requests sent with a kept PreparedRequest, where the cost per call of the client stack shows the most:
+ * the JdkHttpClient and NettyEngine connectors, sending around the Jersey client, against Jersey invocations on the
+ * other connectors. executeBuffered() reads the body in place, without copying it to an HttpResult.
+ *
+ * The JdkHttpClient connector needs Java 11 or later, its trials fail on Java 8.
+ * Run with "-prof gc" to get the allocation rate per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreparedRequestBenchmark {
+
+    private static final String BID = "{\"id\":\"1\",\"imp\":[{\"id\":\"1\",\"banner\":{\"w\":300,\"h\":250},\"bidfloor\":0.5}],"
+            + "\"site\":{\"domain\":\"example.com\"},\"tmax\":120}";
+
+    @Param({"NettyEngine", "JdkHttpClient", "HttpUrlConnector", "Apache", "Jetty"})
+    public Http.ConnectorProvider provider;
+
+    @Param({"SYNC", "ASYNC"})
+    public Http.SyncType syncType;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private LoopbackServer server;
+    private PreparedRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        server = new LoopbackServer();
+        request = HttpConnectorBuilder.newBuilder()
+                .url(server.url(payloadSize, Http.Encoding.NONE))
+                .setMethod(Http.HttpMethod.POST)
+                .addHeaderProperty("content-type", "application/json")
+                .setBody(BID)
+                .setConnectorProvider(provider)
+                .prepare();
+
+        // fail fast if the combination does not work at all, rather than measuring exceptions
+        if (execute().length() != payloadSize) {
+            throw new IllegalStateException("Unexpected response from " + provider);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String execute() throws Exception {
+        return (syncType == Http.SyncType.ASYNC) ? request.executeAsync().get().getBody() : request.execute().getBody();
+    }
+
+    @Benchmark
+    public int executeBuffered() throws Exception {
+        try (BufferedResponse response = request.executeBuffered().get()) {
+            return response.getBody().remaining();
+        }
+    }
+}
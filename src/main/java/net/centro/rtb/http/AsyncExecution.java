@@ -0,0 +1,330 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Type;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single asynchronous execution of a Jersey invocation, completing a CompletableFuture of HttpResult.
+ *
+ * The response is read on the client's async thread pool, never on the caller's thread. The Jetty connector
+ * hands the response over before its body, and feeds the body from the same thread, so its responses are
+ * read on a thread of their own.
+ * When a Deadline is set, the connect and first byte budgets are passed to the connector as per-request properties
+ * (the cached Client is not affected), and timers complete the future with a DeadlineExceededException and
+ * cancel the request when a budget runs out. A response arriving after the future completed is closed right away.
+ * A download writes the body of a 2xx response to its file (FileSink) rather than to the result, a decoding execution
+ * binds the JSON body of a 2xx response straight from the connection, and a buffered one reads the body into a pooled
+ * buffer (BufferedResponse).
+ */
+final class AsyncExecution<R> implements InvocationCallback<Response> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncExecution.class);
+
+    static final Executor bodyReader = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jumper-body-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CompletableFuture<R> result = new CompletableFuture<>();
+    private final Map<String, NewCookie> cookieStore;
+    private final Deadline deadline;
+    private final Executor reader;
+    private final ResponseReader<R> responseReader;
+    private final long start = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private volatile Response response;
+    private volatile ScheduledFuture<?> totalTimer;
+    private volatile ScheduledFuture<?> phaseTimer;
+
+    private AsyncExecution(Map<String, NewCookie> cookieStore, Deadline deadline, Http.ConnectorProvider connectorProvider,
+                           ResponseReader<R> responseReader) {
+        this.cookieStore = cookieStore;
+        this.deadline = deadline;
+        this.reader = (connectorProvider == Http.ConnectorProvider.Jetty) ? bodyReader : Runnable::run;
+        this.responseReader = responseReader;
+    }
+
+    /**
+     * Submits the invocation.
+     * @param invocation the request to submit.
+     * @param storeCookies whether to store the response cookies in the calling thread's cookie store.
+     * @param deadline the time budget of the request, null for none.
+     * @param connectorProvider the connector of the invocation's Client.
+     * @return a future of the result, cancelling it cancels the request.
+     */
+    static CompletableFuture<HttpResult> submit(Invocation invocation, boolean storeCookies, Deadline deadline,
+                                                Http.ConnectorProvider connectorProvider) {
+        // cookies go to the store of the calling thread
+        return submit(invocation, storeCookies ? HttpConnectorCookieManager.getCookies() : null, deadline, connectorProvider);
+    }
+
+    /**
+     * Submits the invocation, storing the response cookies in the given store.
+     * For requests submitted from another thread than the caller's, e.g. a hedge sent by the timer.
+     * @param cookieStore the store of the response cookies, null to not store them.
+     */
+    static CompletableFuture<HttpResult> submit(Invocation invocation, Map<String, NewCookie> cookieStore, Deadline deadline,
+                                                Http.ConnectorProvider connectorProvider) {
+        return submit(new AsyncExecution<>(cookieStore, deadline, connectorProvider, AsyncExecution::readResult), invocation);
+    }
+
+    /**
+     * Submits the invocation, the body of a 2xx response written to the file, the result's body left empty.
+     * Other responses are read as by submit(). The deadline's body budget covers writing the file.
+     * @param path the file to write, created or truncated.
+     */
+    static CompletableFuture<HttpResult> download(Invocation invocation, Map<String, NewCookie> cookieStore, Deadline deadline,
+                                                  Http.ConnectorProvider connectorProvider, java.nio.file.Path path) {
+        return submit(new AsyncExecution<>(cookieStore, deadline, connectorProvider,
+                (execution, response) -> download(execution, response, path)), invocation);
+    }
+
+    /**
+     * Submits the invocation, the decoded body read into a pooled buffer rather than a byte[], see BufferedResponse.
+     * A response read after the future completed, cancelled or out of time, is released right away.
+     * @param check the check of the status and headers, before the body is read; null for none.
+     */
+    static CompletableFuture<BufferedResponse> buffered(Invocation invocation, Map<String, NewCookie> cookieStore, Deadline deadline,
+                                                        Http.ConnectorProvider connectorProvider, ResponseCheck check) {
+        return submit(new AsyncExecution<BufferedResponse>(cookieStore, deadline, connectorProvider, (execution, response) -> {
+            if (check != null) {
+                // a failed check closes the response unread
+                check.check(response.getStatus(), response::getHeaderString);
+            }
+            readBuffered(execution, response);
+        }), invocation);
+    }
+
+    /**
+     * Submits the invocation, the JSON body of a 2xx response bound to the type as it is read, decoded on the fly.
+     * A 2xx response without a body completes with null, any other response with a ProcessingException.
+     * @param type a Class or the type of a GenericType.
+     */
+    static <T> CompletableFuture<T> decode(Invocation invocation, Map<String, NewCookie> cookieStore, Deadline deadline,
+                                           Http.ConnectorProvider connectorProvider, Type type) {
+        return submit(new AsyncExecution<T>(cookieStore, deadline, connectorProvider,
+                (execution, response) -> execution.result.complete(decode(response, type))), invocation);
+    }
+
+    private static <R> CompletableFuture<R> submit(AsyncExecution<R> execution, Invocation invocation) {
+
+        Deadline deadline = execution.deadline;
+
+        if (deadline != null) {
+            invocation.property(ClientProperties.CONNECT_TIMEOUT, Deadline.toMillis(deadline.getConnectBudget(TimeUnit.NANOSECONDS)));
+            invocation.property(ClientProperties.READ_TIMEOUT, Deadline.toMillis(deadline.getFirstByteBudget(TimeUnit.NANOSECONDS)));
+            execution.startTimers();
+        }
+
+        Future<Response> future = invocation.submit(execution);
+
+        execution.result.whenComplete((httpResult, throwable) -> {
+            execution.cancelTimers();
+            if (throwable != null) {
+                future.cancel(true);
+            }
+        });
+        return execution.result;
+    }
+
+    @Override
+    public void completed(Response response) {
+
+        this.response = response;
+        if (result.isDone()) {
+            // cancelled or out of time, release the connection right away
+            response.close();
+            return;
+        }
+
+        if (deadline != null && deadline.hasBodyBudget()) {
+            cancel(phaseTimer);
+            phaseTimer = HttpTimer.schedule(() -> expire(Http.RequestPhase.BODY), deadline.getBodyBudget(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+
+        reader.execute(() -> {
+            try {
+                if (cookieStore != null) {
+                    cookieStore.putAll(response.getCookies());
+                }
+                responseReader.read(this, response);
+            } catch (RuntimeException e) {
+                response.close();
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static void readResult(AsyncExecution<HttpResult> execution, Response response) {
+        execution.result.complete(HttpResult.read(response, execution.start));
+    }
+
+    private static void readBuffered(AsyncExecution<BufferedResponse> execution, Response response) {
+
+        BufferedResponse buffered = BufferedResponse.read(response, execution.start);
+        if (!execution.result.complete(buffered)) {
+            buffered.release();
+        }
+    }
+
+    private static <T> T decode(Response response, Type type) {
+
+        try {
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                throw new ProcessingException("Unexpected response: " + response.getStatus() + " " + response.getStatusInfo().getReasonPhrase());
+            }
+            if (!response.hasEntity()) {
+                return null;
+            }
+            Http.Encoding encoding = HttpConnector.getEncoding(response);
+            try (InputStream in = HttpConnector.getInputStreamDecoded(response.readEntity(InputStream.class), (encoding != null) ? encoding : Http.Encoding.NONE)) {
+                return JsonCodec.read(in, type);
+            }
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to map the response body to " + type.getTypeName(), e);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static void download(AsyncExecution<HttpResult> execution, Response response, java.nio.file.Path path) {
+
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            readResult(execution, response);
+            return;
+        }
+        // the copy blocks on reading the body, never on the disk
+        bodyReader.execute(() -> save(execution, response, path));
+    }
+
+    private static void save(AsyncExecution<HttpResult> execution, Response response, java.nio.file.Path path) {
+
+        CompletableFuture<HttpResult> result = execution.result;
+        try {
+            HttpResult withoutBody = HttpResult.withoutBody(response, execution.start);
+            FileSink sink = new FileSink(path);
+            CompletableFuture<Long> saved = response.hasEntity()
+                    ? sink.copyAsync(HttpConnector.getResponseBody(response, InputStream.class))
+                    : sink.finish();
+            saved.whenComplete((size, throwable) -> {
+                response.close();
+                if (throwable != null) {
+                    result.completeExceptionally(new ProcessingException("Failed to save the response body", throwable));
+                } else {
+                    result.complete(withoutBody);
+                }
+            });
+        } catch (RuntimeException e) {
+            response.close();
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void failed(Throwable throwable) {
+
+        if (result.isDone()) {
+            return;
+        }
+
+        Throwable cause = (throwable instanceof ProcessingException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+        if (deadline != null && cause instanceof InterruptedIOException) {
+            // the connector's own connect/read timeout, set from the deadline's budgets. A read timeout before
+            // the headers is the first byte budget running out, even when it is within the connect budget
+            Http.RequestPhase phase = isConnectTimeout(cause) ? Http.RequestPhase.CONNECT
+                    : (response != null) ? Http.RequestPhase.BODY : Http.RequestPhase.FIRST_BYTE;
+            DeadlineExceededException exception = new DeadlineExceededException(phase, elapsed(), deadline);
+            exception.initCause(throwable);
+            result.completeExceptionally(exception);
+            return;
+        }
+
+        logger.warn("Request failed: " + throwable.getMessage());
+        result.completeExceptionally(throwable);
+    }
+
+    private void startTimers() {
+
+        totalTimer = HttpTimer.schedule(() -> expire(currentPhase()), deadline.getTimeout(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        if (deadline.hasFirstByteBudget()) {
+            phaseTimer = HttpTimer.schedule(() -> {
+                if (response == null) {
+                    expire(Http.RequestPhase.FIRST_BYTE);
+                }
+            }, deadline.getFirstByteBudget(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void expire(Http.RequestPhase phase) {
+
+        if (result.completeExceptionally(new DeadlineExceededException(phase, elapsed(), deadline))) {
+            logger.debug("Deadline exceeded during {}", phase);
+            Response late = response;
+            if (late != null) {
+                // aborts a body read in progress, off the timer thread: closing can block on draining or releasing
+                // the connection, and would hold up the deadlines of the other requests
+                bodyReader.execute(late::close);
+            }
+        }
+    }
+
+    /**
+     * The connectors do not report when the connection is established, so until the headers arrive
+     * the request is considered connecting for as long as it is within the connect budget.
+     */
+    private Http.RequestPhase currentPhase() {
+
+        if (response != null) {
+            return Http.RequestPhase.BODY;
+        }
+        return (System.nanoTime() - startNanos < deadline.getConnectBudget(TimeUnit.NANOSECONDS)) ? Http.RequestPhase.CONNECT : Http.RequestPhase.FIRST_BYTE;
+    }
+
+    private static boolean isConnectTimeout(Throwable cause) {
+
+        String message = (cause.getMessage() != null) ? cause.getMessage().toLowerCase(Locale.ROOT) : "";
+        return cause.getClass().getSimpleName().startsWith("Connect") || message.contains("connect timed out");
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private void cancelTimers() {
+        cancel(totalTimer);
+        cancel(phaseTimer);
+    }
+
+    private static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Reads a response to the result of its execution, on the thread the response was handed over on.
+     */
+    private interface ResponseReader<R> {
+        void read(AsyncExecution<R> execution, Response response);
+    }
+}
@@ -0,0 +1,410 @@
+package net.centro.rtb.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ResourceLeak;
+import io.netty.util.ResourceLeakDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A response whose body is handed over as a buffer rather than copied to an HttpResult, see PreparedRequest.executeBuffered().
+ *
+ * The body is a buffer of Netty's pooled allocator: with the NettyEngine connector the one it was read into, with the
+ * headers parsed on demand from the bytes read, with the Jersey connectors a heap buffer the decoded body is streamed
+ * into, sized by the Content-Length. Once warm, a response costs next to no garbage. The buffer goes back to the pool
+ * once the response is released: release it, or use it in a try-with-resources block, once done with the body. The body
+ * and headers must not be used after that. With the JdkHttpClient connector the response wraps an HttpResult.
+ *
+ * Responses are sampled by a leak detector like the pooled buffers themselves, on the io.netty.leakDetection.level
+ * system property: one in 128 with the default "simple" level, all of them with "paranoid" (as the tests run), a
+ * response collected without having been released is logged with where it was created.
+ */
+public final class BufferedResponse implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferedResponse.class);
+
+    private static final AtomicIntegerFieldUpdater<BufferedResponse> RELEASED = AtomicIntegerFieldUpdater.newUpdater(BufferedResponse.class, "released");
+
+    private static final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    // a body without a Content-Length starts at this size and grows as it is read
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private static final AtomicLong leaked = new AtomicLong();
+
+    private static final ResourceLeakDetector<BufferedResponse> leakDetector = new ResourceLeakDetector<BufferedResponse>(BufferedResponse.class, 128, Long.MAX_VALUE) {
+
+        @Override
+        protected void reportTracedLeak(String resourceType, String records) {
+            leaked.incrementAndGet();
+            logger.error("LEAK: BufferedResponse.release() was not called before it was garbage collected, created at:{}", records);
+        }
+
+        @Override
+        protected void reportUntracedLeak(String resourceType) {
+            leaked.incrementAndGet();
+            logger.error("LEAK: BufferedResponse.release() was not called before it was garbage collected. "
+                    + "Set -Dio.netty.leakDetection.level=paranoid to find out where it was created.");
+        }
+    };
+
+    private final int status;
+    private final String reasonPhrase;
+    private final ResponseHead head;
+    private final ByteBuf headBytes;
+    private final ByteBuf body;
+    private final long responseTime;
+    private MultivaluedMap<String, String> headers;
+    private Map<String, NewCookie> cookies;
+    private final ResourceLeak leak = leakDetector.open(this);
+    private volatile int released;
+
+    /**
+     * @param head the status line and headers, parsed from headBytes.
+     * @param headBytes the buffer of the head, released with the response.
+     * @param body the decoded body, released with the response.
+     */
+    BufferedResponse(ResponseHead head, ByteBuf headBytes, ByteBuf body, long responseTime) {
+
+        this.status = head.getStatus();
+        this.reasonPhrase = null;
+        this.head = head;
+        this.headBytes = headBytes;
+        this.body = body;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * @param body the decoded body, released with the response.
+     */
+    BufferedResponse(int status, String reasonPhrase, MultivaluedMap<String, String> headers, Map<String, NewCookie> cookies,
+                     ByteBuf body, long responseTime) {
+
+        this.status = status;
+        this.reasonPhrase = reasonPhrase;
+        this.head = null;
+        this.headBytes = null;
+        this.body = body;
+        this.headers = headers;
+        this.cookies = cookies;
+        this.responseTime = responseTime;
+    }
+
+    private BufferedResponse(HttpResult result) {
+        this(result.getStatus(), result.getReasonPhrase(), result.getHeaders(), result.getCookies(),
+                Unpooled.wrappedBuffer(result.getBodyBytes()), result.getResponseTime());
+    }
+
+    /**
+     * Reads the decoded body of the Jersey response into a pooled buffer, and closes the response.
+     * @param response the response to read.
+     * @param start the time (System.currentTimeMillis()) the request was invoked.
+     */
+    static BufferedResponse read(Response response, long start) {
+
+        ByteBuf body = null;
+        try {
+            if (response.hasEntity()) {
+                Http.Encoding encoding = HttpConnector.getEncoding(response);
+                int length = (encoding == null || encoding == Http.Encoding.NONE) ? response.getLength() : -1;
+                body = allocator.heapBuffer(length >= 0 ? length : INITIAL_CAPACITY);
+                try (InputStream in = HttpConnector.getInputStreamDecoded(response.readEntity(InputStream.class), (encoding != null) ? encoding : Http.Encoding.NONE)) {
+                    readFully(in, body);
+                }
+            } else {
+                body = Unpooled.EMPTY_BUFFER;
+            }
+            BufferedResponse buffered = new BufferedResponse(response.getStatus(), response.getStatusInfo().getReasonPhrase(),
+                    HttpResult.headers(response), Collections.unmodifiableMap(response.getCookies()), body, System.currentTimeMillis() - start);
+            body = null;
+            return buffered;
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to read the response body", e);
+        } finally {
+            ReferenceCountUtil.release(body);
+            response.close();
+        }
+    }
+
+    /**
+     * Reads the stream to its end, growing the buffer only if the bytes outrun its capacity.
+     */
+    private static void readFully(InputStream in, ByteBuf body) throws IOException {
+
+        while (true) {
+            if (!body.isWritable()) {
+                // full, at the Content-Length: only grow if there is more
+                int next = in.read();
+                if (next < 0) {
+                    return;
+                }
+                body.writeByte(next);
+            }
+            if (body.writeBytes(in, body.writableBytes()) < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a future of the response of the result, cancelling it cancels the future of the result.
+     */
+    static CompletableFuture<BufferedResponse> from(CompletableFuture<HttpResult> future) {
+
+        CompletableFuture<BufferedResponse> buffered = new CompletableFuture<>();
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                buffered.completeExceptionally((throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable);
+            } else {
+                buffered.complete(new BufferedResponse(result));
+            }
+        });
+        buffered.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                future.cancel(true);
+            }
+        });
+        return buffered;
+    }
+
+    /**
+     * @return HTTP response code (200,302,400,500,..)
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the reason phrase of the status line, empty if the server sent none.
+     */
+    public String getReasonPhrase() {
+        return (reasonPhrase != null) ? reasonPhrase : head().getReasonPhrase();
+    }
+
+    /**
+     * @return true for a 2xx response code.
+     */
+    public boolean isSuccessful() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Get the value of a specific header, without parsing the others. Header names are case insensitive.
+     * @return the first value of the header, or null if it is missing.
+     */
+    public String getHeader(String name) {
+
+        if (head != null) {
+            return head().get(name);
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all the response headers, parsed on the first call.
+     */
+    public MultivaluedMap<String, String> getHeaders() {
+
+        if (headers == null) {
+            headers = head().toMap();
+        }
+        return headers;
+    }
+
+    /**
+     * @return the cookies set by the response, parsed on the first call.
+     */
+    public Map<String, NewCookie> getCookies() {
+
+        if (cookies == null) {
+            cookies = Collections.unmodifiableMap(HttpEngine.cookies(head().getAll("set-cookie")));
+        }
+        return cookies;
+    }
+
+    /**
+     * @return a read only view of the decoded body, valid until the response is released.
+     */
+    public ByteBuffer getBody() {
+
+        checkReleased();
+        return body.nioBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the length of the decoded body.
+     */
+    public int getBodyLength() {
+        return body.readableBytes();
+    }
+
+    /**
+     * @return the decoded body as a String, using the charset of the Content-Type header (UTF-8 by default).
+     */
+    public String getBodyAsString() {
+
+        checkReleased();
+        return body.toString(getCharset());
+    }
+
+    /**
+     * Binds the JSON body to the type in place, from the pooled buffer, with no String or byte[] copy of it.
+     * @return the body mapped to the type, null if the body is empty.
+     */
+    public <T> T getBody(Class<T> tClass) {
+        return decode(tClass);
+    }
+
+    /**
+     * Binds the JSON body to a generic type in place. (Ex. getBody(new GenericType&lt;List&lt;Integer&gt;&gt;() {}))
+     * @return the body mapped to the type, null if the body is empty.
+     */
+    public <T> T getBody(GenericType<T> type) {
+        return decode(type.getType());
+    }
+
+    /**
+     * @return the JSON body bound to a Class or the type of a GenericType, null if the body is empty.
+     */
+    <T> T decode(Type type) {
+
+        checkReleased();
+        if (!body.isReadable()) {
+            return null;
+        }
+        try {
+            return body.hasArray()
+                    ? JsonCodec.read(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes(), type)
+                    : JsonCodec.read(new ByteBufInputStream(body.duplicate()), type);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to map the response body to " + type.getTypeName(), e);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds it took to invoke the request and read the response.
+     */
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Copies the response to an HttpResult, and releases it.
+     */
+    public HttpResult toResult() {
+
+        try {
+            byte[] bytes = new byte[body.readableBytes()];
+            body.getBytes(body.readerIndex(), bytes);
+            return new HttpResult(status, getReasonPhrase(), getHeaders(), getCookies(), bytes, responseTime);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * @return an HttpResult of the status, headers and cookies, without the body. The response is not released.
+     */
+    HttpResult toResultWithoutBody() {
+        return new HttpResult(status, getReasonPhrase(), getHeaders(), getCookies(), null, responseTime);
+    }
+
+    /**
+     * Gives the body back to its pool. Only the first call releases it.
+     */
+    public void release() {
+
+        if (RELEASED.compareAndSet(this, 0, 1)) {
+            if (leak != null) {
+                leak.close();
+            }
+            ReferenceCountUtil.release(body);
+            if (headBytes != null) {
+                ReferenceCountUtil.release(headBytes);
+            }
+        }
+    }
+
+    public boolean isReleased() {
+        return released != 0;
+    }
+
+    /**
+     * Releases the response.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * @return the number of responses collected without having been released, as reported by the leak detector.
+     */
+    static long leaked() {
+        return leaked.get();
+    }
+
+    private ResponseHead head() {
+
+        checkReleased();
+        return head;
+    }
+
+    private void checkReleased() {
+
+        if (released != 0) {
+            throw new IllegalStateException("The response was released");
+        }
+    }
+
+    private Charset getCharset() {
+
+        String contentType = getHeader("content-type");
+        if (contentType != null) {
+            try {
+                String charset = MediaType.valueOf(contentType).getParameters().get(MediaType.CHARSET_PARAMETER);
+                if (charset != null) {
+                    return Charset.forName(charset);
+                }
+            } catch (IllegalArgumentException e) {
+                // unparsable or unsupported charset, fall back to the default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferedResponse{" + status + ", " + body.readableBytes() + " bytes, " + responseTime + "ms" + (isReleased() ? ", released}" : "}");
+    }
+}
@@ -2,7 +2,9 @@ package net.centro.rtb.http;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
 import org.glassfish.grizzly.compression.zip.GZipDecoder;
 import org.glassfish.grizzly.compression.zip.GZipEncoder;
 import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
@@ -18,74 +20,165 @@ import org.glassfish.jersey.message.filtering.EntityFilteringFeature;
 import org.glassfish.jersey.message.internal.MessagingBinders;
 import org.glassfish.jersey.netty.connector.NettyConnectorProvider;
 
+import javax.net.ssl.SSLContext;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.Provider;
 import javax.ws.rs.ext.WriterInterceptor;
 import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * The ClientFactory class is used by the HttpConnector to get a Client class.
  * Cliet objects are cached in the ClientFactory class and expire one minute after last access.
+ *
+ * At most 64 clients are cached by default. A client that expires or is evicted stops taking new requests
+ * and is closed once its requests in flight are done, or after the drain timeout (one minute by default).
+ * A client used outside of this library is to be leased with leaseClient(), so that it is not closed while in use.
  */
 public class ClientFactory {
 
-    private static CacheLoader loader;
-    private static LoadingCache<ClientIdentifier,Client> cache;
+    private static CacheLoader<ClientProfile,ManagedClient> loader;
+    private static RemovalListener<ClientProfile,ManagedClient> removalListener;
+    private static volatile LoadingCache<ClientProfile,ManagedClient> cache;
+    private static long staleTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+    private static long maximumSize = 64;
+    private static volatile long drainTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+    private static final LongAdder closed = new LongAdder();
 
     static {
 
-        loader = new CacheLoader<ClientIdentifier,Client>() {
+        loader = new CacheLoader<ClientProfile,ManagedClient>() {
             @Override
-            public Client load(ClientIdentifier ci) throws Exception {
-                return createNewClient(ci.builder);
+            public ManagedClient load(ClientProfile profile) throws Exception {
+                Client client = createNewClient(profile);
+                HttpEngine engine = HttpEngine.create(profile, client);
+                return new ManagedClient(profile, client, ConnectionPools.install(client, profile, engine), engine);
             }
         };
-        cache = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).build(loader);
+        removalListener = notification -> notification.getValue().retire(drainTimeoutNanos, TimeUnit.NANOSECONDS);
+        cache = newCache();
     }
 
+    private static LoadingCache<ClientProfile,ManagedClient> newCache() {
+
+        return CacheBuilder.newBuilder()
+                .expireAfterAccess(staleTimeoutNanos, TimeUnit.NANOSECONDS)
+                .maximumSize(maximumSize)
+                .removalListener(removalListener)
+                .recordStats()
+                .build(loader);
+    }
+
+    /**
+     * Swaps in a new, empty cache and retires the clients of the old one.
+     */
+    private static synchronized void replaceCache() {
+
+        LoadingCache<ClientProfile,ManagedClient> old = cache;
+        cache = newCache();
+        old.invalidateAll();
+    }
+
+    /**
+     * @deprecated the Client is not leased: once evicted from the cache and drained, it is closed, and fails with
+     * "Client instance has been closed". Use leaseClient(builder.getClientProfile()), or HttpConnectorBuilder.prepare().
+     */
+    @Deprecated
     public static Client getClient(HttpConnectorBuilder builder) {
 
-        return cache.getUnchecked(new ClientIdentifier(builder));
+        return client(builder.getClientProfile());
 
     }
 
-    private static Client createNewClient(HttpConnectorBuilder builder) {
+    /**
+     * @param profile the settings of the Client, see HttpConnectorBuilder.getClientProfile().
+     * @return the cached Client of the profile, created if missing.
+     * @deprecated the Client is not leased: once evicted from the cache and drained, it is closed, and fails with
+     * "Client instance has been closed". Use leaseClient(), or HttpConnectorBuilder.prepare().
+     */
+    @Deprecated
+    public static Client getClient(ClientProfile profile) {
+
+        return client(profile);
+
+    }
+
+    /**
+     * Leases the cached Client of the profile, created if missing. The client is not closed, even once evicted,
+     * until the lease is closed.
+     * @param profile the settings of the Client, see HttpConnectorBuilder.getClientProfile().
+     */
+    public static ClientLease leaseClient(ClientProfile profile) {
+        return new ClientLease(acquire(profile));
+    }
+
+    /**
+     * @return the cached Client of the profile, not leased: for getRawClient(), which makes no promise to keep it open.
+     */
+    static Client client(ClientProfile profile) {
+        return cache.getUnchecked(profile).getClient();
+    }
+
+    /**
+     * Leases the cached client of the profile, the lease must be released once the request is done.
+     * A retired client is never returned, so the client stays open until the lease is released.
+     */
+    static ManagedClient acquire(ClientProfile profile) {
+
+        while (true) {
+            ManagedClient managed = cache.getUnchecked(profile);
+            if (managed.acquire()) {
+                return managed;
+            }
+            // retired between the lookup and the lease, already out of the cache
+        }
+    }
+
+    static void onClosed() {
+        closed.increment();
+    }
+
+    private static Client createNewClient(ClientProfile profile) {
 
         ClientConfig config = new ClientConfig();
+        config.register(new StreamingBody.Writer());
+        config.register(LeaseFilter.INSTANCE);
 
-        if ((builder.getRequestHeaders().get("content-type") != null) && (builder.getRequestHeaders().get("content-type").toString().contains("multipart"))) {
+        if (profile.isMultipart()) {
             config.register(MultiPartFeature.class);
         }
 
-        switch (builder.getCompressionEncoding()) {
+        switch (profile.getEncoding()) {
             case GZIP:
-                config.register(GZIPWriterInterceptor.class);
-                break;
             case DEFLATE:
-                config.register(DeflateWriterInterceptor.class);
+                config.register(new CompressionWriterInterceptor(profile));
                 break;
             default:
                 break;
         }
 
-        builder.getClientProperties().entrySet().stream().forEach(entry -> config.property(entry.getKey(), entry.getValue()));
+        profile.getProperties().entrySet().stream().forEach(entry -> config.property(entry.getKey(), entry.getValue()));
 
-        switch (builder.getConnectorProvider()) {
+        switch (profile.getConnectorProvider()) {
 
             case Grizzly:
-                config.connectorProvider(new GrizzlyConnectorProvider());
+                config.connectorProvider(ConnectionPools.grizzlyProvider(profile.getPoolSettings()));
                 break;
             case Apache:
                 config.connectorProvider(new ApacheConnectorProvider());
@@ -97,22 +190,29 @@ public class ClientFactory {
                 config.connectorProvider(new NettyConnectorProvider());
                 break;
             case HttpUrlConnector:
+            case JdkHttpClient:
+            case NettyEngine:
                 //config.connectorProvider(new HttpUrlConnectorProvider()); // Jersey default
                 break;
+            case Http2:
+                config.connectorProvider(Http2Connector.provider(profile.getPoolSettings(), profile.getHostResolver()));
+                break;
             default:
                 break;
         }
 
-        switch (builder.getConnType()) {
+        switch (profile.getHttpProtocol()) {
 
             case HTTP:
                 return ClientBuilder.newBuilder().withConfig(config).build();
             case HTTPS:
-                if (builder.isTrustAllSslContext()) {
-                    return ClientBuilder.newBuilder().withConfig(config).sslContext(HttpConnectorBuilder.getTrustAllSslContext()).build();
-                } else {
-                    return ClientBuilder.newBuilder().withConfig(config).build();
+                // an SSLContext per client, with its own session cache and handshake metrics
+                ClientBuilder builder = ClientBuilder.newBuilder().withConfig(config)
+                        .sslContext(TlsContext.create(profile.getTlsSettings(), profile.isTrustAllSsl()));
+                if (profile.isTrustAllSsl()) {
+                    builder.hostnameVerifier((hostname, session) -> true);
                 }
+                return builder.build();
             default:
                 return ClientBuilder.newBuilder().withConfig(config).build();
         }
@@ -124,91 +224,183 @@ public class ClientFactory {
     }
 
     /**
-     * Setting the cache object stale timeout. Default is set to one minute.
-     * @param timeout set the time numeric value.
-     * @param timeUnit enum setting of minutes/seconds
+     * @return the hit rate, load time and eviction statistics of the current cache.
+     * They start over when the cache is replaced by setCacheStaleTimeout() or setMaximumSize().
      */
-    public static void setCacheStaleTimeout(int timeout, TimeUnit timeUnit) {
-        cache = CacheBuilder.newBuilder().expireAfterAccess(timeout, timeUnit).build(loader);
+    public static CacheStats getCacheStats() {
+        return cache.stats();
     }
 
-    private static class ClientIdentifier {
+    /**
+     * @return the connection pool gauges by host:port, summed over the cached clients.
+     * Covers the Apache, Jetty, Http2 and NettyEngine connectors, the other connectors do not expose their pools.
+     */
+    public static Map<String, PoolStats> getPoolStats() {
 
-        private Http.ConnectorProvider connectorProvider;
-        private Http.HttpProtocol httpProtocol;
-        private Map<String, Object> properties;
-        private boolean trustAllSSL;
-        private Http.Encoding encoding;
+        Map<String, PoolStats> stats = new HashMap<>();
+        for (ManagedClient client : cache.asMap().values()) {
+            client.getPool().getStats().forEach((host, pool) -> stats.merge(host, pool, PoolStats::add));
+        }
+        return stats;
+    }
 
-        private HttpConnectorBuilder builder;
+    /**
+     * @param profile the settings of the Client, see HttpConnectorBuilder.getClientProfile().
+     * @return the connection pool gauges of the cached client of the profile by host:port, empty if it is not cached.
+     */
+    public static Map<String, PoolStats> getPoolStats(ClientProfile profile) {
 
-        ClientIdentifier(HttpConnectorBuilder builder) {
+        ManagedClient client = cache.getIfPresent(profile);
+        return (client != null) ? client.getPool().getStats() : Collections.emptyMap();
+    }
 
-            //this.redirect = builder.isRedirect();
-            this.encoding = builder.getCompressionEncoding();
-            this.connectorProvider = builder.getConnectorProvider();
-            this.httpProtocol = builder.getConnType();
-            //this.threadPool = builder.getAsyncThreadPoolSize();
-            this.properties = builder.getClientProperties();
-            this.trustAllSSL = builder.isTrustAllSslContext();
-            this.builder = builder;
+    /**
+     * @return the TLS handshake metrics, summed over the cached HTTPS clients.
+     * They start over for a client created again after it was evicted.
+     */
+    public static TlsStats getTlsStats() {
 
+        TlsStats stats = TlsStats.EMPTY;
+        for (ManagedClient client : cache.asMap().values()) {
+            stats = stats.add(tlsStats(client));
         }
+        return stats;
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof ClientIdentifier)) return false;
+    /**
+     * @param profile the settings of the Client, see HttpConnectorBuilder.getClientProfile().
+     * @return the TLS handshake metrics of the cached client of the profile, empty if it is not cached or not HTTPS.
+     */
+    public static TlsStats getTlsStats(ClientProfile profile) {
 
-            ClientIdentifier that = (ClientIdentifier) o;
+        ManagedClient client = cache.getIfPresent(profile);
+        return (client != null) ? tlsStats(client) : TlsStats.EMPTY;
+    }
 
-            if (connectorProvider != that.connectorProvider) return false;
-            if (!properties.equals(that.properties)) return false;
-            if (trustAllSSL != that.trustAllSSL) return false;
-            if (!encoding.equals(that.encoding)) return false;
-            return httpProtocol == that.httpProtocol;
+    private static TlsStats tlsStats(ManagedClient client) {
 
-        }
+        SSLContext context = client.getClient().getSslContext();
+        return (context instanceof TlsContext) ? ((TlsContext) context).getStats() : TlsStats.EMPTY;
+    }
 
-        @Override
-        public int hashCode() {
-            int result = connectorProvider != null ? connectorProvider.hashCode() : 0;
-            result = 31 * result + (httpProtocol != null ? httpProtocol.hashCode() : 0);
-            result = 31 * result + (properties != null ? properties.hashCode() : 0);
-            result = 31 * result + (encoding != null ? properties.hashCode() : 0);
-            return result;
-        }
+    /**
+     * @return the number of clients closed since the class was loaded.
+     */
+    public static long getClosedCount() {
+        return closed.sum();
     }
 
+    /**
+     * Setting the cache object stale timeout. Default is set to one minute.
+     * The clients cached so far are retired, and closed once their requests are done.
+     * @param timeout set the time numeric value.
+     * @param timeUnit enum setting of minutes/seconds
+     */
+    public static synchronized void setCacheStaleTimeout(int timeout, TimeUnit timeUnit) {
+        staleTimeoutNanos = timeUnit.toNanos(timeout);
+        replaceCache();
+    }
+
+    /**
+     * Sets the maximum number of cached clients, each one having its own connection pool and threads. Default is 64.
+     * The clients cached so far are retired, and closed once their requests are done.
+     * @param size the maximum number of clients.
+     */
+    public static synchronized void setMaximumSize(long size) {
+        maximumSize = size;
+        replaceCache();
+    }
+
+    /**
+     * Sets how long an evicted client waits for its requests in flight before it is closed anyway. Default is one minute.
+     * Requests executed with HttpConnector.execute() hold the client until their response is read or closed.
+     * @param timeout the drain timeout.
+     * @param timeUnit the time unit of the timeout argument.
+     */
+    public static void setDrainTimeout(long timeout, TimeUnit timeUnit) {
+        drainTimeoutNanos = timeUnit.toNanos(timeout);
+    }
+
+    /**
+     * Releases the client lease of an HttpConnector execution, set as the LEASE property of its request, once the
+     * response body is read to its end or closed, or right away when the response has no body.
+     */
     @Provider
-    private static class GZIPWriterInterceptor implements WriterInterceptor {
+    static final class LeaseFilter implements ClientResponseFilter {
 
-        @Override
-        public void aroundWriteTo(WriterInterceptorContext context)
-                throws IOException, WebApplicationException {
+        static final String LEASE = LeaseFilter.class.getName();
+        static final LeaseFilter INSTANCE = new LeaseFilter();
 
-            MultivaluedMap<String,Object> headers = context.getHeaders();
-            headers.add("Content-Encoding", "gzip");
+        @Override
+        public void filter(ClientRequestContext request, ClientResponseContext response) {
 
-            final OutputStream outputStream = context.getOutputStream();
-            context.setOutputStream(new GZIPOutputStream(outputStream));
-            context.proceed();
+            Object lease = request.getProperty(LEASE);
+            if (!(lease instanceof Runnable)) {
+                return;
+            }
+            Runnable release = (Runnable) lease;
+            if (response.getLength() == 0 || response.getStatus() == 204 || response.getStatus() == 304
+                    || "HEAD".equals(request.getMethod())) {
+                release.run();
+            } else {
+                response.setEntityStream(new FilterInputStream(response.getEntityStream()) {
+
+                    @Override
+                    public int read() throws IOException {
+                        return released(super.read());
+                    }
+
+                    @Override
+                    public int read(byte[] bytes, int offset, int length) throws IOException {
+                        return released(super.read(bytes, offset, length));
+                    }
+
+                    private int released(int read) {
+                        if (read == -1) {
+                            release.run();
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            release.run();
+                        }
+                    }
+                });
+            }
         }
-
     }
 
+    /**
+     * Compresses the request body at the level and strategy of the profile, on a pooled Deflater returned once the
+     * connector closes the entity stream.
+     */
     @Provider
-    private static class DeflateWriterInterceptor implements WriterInterceptor {
+    private static class CompressionWriterInterceptor implements WriterInterceptor {
+
+        private final Http.Encoding encoding;
+        private final int level;
+        private final int strategy;
+
+        CompressionWriterInterceptor(ClientProfile profile) {
+            this.encoding = profile.getEncoding();
+            this.level = profile.getCompressionLevel();
+            this.strategy = profile.getCompressionStrategy();
+        }
 
         @Override
         public void aroundWriteTo(WriterInterceptorContext context)
                 throws IOException, WebApplicationException {
 
             MultivaluedMap<String,Object> headers = context.getHeaders();
-            headers.add("Content-Encoding", "deflate");
+            headers.add("Content-Encoding", (encoding == Http.Encoding.GZIP) ? "gzip" : "deflate");
 
             final OutputStream outputStream = context.getOutputStream();
-            context.setOutputStream(new DeflaterOutputStream(outputStream));
+            context.setOutputStream(Zlib.compress(outputStream, encoding, level, strategy));
             context.proceed();
         }
 
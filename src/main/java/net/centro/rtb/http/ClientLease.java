@@ -0,0 +1,35 @@
+package net.centro.rtb.http;
+
+import javax.ws.rs.client.Client;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lease of a cached Client, see ClientFactory.leaseClient().
+ *
+ * The ClientFactory does not close a leased client, even once it is evicted: close the lease when done with the
+ * client, e.g. with try-with-resources. The client may be closed afterwards, do not keep it.
+ */
+public final class ClientLease implements AutoCloseable {
+
+    private final ManagedClient managed;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ClientLease(ManagedClient managed) {
+        this.managed = managed;
+    }
+
+    public Client getClient() {
+        return managed.getClient();
+    }
+
+    /**
+     * Releases the lease, once.
+     */
+    @Override
+    public void close() {
+
+        if (released.compareAndSet(false, true)) {
+            managed.release();
+        }
+    }
+}
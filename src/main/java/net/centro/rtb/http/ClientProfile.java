@@ -0,0 +1,174 @@
+package net.centro.rtb.http;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * The settings a Client is created from: connector, protocol, compression, SSL trust, multipart support,
+ * connection pool, host resolver, TLS settings and the Jersey client properties. Requests with equal profiles share one Client in the ClientFactory.
+ *
+ * Profiles are immutable and interned, so equal profiles are the same instance and their hash is computed once.
+ * A builder resolves its profile once and reuses it until one of the settings above changes.
+ */
+public final class ClientProfile {
+
+    private static final Interner<ClientProfile> interner = Interners.newWeakInterner();
+
+    private final Http.ConnectorProvider connectorProvider;
+    private final Http.HttpProtocol httpProtocol;
+    private final Http.Encoding encoding;
+    private final int compressionLevel;
+    private final int compressionStrategy;
+    private final boolean trustAllSsl;
+    private final boolean multipart;
+    private final PoolSettings poolSettings;
+    private final HostResolver hostResolver;
+    private final TlsSettings tlsSettings;
+    private final Map<String, Object> properties;
+    private final int hash;
+
+    private ClientProfile(Http.ConnectorProvider connectorProvider, Http.HttpProtocol httpProtocol, Http.Encoding encoding,
+                          int compressionLevel, int compressionStrategy, boolean trustAllSsl, boolean multipart, PoolSettings poolSettings, HostResolver hostResolver,
+                          TlsSettings tlsSettings, Map<String, Object> properties) {
+
+        this.connectorProvider = connectorProvider;
+        this.httpProtocol = httpProtocol;
+        this.encoding = encoding;
+        this.compressionLevel = compressionLevel;
+        this.compressionStrategy = compressionStrategy;
+        this.trustAllSsl = trustAllSsl;
+        this.multipart = multipart;
+        this.poolSettings = poolSettings;
+        this.hostResolver = hostResolver;
+        this.tlsSettings = tlsSettings;
+        this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
+
+        // enum names rather than enum hash codes, so the hash is the same from one run to the next
+        int result = name(connectorProvider).hashCode();
+        result = 31 * result + name(httpProtocol).hashCode();
+        result = 31 * result + name(encoding).hashCode();
+        // the compression settings only when set, the hash of the other profiles is the same as without them
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION || compressionStrategy != Deflater.DEFAULT_STRATEGY) {
+            result = 31 * result + compressionLevel;
+            result = 31 * result + compressionStrategy;
+        }
+        result = 31 * result + (trustAllSsl ? 1 : 0);
+        result = 31 * result + (multipart ? 1 : 0);
+        result = 31 * result + poolSettings.hashCode();
+        result = 31 * result + hostResolver.hashCode();
+        result = 31 * result + tlsSettings.hashCode();
+        result = 31 * result + this.properties.hashCode();
+        this.hash = result;
+    }
+
+    /**
+     * @return the interned profile of the builder's current settings.
+     */
+    static ClientProfile of(HttpConnectorBuilder builder) {
+
+        return interner.intern(new ClientProfile(builder.getConnectorProvider(), builder.getConnType(),
+                builder.getCompressionEncoding(), builder.getCompressionLevel(), builder.getCompressionStrategy(), builder.isTrustAllSslContext(), isMultipart(builder),
+                builder.getPoolSettings(), builder.getHostResolver(), builder.getTlsSettings(), builder.getClientProperties()));
+    }
+
+    private static boolean isMultipart(HttpConnectorBuilder builder) {
+
+        String contentType = builder.getHeaders().get("content-type");
+        return contentType != null && contentType.toLowerCase(Locale.ROOT).contains("multipart");
+    }
+
+    private static String name(Enum<?> value) {
+        return (value != null) ? value.name() : "";
+    }
+
+    public Http.ConnectorProvider getConnectorProvider() {
+        return connectorProvider;
+    }
+
+    public Http.HttpProtocol getHttpProtocol() {
+        return httpProtocol;
+    }
+
+    public Http.Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the Deflater level of the compressed request bodies, Deflater.DEFAULT_COMPRESSION unless set.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return the Deflater strategy of the compressed request bodies, Deflater.DEFAULT_STRATEGY unless set.
+     */
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public boolean isTrustAllSsl() {
+        return trustAllSsl;
+    }
+
+    public boolean isMultipart() {
+        return multipart;
+    }
+
+    public PoolSettings getPoolSettings() {
+        return poolSettings;
+    }
+
+    public HostResolver getHostResolver() {
+        return hostResolver;
+    }
+
+    public TlsSettings getTlsSettings() {
+        return tlsSettings;
+    }
+
+    /**
+     * @return the Jersey client properties, read only.
+     */
+    public Map<String, Object> getProperties() {
+        return properties;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ClientProfile)) return false;
+
+        ClientProfile that = (ClientProfile) o;
+
+        return hash == that.hash
+                && connectorProvider == that.connectorProvider
+                && httpProtocol == that.httpProtocol
+                && encoding == that.encoding
+                && compressionLevel == that.compressionLevel
+                && compressionStrategy == that.compressionStrategy
+                && trustAllSsl == that.trustAllSsl
+                && multipart == that.multipart
+                && poolSettings.equals(that.poolSettings)
+                && hostResolver == that.hostResolver
+                && tlsSettings.equals(that.tlsSettings)
+                && properties.equals(that.properties);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientProfile{" + connectorProvider + ", " + httpProtocol + ", encoding=" + encoding + ", level=" + compressionLevel + ", strategy=" + compressionStrategy
+                + ", trustAllSsl=" + trustAllSsl + ", multipart=" + multipart + ", " + poolSettings + ", " + hostResolver + ", " + tlsSettings + ", properties=" + properties + "}";
+    }
+}
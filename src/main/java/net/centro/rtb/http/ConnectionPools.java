@@ -0,0 +1,307 @@
+package net.centro.rtb.http;
+
+import com.ning.http.client.providers.grizzly.GrizzlyAsyncHttpProviderConfig;
+import com.ning.http.client.providers.grizzly.TransportCustomizer;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.PoolingHttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.client.Initializable;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.grizzly.connector.GrizzlyConnectorProvider;
+import org.glassfish.jersey.jetty.connector.JettyConnectorProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.client.Client;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates PoolSettings to the pool of each connector, and reads the per-host pool gauges back.
+ * The pool is also where the connectors resolve host names, so the HostResolver is installed along with it.
+ */
+final class ConnectionPools {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPools.class);
+
+    /** The pool of one Client. */
+    interface Monitor {
+
+        /**
+         * @return the pool gauges by host:port, empty if the connector does not expose them.
+         */
+        Map<String, PoolStats> getStats();
+
+        /**
+         * Stops the background tasks of the pool, when its Client is closed.
+         */
+        void close();
+    }
+
+    static final Monitor NONE = new Monitor() {
+        @Override
+        public Map<String, PoolStats> getStats() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private ConnectionPools() {}
+
+    /**
+     * @return the Grizzly connector provider, configured with the pool settings.
+     */
+    static GrizzlyConnectorProvider grizzlyProvider(PoolSettings settings) {
+
+        if (settings.isDefault()) {
+            return new GrizzlyConnectorProvider();
+        }
+        return new GrizzlyConnectorProvider((client, config, builder) -> {
+            if (settings.getMaxTotal() > 0) {
+                builder.setMaxConnections(settings.getMaxTotal());
+            }
+            if (settings.getMaxPerHost() > 0) {
+                builder.setMaxConnectionsPerHost(settings.getMaxPerHost());
+            }
+            if (settings.getIdleTimeout(TimeUnit.MILLISECONDS) > 0) {
+                builder.setPooledConnectionIdleTimeout(Deadline.toMillis(settings.getIdleTimeout(TimeUnit.NANOSECONDS)));
+            }
+            if (settings.getKeepAliveTtl(TimeUnit.MILLISECONDS) > 0) {
+                builder.setConnectionTTL(Deadline.toMillis(settings.getKeepAliveTtl(TimeUnit.NANOSECONDS)));
+            }
+            if (settings.getTcpNoDelay() != null) {
+                GrizzlyAsyncHttpProviderConfig providerConfig = new GrizzlyAsyncHttpProviderConfig();
+                providerConfig.addProperty(GrizzlyAsyncHttpProviderConfig.Property.TRANSPORT_CUSTOMIZER,
+                        (TransportCustomizer) (transport, filterChain) -> transport.setTcpNoDelay(settings.getTcpNoDelay()));
+                builder.setAsyncHttpClientProviderConfig(providerConfig);
+            }
+            return builder;
+        });
+    }
+
+    /**
+     * Configures the pool of a Client that was just built, before its first request.
+     * @param engine the engine of the profile's connector, null if it has none.
+     * @return the monitor of the pool.
+     */
+    static Monitor install(Client client, ClientProfile profile, HttpEngine engine) {
+
+        PoolSettings settings = profile.getPoolSettings();
+        switch (profile.getConnectorProvider()) {
+            case Apache:
+                return apache(client, settings, profile.getHostResolver());
+            case Jetty:
+                return jetty(client, settings, profile.getHostResolver());
+            case Http2:
+                // configured through its connector provider
+                return http2(client);
+            case NettyEngine:
+                // the engine's own pool, closed with the engine
+                return engine(engine);
+            case Grizzly:
+                // configured through its connector provider, the pool itself is not exposed
+                warnResolver(profile);
+                return NONE;
+            default:
+                if (!settings.isDefault()) {
+                    logger.warn("The {} connector has no connection pool to configure, ignoring {}", profile.getConnectorProvider(), settings);
+                }
+                warnResolver(profile);
+                return NONE;
+        }
+    }
+
+    private static void warnResolver(ClientProfile profile) {
+
+        if (profile.getHostResolver() != HostResolver.getDefault()) {
+            logger.warn("The {} connector resolves host names on its own, ignoring {}", profile.getConnectorProvider(), profile.getHostResolver());
+        }
+    }
+
+    /**
+     * Replaces the pool the Apache connector would create by one with the same defaults and socket factories,
+     * so it can be configured and monitored.
+     */
+    private static Monitor apache(Client client, PoolSettings settings, HostResolver resolver) {
+
+        SSLConnectionSocketFactory ssl = (client.getHostnameVerifier() != null)
+                ? new SSLConnectionSocketFactory(client.getSslContext(), client.getHostnameVerifier())
+                : new SSLConnectionSocketFactory(client.getSslContext());
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", ssl)
+                .build();
+
+        long ttl = settings.getKeepAliveTtl(TimeUnit.MILLISECONDS);
+        DnsResolver dns = host -> resolver.resolve(host).toArray(new InetAddress[0]);
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(registry, null, null, dns,
+                (ttl > 0) ? ttl : -1, TimeUnit.MILLISECONDS);
+
+        // the defaults of the Apache connector
+        if ("true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+            int max = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+            manager.setDefaultMaxPerRoute(max);
+            manager.setMaxTotal(2 * max);
+        }
+        if (settings.getMaxPerHost() > 0) {
+            manager.setDefaultMaxPerRoute(settings.getMaxPerHost());
+            manager.setMaxTotal(Math.max(manager.getMaxTotal(), settings.getMaxPerHost()));
+        }
+        if (settings.getMaxTotal() > 0) {
+            manager.setMaxTotal(settings.getMaxTotal());
+        }
+        if (settings.getTcpNoDelay() != null) {
+            manager.setDefaultSocketConfig(SocketConfig.custom().setTcpNoDelay(settings.getTcpNoDelay()).build());
+        }
+        client.property(ApacheClientProperties.CONNECTION_MANAGER, manager);
+
+        // Apache does not evict on its own, sweep the idle and expired connections
+        long idle = settings.getIdleTimeout(TimeUnit.MILLISECONDS);
+        long period = (idle > 0) ? Math.max(idle / 2, 100) : (ttl > 0) ? Math.max(ttl / 2, 100) : 0;
+        ScheduledFuture<?> sweeper = (period > 0) ? HttpTimer.scheduleAtFixedRate(() -> {
+            manager.closeExpiredConnections();
+            if (idle > 0) {
+                manager.closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+            }
+        }, period, TimeUnit.MILLISECONDS) : null;
+
+        return new Monitor() {
+            @Override
+            public Map<String, PoolStats> getStats() {
+
+                Map<String, PoolStats> stats = new HashMap<>();
+                for (HttpRoute route : manager.getRoutes()) {
+                    org.apache.http.pool.PoolStats pool = manager.getStats(route);
+                    String host = hostKey(route.getTargetHost());
+                    stats.merge(host, new PoolStats(host, pool.getLeased(), pool.getAvailable(), pool.getPending(), pool.getMax()), PoolStats::add);
+                }
+                return stats;
+            }
+
+            @Override
+            public void close() {
+                if (sweeper != null) {
+                    sweeper.cancel(false);
+                }
+            }
+        };
+    }
+
+    private static String hostKey(HttpHost host) {
+
+        int port = host.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+        }
+        return host.getHostName() + ":" + port;
+    }
+
+    private static Monitor http2(Client client) {
+
+        // the connector is created with the client's runtime, initialized here rather than on the first request
+        Connector connector = ((Initializable<?>) client).preInitialize().getConfiguration().getConnector();
+        if (!(connector instanceof Http2Connector)) {
+            return NONE;
+        }
+        return new Monitor() {
+            @Override
+            public Map<String, PoolStats> getStats() {
+                return ((Http2Connector) connector).getStats();
+            }
+
+            @Override
+            public void close() {
+                // closed along with the Client
+            }
+        };
+    }
+
+    private static Monitor engine(HttpEngine engine) {
+
+        return new Monitor() {
+            @Override
+            public Map<String, PoolStats> getStats() {
+                return engine.getStats();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * The Jetty connector creates and starts its HttpClient with the Client, its pool settings apply to the
+     * destinations created afterwards, i.e. all of them.
+     */
+    private static Monitor jetty(Client client, PoolSettings settings, HostResolver resolver) {
+
+        HttpClient httpClient = JettyConnectorProvider.getHttpClient(client);
+        // Jetty 9.2 takes a single address per connect, a different one of the host's each time: a refused connect is
+        // not tried on the next address
+        httpClient.setSocketAddressResolver((host, port, promise) -> resolver.resolveAsync(host).whenComplete((addresses, throwable) -> {
+            if (throwable != null) {
+                promise.failed((throwable instanceof CompletionException) ? throwable.getCause() : throwable);
+            } else {
+                promise.succeeded(new InetSocketAddress(addresses.get(0), port));
+            }
+        }));
+        if (settings.getMaxPerHost() > 0) {
+            httpClient.setMaxConnectionsPerDestination(settings.getMaxPerHost());
+        }
+        if (settings.getIdleTimeout(TimeUnit.MILLISECONDS) > 0) {
+            httpClient.setIdleTimeout(settings.getIdleTimeout(TimeUnit.MILLISECONDS));
+        }
+        if (settings.getTcpNoDelay() != null) {
+            httpClient.setTCPNoDelay(settings.getTcpNoDelay());
+        }
+        if (settings.getMaxTotal() > 0 || settings.getKeepAliveTtl(TimeUnit.MILLISECONDS) > 0) {
+            logger.warn("The Jetty connector has no total connection limit nor connection TTL, ignoring them");
+        }
+
+        return new Monitor() {
+            @Override
+            public Map<String, PoolStats> getStats() {
+
+                Map<String, PoolStats> stats = new HashMap<>();
+                for (Destination destination : httpClient.getDestinations()) {
+                    String host = destination.getHost() + ":" + destination.getPort();
+                    int leased = 0;
+                    int idle = 0;
+                    if (destination instanceof PoolingHttpDestination) {
+                        leased = ((PoolingHttpDestination<?>) destination).getConnectionPool().getActiveConnections().size();
+                        idle = ((PoolingHttpDestination<?>) destination).getConnectionPool().getIdleConnections().size();
+                    }
+                    int pending = (destination instanceof HttpDestination) ? ((HttpDestination) destination).getHttpExchanges().size() : 0;
+                    stats.merge(host, new PoolStats(host, leased, idle, pending, httpClient.getMaxConnectionsPerDestination()), PoolStats::add);
+                }
+                return stats;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens and parks keep-alive connections to known endpoints ahead of the traffic, e.g. to the bidders at startup,
+ * so the first requests do not pay for the DNS lookup and the TCP and TLS handshakes.
+ *
+ * Each host gets a number of HEAD probes sent at once, on the same cached Client the endpoint's PreparedRequest uses
+ * (through its engine with the NettyEngine and JdkHttpClient connectors), so each probe opens a connection that is
+ * left in the pool the endpoint's requests go through. Any response counts, whatever its status.
+ * The probes can be repeated at a fixed rate to keep the idle connections from being closed before the next burst,
+ * the period should then be shorter than the idle timeout of the pool and of the server.
+ *
+ * A ConnectionWarmer is immutable and thread-safe, the with...() methods return a copy.
+ */
+public final class ConnectionWarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+    private final List<PreparedRequest> endpoints;
+    private final int connections;
+    private final String probePath;
+    private final Deadline timeout;
+
+    private ConnectionWarmer(List<PreparedRequest> endpoints, int connections, String probePath, Deadline timeout) {
+        this.endpoints = endpoints;
+        this.connections = connections;
+        this.probePath = probePath;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param endpoints the endpoints to warm up. Endpoints sharing a host and a Client are probed once.
+     */
+    public static ConnectionWarmer of(List<PreparedRequest> endpoints) {
+
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints to warm up");
+        }
+        return new ConnectionWarmer(Collections.unmodifiableList(new ArrayList<>(endpoints)), 1, null, Deadline.of(1, TimeUnit.SECONDS));
+    }
+
+    public static ConnectionWarmer of(PreparedRequest... endpoints) {
+        return of(Arrays.asList(endpoints));
+    }
+
+    /**
+     * The number of connections to open to each host, at most the pool's maximum per host. Defaults to 1.
+     */
+    public ConnectionWarmer withConnections(int connections) {
+
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Expecting a positive number of connections: " + connections);
+        }
+        return new ConnectionWarmer(endpoints, connections, probePath, timeout);
+    }
+
+    /**
+     * Probes the path, e.g. "/health", rather than the endpoint's own URI.
+     */
+    public ConnectionWarmer withProbePath(String path) {
+        return new ConnectionWarmer(endpoints, connections, Objects.requireNonNull(path), timeout);
+    }
+
+    /**
+     * The time budget of a probe. Defaults to 1 second.
+     */
+    public ConnectionWarmer withTimeout(long timeout, TimeUnit unit) {
+        return new ConnectionWarmer(endpoints, connections, probePath, Deadline.of(timeout, unit));
+    }
+
+    public List<PreparedRequest> getEndpoints() {
+        return endpoints;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sends the probes of all the hosts at once.
+     * @return a future of the number of probes that got a response, which never completes exceptionally.
+     */
+    public CompletableFuture<Integer> warmUpAsync() {
+
+        Map<List<Object>, URI> hosts = new LinkedHashMap<>();
+        for (PreparedRequest endpoint : endpoints) {
+            URI uri = endpoint.getURI();
+            hosts.putIfAbsent(Arrays.asList(endpoint.getClientProfile(), uri.getScheme(), uri.getHost(), uri.getPort()),
+                    (probePath != null) ? uri.resolve(probePath) : uri);
+        }
+
+        List<CompletableFuture<HttpResult>> probes = new ArrayList<>();
+        for (Map.Entry<List<Object>, URI> host : hosts.entrySet()) {
+            probes.addAll(probe((ClientProfile) host.getKey().get(0), host.getValue()));
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture[0])).handle((ignored, throwable) ->
+                (int) probes.stream().filter(probe -> !probe.isCompletedExceptionally()).count());
+    }
+
+    /**
+     * Sends the probes of all the hosts at once and waits for them.
+     * @return the number of probes that got a response.
+     */
+    public int warmUp() {
+        return warmUpAsync().join();
+    }
+
+    /**
+     * Warms the connections up now, then again at a fixed rate.
+     * @return the scheduled heartbeat, cancel it to stop.
+     */
+    public ScheduledFuture<?> keepWarm(long period, TimeUnit unit) {
+
+        warmUpAsync();
+        return HttpTimer.scheduleAtFixedRate(this::warmUpAsync, period, unit);
+    }
+
+    private List<CompletableFuture<HttpResult>> probe(ClientProfile profile, URI uri) {
+
+        List<CompletableFuture<HttpResult>> probes = new ArrayList<>(connections);
+        ManagedClient client = ClientFactory.acquire(profile);
+        try {
+            // the connectors with an engine of their own pool its connections, not the Jersey client's
+            HttpEngine engine = client.getEngine();
+            RequestTemplate template = (engine != null) ? RequestTemplate.of(Http.HttpMethod.HEAD, uri) : null;
+            for (int i = 0; i < connections; i++) {
+                CompletableFuture<HttpResult> probe = (engine != null)
+                        ? engine.send(template, null, null, null, null, null, timeout)
+                        : AsyncExecution.submit(client.getClient().target(uri).request().build("HEAD"), null, timeout, profile.getConnectorProvider());
+                probe.whenComplete((result, throwable) -> {
+                    if (throwable != null) {
+                        logger.debug("Failed to warm up a connection to {}: {}", uri, throwable.getMessage());
+                    }
+                });
+                probes.add(probe);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to warm up the connections to {}: {}", uri, e.getMessage());
+        }
+        // one lease for all the probes of the host
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture[0])).whenComplete((ignored, throwable) -> client.release());
+        return probes;
+    }
+}
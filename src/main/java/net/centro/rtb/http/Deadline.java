@@ -0,0 +1,121 @@
+package net.centro.rtb.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An end-to-end time budget for a single request, optionally split into per-phase budgets:
+ * connect, time to first byte (response headers) and body.
+ *
+ * A Deadline is a per-request setting. Unlike setConnectTimeout()/setReadTimeout() it does not change the
+ * client configuration, so requests with different deadlines share the same cached Client.
+ *
+ * Instances are immutable; the with...() methods return a copy.
+ */
+public class Deadline {
+
+    private final long timeoutNanos;
+    private final long connectNanos;
+    private final long firstByteNanos;
+    private final long bodyNanos;
+
+    private Deadline(long timeoutNanos, long connectNanos, long firstByteNanos, long bodyNanos) {
+
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Deadline must be positive");
+        }
+        this.timeoutNanos = timeoutNanos;
+        this.connectNanos = connectNanos;
+        this.firstByteNanos = firstByteNanos;
+        this.bodyNanos = bodyNanos;
+    }
+
+    /**
+     * A deadline for the whole request, from execution to a fully read response.
+     * @param timeout the total budget.
+     * @param unit the time unit of the timeout argument.
+     */
+    public static Deadline of(long timeout, TimeUnit unit) {
+        return new Deadline(unit.toNanos(timeout), 0, 0, 0);
+    }
+
+    /**
+     * Limits the time to establish the connection. Bounded by the total budget.
+     */
+    public Deadline withConnectBudget(long timeout, TimeUnit unit) {
+        return new Deadline(timeoutNanos, unit.toNanos(timeout), firstByteNanos, bodyNanos);
+    }
+
+    /**
+     * Limits the time from the start of the request to the response headers. Bounded by the total budget.
+     */
+    public Deadline withFirstByteBudget(long timeout, TimeUnit unit) {
+        return new Deadline(timeoutNanos, connectNanos, unit.toNanos(timeout), bodyNanos);
+    }
+
+    /**
+     * Limits the time to read the response body, once the headers arrived. Bounded by the remaining total budget.
+     */
+    public Deadline withBodyBudget(long timeout, TimeUnit unit) {
+        return new Deadline(timeoutNanos, connectNanos, firstByteNanos, unit.toNanos(timeout));
+    }
+
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the connect budget, or the total budget if none was set.
+     */
+    public long getConnectBudget(TimeUnit unit) {
+        return unit.convert(bounded(connectNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the time to first byte budget, or the total budget if none was set.
+     */
+    public long getFirstByteBudget(TimeUnit unit) {
+        return unit.convert(bounded(firstByteNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the body budget, or the total budget if none was set.
+     */
+    public long getBodyBudget(TimeUnit unit) {
+        return unit.convert(bounded(bodyNanos), TimeUnit.NANOSECONDS);
+    }
+
+    boolean hasFirstByteBudget() {
+        return firstByteNanos > 0 && firstByteNanos < timeoutNanos;
+    }
+
+    boolean hasBodyBudget() {
+        return bodyNanos > 0 && bodyNanos < timeoutNanos;
+    }
+
+    /**
+     * @return the deadline left after the given time passed, with the same phase budgets; null if no time is left.
+     */
+    Deadline remaining(long elapsedNanos) {
+        return (elapsedNanos < timeoutNanos) ? new Deadline(timeoutNanos - elapsedNanos, connectNanos, firstByteNanos, bodyNanos) : null;
+    }
+
+    private long bounded(long budget) {
+        return (budget > 0) ? Math.min(budget, timeoutNanos) : timeoutNanos;
+    }
+
+    /**
+     * Timeouts are rounded up to a whole millisecond, as the connectors use int milliseconds.
+     */
+    static int toMillis(long nanos) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999)));
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{" + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"
+                + (connectNanos > 0 ? ", connect=" + TimeUnit.NANOSECONDS.toMillis(connectNanos) + "ms" : "")
+                + (firstByteNanos > 0 ? ", firstByte=" + TimeUnit.NANOSECONDS.toMillis(firstByteNanos) + "ms" : "")
+                + (bodyNanos > 0 ? ", body=" + TimeUnit.NANOSECONDS.toMillis(bodyNanos) + "ms" : "")
+                + "}";
+    }
+}
@@ -0,0 +1,32 @@
+package net.centro.rtb.http;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Signals that a request ran out of its Deadline. The request was cancelled and its connection released.
+ */
+public class DeadlineExceededException extends TimeoutException {
+
+    private final Http.RequestPhase phase;
+    private final long elapsed;
+
+    public DeadlineExceededException(Http.RequestPhase phase, long elapsedMillis, Deadline deadline) {
+        super("Deadline exceeded during " + phase + " after " + elapsedMillis + "ms (" + deadline + ")");
+        this.phase = phase;
+        this.elapsed = elapsedMillis;
+    }
+
+    /**
+     * @return the phase the request was in when the time ran out.
+     */
+    public Http.RequestPhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the time in milliseconds from the start of the request to the deadline.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+}
@@ -0,0 +1,74 @@
+package net.centro.rtb.http;
+
+import java.net.URI;
+
+/**
+ * The outcome and latency of one endpoint of a ScatterGather.
+ */
+public class EndpointResult {
+
+    private final int index;
+    private final URI uri;
+    private final Http.Outcome outcome;
+    private final HttpResult result;
+    private final Throwable error;
+    private final long latency;
+
+    EndpointResult(int index, URI uri, Http.Outcome outcome, HttpResult result, Throwable error, long latencyMillis) {
+        this.index = index;
+        this.uri = uri;
+        this.outcome = outcome;
+        this.result = result;
+        this.error = error;
+        this.latency = latencyMillis;
+    }
+
+    /**
+     * @return the position of the endpoint in the ScatterGather.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public URI getURI() {
+        return uri;
+    }
+
+    public Http.Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return true if a response was received.
+     */
+    public boolean isCompleted() {
+        return outcome == Http.Outcome.COMPLETED;
+    }
+
+    /**
+     * @return the response, null unless the outcome is COMPLETED.
+     */
+    public HttpResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return the failure, null unless the outcome is FAILED.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the time in milliseconds from dispatch to the response, failure, deadline or cancellation.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointResult{" + uri + ", " + outcome + (result != null ? " " + result.getStatus() : "")
+                + (error != null ? " " + error : "") + ", " + latency + "ms}";
+    }
+}
@@ -0,0 +1,232 @@
+package net.centro.rtb.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes a response body to a file with an AsynchronousFileChannel, as the body arrives, so no request thread
+ * waits on the disk. The writes are issued in order by one thread at a time, each at its own position, and complete
+ * on the channel's thread pool. The file is created, or truncated, on the first write, and is closed once finish()
+ * was called and all the writes completed; after a failure it holds what was written so far.
+ *
+ * The reader of the body checks pending() against HIGH_WATERMARK and stops reading until resumed by whenDrained(),
+ * so a disk slower than the network does not pile the body up in memory.
+ */
+final class FileSink {
+
+    /** The bytes written but not on disk yet at which the reader pauses. */
+    static final long HIGH_WATERMARK = 4 * 1024 * 1024;
+    /** The bytes written but not on disk yet at which a paused reader resumes. */
+    static final long LOW_WATERMARK = 1024 * 1024;
+
+    private static final int COPY_BUFFERS = 4;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicReference<Runnable> resume = new AtomicReference<>();
+    // opened and written by the writing thread
+    private volatile AsynchronousFileChannel channel;
+    private long position;
+    private volatile boolean finished;
+
+    FileSink(Path path) {
+        this.path = path.normalize();
+    }
+
+    /**
+     * Copies a stream to the file, the blocking way: FileChannel.transferFrom(), with no intermediate byte[].
+     * The stream is left open, as by Files.copy().
+     * @return the number of bytes written.
+     */
+    static long copy(InputStream body, Path path) throws IOException {
+
+        ReadableByteChannel in = Channels.newChannel(body);
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (long count = out.transferFrom(in, position, Long.MAX_VALUE); count > 0; count = out.transferFrom(in, position, Long.MAX_VALUE)) {
+                position += count;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Writes the buffer after the ones written before.
+     * @param written called once the buffer is written, or failed to be, e.g. to release it.
+     */
+    void write(ByteBuffer buffer, Runnable written) {
+
+        if (done.isDone()) {
+            written.run();
+            return;
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            written.run();
+            fail(e);
+            return;
+        }
+        int length = buffer.remaining();
+        long at = position;
+        position += length;
+        pending.addAndGet(length);
+        write(buffer, at, length, written);
+    }
+
+    private void write(ByteBuffer buffer, long at, int length, Runnable written) {
+
+        channel.write(buffer, at, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+
+                if (buffer.hasRemaining()) {
+                    write(buffer, at + count, length, written);
+                    return;
+                }
+                written.run();
+                if (pending.addAndGet(-length) <= LOW_WATERMARK) {
+                    Runnable paused = resume.getAndSet(null);
+                    if (paused != null) {
+                        paused.run();
+                    }
+                }
+                tryComplete();
+            }
+
+            @Override
+            public void failed(Throwable throwable, Void attachment) {
+                written.run();
+                fail(throwable);
+            }
+        });
+    }
+
+    /**
+     * @return the bytes written but not on disk yet.
+     */
+    long pending() {
+        return pending.get();
+    }
+
+    /**
+     * Runs the action once the pending bytes drop to LOW_WATERMARK, right away if they already did.
+     */
+    void whenDrained(Runnable action) {
+
+        resume.set(action);
+        if (pending.get() <= LOW_WATERMARK && resume.compareAndSet(action, null)) {
+            action.run();
+        }
+    }
+
+    /**
+     * No more writes, the file is closed once the pending ones complete.
+     * @return a future of the size of the file, the one of every call.
+     */
+    CompletableFuture<Long> finish() {
+
+        finished = true;
+        try {
+            if (!done.isDone()) {
+                // an empty body still creates the file
+                open();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        tryComplete();
+        return done;
+    }
+
+    /**
+     * Closes the file, the pending writes fail.
+     */
+    void fail(Throwable cause) {
+
+        if (done.completeExceptionally(cause)) {
+            close();
+            Runnable paused = resume.getAndSet(null);
+            if (paused != null) {
+                paused.run();
+            }
+        }
+    }
+
+    /**
+     * Copies a stream to the file, reading it on the calling thread into a few direct buffers that are written
+     * asynchronously, so the reads overlap the writes. Blocks while all the buffers are being written.
+     * @return a future of the size of the file.
+     */
+    CompletableFuture<Long> copyAsync(InputStream body) {
+
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(COPY_BUFFERS);
+        for (int i = 0; i < COPY_BUFFERS; i++) {
+            buffers.add(ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+        }
+        try (ReadableByteChannel in = Channels.newChannel(body)) {
+            while (!done.isDone()) {
+                ByteBuffer buffer = buffers.take();
+                buffer.clear();
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                write(buffer, () -> buffers.add(buffer));
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+        return finish();
+    }
+
+    private void open() throws IOException {
+
+        if (channel == null) {
+            channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private void tryComplete() {
+
+        if (finished && pending.get() == 0 && !done.isDone()) {
+            try {
+                channel.close();
+                done.complete(position);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void close() {
+
+        AsynchronousFileChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.centro.rtb.http;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hedging of idempotent requests: when a response did not arrive after a delay, a backup copy of the request is sent,
+ * the first successful response is used and the other request is cancelled.
+ *
+ * The delay is either fixed or an observed latency percentile of the host. The number of backup requests per host is
+ * capped by a hedge rate, a token bucket credited by every request, so hedging never adds more than that fraction
+ * (plus a small burst) to the load of a host.
+ *
+ * A policy keeps the latency samples and hedge budgets of the hosts it is used with,
+ * so the same instance should be shared by all the requests it applies to (e.g. a static field).
+ * Instances are otherwise immutable; the with...() methods return a new policy with its own state.
+ */
+public class HedgePolicy {
+
+    /** Number of hedges a host can take at once, on top of its hedge rate. */
+    static final int BURST = 10;
+
+    private static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final long TOKEN = 1000;
+
+    private final long delayNanos;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final double maxHedgeRate;
+    private final ConcurrentMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+    private HedgePolicy(long delayNanos, double percentile, long minDelayNanos, double maxHedgeRate) {
+
+        if (delayNanos < 0 || minDelayNanos < 0) {
+            throw new IllegalArgumentException("Hedge delay can't be negative");
+        }
+        if (percentile != 0 && (percentile <= 0 || percentile >= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, exclusive");
+        }
+        if (maxHedgeRate < 0 || maxHedgeRate > 1) {
+            throw new IllegalArgumentException("Hedge rate must be between 0 and 1");
+        }
+        this.delayNanos = delayNanos;
+        this.percentile = percentile;
+        this.minDelayNanos = minDelayNanos;
+        this.maxHedgeRate = maxHedgeRate;
+    }
+
+    /**
+     * Sends a backup request once the request did not complete within a fixed delay.
+     * At most 10% of the requests to a host are hedged.
+     * @param delay the time to wait before sending the backup request.
+     * @param unit the time unit of the delay argument.
+     */
+    public static HedgePolicy afterDelay(long delay, TimeUnit unit) {
+        return new HedgePolicy(unit.toNanos(delay), 0, 0, 0.1);
+    }
+
+    /**
+     * Sends a backup request once the request is slower than the given percentile of the recent latencies of its host,
+     * e.g. 95 to hedge the slowest 5%. Until enough latencies were observed the initial delay is used.
+     * At most 10% of the requests to a host are hedged.
+     * @param percentile the latency percentile, between 0 and 100.
+     * @param initialDelay the delay to use before the host has a latency history.
+     * @param unit the time unit of the initialDelay argument.
+     */
+    public static HedgePolicy afterPercentile(double percentile, long initialDelay, TimeUnit unit) {
+        return new HedgePolicy(unit.toNanos(initialDelay), percentile, 0, 0.1);
+    }
+
+    /**
+     * Caps the backup requests to a fraction of the requests sent to each host. Default is 0.1.
+     * @param maxHedgeRate between 0 (never hedge) and 1 (hedge every request).
+     */
+    public HedgePolicy withMaxHedgeRate(double maxHedgeRate) {
+        return new HedgePolicy(delayNanos, percentile, minDelayNanos, maxHedgeRate);
+    }
+
+    /**
+     * Sets a floor for a percentile based delay, so a host that became very fast does not get hedged too eagerly.
+     */
+    public HedgePolicy withMinDelay(long minDelay, TimeUnit unit) {
+        return new HedgePolicy(delayNanos, percentile, unit.toNanos(minDelay), maxHedgeRate);
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public double getMaxHedgeRate() {
+        return maxHedgeRate;
+    }
+
+    /**
+     * @return the current hedge delay of the host of the uri.
+     */
+    public long getDelay(URI uri, TimeUnit unit) {
+        return unit.convert(stats(uri).delayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    HostStats stats(URI uri) {
+        return hosts.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), host -> new HostStats());
+    }
+
+    @Override
+    public String toString() {
+        return "HedgePolicy{" + (percentile > 0 ? "p" + percentile + ", initial=" : "delay=")
+                + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms, maxHedgeRate=" + maxHedgeRate + "}";
+    }
+
+    /**
+     * Latency samples and hedge budget of a single host.
+     */
+    final class HostStats {
+
+        private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+        private final AtomicLong count = new AtomicLong();
+        // milli-tokens, a hedge costs one TOKEN
+        private final AtomicLong tokens = new AtomicLong(BURST * TOKEN);
+        private volatile long percentileNanos = -1;
+
+        /**
+         * Credits the budget for a new request.
+         */
+        void onRequest() {
+            long credit = (long) (maxHedgeRate * TOKEN);
+            tokens.accumulateAndGet(credit, (current, add) -> Math.min(BURST * TOKEN, current + add));
+        }
+
+        /**
+         * @return true if the host has the budget for one more hedge, which is then spent.
+         */
+        boolean tryHedge() {
+
+            if (maxHedgeRate == 0) {
+                return false;
+            }
+            long current;
+            do {
+                current = tokens.get();
+                if (current < TOKEN) {
+                    return false;
+                }
+            } while (!tokens.compareAndSet(current, current - TOKEN));
+            return true;
+        }
+
+        void record(long latencyNanos) {
+
+            if (percentile == 0) {
+                return;
+            }
+            long n = count.getAndIncrement();
+            samples.set((int) (n % SAMPLES), latencyNanos);
+            if (n + 1 >= MIN_SAMPLES && (n + 1) % RECOMPUTE_EVERY == 0) {
+                long[] sorted = new long[(int) Math.min(n + 1, SAMPLES)];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                percentileNanos = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1)];
+            }
+        }
+
+        long delayNanos() {
+            return (percentileNanos < 0) ? delayNanos : Math.max(minDelayNanos, percentileNanos);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A hedged asynchronous execution: a primary request, and a backup request once the HedgePolicy's delay passed.
+ *
+ * The first successful response (any status below 500) completes the future and the other request is cancelled.
+ * A failure only completes the future when no other request is left in flight. A Deadline bounds the whole execution,
+ * the backup request gets whatever is left of it.
+ *
+ * The latency of each successful request is sampled for the policy's percentile delay. So is the time the losing
+ * request was in flight when cancelled, a lower bound of its latency: sampling the winners only would leave out
+ * the slow requests that the hedges beat, and the delay would drift down to the fast tail.
+ */
+final class HedgedExecution {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgedExecution.class);
+
+    private final CompletableFuture<HttpResult> result = new CompletableFuture<>();
+    private final CopyOnWriteArrayList<CompletableFuture<HttpResult>> attempts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final HedgePolicy.HostStats stats;
+    private final Deadline deadline;
+    private final Function<Deadline, CompletableFuture<HttpResult>> attempt;
+    private final long startNanos = System.nanoTime();
+
+    private HedgedExecution(HedgePolicy.HostStats stats, Deadline deadline, Function<Deadline, CompletableFuture<HttpResult>> attempt) {
+        this.stats = stats;
+        this.deadline = deadline;
+        this.attempt = attempt;
+    }
+
+    /**
+     * Only idempotent methods are hedged, a backup copy of a POST could be applied twice. Neither is a body sending
+     * consumes, an InputStream or a channel: the backup would send what the primary left of it. A Path is opened again
+     * and a ByteBuffer[] sent from duplicates, so these are.
+     * @return true if the request is to be hedged.
+     */
+    static boolean applies(HedgePolicy policy, Http.HttpMethod method, Object body) {
+        return policy != null && method.isIdempotent()
+                && (!StreamingBody.isStreaming(body) || body instanceof Path || body instanceof ByteBuffer[]);
+    }
+
+    /**
+     * Submits the primary request and schedules the backup.
+     * @param policy the hedge policy, holding the host's latencies and hedge budget.
+     * @param uri the request uri.
+     * @param deadline the time budget of the whole execution, null for none.
+     * @param attempt submits one copy of the request with the given deadline. Called on AsyncExecution.bodyReader for
+     * the backup, as it may encode the body or open a file.
+     * @return a future of the first successful result, cancelling it cancels all the requests in flight.
+     */
+    static CompletableFuture<HttpResult> submit(HedgePolicy policy, URI uri, Deadline deadline,
+                                                Function<Deadline, CompletableFuture<HttpResult>> attempt) {
+
+        HedgedExecution execution = new HedgedExecution(policy.stats(uri), deadline, attempt);
+        execution.stats.onRequest();
+        execution.send(deadline);
+
+        ScheduledFuture<?> timer = HttpTimer.schedule(execution::hedge, execution.stats.delayNanos(), TimeUnit.NANOSECONDS);
+        execution.result.whenComplete((httpResult, throwable) -> {
+            timer.cancel(false);
+            // the loser, or everything on cancellation
+            execution.attempts.forEach(future -> future.cancel(true));
+        });
+        return execution.result;
+    }
+
+    private void hedge() {
+
+        if (result.isDone()) {
+            return;
+        }
+        Deadline remaining = deadline;
+        if (deadline != null) {
+            remaining = deadline.remaining(System.nanoTime() - startNanos);
+            if (remaining == null) {
+                return;
+            }
+        }
+        if (!stats.tryHedge()) {
+            logger.debug("Hedge rate exceeded, not hedging");
+            return;
+        }
+        logger.debug("No response after {}ms, hedging", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        // off the timer thread, sending can encode and compress the body or open a file
+        Deadline backup = remaining;
+        AsyncExecution.bodyReader.execute(() -> send(backup));
+    }
+
+    private void send(Deadline deadline) {
+
+        pending.incrementAndGet();
+        long sent = System.nanoTime();
+        CompletableFuture<HttpResult> future;
+        try {
+            future = attempt.apply(deadline);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        attempts.add(future);
+        future.whenComplete((httpResult, throwable) -> {
+            boolean last = pending.decrementAndGet() == 0;
+            if (throwable == null && httpResult.getStatus() < 500) {
+                stats.record(System.nanoTime() - sent);
+                result.complete(httpResult);
+            } else if (throwable instanceof CancellationException && result.isDone() && !result.isCompletedExceptionally()) {
+                // the loser, censored: it would have taken at least as long
+                stats.record(System.nanoTime() - sent);
+            } else if (last) {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(httpResult);
+                }
+            }
+        });
+        if (result.isDone()) {
+            // completed while the request was being sent
+            future.cancel(true);
+        }
+    }
+}
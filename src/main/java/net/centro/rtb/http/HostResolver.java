@@ -0,0 +1,389 @@
+package net.centro.rtb.http;
+
+import com.google.common.net.InetAddresses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves host names for the connectors, with an in-process cache rather than the JVM-wide InetAddress cache.
+ *
+ * Lookups run on a thread pool of their own, never on the connector's threads, and concurrent lookups of a host are
+ * coalesced. The addresses are cached for the TTL of their records. Once 3/4 of the TTL passed, the next resolution
+ * refreshes them in the background, so a host in use is never looked up on the request's path. The hosts whose
+ * addresses expired and that are not being looked up are dropped, at most once a minute, by the next resolution.
+ * A host with several addresses gets them in turn: every resolution rotates the list, so new connections are
+ * spread over all the addresses. The Apache, Http2 and NettyEngine connectors fall back to the next address when a
+ * connect fails. The Jetty connector takes a single address per connect: a connect that fails fails the request,
+ * and the next connect goes to the next address.
+ *
+ * The Apache, Jetty, Http2 and NettyEngine connectors use the resolver of the request, HostResolver.getDefault()
+ * unless another one is set. The Grizzly, Netty, HttpUrlConnection and JdkHttpClient connectors resolve hosts on their own.
+ *
+ * A HostResolver is thread-safe and meant to be shared: set the same instance on all the builders it applies to.
+ */
+public class HostResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(HostResolver.class);
+
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final long DEFAULT_TTL_SECONDS = 30;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final HostResolver DEFAULT = create(DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+
+    private static final Executor lookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jumper-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Looks up the addresses of a host, e.g. with a DNS client, or a stub in tests.
+     * Called on the resolver's own threads, it may block.
+     */
+    @FunctionalInterface
+    public interface Lookup {
+
+        /**
+         * @throws UnknownHostException if the host has no address.
+         */
+        Records lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * The addresses of a host and how long they may be cached.
+     */
+    public static final class Records {
+
+        private final List<InetAddress> addresses;
+        private final long ttlNanos;
+
+        private Records(List<InetAddress> addresses, long ttlNanos) {
+            this.addresses = addresses;
+            this.ttlNanos = ttlNanos;
+        }
+
+        /**
+         * @param ttl the time to live of the records, 0 to not cache them.
+         */
+        public static Records of(long ttl, TimeUnit unit, List<InetAddress> addresses) {
+
+            if (addresses.isEmpty()) {
+                throw new IllegalArgumentException("No addresses");
+            }
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Negative TTL: " + ttl);
+            }
+            return new Records(Collections.unmodifiableList(new ArrayList<>(addresses)), unit.toNanos(ttl));
+        }
+
+        public static Records of(long ttl, TimeUnit unit, InetAddress... addresses) {
+            return of(ttl, unit, Arrays.asList(addresses));
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public long getTtl(TimeUnit unit) {
+            return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return addresses + " ttl=" + TimeUnit.NANOSECONDS.toMillis(ttlNanos) + "ms";
+        }
+    }
+
+    private final int id = ids.incrementAndGet();
+    private final Lookup lookup;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAccumulator maxLookupNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    private HostResolver(Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return the resolver shared by all requests without one of their own: system lookups, cached for 30 seconds.
+     */
+    public static HostResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * A resolver of system lookups (InetAddress.getAllByName), which do not tell the TTL of the records.
+     * @param ttl how long to cache the addresses.
+     */
+    public static HostResolver create(long ttl, TimeUnit unit) {
+        return create(host -> Records.of(ttl, unit, InetAddress.getAllByName(host)));
+    }
+
+    public static HostResolver create(Lookup lookup) {
+        return new HostResolver(lookup);
+    }
+
+    /**
+     * @return a future of the addresses of the host, rotated, completed right away when they are cached.
+     * It completes exceptionally with an UnknownHostException if the lookup fails.
+     */
+    public CompletableFuture<List<InetAddress>> resolveAsync(String host) {
+
+        if (InetAddresses.isInetAddress(host)) {
+            return CompletableFuture.completedFuture(Collections.singletonList(InetAddresses.forString(host)));
+        }
+
+        long now = System.nanoTime();
+        // before the entry of the host is created, so as not to drop it before its lookup starts
+        maybeSweep(now);
+        Entry entry = entries.computeIfAbsent(host.toLowerCase(Locale.ROOT), Entry::new);
+        Cached cached = entry.cached;
+        if (cached != null && now - cached.expiresAt < 0) {
+            hits.increment();
+            if (now - cached.refreshAt >= 0 && entry.pending.get() == null) {
+                refreshes.increment();
+                entry.lookup();
+            }
+            return CompletableFuture.completedFuture(entry.rotate(cached));
+        }
+
+        misses.increment();
+        return entry.lookup().thenApply(entry::rotate);
+    }
+
+    /**
+     * Waits for resolveAsync().
+     * @throws UnknownHostException if the lookup fails.
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+
+        try {
+            return resolveAsync(host).join();
+        } catch (CompletionException e) {
+            throw unknownHost(host, e.getCause());
+        }
+    }
+
+    /**
+     * Drops the cached addresses of the host, the next resolution looks it up again.
+     */
+    public void invalidate(String host) {
+        entries.remove(host.toLowerCase(Locale.ROOT));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private void maybeSweep(long now) {
+
+        long at = nextSweep.get();
+        if (now - at >= 0 && nextSweep.compareAndSet(at, now + SWEEP_INTERVAL_NANOS)) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * Drops the hosts whose addresses expired, or were never cached, and that are not being looked up.
+     * A resolution racing with it may look its host up once more.
+     */
+    void sweep(long now) {
+        entries.values().removeIf(entry -> entry.isIdle(now));
+    }
+
+    private static UnknownHostException unknownHost(String host, Throwable cause) {
+
+        if (cause instanceof UnknownHostException) {
+            return (UnknownHostException) cause;
+        }
+        UnknownHostException exception = new UnknownHostException(host + ": " + cause);
+        exception.initCause(cause);
+        return exception;
+    }
+
+    /**
+     * @return the number of resolutions served from the cache, including the ones that triggered a background refresh.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of resolutions that waited for a lookup.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of background refreshes triggered.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return the number of lookups sent, coalesced lookups count once.
+     */
+    public long getLookupCount() {
+        return lookupCount.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the average time of a lookup, successful or not.
+     */
+    public long getAverageLookupTime(TimeUnit unit) {
+        long count = lookupCount.sum();
+        return (count > 0) ? unit.convert(lookupNanos.sum() / count, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxLookupTime(TimeUnit unit) {
+        return unit.convert(maxLookupNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of hosts with cached addresses.
+     */
+    public int getSize() {
+        return (int) entries.values().stream().filter(entry -> entry.cached != null).count();
+    }
+
+    /**
+     * Resolvers are part of the ClientProfile, the id keeps its hash the same from one run to the next.
+     */
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "HostResolver{id=" + id + ", size=" + getSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", refreshes=" + getRefreshCount() + ", failures=" + getFailureCount()
+                + ", averageLookup=" + getAverageLookupTime(TimeUnit.MICROSECONDS) + "us}";
+    }
+
+    /** The cached addresses of a host. */
+    private static final class Cached {
+
+        final List<InetAddress> addresses;
+        final long refreshAt;
+        final long expiresAt;
+
+        Cached(Records records, long resolvedAt) {
+            this.addresses = records.addresses;
+            this.refreshAt = resolvedAt + records.ttlNanos / 4 * 3;
+            this.expiresAt = resolvedAt + records.ttlNanos;
+        }
+    }
+
+    /** A host, its cached addresses and its lookup in progress. */
+    private final class Entry {
+
+        final String host;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<CompletableFuture<Cached>> pending = new AtomicReference<>();
+        volatile Cached cached;
+
+        Entry(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return the lookup in progress, or a new one.
+         */
+        CompletableFuture<Cached> lookup() {
+
+            CompletableFuture<Cached> future;
+            do {
+                CompletableFuture<Cached> current = pending.get();
+                if (current != null) {
+                    return current;
+                }
+                future = new CompletableFuture<>();
+            } while (!pending.compareAndSet(null, future));
+
+            CompletableFuture<Cached> result = future;
+            lookups.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    Records records = lookup.lookup(host);
+                    long end = System.nanoTime();
+                    record(end - start);
+                    Cached resolved = new Cached(records, end);
+                    if (records.ttlNanos > 0) {
+                        cached = resolved;
+                    }
+                    pending.set(null);
+                    result.complete(resolved);
+                } catch (Exception e) {
+                    record(System.nanoTime() - start);
+                    failures.increment();
+                    logger.debug("Failed to resolve {}: {}", host, e.toString());
+                    pending.set(null);
+                    result.completeExceptionally(unknownHost(host, e));
+                }
+            });
+            return result;
+        }
+
+        boolean isIdle(long now) {
+
+            Cached current = cached;
+            return pending.get() == null && (current == null || now - current.expiresAt >= 0);
+        }
+
+        /**
+         * @return the addresses, starting from the next one in turn.
+         */
+        List<InetAddress> rotate(Cached cached) {
+
+            List<InetAddress> addresses = cached.addresses;
+            int size = addresses.size();
+            if (size == 1) {
+                return addresses;
+            }
+            int first = Math.floorMod(next.getAndIncrement(), size);
+            List<InetAddress> rotated = new ArrayList<>(size);
+            rotated.addAll(addresses.subList(first, size));
+            rotated.addAll(addresses.subList(0, first));
+            return rotated;
+        }
+    }
+
+    private void record(long nanos) {
+        lookupCount.increment();
+        lookupNanos.add(nanos);
+        maxLookupNanos.accumulate(nanos);
+    }
+}
@@ -11,10 +11,18 @@ public class Http {
     public enum HttpMethod {
         DELETE,
         GET,
+        HEAD,
         OPTIONS,
         PATCH,
         POST,
-        PUT
+        PUT;
+
+        /**
+         * @return true if sending the request more than once has the same effect as sending it once.
+         */
+        public boolean isIdempotent() {
+            return this != POST && this != PATCH;
+        }
     }
 
     /**
@@ -33,9 +41,33 @@ public class Http {
 
     /**
      * Defines the connector implementation provider. HttpUrlConnector is the default.
+     * Http2 multiplexes the requests to a host over HTTP/2 connections, the others use HTTP/1.1.
+     * JdkHttpClient sends the requests of a PreparedRequest with java.net.http.HttpClient rather than the Jersey client
+     * (Java 11 and later), NettyEngine with Jumper's own HTTP/1.1 engine on Netty.
      */
     public enum ConnectorProvider {
-        Grizzly, Apache, Jetty, Netty, HttpUrlConnector
+        Grizzly, Apache, Jetty, Netty, HttpUrlConnector, Http2, JdkHttpClient, NettyEngine
+    }
+
+    /**
+     * The phases of a request, as bounded by a Deadline.
+     */
+    public enum RequestPhase {
+        CONNECT, FIRST_BYTE, BODY
+    }
+
+    /**
+     * The outcome of a single endpoint of a ScatterGather.
+     */
+    public enum Outcome {
+        /** A response was received, with any status. */
+        COMPLETED,
+        /** The request failed, e.g. the connection was refused. */
+        FAILED,
+        /** The deadline passed before a response was received. */
+        TIMED_OUT,
+        /** The request was cancelled once enough responses were received. */
+        CANCELLED
     }
 
     /**
@@ -0,0 +1,554 @@
+package net.centro.rtb.http;
+
+import com.google.common.collect.ImmutableSet;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionDecoder;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.StreamBufferingEncoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+import org.glassfish.jersey.message.internal.Statuses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.ws.rs.ProcessingException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connector of Http.ConnectorProvider.Http2, on Netty's HTTP/2 codec: the requests to a host are multiplexed as
+ * streams over a few connections, rather than one connection per request in flight, and their headers are
+ * compressed with HPACK.
+ *
+ * http urls use h2c with prior knowledge, the server must accept HTTP/2 without an upgrade. https urls negotiate h2
+ * with ALPN, which needs Java 8u252 or later. There is no fallback to HTTP/1.1, a server that does not speak HTTP/2
+ * fails the request.
+ *
+ * A host gets another connection once all of its connections have PoolSettings.getMaxConcurrentStreams() streams open
+ * (100 unless set), up to PoolSettings.getMaxPerHost() connections. Beyond that, requests wait for a stream to close,
+ * the connect timeout bounding the wait. Request and response bodies are buffered.
+ */
+final class Http2Connector implements Connector {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2Connector.class);
+
+    static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    // connection-specific headers, not allowed in HTTP/2. Host is sent as :authority
+    private static final ImmutableSet<String> CONNECTION_HEADERS = ImmutableSet.of(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "te");
+
+    // shared by the connections of all the clients, as the connections of a client come and go with its hosts
+    private static final EventLoopGroup group = new NioEventLoopGroup(0, new DefaultThreadFactory("jumper-h2", true));
+
+    private final javax.ws.rs.client.Client client;
+    private final PoolSettings settings;
+    private final HostResolver resolver;
+    private final int maxStreams;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> sweeper;
+    private volatile boolean closed;
+
+    private Http2Connector(javax.ws.rs.client.Client client, PoolSettings settings, HostResolver resolver) {
+
+        this.client = client;
+        this.settings = settings;
+        this.resolver = resolver;
+        this.maxStreams = (settings.getMaxConcurrentStreams() > 0) ? settings.getMaxConcurrentStreams() : DEFAULT_MAX_CONCURRENT_STREAMS;
+        if (settings.getMaxTotal() > 0) {
+            logger.warn("The Http2 connector has no total connection limit, ignoring it");
+        }
+
+        long idle = settings.getIdleTimeout(TimeUnit.MILLISECONDS);
+        long ttl = settings.getKeepAliveTtl(TimeUnit.MILLISECONDS);
+        long period = (idle > 0) ? Math.max(idle / 2, 100) : (ttl > 0) ? Math.max(ttl / 2, 100) : 0;
+        this.sweeper = (period > 0) ? HttpTimer.scheduleAtFixedRate(this::sweep, period, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * @return the provider of the connector of a Client, with the pool settings and resolver of its profile.
+     */
+    static ConnectorProvider provider(PoolSettings settings, HostResolver resolver) {
+        return (client, configuration) -> new Http2Connector(client, settings, resolver);
+    }
+
+    @Override
+    public ClientResponse apply(ClientRequest request) {
+
+        try {
+            return execute(request).get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof ProcessingException) ? (ProcessingException) e.getCause() : new ProcessingException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        }
+    }
+
+    @Override
+    public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback) {
+
+        CompletableFuture<ClientResponse> future;
+        try {
+            future = execute(request);
+        } catch (ProcessingException e) {
+            callback.failure(e);
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                callback.response(response);
+            } else {
+                callback.failure(unwrap(throwable));
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public String getName() {
+        return "Jumper HTTP/2";
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+        pools.values().forEach(HostPool::close);
+    }
+
+    /**
+     * @return the connection gauges by host:port. A connection with streams open is leased, one without is idle,
+     * and the requests waiting for a stream are pending.
+     */
+    Map<String, PoolStats> getStats() {
+
+        Map<String, PoolStats> stats = new HashMap<>();
+        pools.values().forEach(pool -> stats.merge(pool.name, pool.getStats(), PoolStats::add));
+        return stats;
+    }
+
+    private CompletableFuture<ClientResponse> execute(ClientRequest request) {
+
+        if (closed) {
+            throw new ProcessingException("The Http2 connector is closed");
+        }
+        URI uri = request.getUri();
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = (uri.getPort() > 0) ? uri.getPort() : secure ? 443 : 80;
+        Exchange exchange = new Exchange(request, uri, secure);
+
+        String key = uri.getScheme().toLowerCase(Locale.ROOT) + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+        pools.computeIfAbsent(key, k -> new HostPool(uri.getHost(), port, secure)).submit(exchange);
+        return exchange.future;
+    }
+
+    private void sweep() {
+        pools.values().forEach(HostPool::sweep);
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return (throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+    }
+
+    /** A request and its response, once sent on a stream. */
+    private static final class Exchange {
+
+        final ClientRequest request;
+        final Http2Headers headers;
+        final ByteBuf body;
+        final CompletableFuture<ClientResponse> future = new CompletableFuture<>();
+        final int connectTimeout;
+        final int readTimeout;
+        volatile ScheduledFuture<?> timer;
+        // the response, on the connection's event loop
+        int status;
+        Http2Headers responseHeaders;
+        ByteBuf content;
+
+        Exchange(ClientRequest request, URI uri, boolean secure) {
+
+            this.request = request;
+            this.connectTimeout = request.resolveProperty(ClientProperties.CONNECT_TIMEOUT, 0);
+            this.readTimeout = request.resolveProperty(ClientProperties.READ_TIMEOUT, 0);
+
+            // the entity first, its interceptors may add headers, e.g. Content-Encoding
+            if (request.hasEntity()) {
+                ByteBuf buffer = Unpooled.buffer();
+                request.setStreamProvider(contentLength -> new ByteBufOutputStream(buffer));
+                try {
+                    request.writeEntity();
+                } catch (IOException e) {
+                    throw new ProcessingException(e);
+                }
+                this.body = buffer;
+            } else {
+                this.body = null;
+            }
+
+            String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+            this.headers = new DefaultHttp2Headers()
+                    .method(request.getMethod())
+                    .scheme(secure ? "https" : "http")
+                    .authority((uri.getPort() > 0) ? uri.getHost() + ":" + uri.getPort() : uri.getHost())
+                    .path(path);
+            for (Map.Entry<String, List<String>> header : request.getStringHeaders().entrySet()) {
+                String name = header.getKey().toLowerCase(Locale.ROOT);
+                if (!CONNECTION_HEADERS.contains(name) && !"content-length".equals(name)) {
+                    for (String value : header.getValue()) {
+                        headers.add(name, value);
+                    }
+                }
+            }
+            if (body != null) {
+                headers.setInt("content-length", body.readableBytes());
+            }
+
+            if (connectTimeout > 0) {
+                timer = HttpTimer.schedule(() -> future.completeExceptionally(new SocketTimeoutException("connect timed out")),
+                        connectTimeout, TimeUnit.MILLISECONDS);
+            }
+            future.whenComplete((response, throwable) -> cancelTimer());
+        }
+
+        /** Once sent, waits for the response headers for the read timeout. */
+        void sent() {
+
+            cancelTimer();
+            if (readTimeout > 0 && !future.isDone()) {
+                timer = HttpTimer.schedule(() -> future.completeExceptionally(new SocketTimeoutException("Read timed out")),
+                        readTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void received(int status, Http2Headers headers) {
+
+            cancelTimer();
+            this.status = status;
+            this.responseHeaders = headers;
+            CharSequence length = headers.get("content-length");
+            int capacity = 256;
+            if (length != null) {
+                try {
+                    capacity = Math.min(Integer.parseInt(length.toString()), 1 << 20);
+                } catch (NumberFormatException e) {
+                    // sized as it comes
+                }
+            }
+            this.content = Unpooled.buffer(capacity);
+        }
+
+        void complete() {
+
+            ClientResponse response = new ClientResponse(Statuses.from(status), request);
+            for (Map.Entry<CharSequence, CharSequence> header : responseHeaders) {
+                CharSequence name = header.getKey();
+                if (name.length() > 0 && name.charAt(0) != ':') {
+                    response.getHeaders().add(name.toString(), header.getValue().toString());
+                }
+            }
+            response.setEntityStream(new ByteBufInputStream(content));
+            future.complete(response);
+        }
+
+        private void cancelTimer() {
+
+            ScheduledFuture<?> current = timer;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+    }
+
+    /** The connections to a host and the requests waiting for a stream. */
+    private final class HostPool extends NettyHostPool<Exchange, Connection> {
+
+        HostPool(String host, int port, boolean secure) {
+            super("Http2", host, port, secure, client, "h2", settings, resolver);
+        }
+
+        @Override
+        void configure(Bootstrap bootstrap) {
+
+            bootstrap.group(group);
+            Exchange first = peek();
+            if (first != null && first.connectTimeout > 0) {
+                bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, first.connectTimeout);
+            }
+        }
+
+        @Override
+        Connection open(Channel channel) {
+
+            Connection connection = new Connection(this, channel);
+            channel.pipeline().addLast(connection.handler);
+            channel.closeFuture().addListener(future -> connection.closed());
+            return connection;
+        }
+
+        @Override
+        void send(Connection connection, Exchange exchange) {
+            connection.send(exchange);
+        }
+
+        @Override
+        int depth() {
+            return maxStreams;
+        }
+
+        @Override
+        boolean isDone(Exchange exchange) {
+            return exchange.future.isDone();
+        }
+
+        @Override
+        void fail(Exchange exchange, Throwable cause) {
+            exchange.future.completeExceptionally(cause);
+        }
+
+        @Override
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        String checkNegotiated(SSLEngine engine) {
+            return "h2".equals(engine.getApplicationProtocol()) ? null : "The server did not negotiate HTTP/2 with ALPN: " + name;
+        }
+    }
+
+    /** An HTTP/2 connection and its streams. */
+    private final class Connection extends Http2FrameAdapter implements NettyHostPool.Pooled {
+
+        final HostPool pool;
+        final Channel channel;
+        final NettyHostPool.Slot slot;
+        final Http2ConnectionHandler handler;
+        // on the event loop
+        final Map<Integer, Exchange> streams = new HashMap<>();
+
+        Connection(HostPool pool, Channel channel) {
+
+            this.pool = pool;
+            this.channel = channel;
+            this.slot = new NettyHostPool.Slot(channel);
+
+            // streams beyond the server's SETTINGS_MAX_CONCURRENT_STREAMS are buffered rather than refused
+            Http2Connection connection = new DefaultHttp2Connection(false);
+            Http2ConnectionEncoder encoder = new StreamBufferingEncoder(new DefaultHttp2ConnectionEncoder(connection, new DefaultHttp2FrameWriter()));
+            Http2ConnectionDecoder decoder = new DefaultHttp2ConnectionDecoder(connection, encoder, new DefaultHttp2FrameReader());
+            this.handler = new Http2ConnectionHandlerBuilder()
+                    .codec(decoder, encoder)
+                    .frameListener(this)
+                    .initialSettings(new Http2Settings().pushEnabled(false))
+                    .build();
+            connection.addListener(new Http2ConnectionAdapter() {
+                @Override
+                public void onStreamClosed(Http2Stream stream) {
+                    finish(stream.id(), new IOException(channel.isActive() ? "The stream closed before the response completed"
+                            : "The connection closed before the response completed"));
+                }
+
+                @Override
+                public void onGoAwayReceived(int lastStreamId, long errorCode, ByteBuf debugData) {
+                    pool.drain(Connection.this);
+                }
+            });
+        }
+
+        @Override
+        public NettyHostPool.Slot slot() {
+            return slot;
+        }
+
+        void send(Exchange exchange) {
+
+            channel.eventLoop().execute(() -> {
+                if (exchange.future.isDone()) {
+                    pool.release(this, true);
+                    return;
+                }
+                if (!channel.isActive()) {
+                    pool.requeue(exchange);
+                    pool.release(this, true);
+                    return;
+                }
+                int id = handler.connection().local().incrementAndGetNextStreamId();
+                if (id < 0) {
+                    // out of stream ids, continues on a new connection
+                    pool.drain(this);
+                    pool.requeue(exchange);
+                    pool.release(this, true);
+                    return;
+                }
+
+                streams.put(id, exchange);
+                exchange.sent();
+                exchange.future.whenComplete((response, throwable) -> {
+                    if (throwable != null) {
+                        reset(id);
+                    }
+                });
+
+                ChannelHandlerContext context = channel.pipeline().context(handler);
+                ChannelFutureListener failure = future -> {
+                    if (!future.isSuccess()) {
+                        finish(id, future.cause());
+                    }
+                };
+                boolean endStream = exchange.body == null;
+                handler.encoder().writeHeaders(context, id, exchange.headers, 0, endStream, context.newPromise()).addListener(failure);
+                if (!endStream) {
+                    handler.encoder().writeData(context, id, exchange.body, 0, true, context.newPromise()).addListener(failure);
+                }
+                channel.flush();
+            });
+        }
+
+        /** Cancels the stream of a request that failed or timed out. */
+        private void reset(int id) {
+
+            channel.eventLoop().execute(() -> {
+                if (streams.remove(id) != null) {
+                    pool.release(this, true);
+                    if (handler.connection().stream(id) != null) {
+                        handler.resetStream(channel.pipeline().context(handler), id, Http2Error.CANCEL.code(), channel.newPromise());
+                        channel.flush();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Completes the request of the stream, exceptionally if a failure is given. Once per stream, on the event loop.
+         */
+        private void finish(int id, Throwable failure) {
+
+            Exchange exchange = streams.remove(id);
+            if (exchange == null) {
+                return;
+            }
+            // the stream is free before the caller gets the response
+            pool.release(this, true);
+            if (failure != null) {
+                exchange.future.completeExceptionally(failure);
+            } else {
+                exchange.complete();
+            }
+        }
+
+        void closed() {
+
+            List<Integer> open = new ArrayList<>(streams.keySet());
+            open.forEach(id -> finish(id, new IOException("The connection closed before the response completed")));
+            pool.remove(this);
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int padding, boolean endOfStream) {
+
+            Exchange exchange = streams.get(streamId);
+            if (exchange == null) {
+                return;
+            }
+            if (exchange.responseHeaders == null) {
+                int status;
+                try {
+                    status = Integer.parseInt(String.valueOf(headers.status()));
+                } catch (NumberFormatException e) {
+                    finish(streamId, new IOException("Invalid :status in the response: " + headers.status()));
+                    return;
+                }
+                if (status < 200) {
+                    // informational, the final headers follow
+                    return;
+                }
+                exchange.received(status, headers);
+            }
+            // later headers are trailers, dropped
+            if (endOfStream) {
+                finish(streamId, null);
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int streamDependency,
+                                  short weight, boolean exclusive, int padding, boolean endOfStream) {
+            onHeadersRead(context, streamId, headers, padding, endOfStream);
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext context, int streamId, ByteBuf data, int padding, boolean endOfStream) {
+
+            // returned as processed, so the flow control windows are updated right away
+            int processed = data.readableBytes() + padding;
+            Exchange exchange = streams.get(streamId);
+            if (exchange != null && exchange.content != null) {
+                exchange.content.writeBytes(data);
+                if (endOfStream) {
+                    finish(streamId, null);
+                }
+            }
+            return processed;
+        }
+
+        @Override
+        public void onRstStreamRead(ChannelHandlerContext context, int streamId, long errorCode) {
+            Http2Error error = Http2Error.valueOf(errorCode);
+            finish(streamId, new IOException("The server reset the stream: " + ((error != null) ? error : errorCode)));
+        }
+    }
+}
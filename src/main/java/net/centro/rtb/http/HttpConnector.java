@@ -1,22 +1,28 @@
 package net.centro.rtb.http;
 
 import com.google.common.io.CharStreams;
+import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.message.internal.EntityInputStream;
+import org.glassfish.jersey.message.internal.ReaderWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.net.ssl.*;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.*;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response;
 import java.io.*;
+import java.lang.reflect.Type;
 import java.net.*;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Main http client class.
@@ -30,8 +36,11 @@ public class HttpConnector {
 
 
     private static final Logger logger = LoggerFactory.getLogger(HttpConnector.class);
-    private static long userAgentCounter = System.currentTimeMillis();
     private Client client;
+    private final ClientProfile clientProfile;
+    private ManagedClient managedClient;
+    // releases the lease of the last execution, once
+    private Runnable releaseClient;
     private javax.ws.rs.core.Response response;
     private Future<javax.ws.rs.core.Response> future;
     private Http.SyncType syncType;
@@ -39,10 +48,14 @@ public class HttpConnector {
     private String responseMessage;
     private Object requestBody;
     private Object responseBody = null;
+    // the type decodeResponseBody() bound the responseBody to, null if read otherwise
+    private Type responseBodyType;
+    private boolean emptyResponse;
     private int responseCode;
     private Http.HttpMethod httpMethod;
     private URI url;
-    private MultivaluedMap<String, Object> reqProperties;
+    private RequestTemplate template;
+    private InvocationCallback userCallback;
     private InvocationCallback invocationCallback;
     private java.nio.file.Path path;
     private MediaType mediaType;
@@ -51,6 +64,11 @@ public class HttpConnector {
     private long start,end;
     private Invocation.Builder invoke;
     private Http.Encoding encoding = null;
+    private Map<String, NewCookie> cookieStore;
+    private CompletableFuture<HttpResult> completableFuture;
+    private volatile HttpResult result;
+    private Deadline deadline;
+    private HedgePolicy hedgePolicy;
 
     static {
         System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
@@ -59,29 +77,32 @@ public class HttpConnector {
     protected HttpConnector(HttpConnectorBuilder builder) {
 
         storeCookies = builder.isStoreCookies();
-        url = builder.getURI();
+        // the method, URI and headers, resolved once and shared by the connectors built from the builder
+        template = builder.getTemplate();
+        url = template.getURI();
         path = builder.getPath();
         syncType = builder.getSyncType();
-        httpMethod = (builder.getHttpMethod() != null) ? builder.getHttpMethod() : Http.HttpMethod.GET;
-        reqProperties = builder.getRequestHeaders();
-        invocationCallback = processCallback(builder.getInvocationCallback());
+        httpMethod = template.getMethod();
+        userCallback = builder.getInvocationCallback();
         requestBody = builder.getBody();
-        if (reqProperties.get("content-type") != null) {
-            mediaType = MediaType.valueOf(reqProperties.get("content-type").get(0).toString());
-        }
-        builder.getRequestHeaders().add("user-agent", "http-client" + userAgentCounter++);
+        deadline = builder.getDeadline();
+        hedgePolicy = builder.getHedgePolicy();
+        mediaType = template.getMediaType();
 
-        client = ClientFactory.getClient(builder);
-        WebTarget target = client.target(url);
-        invoke = target.request();
-        invoke.headers(reqProperties);
-        HttpConnectorCookieManager.setCookies(invoke);
+        clientProfile = builder.getClientProfile();
+        client = ClientFactory.client(clientProfile);
 
-        logger.debug("\nHTTP REQUEST:" + builder.getUrl().toString() + " \n|BODY| " + builder.getBody() + " \n|METHOD| " + builder.getHttpMethod() + " \n|HEADER| " + map2String(builder.getRequestHeaders()) + " \n|COOKIES| " + map2String(HttpConnectorCookieManager.getCookies()) + "\n");
+        if (logger.isDebugEnabled()) {
+            logger.debug("\nHTTP REQUEST:" + builder.getUrl() + " \n|BODY| " + builder.getBody() + " \n|METHOD| " + httpMethod + " \n|HEADER| " + template.getHeaders() + " \n|COOKIES| " + map2String(HttpConnectorCookieManager.getCookies()) + "\n");
+        }
 
     }
 
-    private InvocationCallback<Response> processCallback(InvocationCallback invocationCallback){
+    /**
+     * @param release the lease of the execution: released by the response once its body is read or closed, and here
+     * if there is no response.
+     */
+    private InvocationCallback<Response> processCallback(InvocationCallback invocationCallback, Runnable release){
 
         return new InvocationCallback<Response>() {
             @Override
@@ -89,7 +110,10 @@ public class HttpConnector {
                 end = System.currentTimeMillis();
                 duration = end - start;
                 logger.trace("Async response: {}",response.getStatus());
-                if (invocationCallback != null) { invocationCallback.completed(response); }
+                if (cookieStore != null) { cookieStore.putAll(response.getCookies()); }
+                if (invocationCallback != null) {
+                    invocationCallback.completed(response);
+                }
             }
 
             @Override
@@ -97,10 +121,44 @@ public class HttpConnector {
                 end = System.currentTimeMillis();
                 duration = end - start;
                 logger.warn("Request failed: " + throwable.getMessage());
+                release.run();
             }
         };
     }
 
+    /**
+     * Leases the client for an execution: the ClientFactory does not close a client while it is leased, e.g. while a
+     * response body is read. Each execution takes a lease of its own, as the cached client may have been replaced since.
+     * @param untilBodyRead the lease is released by the response, once its body is read to its end or closed (see
+     * ClientFactory.LeaseFilter), rather than by the caller.
+     */
+    private void leaseClient(boolean untilBodyRead) {
+
+        ManagedClient leased = ClientFactory.acquire(clientProfile);
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                leased.release();
+            }
+        };
+        managedClient = leased;
+        client = leased.getClient();
+        releaseClient = release;
+
+        invoke = template.target(leased).request();
+        template.setHeaders(invoke, null);
+        StreamingBody.setChunked(invoke, requestBody);
+        if (deadline != null) {
+            // execute() only gets the connect and read timeouts, executeAsync() enforces the whole deadline
+            invoke.property(ClientProperties.CONNECT_TIMEOUT, Deadline.toMillis(deadline.getConnectBudget(TimeUnit.NANOSECONDS)));
+            invoke.property(ClientProperties.READ_TIMEOUT, Deadline.toMillis(deadline.getFirstByteBudget(TimeUnit.NANOSECONDS)));
+        }
+        if (untilBodyRead) {
+            invoke.property(ClientFactory.LeaseFilter.LEASE, release);
+        }
+        HttpConnectorCookieManager.setCookies(invoke);
+    }
+
 
     public static <T,E> String map2String(Map<T,E> map) {
 
@@ -149,7 +207,7 @@ public class HttpConnector {
                 if (invocationCallback == null) {
                     future = invoke.async().put(entity);
                 } else {
-                    future = invoke.async().post(entity, invocationCallback);
+                    future = invoke.async().put(entity, invocationCallback);
                 }
             } else {
                 response = invoke.buildPut(entity).invoke();
@@ -159,50 +217,155 @@ public class HttpConnector {
         case DELETE:
             entity = (mediaType == null) ? Entity.text((T)requestBody) : Entity.entity((T)requestBody, mediaType);
             if (syncType == Http.SyncType.ASYNC) {
-                    future = invoke.async().method("DELETE", entity);
+                future = invoke.async().method("DELETE", entity, invocationCallback);
             } else {
                 response = invoke.build("DELETE", entity).invoke();
             }
             break;
+
+        case HEAD:
+            if (syncType == Http.SyncType.ASYNC) {
+                if (invocationCallback == null) {
+                    future = invoke.async().head();
+                } else {
+                    future = invoke.async().method("HEAD", invocationCallback);
+                }
+            } else {
+                response = invoke.build("HEAD").invoke();
+            }
+            break;
         }
     }
 
     /**
      *  Triggers the actual http request.
+     *  The client is leased until the response body is read or the response closed: call close() when only the status
+     *  or headers of a response with a body are read.
      * @return this (builder design)
      */
     public HttpConnector execute() {
 
+        completableFuture = null;
+        result = null;
+        response = null;
+        future = null;
+        responseBody = null;
+        responseBodyType = null;
+        emptyResponse = false;
+        responseCode = 0;
+        responseMessage = null;
+        encoding = null;
+        // async responses store their cookies from the callback, into the store of the calling thread
+        cookieStore = (storeCookies && syncType == Http.SyncType.ASYNC) ? HttpConnectorCookieManager.getCookies() : null;
+        leaseClient(true);
+        invocationCallback = processCallback(userCallback, releaseClient);
         start = System.currentTimeMillis();
 
-        invokeRequest(invoke);
+        try {
+            invokeRequest(invoke);
+        } catch (RuntimeException e) {
+            releaseClient();
+            throw e;
+        }
 
         if (syncType == Http.SyncType.SYNC) {
             end = System.currentTimeMillis();
             duration = end - start;
+            if (storeCookies) {
+                HttpConnectorCookieManager.addCookies(response.getCookies());
+            }
         }
 
-        if (storeCookies) {
-            Map<String, NewCookie> cookies = null;
-            switch (syncType) {
-                case SYNC:
-                    cookies = response.getCookies();
-                    break;
-                case ASYNC:
-                    try {
-                        response = future.get();
-                        cookies = response.getCookies();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    }
-                    break;
+        return this;
+    }
+
+    /**
+     * Triggers the http request asynchronously, regardless of the sync type set in the builder.
+     * The returned future completes once the response is fully read and decoded, so the HttpResult accessors never block.
+     * Cancelling the future cancels the in-flight request. If a Deadline was set in the builder, the future completes
+     * exceptionally with a DeadlineExceededException, and the request is cancelled, when it runs out of time.
+     * If a HedgePolicy was set and the method is idempotent, the request is hedged.
+     * With the JdkHttpClient and NettyEngine connectors the request is sent by their engine, around the Jersey client.
+     *
+     * After calling this method the getters of this HttpConnector (getResponseCode(), getResponseBody(), etc.) never block either:
+     * they read the completed result, and return 0/null while the request is in flight or if it failed.
+     * @return a future of the result of the request.
+     */
+    public CompletableFuture<HttpResult> executeAsync() {
+
+        result = null;
+        responseBody = null;
+        responseBodyType = null;
+        emptyResponse = false;
+        responseCode = 0;
+        responseMessage = null;
+        duration = 0L;
+        // released once the request completes
+        leaseClient(false);
+        Runnable release = releaseClient;
+        start = System.currentTimeMillis();
+
+        CompletableFuture<HttpResult> completable;
+        HttpEngine engine = managedClient.getEngine();
+        try {
+            if (engine != null) {
+                // the cookies of the calling thread, as set on the invocation builder
+                Map<String, NewCookie> cookies = HttpConnectorCookieManager.getCookies();
+                Map<String, NewCookie> store = storeCookies ? cookies : null;
+                completable = HedgedExecution.applies(hedgePolicy, httpMethod, requestBody)
+                        ? HedgedExecution.submit(hedgePolicy, url, deadline, attemptDeadline -> engine.send(template, null, requestBody, null, cookies, store, attemptDeadline))
+                        : engine.send(template, null, requestBody, null, cookies, store, deadline);
+            } else if (HedgedExecution.applies(hedgePolicy, httpMethod, requestBody)) {
+                // the cookies were set on the invocation builder, the responses' go to the store of the calling thread
+                Map<String, NewCookie> store = storeCookies ? HttpConnectorCookieManager.getCookies() : null;
+                completable = HedgedExecution.submit(hedgePolicy, url, deadline,
+                        attemptDeadline -> AsyncExecution.submit(buildInvocation(), store, attemptDeadline, managedClient.getProfile().getConnectorProvider()));
+            } else {
+                completable = AsyncExecution.submit(buildInvocation(), storeCookies, deadline, managedClient.getProfile().getConnectorProvider());
             }
-            HttpConnectorCookieManager.addCookies(cookies);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
         }
+        completableFuture = completable;
+        completable.whenComplete((httpResult, throwable) -> {
+            end = System.currentTimeMillis();
+            duration = end - start;
+            result = httpResult;
+            release.run();
+        });
+        return completable;
+    }
 
-        return this;
+    /**
+     * Triggers the http request asynchronously. The returned future completes exceptionally with a
+     * java.util.concurrent.TimeoutException, and the request is cancelled, if no response was read within the timeout.
+     * @param timeout the maximum time to wait for the result.
+     * @param unit the time unit of the timeout argument.
+     * @return a future of the result of the request.
+     */
+    public CompletableFuture<HttpResult> executeAsync(long timeout, TimeUnit unit) {
+        return HttpTimer.within(executeAsync(), timeout, unit);
+    }
+
+    private <T> Invocation buildInvocation() {
+
+        switch (httpMethod) {
+            case GET:
+                return invoke.buildGet();
+            case DELETE:
+                return (requestBody == null) ? invoke.buildDelete() : invoke.build("DELETE", entity());
+            case HEAD:
+                return invoke.build("HEAD");
+            case OPTIONS:
+                return invoke.build("OPTIONS");
+            default:
+                return invoke.build(httpMethod.name(), entity());
+        }
+    }
+
+    private <T> Entity<T> entity() {
+        return (mediaType == null) ? Entity.text((T) requestBody) : Entity.entity((T) requestBody, mediaType);
     }
 
     /**
@@ -218,7 +381,14 @@ public class HttpConnector {
 
     }
 
-    private static Http.Encoding getEncoding(Response response) {
+    /**
+     * @return the charset Jersey reads the body as text with, of the Content-Type header, UTF-8 by default.
+     */
+    private Charset getCharset() {
+        return ReaderWriter.getCharset((response != null) ? response.getMediaType() : null);
+    }
+
+    static Http.Encoding getEncoding(Response response) {
 
         Http.Encoding encoding;
         String encodingValue = (response.getHeaderString("content-encoding") != null) ? response.getHeaderString("content-encoding") : "";
@@ -231,6 +401,10 @@ public class HttpConnector {
      */
     public int getResponseCode() {
 
+        if (completableFuture != null) {
+            return (result != null) ? result.getStatus() : 0;
+        }
+
         if (responseCode != 0) {
             return  responseCode;
         }
@@ -256,10 +430,15 @@ public class HttpConnector {
      */
     public String getResponseBody() {
 
+        if (completableFuture != null) {
+            return (result != null) ? result.getBody() : null;
+        }
+
         InputStreamReader inputStreamReader;
 
         if (responseBody == null) {
-            inputStreamReader = new InputStreamReader(getResponseBody(InputStream.class));
+            InputStream body = getResponseBody(InputStream.class);
+            inputStreamReader = new InputStreamReader(body, getCharset());
             try {
                 responseBody = CharStreams.toString(inputStreamReader);
             } catch (IOException e1) {
@@ -273,6 +452,7 @@ public class HttpConnector {
 
     /**
      * Returns the raw Client object. This is for experimental use only.
+     * It is not leased, and is closed once evicted from the ClientFactory: see ClientFactory.leaseClient().
      * @return raw Client object.
      */
     public Client getRawClient() {
@@ -287,6 +467,10 @@ public class HttpConnector {
      */
     public <T> T getResponseBody(GenericType<T> type) {
 
+        if (completableFuture != null) {
+            return (result != null) ? result.getBody(type) : null;
+        }
+
         if (responseBody != null) {
             return (T) responseBody;
         }
@@ -296,6 +480,8 @@ public class HttpConnector {
                 String response = "Empty response: " + getResponseCode() + " " +  getResponseMessage();
                 logger.warn(response);
                 responseBody = response;
+                emptyResponse = true;
+                releaseClient();
                 return null;
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -316,6 +502,7 @@ public class HttpConnector {
         } else {
             responseBody = response.readEntity(type);
         }
+        releaseClient();
 
         return (T) responseBody;
     }
@@ -328,9 +515,14 @@ public class HttpConnector {
      */
     public <T> T getResponseBody(Class<T> tClass) {
 
+        if (completableFuture != null) {
+            return (result != null) ? result.getBody(tClass) : null;
+        }
+
         if (responseBody != null) {
             if ((tClass.isAssignableFrom(InputStream.class)) && (responseBody instanceof String)) {
-                return (T) new ByteArrayInputStream(((String) responseBody).getBytes());
+                // the text of the body back to the bytes it was read from, in the charset of the response
+                return (T) new ByteArrayInputStream(((String) responseBody).getBytes(getCharset()));
             }
             return (T) responseBody;
         }
@@ -340,6 +532,8 @@ public class HttpConnector {
                 String response = "Empty response: " + getResponseCode() + " " +  getResponseMessage();
                 logger.warn(response);
                 responseBody = response;
+                emptyResponse = true;
+                releaseClient();
                 return (tClass.getSimpleName().equals("String")) ? (T) responseBody : null;
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -363,21 +557,94 @@ public class HttpConnector {
 
         if (tClass.isAssignableFrom(InputStream.class)) {
             responseBody = getInputStreamDecoded(((InputStream) responseBody), getEncoding());
+        } else {
+            releaseClient();
         }
 
         return (T) responseBody;
     }
 
-    private static InputStream getInputStreamDecoded(InputStream inputStream, Http.Encoding encode) {
+    /**
+     * Binds the JSON response body to the type as it is read from the connection, decoded (gzip, deflate) on the fly,
+     * with a Jackson reader kept per type: no String of the body as with getResponseBody(), nor a lookup of Jersey's
+     * readers as with getResponseBody(Class). The response is closed once the body is bound.
+     * After executeAsync() the body of the completed result is bound instead. Called again, with another type or after
+     * getResponseBody(), the body already read is bound to the new type.
+     * @param tClass the type of object the response should be mapped to.
+     * @return the body mapped to the type, null if the response has no body or the request failed.
+     */
+    public <T> T decodeResponseBody(Class<T> tClass) {
+        return decodeResponseBody((Type) tClass);
+    }
+
+    /**
+     * Binds the JSON response body to a generic type as it is read from the connection.
+     * (Ex. decodeResponseBody(new GenericType&lt;List&lt;Integer&gt;&gt;() {}))
+     * @see #decodeResponseBody(Class)
+     */
+    public <T> T decodeResponseBody(GenericType<T> type) {
+        return decodeResponseBody(type.getType());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T decodeResponseBody(Type type) {
+
+        try {
+            if (completableFuture != null) {
+                return (result != null && result.getBodyBytes().length > 0) ? JsonCodec.read(result.getBodyBytes(), 0, result.getBodyBytes().length, type) : null;
+            }
+            if (emptyResponse) {
+                // not the placeholder text of getResponseBody()
+                return null;
+            }
+            if (responseBody instanceof String || responseBody instanceof byte[]) {
+                // already read as text or bytes
+                byte[] bytes = (responseBody instanceof String) ? ((String) responseBody).getBytes(getCharset()) : (byte[]) responseBody;
+                return (bytes.length > 0) ? JsonCodec.read(bytes, 0, bytes.length, type) : null;
+            }
+            if (responseBody instanceof InputStream) {
+                throw new IllegalStateException("The response body was handed out as a stream");
+            }
+            if (responseBody != null) {
+                // already bound, by this method or getResponseBody(), bound again to another type
+                return type.equals(responseBodyType) ? (T) responseBody : JsonCodec.convert(responseBody, type);
+            }
+            if (syncType == Http.SyncType.ASYNC) {
+                response = future.get();
+            }
+            if (!response.hasEntity()) {
+                logger.warn("Empty response: " + getResponseCode() + " " + getResponseMessage());
+                emptyResponse = true;
+                return null;
+            }
+            try (InputStream in = getInputStreamDecoded(response.readEntity(InputStream.class), getEncoding())) {
+                T body = JsonCodec.read(in, type);
+                responseBody = body;
+                responseBodyType = type;
+                return body;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error(e.getMessage());
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ProcessingException("Failed to map the response body to " + type.getTypeName(), e);
+        } finally {
+            if (completableFuture == null) {
+                releaseClient();
+            }
+        }
+    }
+
+    static InputStream getInputStreamDecoded(InputStream inputStream, Http.Encoding encode) {
 
         try {
             switch (encode) {
                 case NONE:
                     return inputStream;
                 case GZIP:
-                    return new EntityInputStream(new GZIPInputStream(inputStream));
                 case DEFLATE:
-                    return new EntityInputStream(new InflaterInputStream(inputStream));
+                    // on a pooled Inflater, returned when the stream is closed
+                    return new EntityInputStream(Zlib.decompress(inputStream, encode));
             }
         } catch (IOException e) {
             logger.error("Failed to decode stream with {} encoding", encode.name());
@@ -391,6 +658,9 @@ public class HttpConnector {
      * @return true if a response exists, false if a response has yet to be received.
      */
     public boolean isAsyncDone() {
+        if (completableFuture != null) {
+            return completableFuture.isDone();
+        }
         return future.isDone();
     }
 
@@ -443,7 +713,11 @@ public class HttpConnector {
      */
     public void saveToFile(java.nio.file.Path path) throws IOException {
 
-        saveToFile(getResponseBody(InputStream.class), path);
+        try {
+            saveToFile(getResponseBody(InputStream.class), path);
+        } finally {
+            releaseClient();
+        }
 
     }
 
@@ -460,7 +734,92 @@ public class HttpConnector {
     }
 
     /**
-     * Saves the http response stream to a local file.
+     * Triggers the http request asynchronously, the body of a 2xx response saved to the path set in the builder class.
+     * @see #saveToFileAsync(java.nio.file.Path)
+     */
+    public CompletableFuture<HttpResult> saveToFileAsync() {
+        return saveToFileAsync(path);
+    }
+
+    /**
+     * Triggers the http request asynchronously, the body of a 2xx response written to a local file as it arrives, with
+     * no thread waiting on the disk. The file is written with an AsynchronousFileChannel: by the NettyEngine connector
+     * straight from its network buffers, by the Jersey connectors from a few direct buffers the body is read to.
+     * The returned future completes once the file is written and closed, with the status, headers and cookies, and an
+     * empty body. The result of another response code keeps its body, and the file is not touched.
+     * Cancelling the future cancels the request, a Deadline set in the builder applies as in executeAsync(). Not hedged.
+     * @param path a java.nio.file.Path, created or truncated.
+     * @return a future of the result of the request.
+     */
+    public CompletableFuture<HttpResult> saveToFileAsync(java.nio.file.Path path) {
+
+        result = null;
+        responseBody = null;
+        responseBodyType = null;
+        emptyResponse = false;
+        responseCode = 0;
+        responseMessage = null;
+        duration = 0L;
+        // released once the request completes
+        leaseClient(false);
+        Runnable release = releaseClient;
+        start = System.currentTimeMillis();
+
+        CompletableFuture<HttpResult> completable;
+        HttpEngine engine = managedClient.getEngine();
+        try {
+            if (engine != null) {
+                Map<String, NewCookie> cookies = HttpConnectorCookieManager.getCookies();
+                completable = engine.download(template, null, requestBody, null, cookies, storeCookies ? cookies : null, deadline, path);
+            } else {
+                completable = AsyncExecution.download(buildInvocation(), storeCookies ? HttpConnectorCookieManager.getCookies() : null,
+                        deadline, managedClient.getProfile().getConnectorProvider(), path);
+            }
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+        completableFuture = completable;
+        completable.whenComplete((httpResult, throwable) -> {
+            end = System.currentTimeMillis();
+            duration = end - start;
+            result = httpResult;
+            release.run();
+        });
+        return completable;
+    }
+
+    /**
+     * Saves the body of a Jersey response to a local file asynchronously, e.g. from an InvocationCallback: the body is
+     * read on a thread of its own and written with an AsynchronousFileChannel. The response is closed once done.
+     * @param path a java.nio.file.Path, created or truncated.
+     * @return a future of the number of bytes written.
+     */
+    public static CompletableFuture<Long> saveToFileAsync(Response response, java.nio.file.Path path) {
+
+        CompletableFuture<Long> saved = new CompletableFuture<>();
+        AsyncExecution.bodyReader.execute(() -> {
+            try {
+                FileSink sink = new FileSink(path);
+                InputStream body = response.hasEntity() ? getResponseBody(response, InputStream.class) : null;
+                (body != null ? sink.copyAsync(body) : sink.finish()).whenComplete((size, throwable) -> {
+                    response.close();
+                    if (throwable != null) {
+                        saved.completeExceptionally(throwable);
+                    } else {
+                        saved.complete(size);
+                    }
+                });
+            } catch (RuntimeException e) {
+                response.close();
+                saved.completeExceptionally(e);
+            }
+        });
+        return saved;
+    }
+
+    /**
+     * Saves the http response stream to a local file, with FileChannel.transferFrom().
      * @param path a java.nio.file.Path
      * @throws IOException
      */
@@ -468,7 +827,7 @@ public class HttpConnector {
 
         path = path.normalize();
         if (!path.toFile().isDirectory()) {
-            Files.copy(body, path, StandardCopyOption.REPLACE_EXISTING);
+            FileSink.copy(body, path);
         } else {
             logger.error(path + " is a directory! expecting a file. Data will not be saved");
         }
@@ -480,6 +839,10 @@ public class HttpConnector {
      */
     public String getResponseMessage() {
 
+        if (completableFuture != null) {
+            return (result != null) ? result.getReasonPhrase() : null;
+        }
+
         if (syncType == Http.SyncType.ASYNC) {
             try {
                 responseMessage = future.get().getStatusInfo().getReasonPhrase();
@@ -502,6 +865,13 @@ public class HttpConnector {
         return future;
     }
 
+    /**
+     * @return the future returned by the last executeAsync() call, null if the request was executed with execute().
+     */
+    public CompletableFuture<HttpResult> getCompletableFuture() {
+        return completableFuture;
+    }
+
     /**
      * Clears cookies in the ThreadLocalCookieStore relevant to the current thread.
      */
@@ -522,6 +892,13 @@ public class HttpConnector {
      * @return a Map of the response headers.
      */
     public MultivaluedMap<String, Object> getResponseHeaders() {
+       if (completableFuture != null) {
+           MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+           if (result != null) {
+               result.getHeaders().forEach((key, values) -> headers.addAll(key, new ArrayList<Object>(values)));
+           }
+           return headers;
+       }
        return response.getHeaders();
     }
 
@@ -531,14 +908,37 @@ public class HttpConnector {
      * @return String
      */
     public String getResponseHeader(String key) {
+        if (completableFuture != null) {
+            return (result != null) ? result.getHeader(key) : null;
+        }
         return response.getHeaderString(key);
     }
 
     /**
-     * Close the http connection. This happens automatically and is not mandatory.
+     * Close the http connection. This happens automatically once the response body is read, and is only needed when
+     * it is not: the connection and the client lease are held until then.
      */
     public void close() {
-        response.close();
+        if (response != null) {
+            response.close();
+        } else if (future != null && future.isDone()) {
+            try {
+                future.get().close();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                // no response to close
+            }
+        }
+        releaseClient();
+    }
+
+    /**
+     * Gives the client of the last execution back to the ClientFactory, once.
+     */
+    private void releaseClient() {
+        Runnable release = releaseClient;
+        if (release != null) {
+            release.run();
+        }
     }
 
 
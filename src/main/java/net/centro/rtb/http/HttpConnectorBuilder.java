@@ -11,19 +11,20 @@ import org.glassfish.jersey.netty.connector.NettyConnectorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.*;
+import javax.net.ssl.SSLContext;
 import javax.ws.rs.client.InvocationCallback;
-import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 
 /**
@@ -41,7 +42,8 @@ public class HttpConnectorBuilder {
     private URI uri;
     private String url;
     private Object body;
-    private MultivaluedMap<String, Object> requestHeaders = new MultivaluedHashMap<>();
+    private RequestHeaders requestHeaders = RequestHeaders.empty();
+    private List<String> variableHeaders = Collections.emptyList();
     private Http.HttpProtocol connType;
     private Http.HttpMethod httpMethod = null;
     private Http.SyncType syncType = Http.SyncType.SYNC;
@@ -50,10 +52,20 @@ public class HttpConnectorBuilder {
     private boolean storeCookies = false;
     private ConnectorProvider connectorProvider = new HttpUrlConnectorProvider();
     private Http.ConnectorProvider connectorProviderEnum = Http.ConnectorProvider.HttpUrlConnector;
-    private static SSLContext sslContext = getTrustAllSslContext();
+    private static SSLContext sslContext;
     private boolean trustAllSSLContext = false;
     private Map<String, Object> clientProperties = new HashMap<>();
     private Http.Encoding encoding = Http.Encoding.NONE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+    private Deadline deadline;
+    private HedgePolicy hedgePolicy;
+    private ResponseCache responseCache;
+    private PoolSettings poolSettings = PoolSettings.defaults();
+    private HostResolver hostResolver = HostResolver.getDefault();
+    private TlsSettings tlsSettings = TlsSettings.defaults();
+    private ClientProfile clientProfile;
+    private RequestTemplate template;
     private static Map<String, Object> clientPropertiesDefault;
 
     static {
@@ -96,11 +108,29 @@ public class HttpConnectorBuilder {
                 connectorProvider = new HttpUrlConnectorProvider();
                 connectorProviderEnum = Http.ConnectorProvider.HttpUrlConnector;
                 break;
+            case Http2:
+                connectorProvider = Http2Connector.provider(PoolSettings.defaults(), HostResolver.getDefault());
+                connectorProviderEnum = Http.ConnectorProvider.Http2;
+                break;
+            case JdkHttpClient:
+                if (!JdkHttpEngine.isSupported()) {
+                    throw new UnsupportedOperationException(JdkHttpEngine.UNSUPPORTED);
+                }
+                // the Jersey client of the profile, for HttpConnector.execute() and getRawClient()
+                connectorProvider = new HttpUrlConnectorProvider();
+                connectorProviderEnum = Http.ConnectorProvider.JdkHttpClient;
+                break;
+            case NettyEngine:
+                // the Jersey client of the profile, for HttpConnector.execute() and getRawClient()
+                connectorProvider = new HttpUrlConnectorProvider();
+                connectorProviderEnum = Http.ConnectorProvider.NettyEngine;
+                break;
             default:
                 connectorProvider = new HttpUrlConnectorProvider();
                 connectorProviderEnum = Http.ConnectorProvider.HttpUrlConnector;
                 break;
         }
+        clientProfile = null;
         return this;
     }
 
@@ -124,6 +154,8 @@ public class HttpConnectorBuilder {
         this.url = urlString;
         connType = getProtocol(url);
         uri = getURI(url);
+        clientProfile = null;
+        template = null;
 
         return this;
     }
@@ -190,6 +222,7 @@ public class HttpConnectorBuilder {
     public HttpConnectorBuilder follow_redirect(boolean redirect) {
 
         clientProperties.put(ClientProperties.FOLLOW_REDIRECTS, redirect);
+        clientProfile = null;
         return this;
     }
 
@@ -201,6 +234,7 @@ public class HttpConnectorBuilder {
     public HttpConnectorBuilder setConnectTimeout(int timeout) {
 
         clientProperties.put(ClientProperties.CONNECT_TIMEOUT, timeout);
+        clientProfile = null;
         return this;
     }
 
@@ -212,6 +246,100 @@ public class HttpConnectorBuilder {
     public HttpConnectorBuilder setReadTimeout(int timeout) {
 
         clientProperties.put(ClientProperties.READ_TIMEOUT, timeout);
+        clientProfile = null;
+        return this;
+    }
+
+    /**
+     * (optional) Set an end-to-end deadline for the request, optionally split into connect, first byte and body budgets.
+     * The deadline is a per-request setting and does not fork the cached Client, unlike setConnectTimeout()/setReadTimeout().
+     * executeAsync() and PreparedRequest enforce the whole deadline and cancel the request when it runs out;
+     * HttpConnector.execute() only gets the connect and first byte budgets as connect and read timeouts.
+     * @param deadline the time budget of the request.
+     * @return Builder
+     */
+    public HttpConnectorBuilder deadline(Deadline deadline) {
+
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * (optional) Set an end-to-end deadline for the request.
+     * @param timeout the total time budget.
+     * @param unit the time unit of the timeout argument.
+     * @return Builder
+     */
+    public HttpConnectorBuilder deadline(long timeout, TimeUnit unit) {
+
+        return deadline(Deadline.of(timeout, unit));
+    }
+
+    /**
+     * (optional) Hedge the request: send a backup copy when the response is late, use the first successful response
+     * and cancel the other one. Only idempotent methods (GET, HEAD, PUT, DELETE, OPTIONS) are hedged, and not when the
+     * body is an InputStream or a channel, which the first request consumes.
+     * Applies to executeAsync() and PreparedRequest, not to HttpConnector.execute().
+     * The policy holds the per-host latencies and hedge budgets, so share one instance between requests.
+     * @param hedgePolicy when to hedge, and how often at most.
+     * @return Builder
+     */
+    public HttpConnectorBuilder hedge(HedgePolicy hedgePolicy) {
+
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * (optional) Serve GET requests from a response cache, following the Cache-Control, Expires and ETag headers
+     * of the responses. Other methods invalidate the cached responses of their URI.
+     * Applies to PreparedRequest only. Share one ResponseCache instance between the requests it applies to.
+     * @param responseCache the cache.
+     * @return Builder
+     */
+    public HttpConnectorBuilder cache(ResponseCache responseCache) {
+
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    /**
+     * (optional) Configure the keep-alive connection pool: total and per host limits, idle timeout, connection TTL
+     * and TCP_NODELAY. Each connector applies the settings it supports, see PoolSettings.
+     * The per-host pool gauges are available from ClientFactory.getPoolStats().
+     * @param poolSettings the pool settings.
+     * @return Builder
+     */
+    public HttpConnectorBuilder pool(PoolSettings poolSettings) {
+
+        this.poolSettings = (poolSettings != null) ? poolSettings : PoolSettings.defaults();
+        clientProfile = null;
+        return this;
+    }
+
+    /**
+     * (optional) Resolve the host names with this resolver rather than the shared HostResolver.getDefault(),
+     * e.g. to cache them longer or to use a DNS client of your own. Only the Apache, Jetty, Http2 and NettyEngine connectors support it.
+     * @param hostResolver the resolver, shared by all the requests it applies to.
+     * @return Builder
+     */
+    public HttpConnectorBuilder resolver(HostResolver hostResolver) {
+
+        this.hostResolver = (hostResolver != null) ? hostResolver : HostResolver.getDefault();
+        clientProfile = null;
+        return this;
+    }
+
+    /**
+     * (optional) Configure the TLS session cache, for session resumption, and the protocols and cipher suites of
+     * HTTPS connections. The handshake metrics are available from ClientFactory.getTlsStats().
+     * @param tlsSettings the TLS settings.
+     * @return Builder
+     */
+    public HttpConnectorBuilder tls(TlsSettings tlsSettings) {
+
+        this.tlsSettings = (tlsSettings != null) ? tlsSettings : TlsSettings.defaults();
+        clientProfile = null;
         return this;
     }
 
@@ -226,22 +354,49 @@ public class HttpConnectorBuilder {
         }else {
             httpMethod = req;
         }
+        template = null;
         return this;
     }
 
     /**
      * Adds a key,value request property to the request headers list.
+     * Header fields are case insensitive, values are sent as given.
      * @param key   Header field
      * @param value Header value
      * @return Builder
+     * @throws IllegalArgumentException if the field or value has a line break.
      */
     public HttpConnectorBuilder addHeaderProperty(String key, String value) {
-        requestHeaders.add(key.toLowerCase(), value.toLowerCase());
+        requestHeaders = requestHeaders.with(key, value);
+        clientProfile = null;
+        template = null;
+        return this;
+    }
+
+    /**
+     * Declares a header whose value changes from call to call, e.g. a request id. Its value is passed with each
+     * execution of the PreparedRequest, in the order the headers were declared, see PreparedRequest.executeAsync(body, deadline, values).
+     * The value set with addHeaderProperty(), if any, is sent when a call passes none.
+     * All the other headers are serialized once, with the request line, by the connectors that write requests themselves.
+     * @param key Header field, not Content-Type nor one written by the connector (Host, Content-Length, Transfer-Encoding, Connection)
+     * @return Builder
+     */
+    public HttpConnectorBuilder addVariableHeader(String key) {
+
+        if (key == null || key.isEmpty() || "content-type".equalsIgnoreCase(key) || RequestHeaders.isFraming(key)) {
+            throw new IllegalArgumentException("Not a variable header: " + key);
+        }
+        List<String> headers = new ArrayList<>(variableHeaders);
+        headers.add(key);
+        variableHeaders = Collections.unmodifiableList(headers);
+        template = null;
         return this;
     }
 
     /**
      * Sets the body of the request.
+     * An InputStream, ReadableByteChannel, java.nio.file.Path or ByteBuffer[] is streamed rather than held in memory,
+     * with chunked transfer encoding when its length is unknown. It is read once and closed by the request.
      */
     public <E> HttpConnectorBuilder setBody(E body){
 
@@ -280,42 +435,6 @@ public class HttpConnectorBuilder {
         return this;
     }
 
-    private static SSLContext createTrustAllSSL() {
-
-        SSLContext ssl = null;
-        TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
-            }
-
-            public void checkClientTrusted(X509Certificate[] certs, String authType) {
-            }
-
-            public void checkServerTrusted(X509Certificate[] certs, String authType) {
-            }
-        }};
-        // Install the all-trusting trust manager
-        try {
-            ssl = SSLContext.getInstance("SSL");
-            ssl.init(null, trustAllCerts, new java.security.SecureRandom());
-        } catch (NoSuchAlgorithmException | KeyManagementException e ) {
-            logger.error("SSL generation error: {}", e.getMessage());
-            e.printStackTrace();
-        }
-
-        HttpsURLConnection.setDefaultSSLSocketFactory(ssl.getSocketFactory());
-        // Create all-trusting host name verifier
-        HostnameVerifier allHostsValid = new HostnameVerifier() {
-            public boolean verify(String hostname, SSLSession session) {
-                return true;
-            }
-        };
-        // Install the all-trusting host verifier
-        HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
-
-        return ssl;
-    }
-
     /**
      * (optional) Created to allow greater control, but not required for the common usage.
      * @param properties keys and values should follow org.glassfish.jersey.client.ClientProperties
@@ -323,6 +442,7 @@ public class HttpConnectorBuilder {
     public HttpConnectorBuilder setClientProperties(Map<String,Object> properties) {
 
         clientProperties.putAll(properties);
+        clientProfile = null;
         return this;
     }
 
@@ -332,6 +452,7 @@ public class HttpConnectorBuilder {
     public HttpConnectorBuilder setAsyncThreadPoolSize (int numberOfThreads) {
 
         clientProperties.put(ClientProperties.ASYNC_THREADPOOL_SIZE, numberOfThreads);
+        clientProfile = null;
         return this;
     }
 
@@ -340,8 +461,22 @@ public class HttpConnectorBuilder {
      * @param encoding encoding enum.
      */
     public HttpConnectorBuilder compress(Http.Encoding encoding) {
+        return compress(encoding, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Set the compression method for the HTTP request, with the zlib level and strategy of the request bodies.
+     * (Ex. compress(Http.Encoding.GZIP, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY))
+     * @param encoding encoding enum.
+     * @param level Deflater.DEFAULT_COMPRESSION or 0 (no compression) to 9 (best compression).
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY.
+     */
+    public HttpConnectorBuilder compress(Http.Encoding encoding, int level, int strategy) {
 
         this.encoding = encoding;
+        this.compressionLevel = Zlib.checkLevel(level);
+        this.compressionStrategy = Zlib.checkStrategy(strategy);
+        clientProfile = null;
         return this;
     }
 
@@ -360,10 +495,11 @@ public class HttpConnectorBuilder {
 
     /**
      * (optional) Made with testing in mind. When you want to make HTTPS connection without validating SSL certificates.
-     * Ideal for testing, risky for production.
+     * Ideal for testing, risky for production. Only the Clients of such requests trust all, the JVM defaults are left alone.
      */
     public HttpConnectorBuilder trustAllSslContext() {
         trustAllSSLContext = true;
+        clientProfile = null;
         logger.warn("SSL context was set to trust all. This setting has security risks and was designed to be used for testing");
         return this;
     }
@@ -374,10 +510,30 @@ public class HttpConnectorBuilder {
      */
     public HttpConnector build()  {
 
-            clientPropertiesDefault.entrySet().stream().forEach(entry -> clientProperties.putIfAbsent(entry.getKey(), entry.getValue()));
+            applyDefaults();
             return new HttpConnector(this);
     }
 
+    /**
+     * Compiles the builder into an immutable PreparedRequest. Use it when the same request is executed many times,
+     * possibly by many threads; the URI, headers and Client are resolved only once.
+     * Later changes to the builder do not affect the returned object.
+     * @return a new PreparedRequest object
+     */
+    public PreparedRequest prepare() {
+
+            applyDefaults();
+            return new PreparedRequest(this);
+    }
+
+    private void applyDefaults() {
+
+        if (!clientProperties.keySet().containsAll(clientPropertiesDefault.keySet())) {
+            clientPropertiesDefault.entrySet().stream().forEach(entry -> clientProperties.putIfAbsent(entry.getKey(), entry.getValue()));
+            clientProfile = null;
+        }
+    }
+
 
     /////////////////////////////////// GETTERS /////////////////////////////////////////
 
@@ -397,16 +553,55 @@ public class HttpConnectorBuilder {
         return body;
     }
 
+    /**
+     * @return a copy of the request headers, with lower case fields. Changing it does not change the builder.
+     */
     public MultivaluedMap<String, Object> getRequestHeaders() {
+        return requestHeaders.toMap();
+    }
+
+    public RequestHeaders getHeaders() {
         return requestHeaders;
     }
 
+    /**
+     * @return the variable headers, in the order they were declared.
+     */
+    public List<String> getVariableHeaders() {
+        return variableHeaders;
+    }
+
+    /**
+     * @return the template of the request, resolved once and reused until the URL, method or headers change.
+     */
+    RequestTemplate getTemplate() {
+        if (template == null) {
+            template = RequestTemplate.of(this);
+        }
+        return template;
+    }
+
     public Http.HttpProtocol getConnType() {
         return connType;
     }
 
+    /**
+     * @return the client properties. Change them through the builder methods, changes made to the returned map
+     * are not seen by a ClientProfile that was already resolved.
+     */
     public Map<String,Object> getClientProperties() { return clientProperties; }
 
+    /**
+     * @return the profile of the Client this request is sent with, resolved once and reused until a setting
+     * it depends on changes.
+     */
+    public ClientProfile getClientProfile() {
+        if (clientProfile == null) {
+            clientProfile = ClientProfile.of(this);
+        }
+        return clientProfile;
+    }
+
     public Http.HttpMethod getHttpMethod() {
         return httpMethod;
     }
@@ -423,6 +618,14 @@ public class HttpConnectorBuilder {
         return encoding;
     }
 
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
     public int getAsyncThreadPoolSize () {
         return (int)clientProperties.getOrDefault(ClientProperties.ASYNC_THREADPOOL_SIZE, 100);
     }
@@ -431,16 +634,43 @@ public class HttpConnectorBuilder {
         return (boolean)clientProperties.getOrDefault(ClientProperties.FOLLOW_REDIRECTS, true);
     }
 
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public PoolSettings getPoolSettings() {
+        return poolSettings;
+    }
+
+    public HostResolver getHostResolver() {
+        return hostResolver;
+    }
+
+    public TlsSettings getTlsSettings() {
+        return tlsSettings;
+    }
+
     public boolean isStoreCookies() {
         return storeCookies;
     }
 
     public boolean isTrustAllSslContext() { return trustAllSSLContext;}
 
+    /**
+     * @return an SSLContext trusting all certificates, for testing. Clients of trustAllSslContext() requests get one of their own.
+     */
     // not syncronized to improve performance
     public static SSLContext getTrustAllSslContext() {
         if (sslContext == null) {
-            sslContext = createTrustAllSSL();
+            sslContext = TlsContext.create(TlsSettings.defaults(), true);
         }
         return sslContext;
     }
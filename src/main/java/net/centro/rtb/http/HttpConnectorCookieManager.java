@@ -7,9 +7,8 @@ import org.slf4j.Logger;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.NewCookie;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Cookie manager class. Used by the HttpConnector class
@@ -21,7 +20,8 @@ public class HttpConnectorCookieManager {
     private static final ThreadLocal<Map<String,NewCookie>> cookieStores = new ThreadLocal<Map<String,NewCookie>>() {
         @Override
         protected Map<String,NewCookie> initialValue() {
-            return new HashMap<>();
+            // concurrent, async responses store their cookies from the client's threads
+            return new ConcurrentHashMap<>();
         }
     };
 
@@ -49,10 +49,8 @@ public class HttpConnectorCookieManager {
      * @return whether anyjersey  elements were removed
      */
     public static boolean removeCookies(String cookieName) {
-        int existingCookies = cookieStores.get().size();
-        cookieStores.set(cookieStores.get().entrySet().stream()
-                .filter(cookie -> !cookie.getKey().contains(cookieName)).collect(Collectors.toMap(p -> p.getKey(), p -> p.getValue())));
-        return existingCookies > cookieStores.get().size();
+        // in place, async requests in flight hold a reference to this thread's store
+        return cookieStores.get().keySet().removeIf(key -> key.contains(cookieName));
     }
 
     public static void addCookie(NewCookie newCookie) {
@@ -0,0 +1,310 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.NewCookie;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the requests of a PreparedRequest around the Jersey client, for the connectors that have an engine of their
+ * own: JdkHttpEngine (JdkHttpClient) and NettyHttpEngine (NettyEngine). The Jersey client of the profile is still
+ * created, for HttpConnector.execute() and getRawClient(), and the engine shares its SSLContext and properties.
+ */
+abstract class HttpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpEngine.class);
+
+    /**
+     * @return the engine of the profile's connector, null if the requests go through the Jersey client.
+     */
+    static HttpEngine create(ClientProfile profile, Client client) {
+
+        switch (profile.getConnectorProvider()) {
+            case JdkHttpClient:
+                return JdkHttpEngine.create(profile, client);
+            case NettyEngine:
+                return NettyHttpEngine.create(profile, client);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true if the requests of the connector are sent by an engine rather than the Jersey client.
+     */
+    static boolean handles(Http.ConnectorProvider provider) {
+        return provider == Http.ConnectorProvider.JdkHttpClient || provider == Http.ConnectorProvider.NettyEngine;
+    }
+
+    /**
+     * Sends a request.
+     * @param template the method, URI and headers of the request, compiled by the engine on first use.
+     * @param headerValues the values of the template's variable headers, null for the ones set in the builder.
+     * @param body the request body: a String, byte[], ByteBuffer or one of the streamed types of StreamingBody;
+     * other objects are written as JSON.
+     * @param conditional the validators of a conditional request, null for none.
+     * @param cookies the cookies to send, null for none.
+     * @param cookieStore the store of the response cookies, null to not store them.
+     * @param deadline the time budget of the request, null for none.
+     * @return a future of the result, cancelling it cancels the request.
+     */
+    abstract CompletableFuture<HttpResult> send(RequestTemplate template, String[] headerValues, Object body,
+                                                Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                Map<String, NewCookie> cookieStore, Deadline deadline);
+
+    /**
+     * Sends a request, the response body handed over as a buffer. The same arguments as send().
+     * Unless overridden, the body is the one of the HttpResult.
+     * @return a future of the response, to be released by the caller. Cancelling it cancels the request.
+     */
+    CompletableFuture<BufferedResponse> sendBuffered(RequestTemplate template, String[] headerValues, Object body,
+                                                     Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                     Map<String, NewCookie> cookieStore, Deadline deadline) {
+        return BufferedResponse.from(send(template, headerValues, body, conditional, cookies, cookieStore, deadline));
+    }
+
+    /**
+     * Sends a request, the response body handed over as a buffer once the status and headers passed the check.
+     * Unless overridden, the check is of the response once buffered.
+     * @param check the check of the status and headers, null for none.
+     * @return a future of the response, to be released by the caller. Cancelling it cancels the request.
+     */
+    CompletableFuture<BufferedResponse> sendBuffered(RequestTemplate template, String[] headerValues, Object body,
+                                                     Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                     Map<String, NewCookie> cookieStore, Deadline deadline, ResponseCheck check) {
+
+        CompletableFuture<BufferedResponse> sent = sendBuffered(template, headerValues, body, conditional, cookies, cookieStore, deadline);
+        if (check == null) {
+            return sent;
+        }
+        CompletableFuture<BufferedResponse> checked = new CompletableFuture<>();
+        sent.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                checked.completeExceptionally((throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable);
+                return;
+            }
+            try {
+                check.check(response.getStatus(), response::getHeader);
+            } catch (RuntimeException e) {
+                response.release();
+                checked.completeExceptionally(e);
+                return;
+            }
+            if (!checked.complete(response)) {
+                response.release();
+            }
+        });
+        checked.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                sent.cancel(true);
+            }
+        });
+        return checked;
+    }
+
+    /**
+     * Sends a request, the body of a 2xx response written to the file. The same arguments as send().
+     * Unless overridden, the body is buffered, then written to the file asynchronously.
+     * @param path the file to write, created or truncated.
+     * @return a future of the result, its body empty if it went to the file. Cancelling it cancels the request.
+     */
+    CompletableFuture<HttpResult> download(RequestTemplate template, String[] headerValues, Object body,
+                                           Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                           Map<String, NewCookie> cookieStore, Deadline deadline, Path path) {
+        return saveTo(sendBuffered(template, headerValues, body, conditional, cookies, cookieStore, deadline), new FileSink(path));
+    }
+
+    /**
+     * Writes what is left in the body of a 2xx response to the sink, the whole body unless the engine already
+     * streamed it there, and completes once the file is closed. Other responses keep their body.
+     */
+    static CompletableFuture<HttpResult> saveTo(CompletableFuture<BufferedResponse> buffered, FileSink sink) {
+
+        CompletableFuture<HttpResult> result = new CompletableFuture<>();
+        buffered.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                sink.fail(throwable);
+                result.completeExceptionally((throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable);
+                return;
+            }
+            if (!response.isSuccessful()) {
+                result.complete(response.toResult());
+                return;
+            }
+            HttpResult withoutBody = response.toResultWithoutBody();
+            if (response.getBodyLength() > 0) {
+                sink.write(response.getBody(), response::release);
+            } else {
+                response.release();
+            }
+            sink.finish().whenComplete((size, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(new ProcessingException("Failed to save the response body", failure));
+                } else {
+                    result.complete(withoutBody);
+                }
+            });
+        });
+        result.whenComplete((httpResult, throwable) -> {
+            if (throwable != null) {
+                buffered.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the pool gauges by host:port, empty if the engine does not expose them.
+     */
+    Map<String, PoolStats> getStats() {
+        return Collections.emptyMap();
+    }
+
+    abstract void close();
+
+    static boolean hasBody(Http.HttpMethod method, Object body) {
+        return body != null && method != Http.HttpMethod.GET && method != Http.HttpMethod.HEAD && method != Http.HttpMethod.OPTIONS;
+    }
+
+    /**
+     * @return the media type of the Content-Type header, text/plain if there is none (Entity.text(), as with the Jersey client).
+     */
+    static MediaType mediaType(RequestTemplate template) {
+        return (template.getMediaType() != null) ? template.getMediaType() : MediaType.TEXT_PLAIN_TYPE;
+    }
+
+    /**
+     * @return true if a body of the media type is written as JSON, rather than with toString().
+     */
+    static boolean isJson(Object body, MediaType mediaType) {
+        return !(body instanceof String) && mediaType.getSubtype().endsWith("json");
+    }
+
+    static Charset charset(MediaType mediaType) {
+
+        String charset = mediaType.getParameters().get(MediaType.CHARSET_PARAMETER);
+        return (charset != null) ? Charset.forName(charset) : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * @return the value of the Cookie header, null if there are no cookies.
+     */
+    static String cookieHeader(Map<String, NewCookie> cookies) {
+
+        if (cookies == null || cookies.isEmpty()) {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        for (NewCookie cookie : cookies.values()) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    /**
+     * Parses the Set-Cookie headers, skipping the ones that do not parse.
+     */
+    static Map<String, NewCookie> cookies(List<String> headers) {
+
+        if (headers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, NewCookie> cookies = new HashMap<>();
+        for (String header : headers) {
+            try {
+                NewCookie cookie = NewCookie.valueOf(header);
+                cookies.put(cookie.getName(), cookie);
+            } catch (IllegalArgumentException e) {
+                logger.debug("Ignoring the cookie {}: {}", header, e.getMessage());
+            }
+        }
+        return cookies;
+    }
+
+    static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * A single request, completing a CompletableFuture and enforcing its Deadline the way AsyncExecution does.
+     * The engine calls start() once the exchange is set up, then connected() and headersReceived() as the request goes.
+     */
+    abstract static class Exchange<T> {
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Deadline deadline;
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        private volatile boolean connected;
+        private volatile boolean headersReceived;
+        private volatile ScheduledFuture<?> totalTimer;
+        private volatile ScheduledFuture<?> bodyTimer;
+
+        Exchange(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        void start() {
+
+            if (deadline != null) {
+                totalTimer = HttpTimer.schedule(() -> expire(currentPhase()), deadline.getTimeout(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+            result.whenComplete((value, throwable) -> {
+                cancel(totalTimer);
+                cancel(bodyTimer);
+            });
+        }
+
+        /** The request is on a connection, waiting for the first byte of the response. */
+        void connected() {
+            connected = true;
+        }
+
+        /** The response headers arrived, the body budget of the deadline starts. */
+        void headersReceived() {
+
+            headersReceived = true;
+            if (deadline != null && deadline.hasBodyBudget() && !result.isDone()) {
+                bodyTimer = HttpTimer.schedule(() -> expire(Http.RequestPhase.BODY), deadline.getBodyBudget(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        boolean isHeadersReceived() {
+            return headersReceived;
+        }
+
+        Http.RequestPhase currentPhase() {
+            return headersReceived ? Http.RequestPhase.BODY : connected ? Http.RequestPhase.FIRST_BYTE : Http.RequestPhase.CONNECT;
+        }
+
+        void expire(Http.RequestPhase phase) {
+
+            if (result.completeExceptionally(new DeadlineExceededException(phase, elapsed(), deadline))) {
+                logger.debug("Deadline exceeded during {}", phase);
+            }
+        }
+
+        long elapsed() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package net.centro.rtb.http;
+
+import com.google.common.io.ByteStreams;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.AbstractMultivaluedMap;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a single execution of a PreparedRequest.
+ *
+ * The response body is fully read, decoded (gzip, deflate) and the connection released by the time
+ * the HttpResult is created, so all the accessors are non-blocking and the object is safe to share between threads:
+ * the headers are unmodifiable, and only getBodyBytes() hands out the body array itself rather than a copy.
+ */
+public class HttpResult {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int status;
+    private final String reasonPhrase;
+    private final MultivaluedMap<String, String> headers;
+    private final Map<String, NewCookie> cookies;
+    private final byte[] body;
+    private final long responseTime;
+
+    HttpResult(int status, String reasonPhrase, MultivaluedMap<String, String> headers, Map<String, NewCookie> cookies, byte[] body, long responseTime) {
+
+        this.status = status;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = unmodifiable(headers);
+        this.cookies = cookies;
+        this.body = (body != null) ? body : EMPTY;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Reads and closes the Jersey response.
+     * @param response the response to read.
+     * @param start the time (System.currentTimeMillis()) the request was invoked.
+     */
+    static HttpResult read(Response response, long start) {
+
+        try {
+            byte[] body = EMPTY;
+            if (response.hasEntity()) {
+                Http.Encoding encoding = HttpConnector.getEncoding(response);
+                InputStream inputStream = HttpConnector.getInputStreamDecoded(response.readEntity(InputStream.class), (encoding != null) ? encoding : Http.Encoding.NONE);
+                try (InputStream in = inputStream) {
+                    body = ByteStreams.toByteArray(in);
+                }
+            }
+            return new HttpResult(response.getStatus(), response.getStatusInfo().getReasonPhrase(), headers(response),
+                    Collections.unmodifiableMap(response.getCookies()), body, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to read the response body", e);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * The status, headers and cookies of the Jersey response, its body left to be read elsewhere, e.g. to a file.
+     * The response is not closed.
+     */
+    static HttpResult withoutBody(Response response, long start) {
+        return new HttpResult(response.getStatus(), response.getStatusInfo().getReasonPhrase(), headers(response),
+                Collections.unmodifiableMap(response.getCookies()), EMPTY, System.currentTimeMillis() - start);
+    }
+
+    static MultivaluedMap<String, String> headers(Response response) {
+
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : response.getStringHeaders().entrySet()) {
+            headers.addAll(entry.getKey(), entry.getValue());
+        }
+        return headers;
+    }
+
+    /**
+     * @return a result of its own body array, sharing the rest, which cannot be modified.
+     */
+    HttpResult copy() {
+        return new HttpResult(status, reasonPhrase, headers, cookies, body.clone(), responseTime);
+    }
+
+    /**
+     * @return the headers, copied into lists that cannot be modified unless they already were.
+     */
+    private static MultivaluedMap<String, String> unmodifiable(MultivaluedMap<String, String> headers) {
+
+        if (headers instanceof UnmodifiableHeaders) {
+            return headers;
+        }
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return new UnmodifiableHeaders(Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * The headers of an HttpResult: adding, replacing or removing a header or one of its values throws
+     * an UnsupportedOperationException.
+     */
+    private static final class UnmodifiableHeaders extends AbstractMultivaluedMap<String, String> {
+
+        UnmodifiableHeaders(Map<String, List<String>> store) {
+            super(store);
+        }
+    }
+
+    /**
+     * @return HTTP response code (200,302,400,500,..)
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the response code's relative message (OK, UNAUTHORIZED, etc.)
+     */
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /**
+     * @return true for a 2xx response code.
+     */
+    public boolean isSuccessful() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return the response headers, unmodifiable.
+     */
+    public MultivaluedMap<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the value of a specific header. Header names are case insensitive.
+     * @return the first value of the header, or null if it is missing.
+     */
+    public String getHeader(String key) {
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(key) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the cookies set by the response.
+     */
+    public Map<String, NewCookie> getCookies() {
+        return cookies;
+    }
+
+    /**
+     * @return the decoded response body, the array of the result itself rather than a copy: do not modify it.
+     * getBody(byte[].class) returns a copy.
+     */
+    public byte[] getBodyBytes() {
+        return body;
+    }
+
+    /**
+     * @return the decoded response body as a String, using the charset of the Content-Type header (UTF-8 by default).
+     */
+    public String getBody() {
+        return new String(body, getCharset());
+    }
+
+    /**
+     * Maps the response body. String and InputStream are returned as is, byte[] as a copy, any other type is bound from the
+     * JSON bytes with a reader kept per type. Object.class binds the JSON untyped, as Jackson does: a Map for an object,
+     * a List for an array, a String, Number or Boolean for a value.
+     * @param tClass the type of object the response should be mapped to.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getBody(Class<T> tClass) {
+
+        if (tClass == String.class) {
+            return (T) getBody();
+        }
+        if (tClass == byte[].class) {
+            return (T) body.clone();
+        }
+        // only the stream types themselves, not their supertypes such as Object or Closeable
+        if (tClass == InputStream.class || tClass == ByteArrayInputStream.class) {
+            return (T) new ByteArrayInputStream(body);
+        }
+        if (body.length == 0) {
+            return null;
+        }
+        try {
+            return JsonCodec.read(body, 0, body.length, tClass);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to map the response body to " + tClass.getName(), e);
+        }
+    }
+
+    /**
+     * Maps the JSON response body to a generic type. (Ex. getBody(new GenericType&lt;List&lt;Integer&gt;&gt;() {}))
+     */
+    public <T> T getBody(GenericType<T> type) {
+
+        if (body.length == 0) {
+            return null;
+        }
+        try {
+            return JsonCodec.read(body, 0, body.length, type.getType());
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to map the response body to " + type, e);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds it took to invoke the request and read the response.
+     */
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    private Charset getCharset() {
+
+        String contentType = getHeader("content-type");
+        if (contentType != null) {
+            try {
+                String charset = MediaType.valueOf(contentType).getParameters().get(MediaType.CHARSET_PARAMETER);
+                if (charset != null) {
+                    return Charset.forName(charset);
+                }
+            } catch (IllegalArgumentException e) {
+                // unparsable or unsupported charset, fall back to the default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResult{" + status + " " + reasonPhrase + ", " + body.length + " bytes, " + responseTime + "ms}";
+    }
+}
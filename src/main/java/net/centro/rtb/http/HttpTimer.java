@@ -0,0 +1,54 @@
+package net.centro.rtb.http;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single, shared scheduler for timeouts and delayed tasks of async requests.
+ * Tasks must be short and non-blocking, they run on the timer thread.
+ */
+final class HttpTimer {
+
+    private static final ScheduledThreadPoolExecutor scheduler;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "jumper-timer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private HttpTimer() {}
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(task, period, period, unit);
+    }
+
+    /**
+     * Completes the future exceptionally with a TimeoutException if it is not done within the given time.
+     * The timer is cancelled as soon as the future completes.
+     * @return the same future.
+     */
+    static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+
+        if (future.isDone()) {
+            return future;
+        }
+        ScheduledFuture<?> timer = schedule(() -> future.completeExceptionally(
+                new TimeoutException("Request did not complete within " + timeout + " " + unit.name().toLowerCase(Locale.ROOT))), timeout, unit);
+        future.whenComplete((result, throwable) -> timer.cancel(false));
+        return future;
+    }
+}
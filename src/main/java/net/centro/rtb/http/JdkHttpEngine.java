@@ -0,0 +1,48 @@
+package net.centro.rtb.http;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.NewCookie;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the requests of the JdkHttpClient connector with java.net.http.HttpClient, around the Jersey client:
+ * no provider lookups, MessageBodyWriters or Invocation builders, byte[] bodies both ways and the JDK client's
+ * own async completion.
+ *
+ * This is the Java 8 version of the class, the JDK client needs Java 11. The multi-release jar replaces it
+ * with the implementation in META-INF/versions/11 (src/main/java11) on Java 11 and later.
+ */
+final class JdkHttpEngine extends HttpEngine {
+
+    static final String UNSUPPORTED = "The JdkHttpClient connector needs Java 11 or later";
+
+    private JdkHttpEngine() {
+    }
+
+    /**
+     * @return true if the JDK HTTP client is available, on Java 11 and later.
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * @param profile the settings of the client.
+     * @param client the Jersey client of the profile, the engine shares its SSLContext and properties.
+     */
+    static JdkHttpEngine create(ClientProfile profile, Client client) {
+        throw new UnsupportedOperationException(UNSUPPORTED);
+    }
+
+    @Override
+    CompletableFuture<HttpResult> send(RequestTemplate template, String[] headerValues, Object body,
+                                       Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                       Map<String, NewCookie> cookieStore, Deadline deadline) {
+        throw new UnsupportedOperationException(UNSUPPORTED);
+    }
+
+    @Override
+    void close() {
+    }
+}
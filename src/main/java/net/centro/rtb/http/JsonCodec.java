@@ -0,0 +1,71 @@
+package net.centro.rtb.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The JSON mapping of the request and response bodies, on one shared ObjectMapper.
+ *
+ * Responses are bound with an ObjectReader per target type, resolved once and reused by every call, straight from
+ * the bytes they are in: the (decoded) stream of a Jersey response, the pooled buffer of a BufferedResponse or the
+ * byte[] of an HttpResult, never through an intermediate String. Jackson detects the UTF-8, UTF-16 or UTF-32 encoding
+ * of the bytes itself, and its parsers recycle their buffers per thread.
+ */
+final class JsonCodec {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final ConcurrentHashMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    private JsonCodec() {
+    }
+
+    /**
+     * @return the reader of the type, a Class or the type of a GenericType.
+     */
+    static ObjectReader reader(Type type) {
+
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = readers.computeIfAbsent(type, key -> MAPPER.reader(MAPPER.getTypeFactory().constructType(key)));
+        }
+        return reader;
+    }
+
+    /**
+     * Binds the stream as it is read, and closes it.
+     */
+    static <T> T read(InputStream in, Type type) throws IOException {
+        return reader(type).readValue(in);
+    }
+
+    static <T> T read(byte[] bytes, int offset, int length, Type type) throws IOException {
+        return reader(type).readValue(bytes, offset, length);
+    }
+
+    /**
+     * Binds a value already bound to another type, through its JSON tree. A value of the type is returned as is.
+     * @throws IllegalArgumentException if the value does not map to the type.
+     */
+    static <T> T convert(Object value, Type type) {
+        return MAPPER.convertValue(value, MAPPER.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * Binds the remaining bytes of the buffer, in place, without moving its position.
+     */
+    static <T> T read(ByteBuffer buffer, Type type) throws IOException {
+
+        if (buffer.hasArray()) {
+            return read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), type);
+        }
+        return read(new ByteBufferBackedInputStream(buffer.duplicate()), type);
+    }
+}
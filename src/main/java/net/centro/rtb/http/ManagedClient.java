@@ -0,0 +1,148 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.client.Client;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cached Client and the number of requests in flight on it, with the HttpEngine of the connectors that have one.
+ *
+ * Requests lease the client for as long as they use it. Once the ClientFactory evicts the client it is retired:
+ * no new leases are given, and the client is closed, releasing its connection pool and threads,
+ * when the last lease is released or the drain timeout passes, whichever comes first.
+ */
+final class ManagedClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(ManagedClient.class);
+
+    /** Set in the state once retired, the lower bits count the leases. */
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    // Closing a client may block (e.g. stopping the Jetty client), and the last lease is often released
+    // on one of the client's own threads, so clients are closed on a thread of their own.
+    private static final ExecutorService closer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jumper-client-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ClientProfile profile;
+    private final Client client;
+    private final ConnectionPools.Monitor pool;
+    private final HttpEngine engine;
+    private final AtomicInteger state = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile ScheduledFuture<?> drainTimer;
+
+    ManagedClient(ClientProfile profile, Client client, ConnectionPools.Monitor pool, HttpEngine engine) {
+        this.profile = profile;
+        this.client = client;
+        this.pool = pool;
+        this.engine = engine;
+    }
+
+    /**
+     * @return true if leased, false if the client is retired and a new one must be looked up.
+     */
+    boolean acquire() {
+
+        while (true) {
+            int current = state.get();
+            if ((current & RETIRED) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+
+        if (state.decrementAndGet() == RETIRED) {
+            close("drained");
+        }
+    }
+
+    /**
+     * Stops giving leases, and closes the client once the leases are released or the drain timeout passed.
+     */
+    void retire(long drainTimeout, TimeUnit unit) {
+
+        int current;
+        do {
+            current = state.get();
+            if ((current & RETIRED) != 0) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current | RETIRED));
+
+        if (current == 0) {
+            close("idle");
+        } else {
+            logger.debug("Draining {} requests of {}", current, profile);
+            drainTimer = HttpTimer.schedule(() -> close("drain timeout"), drainTimeout, unit);
+        }
+    }
+
+    private void close(String reason) {
+
+        if (closed.compareAndSet(false, true)) {
+            ScheduledFuture<?> timer = drainTimer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            closer.execute(() -> {
+                try {
+                    pool.close();
+                    if (engine != null) {
+                        engine.close();
+                    }
+                    client.close();
+                    ClientFactory.onClosed();
+                    logger.debug("Closed the client of {} ({})", profile, reason);
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to close the client of {}: {}", profile, e.getMessage());
+                }
+            });
+        }
+    }
+
+    Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return the engine of the JdkHttpClient and NettyEngine connectors, null for the other connectors.
+     */
+    HttpEngine getEngine() {
+        return engine;
+    }
+
+    ClientProfile getProfile() {
+        return profile;
+    }
+
+    ConnectionPools.Monitor getPool() {
+        return pool;
+    }
+
+    int getInFlight() {
+        return state.get() & ~RETIRED;
+    }
+
+    boolean isRetired() {
+        return (state.get() & RETIRED) != 0;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+}
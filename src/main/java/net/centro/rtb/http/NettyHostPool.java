@@ -0,0 +1,431 @@
+package net.centro.rtb.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections of a Netty connector to a host, and the requests waiting for one: the streams of Http2Connector,
+ * the HTTP/1.1 requests of NettyHttpEngine. The pool opens the connections, to the next address of the host (see
+ * HostResolver) when one refuses, TLS and host name verification included, hands the waiting requests to the connection with the fewest in flight that can take them, and closes the ones
+ * idle or older than the PoolSettings allow. The connector speaks the protocol on the connections, and tells how
+ * many requests one takes.
+ *
+ * @param <E> the requests.
+ * @param <C> the connections.
+ */
+abstract class NettyHostPool<E, C extends NettyHostPool.Pooled> {
+
+    private static final Logger logger = LoggerFactory.getLogger(NettyHostPool.class);
+
+    final String host;
+    final int port;
+    final boolean secure;
+    final String name;
+    private final String connector;
+    private final SSLContext sslContext;
+    private final HostnameVerifier hostnameVerifier;
+    private final String applicationProtocol;
+    private final PoolSettings settings;
+    private final HostResolver resolver;
+    private final int maxConnections;
+    // guarded by this
+    private final List<C> connections = new ArrayList<>();
+    private final Deque<E> waiting = new ArrayDeque<>();
+    private int connecting;
+
+    /**
+     * @param connector the name of the connector, in the failures of the requests left waiting when it closes.
+     * @param client the Jersey client of the connector, its SSLContext and HostnameVerifier are the ones of the connections.
+     * @param applicationProtocol the protocol a TLS connection asks for with ALPN, null for none.
+     */
+    NettyHostPool(String connector, String host, int port, boolean secure, javax.ws.rs.client.Client client,
+                  String applicationProtocol, PoolSettings settings, HostResolver resolver) {
+
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.name = host + ":" + port;
+        this.connector = connector;
+        this.sslContext = client.getSslContext();
+        this.hostnameVerifier = client.getHostnameVerifier();
+        this.applicationProtocol = applicationProtocol;
+        this.settings = settings;
+        this.resolver = resolver;
+        this.maxConnections = (settings.getMaxPerHost() > 0) ? settings.getMaxPerHost() : Integer.MAX_VALUE;
+    }
+
+    /**
+     * The pool's bookkeeping of a connection: its channel and requests in flight, guarded by the pool.
+     */
+    static final class Slot {
+
+        final Channel channel;
+        final long createdAt = System.nanoTime();
+        int active;
+        long idleSince = createdAt;
+        boolean draining;
+
+        Slot(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** A connection of the pool. */
+    interface Pooled {
+        Slot slot();
+    }
+
+    /** Sets up the connector's side of the bootstrap of a connection: its event loop group and options. */
+    abstract void configure(Bootstrap bootstrap);
+
+    /** @return the connection on the channel, once connected and past the TLS handshake, its handlers added. */
+    abstract C open(Channel channel);
+
+    /** Writes the request on the connection, on its event loop. */
+    abstract void send(C connection, E request);
+
+    /** @return the most requests in flight on a connection. */
+    abstract int depth();
+
+    /** @return the most requests in flight on a connection it takes the request with, depth() unless overridden. */
+    int capacity(E request) {
+        return depth();
+    }
+
+    /** @return true if the request completed while waiting, e.g. cancelled or out of time. */
+    abstract boolean isDone(E request);
+
+    abstract void fail(E request, Throwable cause);
+
+    /** @return true once the connector is closed, it opens no more connections. */
+    abstract boolean isClosed();
+
+    /**
+     * @return why a TLS connection cannot be used once its handshake completed, null if it can. Unless overridden,
+     * the protocol negotiated with ALPN is not checked.
+     */
+    String checkNegotiated(SSLEngine engine) {
+        return null;
+    }
+
+    void submit(E request) {
+
+        synchronized (this) {
+            waiting.add(request);
+        }
+        dispatch();
+    }
+
+    /** @return the first request waiting for a connection, null if none is. */
+    synchronized E peek() {
+        return waiting.peek();
+    }
+
+    /**
+     * Sends the waiting requests on the connections that can take them, and opens connections for the rest.
+     */
+    void dispatch() {
+
+        List<C> targets = new ArrayList<>();
+        List<E> ready = new ArrayList<>();
+        int opening = 0;
+        synchronized (this) {
+            E next;
+            while ((next = waiting.peek()) != null) {
+                if (isDone(next)) {
+                    waiting.poll();
+                    continue;
+                }
+                C connection = available(next);
+                if (connection == null) {
+                    break;
+                }
+                waiting.poll();
+                connection.slot().active++;
+                targets.add(connection);
+                ready.add(next);
+            }
+            while (!isClosed() && waiting.size() > connecting * depth() && connections.size() + connecting < maxConnections) {
+                connecting++;
+                opening++;
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            send(targets.get(i), ready.get(i));
+        }
+        for (int i = 0; i < opening; i++) {
+            connect();
+        }
+    }
+
+    /**
+     * @return the usable connection with the fewest requests in flight, if one has fewer than the request's capacity.
+     */
+    private C available(E request) {
+
+        int limit = capacity(request);
+        long ttl = settings.getKeepAliveTtl(TimeUnit.NANOSECONDS);
+        long now = System.nanoTime();
+        C best = null;
+        for (C connection : connections) {
+            Slot slot = connection.slot();
+            boolean usable = !slot.draining && slot.channel.isActive() && (ttl == 0 || now - slot.createdAt < ttl);
+            if (usable && slot.active < limit && (best == null || slot.active < best.slot().active)) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    private void connect() {
+
+        resolver.resolveAsync(host).whenComplete((addresses, throwable) -> {
+            if (throwable != null) {
+                failed((throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable);
+                return;
+            }
+            Bootstrap bootstrap = new Bootstrap()
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            if (secure) {
+                                channel.pipeline().addLast(new SslHandler(sslEngine()));
+                            }
+                        }
+                    });
+            if (settings.getTcpNoDelay() != null) {
+                bootstrap.option(ChannelOption.TCP_NODELAY, settings.getTcpNoDelay());
+            }
+            configure(bootstrap);
+            connect(bootstrap, addresses, 0);
+        });
+    }
+
+    /**
+     * Connects to the address at the index, or to the next one if that fails, until there is none left. Each address
+     * gets the whole connect timeout. A failed TLS handshake is not tried on the other addresses.
+     */
+    private void connect(Bootstrap bootstrap, List<InetAddress> addresses, int index) {
+
+        bootstrap.connect(new InetSocketAddress(addresses.get(index), port)).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                if (index + 1 < addresses.size() && !isClosed()) {
+                    logger.debug("Failed to connect to {} at {}, trying {}: {}", name, addresses.get(index).getHostAddress(),
+                            addresses.get(index + 1).getHostAddress(), future.cause().toString());
+                    connect(bootstrap, addresses, index + 1);
+                } else {
+                    failed(future.cause());
+                }
+            } else if (secure) {
+                future.channel().pipeline().get(SslHandler.class).handshakeFuture().addListener(handshake -> {
+                    if (!handshake.isSuccess()) {
+                        failed(handshake.cause());
+                    } else {
+                        verified(future.channel());
+                    }
+                });
+            } else {
+                established(future.channel());
+            }
+        });
+    }
+
+    private SSLEngine sslEngine() {
+
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        if (applicationProtocol != null) {
+            parameters.setApplicationProtocols(new String[]{applicationProtocol});
+        }
+        if (hostnameVerifier == null) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    private void verified(Channel channel) {
+
+        SSLEngine engine = channel.pipeline().get(SslHandler.class).engine();
+        String unusable = checkNegotiated(engine);
+        if (unusable != null) {
+            channel.close();
+            failed(new SSLHandshakeException(unusable));
+        } else if (hostnameVerifier != null && !hostnameVerifier.verify(host, engine.getSession())) {
+            channel.close();
+            failed(new SSLHandshakeException("Host name verification failed: " + host));
+        } else {
+            established(channel);
+        }
+    }
+
+    private void established(Channel channel) {
+
+        C connection = open(channel);
+        synchronized (this) {
+            connecting--;
+            if (isClosed() || !channel.isActive()) {
+                channel.close();
+                return;
+            }
+            connections.add(connection);
+        }
+        logger.debug("Opened a {} connection to {}", connector, name);
+        dispatch();
+    }
+
+    /**
+     * A connection failed to open. The waiting requests fail unless another connection serves them.
+     */
+    private void failed(Throwable cause) {
+
+        Throwable failure = (cause instanceof io.netty.channel.ConnectTimeoutException)
+                ? new SocketTimeoutException("connect timed out: " + name)
+                : (cause instanceof IOException) ? cause : new ConnectException(name + ": " + cause);
+        if (failure != cause) {
+            failure.initCause(cause);
+        }
+        List<E> failed = new ArrayList<>();
+        synchronized (this) {
+            connecting--;
+            if (connections.isEmpty() && connecting == 0) {
+                failed.addAll(waiting);
+                waiting.clear();
+            }
+        }
+        logger.debug("Failed to connect to {}: {}", name, cause.toString());
+        failed.forEach(request -> fail(request, failure));
+    }
+
+    /**
+     * A request of the connection completed. The connection closes once it has none in flight if it is draining,
+     * or should not be reused.
+     */
+    void release(C connection, boolean reusable) {
+
+        Slot slot = connection.slot();
+        boolean close;
+        synchronized (this) {
+            slot.active--;
+            if (slot.active == 0) {
+                slot.idleSince = System.nanoTime();
+            }
+            if (!reusable) {
+                slot.draining = true;
+            }
+            close = slot.active == 0 && slot.draining;
+        }
+        if (close) {
+            slot.channel.close();
+        }
+        dispatch();
+    }
+
+    /** Puts the request back in front of the waiting ones, to go on another connection. */
+    void requeue(E request) {
+
+        synchronized (this) {
+            waiting.addFirst(request);
+        }
+    }
+
+    /** Takes no more requests on the connection, and closes it once it has none in flight. */
+    void drain(C connection) {
+
+        Slot slot = connection.slot();
+        boolean close;
+        synchronized (this) {
+            slot.draining = true;
+            close = slot.active == 0;
+        }
+        if (close) {
+            slot.channel.close();
+        }
+    }
+
+    /** The connection closed. */
+    void remove(C connection) {
+
+        synchronized (this) {
+            connections.remove(connection);
+        }
+        logger.debug("Closed a {} connection to {}", connector, name);
+        dispatch();
+    }
+
+    /** Closes the connections idle or older than the settings allow. */
+    void sweep() {
+
+        long now = System.nanoTime();
+        long idle = settings.getIdleTimeout(TimeUnit.NANOSECONDS);
+        long ttl = settings.getKeepAliveTtl(TimeUnit.NANOSECONDS);
+        List<Channel> expired = new ArrayList<>();
+        synchronized (this) {
+            for (C connection : connections) {
+                Slot slot = connection.slot();
+                if (ttl > 0 && now - slot.createdAt >= ttl) {
+                    slot.draining = true;
+                }
+                if (slot.active == 0 && (slot.draining || (idle > 0 && now - slot.idleSince >= idle))) {
+                    expired.add(slot.channel);
+                }
+            }
+        }
+        expired.forEach(Channel::close);
+    }
+
+    /**
+     * @return the connection gauges: a connection with requests in flight is leased, one without is idle, and the
+     * requests waiting for one are pending.
+     */
+    synchronized PoolStats getStats() {
+
+        int leased = 0;
+        for (C connection : connections) {
+            if (connection.slot().active > 0) {
+                leased++;
+            }
+        }
+        return new PoolStats(name, leased, connections.size() - leased, waiting.size(),
+                (maxConnections < Integer.MAX_VALUE) ? maxConnections : 0);
+    }
+
+    void close() {
+
+        List<E> failed;
+        List<Channel> open = new ArrayList<>();
+        synchronized (this) {
+            failed = new ArrayList<>(waiting);
+            waiting.clear();
+            connections.forEach(connection -> open.add(connection.slot().channel));
+        }
+        failed.forEach(request -> fail(request, new IOException("The " + connector + " connector is closed")));
+        open.forEach(Channel::close);
+    }
+}
@@ -0,0 +1,1208 @@
+package net.centro.rtb.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.glassfish.jersey.client.ClientProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.NewCookie;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The engine of Http.ConnectorProvider.NettyEngine: HTTP/1.1 written and read by Jumper itself on Netty channels,
+ * around the Jersey client and Netty's HTTP codec.
+ *
+ * Requests are encoded straight into pooled buffers. A response is read into the pooled buffer of its connection,
+ * its head is parsed on demand (ResponseHead) and its body handed over as a slice of that buffer (BufferedResponse),
+ * so the steady state allocates little more than the objects tracking the request.
+ *
+ * The connections to a host are kept alive and reused, up to PoolSettings.getMaxPerHost() of them. With
+ * PoolSettings.getPipelining() above 1, up to that many idempotent requests are pipelined on a connection before
+ * another one is opened; a POST or PATCH only goes to a connection with nothing in flight. Idempotent requests are
+ * sent again on another connection if theirs closes before the response headers arrive, e.g. a stale keep-alive
+ * connection. A request that times out or is cancelled closes its connection, HTTP/1.1 cannot abort it otherwise.
+ *
+ * Streamed request bodies (StreamingBody) are not held in memory: a file goes with sendfile on http connections and
+ * in chunks over TLS, a body of unknown length with chunked transfer encoding, each chunk read ahead of the socket on
+ * AsyncExecution.bodyReader, as its source may block. A non-blocking channel is refused.
+ * They are read once, so a request with one is not sent again on another connection. Downloads go the other way:
+ * the body of a 2xx response is written to its file (FileSink) slice by slice as it is read, reading paused while
+ * the disk is behind.
+ *
+ * Redirects are not followed, the 3xx response is returned. Responses complete on the connection's event loop.
+ */
+final class NettyHttpEngine extends HttpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(NettyHttpEngine.class);
+
+    // shared by the connections of all the clients, as with the Http2 connector
+    private static final EventLoopGroup group = new NioEventLoopGroup(0, new DefaultThreadFactory("jumper-netty", true));
+    private static final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE_TEXT = "Content-Type: text/plain\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_ENCODING_GZIP = "Content-Encoding: gzip\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_ENCODING_DEFLATE = "Content-Encoding: deflate\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** The longest response head read, a longer one fails the request. */
+    private static final int MAX_HEAD = 64 * 1024;
+
+    private final Client client;
+    private final PoolSettings settings;
+    private final HostResolver resolver;
+    private final Http.Encoding encoding;
+    private final int compressionLevel;
+    private final int compressionStrategy;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int depth;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> sweeper;
+    private volatile boolean closed;
+
+    private NettyHttpEngine(Client client, ClientProfile profile) {
+
+        Map<String, Object> properties = client.getConfiguration().getProperties();
+        this.client = client;
+        this.settings = profile.getPoolSettings();
+        this.resolver = profile.getHostResolver();
+        this.encoding = profile.getEncoding();
+        this.compressionLevel = profile.getCompressionLevel();
+        this.compressionStrategy = profile.getCompressionStrategy();
+        this.connectTimeout = ClientProperties.getValue(properties, ClientProperties.CONNECT_TIMEOUT, 0);
+        this.readTimeout = ClientProperties.getValue(properties, ClientProperties.READ_TIMEOUT, 0);
+        this.depth = Math.max(settings.getPipelining(), 1);
+        if (settings.getMaxTotal() > 0) {
+            logger.warn("The NettyEngine connector has no total connection limit, ignoring it");
+        }
+
+        long idle = settings.getIdleTimeout(TimeUnit.MILLISECONDS);
+        long ttl = settings.getKeepAliveTtl(TimeUnit.MILLISECONDS);
+        long period = (idle > 0) ? Math.max(idle / 2, 100) : (ttl > 0) ? Math.max(ttl / 2, 100) : 0;
+        this.sweeper = (period > 0) ? HttpTimer.scheduleAtFixedRate(this::sweep, period, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * @param profile the settings of the client.
+     * @param client the Jersey client of the profile, the engine shares its SSLContext and properties.
+     */
+    static NettyHttpEngine create(ClientProfile profile, Client client) {
+        return new NettyHttpEngine(client, profile);
+    }
+
+    @Override
+    CompletableFuture<HttpResult> send(RequestTemplate template, String[] headerValues, Object body,
+                                       Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                       Map<String, NewCookie> cookieStore, Deadline deadline) {
+
+        CompletableFuture<BufferedResponse> buffered = sendBuffered(template, headerValues, body, conditional, cookies, cookieStore, deadline);
+        CompletableFuture<HttpResult> result = new CompletableFuture<>();
+        buffered.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(response.toResult());
+            }
+        });
+        result.whenComplete((httpResult, throwable) -> {
+            if (throwable != null) {
+                buffered.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    CompletableFuture<BufferedResponse> sendBuffered(RequestTemplate template, String[] headerValues, Object body,
+                                                     Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                     Map<String, NewCookie> cookieStore, Deadline deadline) {
+        return submit(template, headerValues, body, conditional, cookies, cookieStore, deadline, null, null);
+    }
+
+    @Override
+    CompletableFuture<BufferedResponse> sendBuffered(RequestTemplate template, String[] headerValues, Object body,
+                                                     Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                     Map<String, NewCookie> cookieStore, Deadline deadline, ResponseCheck check) {
+        return submit(template, headerValues, body, conditional, cookies, cookieStore, deadline, null, check);
+    }
+
+    @Override
+    CompletableFuture<HttpResult> download(RequestTemplate template, String[] headerValues, Object body,
+                                           Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                           Map<String, NewCookie> cookieStore, Deadline deadline, Path path) {
+
+        FileSink sink = new FileSink(path);
+        return saveTo(submit(template, headerValues, body, conditional, cookies, cookieStore, deadline, sink, null), sink);
+    }
+
+    /**
+     * @param sink the file the body of a 2xx response is streamed to, null to buffer it.
+     * @param check the check of the status and headers, as they are read; null for none.
+     */
+    private CompletableFuture<BufferedResponse> submit(RequestTemplate template, String[] headerValues, Object body,
+                                                       Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                                       Map<String, NewCookie> cookieStore, Deadline deadline, FileSink sink,
+                                                       ResponseCheck check) {
+
+        if (closed) {
+            throw new ProcessingException("The NettyEngine connector is closed");
+        }
+        template.check(headerValues);
+        Wire wire = template.compiled(this, Wire::new);
+        HostPool pool = pools.get(wire.key);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(wire.key, k -> new HostPool(template.getURI(), wire.port, wire.secure));
+        }
+
+        Exchange exchange = new Exchange(template.getMethod(), cookieStore, deadline, sink, check);
+        exchange.encode(wire, template, headerValues, body, conditional, cookies);
+        exchange.start();
+        pool.submit(exchange);
+        return exchange.result;
+    }
+
+    @Override
+    Map<String, PoolStats> getStats() {
+
+        Map<String, PoolStats> stats = new HashMap<>();
+        pools.values().forEach(pool -> stats.merge(pool.name, pool.getStats(), PoolStats::add));
+        return stats;
+    }
+
+    @Override
+    void close() {
+
+        closed = true;
+        cancel(sweeper);
+        pools.values().forEach(HostPool::close);
+    }
+
+    private void sweep() {
+        pools.values().forEach(HostPool::sweep);
+    }
+
+    private static void writeHeader(ByteBuf buffer, String name, String value) {
+
+        ByteBufUtil.writeAscii(buffer, name);
+        buffer.writeBytes(SEPARATOR);
+        ByteBufUtil.writeAscii(buffer, value);
+        buffer.writeBytes(CRLF);
+    }
+
+    /**
+     * A RequestTemplate compiled by the engine: the key of its host pool, and the request line, Host and fixed
+     * header lines serialized once. A call only appends its variable headers, Content-Length and body.
+     */
+    private static final class Wire {
+
+        final String key;
+        final int port;
+        final boolean secure;
+        final byte[] prefix;
+        // "name: " of each variable header, in the order of the template
+        final byte[][] variables;
+
+        Wire(RequestTemplate template) {
+
+            URI uri = template.getURI();
+            secure = "https".equalsIgnoreCase(uri.getScheme());
+            port = (uri.getPort() > 0) ? uri.getPort() : secure ? 443 : 80;
+            key = uri.getScheme().toLowerCase(Locale.ROOT) + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+
+            String path = uri.getRawPath();
+            // the authority as in the url, the default port left out
+            String authority = (uri.getPort() > 0) ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+            StringBuilder line = new StringBuilder(template.getMethod().name()).append(' ')
+                    .append((path == null || path.isEmpty()) ? "/" : path);
+            if (uri.getRawQuery() != null) {
+                line.append('?').append(uri.getRawQuery());
+            }
+            line.append(" HTTP/1.1\r\nHost: ").append(authority).append("\r\n");
+            byte[] head = line.toString().getBytes(StandardCharsets.US_ASCII);
+            byte[] headers = template.getFixedHeaders().getEncoded();
+            prefix = Arrays.copyOf(head, head.length + headers.length);
+            System.arraycopy(headers, 0, prefix, head.length, headers.length);
+
+            variables = new byte[template.getVariableCount()][];
+            for (int i = 0; i < variables.length; i++) {
+                variables[i] = (template.getVariable(i) + ": ").getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    /**
+     * A body of unknown length, written chunk by chunk by the connection's ChunkedWriteHandler. Its source may block,
+     * a socket or a pipe fed by a producer, so it is read and framed on AsyncExecution.bodyReader, one chunk ahead of
+     * the socket: the handler is resumed once a chunk is ready, and never waits on the event loop.
+     */
+    private static final class ChunkedBody implements ChunkedInput<ByteBuf> {
+
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        // the chunk size line, as 4 hex digits: a chunk is at most StreamingBody.CHUNK_SIZE
+        private static final int SIZE_LINE = 6;
+
+        private final ReadableByteChannel in;
+        private ChunkedWriteHandler handler;
+        // the chunk read ahead, or the failure reading it
+        private ByteBuf next;
+        private IOException failure;
+        private boolean reading;
+        private boolean lastRead;
+        private boolean ended;
+        private boolean closed;
+        private long progress;
+
+        ChunkedBody(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        /** Starts reading the first chunk, while the request head is written. */
+        synchronized void start(ChunkedWriteHandler handler) {
+
+            this.handler = handler;
+            readAhead();
+        }
+
+        @Override
+        public synchronized boolean isEndOfInput() {
+            return ended;
+        }
+
+        @Override
+        public void close() {
+
+            ByteBuf unsent;
+            synchronized (this) {
+                closed = true;
+                unsent = next;
+                next = null;
+            }
+            if (unsent != null) {
+                unsent.release();
+            }
+            StreamingBody.close(in);
+        }
+
+        /** Deprecated in ChunkedInput, the ChunkedWriteHandler calls readChunk(ByteBufAllocator). */
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext context) throws IOException {
+            return readChunk(context.alloc());
+        }
+
+        /**
+         * @return the chunk read ahead, or null if it is not read yet: the handler is resumed once it is.
+         */
+        @Override
+        public synchronized ByteBuf readChunk(ByteBufAllocator alloc) throws IOException {
+
+            if (failure != null) {
+                throw failure;
+            }
+            ByteBuf chunk = next;
+            if (chunk == null) {
+                return null;
+            }
+            next = null;
+            if (lastRead) {
+                ended = true;
+            } else {
+                readAhead();
+            }
+            return chunk;
+        }
+
+        private void readAhead() {
+
+            if (!reading && !lastRead && !closed) {
+                reading = true;
+                AsyncExecution.bodyReader.execute(this::read);
+            }
+        }
+
+        /** Reads and frames the next chunk, on AsyncExecution.bodyReader. */
+        private void read() {
+
+            ByteBuf chunk = allocator.buffer(SIZE_LINE + StreamingBody.CHUNK_SIZE + CRLF.length);
+            int read;
+            try {
+                // a blocking channel reads at least a byte, non-blocking ones are refused by Exchange.stream()
+                do {
+                    read = in.read(chunk.nioBuffer(SIZE_LINE, StreamingBody.CHUNK_SIZE));
+                } while (read == 0);
+            } catch (IOException | RuntimeException e) {
+                chunk.release();
+                synchronized (this) {
+                    reading = false;
+                    failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                }
+                handler.resumeTransfer();
+                return;
+            }
+            if (read < 0) {
+                chunk.writeBytes(LAST_CHUNK);
+            } else {
+                for (int i = 3, size = read; i >= 0; i--, size >>>= 4) {
+                    chunk.setByte(i, HEX[size & 0xf]);
+                }
+                chunk.setByte(4, '\r').setByte(5, '\n');
+                chunk.writerIndex(SIZE_LINE + read).writeBytes(CRLF);
+            }
+            synchronized (this) {
+                reading = false;
+                if (!closed) {
+                    next = chunk;
+                    lastRead = read < 0;
+                    progress += Math.max(read, 0);
+                    chunk = null;
+                }
+            }
+            if (chunk != null) {
+                chunk.release();
+            } else {
+                handler.resumeTransfer();
+            }
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public synchronized long progress() {
+            return progress;
+        }
+    }
+
+    /** A request and its response. */
+    private final class Exchange extends HttpEngine.Exchange<BufferedResponse> {
+
+        final Http.HttpMethod method;
+        final Map<String, NewCookie> cookieStore;
+        final FileSink sink;
+        final ResponseCheck check;
+        // the request, released once the result completes; sent as retained duplicates, so it can be sent again
+        private ByteBuf head;
+        private ByteBuf content;
+        // or a streamed body, sent once: a file region, or a body of unknown length
+        private FileChannel file;
+        private long filePosition;
+        private long fileLength;
+        private ChunkedBody chunked;
+        private boolean requestReleased;
+        private volatile ScheduledFuture<?> timer;
+        volatile Connection connection;
+        // sent again after its connection closed, at most once; never for a streamed body
+        volatile boolean retried;
+
+        Exchange(Http.HttpMethod method, Map<String, NewCookie> cookieStore, Deadline deadline, FileSink sink, ResponseCheck check) {
+            super(deadline);
+            this.method = method;
+            this.cookieStore = cookieStore;
+            this.sink = sink;
+            this.check = check;
+        }
+
+        boolean isIdempotent() {
+            return method.isIdempotent();
+        }
+
+        void encode(Wire wire, RequestTemplate template, String[] headerValues, Object body,
+                    Map<String, String> conditional, Map<String, NewCookie> cookies) {
+
+            ByteBuf request = allocator.buffer(wire.prefix.length + 128);
+            try {
+                // the entity first, it decides the Content-Encoding and Content-Length
+                if (hasBody(method, body) && StreamingBody.isStreaming(body) && !(body instanceof ByteBuffer[]) && encoding == Http.Encoding.NONE) {
+                    stream(body);
+                } else {
+                    content = hasBody(method, body) ? content(body, template) : null;
+                }
+                boolean hasEntity = content != null || file != null || chunked != null;
+
+                // the request line, Host and fixed headers, serialized once for all the calls of the template
+                request.writeBytes(wire.prefix);
+                for (int i = 0; i < wire.variables.length; i++) {
+                    String value = template.value(i, headerValues);
+                    if (value != null) {
+                        request.writeBytes(wire.variables[i]);
+                        ByteBufUtil.writeAscii(request, value);
+                        request.writeBytes(CRLF);
+                    }
+                }
+                if (conditional != null) {
+                    conditional.forEach((name, value) -> writeHeader(request, name, value));
+                }
+                String cookie = cookieHeader(cookies);
+                if (cookie != null) {
+                    writeHeader(request, "Cookie", cookie);
+                }
+                if (hasEntity) {
+                    if (template.getMediaType() == null) {
+                        request.writeBytes(CONTENT_TYPE_TEXT);
+                    }
+                    if (encoding == Http.Encoding.GZIP) {
+                        request.writeBytes(CONTENT_ENCODING_GZIP);
+                    } else if (encoding == Http.Encoding.DEFLATE) {
+                        request.writeBytes(CONTENT_ENCODING_DEFLATE);
+                    }
+                }
+                if (chunked != null) {
+                    request.writeBytes(TRANSFER_ENCODING_CHUNKED);
+                } else if (hasEntity || method == Http.HttpMethod.POST || method == Http.HttpMethod.PUT || method == Http.HttpMethod.PATCH) {
+                    request.writeBytes(CONTENT_LENGTH);
+                    ByteBufUtil.writeAscii(request, Long.toString((content != null) ? content.readableBytes() : (file != null) ? fileLength : 0));
+                    request.writeBytes(CRLF);
+                }
+                request.writeBytes(CRLF);
+            } catch (RuntimeException e) {
+                request.release();
+                if (content != null) {
+                    content.release();
+                }
+                closeStream();
+                throw e;
+            }
+            this.head = request;
+            retried = file != null || chunked != null;
+            result.whenComplete((response, throwable) -> {
+                cancel(timer);
+                releaseRequest();
+                Connection current = connection;
+                if (throwable != null && current != null) {
+                    current.abort(this);
+                }
+            });
+            if (connectTimeout > 0) {
+                timer = HttpTimer.schedule(() -> fail(new SocketTimeoutException("connect timed out")), connectTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Sets up a streamed body: the region of a file, or the chunks of a stream or channel of unknown length.
+         */
+        private void stream(Object body) {
+
+            try {
+                if (StreamingBody.isFile(body)) {
+                    file = StreamingBody.fileChannel(body);
+                    filePosition = file.position();
+                    fileLength = StreamingBody.length(file);
+                } else if (body instanceof SelectableChannel && !((SelectableChannel) body).isBlocking()) {
+                    StreamingBody.close(body);
+                    throw new ProcessingException("A non-blocking channel cannot be sent as the request body");
+                } else {
+                    chunked = new ChunkedBody((body instanceof InputStream) ? Channels.newChannel((InputStream) body) : (ReadableByteChannel) body);
+                }
+            } catch (IOException e) {
+                StreamingBody.close(body);
+                throw new ProcessingException("Failed to open the request body", e);
+            }
+        }
+
+        /**
+         * @return the request body, as is for a byte[], ByteBuffer or ByteBuffer[], written to a pooled buffer otherwise.
+         */
+        private ByteBuf content(Object body, RequestTemplate template) {
+
+            ByteBuf buffer;
+            if (body instanceof byte[]) {
+                buffer = Unpooled.wrappedBuffer((byte[]) body);
+            } else if (body instanceof ByteBuffer) {
+                buffer = Unpooled.wrappedBuffer(((ByteBuffer) body).duplicate());
+            } else if (body instanceof ByteBuffer[]) {
+                // a composite of the buffers, written with one gathering write
+                ByteBuffer[] buffers = ((ByteBuffer[]) body).clone();
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = buffers[i].duplicate();
+                }
+                buffer = Unpooled.wrappedBuffer(buffers);
+            } else {
+                buffer = allocator.buffer();
+                try {
+                    if (StreamingBody.isStreaming(body)) {
+                        try (InputStream in = StreamingBody.inputStream(body)) {
+                            while (buffer.writeBytes(in, 8192) != -1) {
+                                // until the end of the stream
+                            }
+                        }
+                    } else {
+                        MediaType mediaType = mediaType(template);
+                        if (isJson(body, mediaType)) {
+                            JsonCodec.MAPPER.writeValue((OutputStream) new ByteBufOutputStream(buffer), body);
+                        } else {
+                            Charset charset = charset(mediaType);
+                            if (charset == StandardCharsets.UTF_8) {
+                                ByteBufUtil.writeUtf8(buffer, body.toString());
+                            } else {
+                                buffer.writeBytes(body.toString().getBytes(charset));
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    buffer.release();
+                    throw new ProcessingException("Failed to write the request body", e);
+                }
+            }
+            return (encoding == Http.Encoding.GZIP || encoding == Http.Encoding.DEFLATE) ? compress(buffer) : buffer;
+        }
+
+        private ByteBuf compress(ByteBuf buffer) {
+
+            ByteBuf compressed = allocator.buffer(buffer.readableBytes() / 2 + 32);
+            try (OutputStream out = Zlib.compress(new ByteBufOutputStream(compressed), encoding, compressionLevel, compressionStrategy)) {
+                buffer.readBytes(out, buffer.readableBytes());
+            } catch (IOException e) {
+                compressed.release();
+                throw new ProcessingException("Failed to compress the request body", e);
+            } finally {
+                buffer.release();
+            }
+            return compressed;
+        }
+
+        /**
+         * Writes the request to the channel, unless the result already completed.
+         * @return false if the request was released.
+         */
+        synchronized boolean write(Channel channel, ChannelFutureListener failure) {
+
+            if (requestReleased) {
+                return false;
+            }
+            Object streamed;
+            try {
+                streamed = streamed(channel);
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+            channel.write(head.retainedDuplicate()).addListener(failure);
+            if (content != null) {
+                channel.write(content.retainedDuplicate()).addListener(failure);
+            } else if (streamed != null) {
+                // the read timeout runs once the whole body is written
+                channel.write(streamed).addListener(failure).addListener(future -> {
+                    if (future.isSuccess()) {
+                        channel.eventLoop().execute(this::bodySent);
+                    }
+                });
+            }
+            channel.flush();
+            return true;
+        }
+
+        /**
+         * @return what the channel writes of a streamed body: a FileRegion sent with sendfile on a plain connection,
+         * the chunks of the file over TLS, or the ChunkedBody; null if there is none.
+         */
+        private Object streamed(Channel channel) throws IOException {
+
+            if (file == null && chunked == null) {
+                return null;
+            }
+            ChunkedWriteHandler writer = channel.pipeline().get(ChunkedWriteHandler.class);
+            if (writer == null) {
+                // added to the connections that send a streamed body, writing the others as they come
+                writer = new ChunkedWriteHandler();
+                channel.pipeline().addLast(writer);
+            }
+            if (chunked != null) {
+                chunked.start(writer);
+                return chunked;
+            }
+            return (channel.pipeline().get(SslHandler.class) == null) ? new DefaultFileRegion(file, filePosition, fileLength)
+                    : new ChunkedNioFile(file, filePosition, fileLength, StreamingBody.CHUNK_SIZE);
+        }
+
+        private synchronized void releaseRequest() {
+
+            if (!requestReleased) {
+                requestReleased = true;
+                head.release();
+                if (content != null) {
+                    content.release();
+                }
+                closeStream();
+            }
+        }
+
+        private void closeStream() {
+
+            StreamingBody.close(file);
+            if (chunked != null) {
+                chunked.close();
+            }
+        }
+
+        /** Once written, waits for the response headers for the read timeout. */
+        void sent(Connection connection) {
+
+            this.connection = connection;
+            connected();
+            cancel(timer);
+            if (file == null && chunked == null) {
+                bodySent();
+            }
+        }
+
+        private void bodySent() {
+
+            if (readTimeout > 0 && !result.isDone()) {
+                timer = HttpTimer.schedule(() -> fail(new SocketTimeoutException("Read timed out")), readTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        void headersReceived() {
+
+            cancel(timer);
+            super.headersReceived();
+        }
+
+        /**
+         * Completes the result with the response, or releases it if the result already completed.
+         */
+        void completed(ResponseHead responseHead, ByteBuf headBytes, ByteBuf body) {
+
+            ByteBuf decoded;
+            try {
+                decoded = decode(responseHead, body);
+            } catch (IOException e) {
+                headBytes.release();
+                result.completeExceptionally(new ProcessingException("Failed to read the response body", e));
+                return;
+            }
+            BufferedResponse response = new BufferedResponse(responseHead, headBytes, decoded, System.currentTimeMillis() - start);
+            if (cookieStore != null) {
+                cookieStore.putAll(response.getCookies());
+            }
+            if (!result.complete(response)) {
+                response.release();
+            }
+        }
+
+        /**
+         * @return the body decoded as its Content-Encoding says, in a buffer of its own.
+         */
+        private ByteBuf decode(ResponseHead responseHead, ByteBuf body) throws IOException {
+
+            String contentEncoding = body.isReadable() ? responseHead.get("content-encoding") : null;
+            Http.Encoding bodyEncoding = (contentEncoding != null) ? Http.Encoding.fromString(contentEncoding.trim()) : null;
+            if (bodyEncoding == null || bodyEncoding == Http.Encoding.NONE) {
+                return body;
+            }
+            ByteBuf decoded = allocator.buffer(body.readableBytes() * 4);
+            try (InputStream in = HttpConnector.getInputStreamDecoded(new ByteBufInputStream(body), bodyEncoding)) {
+                if (in == null) {
+                    throw new IOException("Invalid " + contentEncoding + " body");
+                }
+                while (decoded.writeBytes(in, 8192) != -1) {
+                    // until the end of the stream
+                }
+                return decoded;
+            } catch (IOException | RuntimeException e) {
+                decoded.release();
+                throw e;
+            } finally {
+                body.release();
+            }
+        }
+
+        void fail(Throwable cause) {
+
+            if (!result.isDone()) {
+                logger.warn("Request failed: " + cause.getMessage());
+                result.completeExceptionally((cause instanceof ProcessingException) ? cause : new ProcessingException(cause));
+            }
+        }
+    }
+
+    /** The connections to a host and the requests waiting for one. */
+    private final class HostPool extends NettyHostPool<Exchange, Connection> {
+
+        HostPool(URI uri, int port, boolean secure) {
+            super("NettyEngine", uri.getHost(), port, secure, client, null, settings, resolver);
+        }
+
+        @Override
+        void configure(Bootstrap bootstrap) {
+
+            bootstrap.group(group).option(ChannelOption.ALLOCATOR, allocator);
+            if (connectTimeout > 0) {
+                bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+            }
+        }
+
+        @Override
+        Connection open(Channel channel) {
+
+            Connection connection = new Connection(this, channel);
+            channel.pipeline().addLast(connection);
+            return connection;
+        }
+
+        @Override
+        void send(Connection connection, Exchange exchange) {
+            connection.send(exchange);
+        }
+
+        @Override
+        int depth() {
+            return depth;
+        }
+
+        /** A POST or PATCH only goes to a connection with nothing in flight. */
+        @Override
+        int capacity(Exchange exchange) {
+            return exchange.isIdempotent() ? depth : 1;
+        }
+
+        @Override
+        boolean isDone(Exchange exchange) {
+            return exchange.result.isDone();
+        }
+
+        @Override
+        void fail(Exchange exchange, Throwable cause) {
+            exchange.fail(cause);
+        }
+
+        @Override
+        boolean isClosed() {
+            return closed;
+        }
+    }
+
+    /**
+     * An HTTP/1.1 connection, reading the responses of its requests in the order they were sent.
+     * The decoder cumulates what is read until a response is complete, which is then sliced off the cumulation.
+     */
+    private final class Connection extends ByteToMessageDecoder implements NettyHostPool.Pooled {
+
+        private static final int LENGTH = 0;
+        private static final int CHUNKED = 1;
+        private static final int UNTIL_CLOSE = 2;
+
+        private static final int CHUNK_SIZE = 0;
+        private static final int CHUNK_DATA = 1;
+        private static final int CHUNK_END = 2;
+        private static final int TRAILERS = 3;
+
+        final HostPool pool;
+        final Channel channel;
+        final NettyHostPool.Slot slot;
+        // on the event loop
+        private final Deque<Exchange> inFlight = new ArrayDeque<>();
+        private final ChannelFutureListener writeFailure = future -> {
+            if (!future.isSuccess()) {
+                logger.debug("Failed to write to {}: {}", future.channel(), future.cause().toString());
+                future.channel().close();
+            }
+        };
+        private int scanned;
+        private ResponseHead head;
+        private ByteBuf headBytes;
+        private int mode;
+        private long remaining;
+        private ByteBuf body;
+        // the file the body of the response being read goes to, rather than to the body buffer
+        private FileSink sink;
+        private int chunkState;
+        private boolean keepAlive;
+        private boolean inactive;
+
+        Connection(HostPool pool, Channel channel) {
+            this.pool = pool;
+            this.channel = channel;
+            this.slot = new NettyHostPool.Slot(channel);
+        }
+
+        @Override
+        public NettyHostPool.Slot slot() {
+            return slot;
+        }
+
+        void send(Exchange exchange) {
+
+            channel.eventLoop().execute(() -> {
+                if (inactive || !channel.isActive()) {
+                    pool.requeue(exchange);
+                    pool.release(this, false);
+                    return;
+                }
+                if (!exchange.write(channel, writeFailure)) {
+                    pool.release(this, true);
+                    return;
+                }
+                inFlight.add(exchange);
+                exchange.sent(this);
+            });
+        }
+
+        /** Closes the connection of a request that failed or was cancelled while in flight. */
+        void abort(Exchange exchange) {
+
+            channel.eventLoop().execute(() -> {
+                if (inFlight.contains(exchange)) {
+                    channel.close();
+                }
+            });
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext context, ByteBuf in, List<Object> out) {
+
+            while (in.isReadable()) {
+                Exchange exchange = inFlight.peek();
+                if (exchange == null) {
+                    logger.debug("Unexpected bytes from {}, closing the connection", pool.name);
+                    in.skipBytes(in.readableBytes());
+                    context.close();
+                    return;
+                }
+                if (head == null && !readHead(context, in, exchange)) {
+                    return;
+                }
+                if (mode == LENGTH) {
+                    if (sink != null && remaining > 0) {
+                        int length = (int) Math.min(remaining, in.readableBytes());
+                        toFile(in.readRetainedSlice(length));
+                        remaining -= length;
+                    }
+                    if (in.readableBytes() < remaining) {
+                        return;
+                    }
+                    complete(context, (sink != null) ? Unpooled.EMPTY_BUFFER : in.readRetainedSlice((int) remaining));
+                } else if (mode == CHUNKED) {
+                    if (!readChunks(in)) {
+                        return;
+                    }
+                    complete(context, takeBody());
+                } else if (sink != null) {
+                    toFile(in.readRetainedSlice(in.readableBytes()));
+                } else {
+                    body.writeBytes(in);
+                }
+            }
+        }
+
+        /**
+         * Reads the status line and headers of the response, once they are all there.
+         * @return false if more bytes are needed, or the connection closed.
+         */
+        private boolean readHead(ChannelHandlerContext context, ByteBuf in, Exchange exchange) {
+
+            int start = in.readerIndex();
+            int line = start + scanned;
+            int end = -1;
+            while (line < in.writerIndex()) {
+                int lf = ByteBufUtil.indexOf(in, line, in.writerIndex(), (byte) '\n');
+                if (lf < 0) {
+                    break;
+                }
+                if (lf == line || (lf == line + 1 && in.getByte(line) == '\r')) {
+                    if (line == start) {
+                        // an empty line before the status line
+                        in.skipBytes(lf + 1 - start);
+                        scanned = 0;
+                        return in.isReadable() && readHead(context, in, exchange);
+                    }
+                    end = lf + 1;
+                    break;
+                }
+                line = lf + 1;
+            }
+            if (end < 0) {
+                scanned = line - start;
+                if (scanned > MAX_HEAD) {
+                    protocolError(context, "The response head is too long");
+                }
+                return false;
+            }
+            scanned = 0;
+
+            ByteBuf bytes = in.readRetainedSlice(end - start);
+            ResponseHead responseHead = new ResponseHead(bytes);
+            int status = responseHead.getStatus();
+            if (status < 0) {
+                bytes.release();
+                protocolError(context, "Invalid status line: " + responseHead);
+                return false;
+            }
+            if (status < 200) {
+                // informational, the final response follows
+                bytes.release();
+                return in.isReadable() && readHead(context, in, exchange);
+            }
+            if (exchange.check != null && !check(context, in, exchange, responseHead)) {
+                bytes.release();
+                return false;
+            }
+            head = responseHead;
+            headBytes = bytes;
+            keepAlive = !responseHead.hasToken("connection", "close")
+                    && (!responseHead.isHttp10() || responseHead.hasToken("connection", "keep-alive"));
+            exchange.headersReceived();
+
+            long length = responseHead.getContentLength();
+            String contentEncoding = responseHead.get("content-encoding");
+            // an encoded body is decoded in memory first
+            sink = (exchange.sink != null && status < 300 && (contentEncoding == null || contentEncoding.trim().equalsIgnoreCase("identity")))
+                    ? exchange.sink : null;
+            if (exchange.method == Http.HttpMethod.HEAD || status == 204 || status == 304) {
+                mode = LENGTH;
+                remaining = 0;
+            } else if (responseHead.hasToken("transfer-encoding", "chunked")) {
+                mode = CHUNKED;
+                chunkState = CHUNK_SIZE;
+                body = (sink != null) ? null : context.alloc().buffer();
+            } else if (length >= 0) {
+                // a body streamed to a file is consumed slice by slice, only a buffered one has to fit a ByteBuf
+                if (sink == null && length > Integer.MAX_VALUE) {
+                    protocolError(context, "The response body is too long: " + length);
+                    return false;
+                }
+                mode = LENGTH;
+                remaining = length;
+            } else {
+                mode = UNTIL_CLOSE;
+                keepAlive = false;
+                body = (sink != null) ? null : context.alloc().buffer();
+            }
+            return true;
+        }
+
+        /**
+         * Checks the status and headers of the response. A failed check fails the exchange, and closes the connection
+         * rather than reading a body no one waits for.
+         * @return false if the check failed.
+         */
+        private boolean check(ChannelHandlerContext context, ByteBuf in, Exchange exchange, ResponseHead responseHead) {
+
+            try {
+                exchange.check.check(responseHead.getStatus(), responseHead::get);
+                return true;
+            } catch (RuntimeException e) {
+                inFlight.poll();
+                exchange.result.completeExceptionally(e);
+                in.skipBytes(in.readableBytes());
+                context.close();
+                return false;
+            }
+        }
+
+        /**
+         * Copies the chunks read to the body.
+         * @return true once the last chunk and the trailers are read.
+         */
+        private boolean readChunks(ByteBuf in) {
+
+            while (true) {
+                if (chunkState == CHUNK_DATA) {
+                    int length = (int) Math.min(remaining, in.readableBytes());
+                    if (sink == null) {
+                        body.writeBytes(in, length);
+                    } else if (length > 0) {
+                        toFile(in.readRetainedSlice(length));
+                    }
+                    remaining -= length;
+                    if (remaining > 0) {
+                        return false;
+                    }
+                    chunkState = CHUNK_END;
+                }
+                int lf = ByteBufUtil.indexOf(in, in.readerIndex(), in.writerIndex(), (byte) '\n');
+                if (lf < 0) {
+                    return false;
+                }
+                int start = in.readerIndex();
+                in.readerIndex(lf + 1);
+                if (chunkState == CHUNK_SIZE) {
+                    remaining = chunkSize(in, start, lf);
+                    chunkState = (remaining > 0) ? CHUNK_DATA : TRAILERS;
+                } else if (chunkState == CHUNK_END) {
+                    chunkState = CHUNK_SIZE;
+                } else if (lf == start || (lf == start + 1 && in.getByte(start) == '\r')) {
+                    // the empty line after the trailers
+                    return true;
+                }
+            }
+        }
+
+        /** The hex size of a chunk, up to its extensions. */
+        private long chunkSize(ByteBuf in, int start, int end) {
+
+            long size = 0;
+            for (int i = start; i < end; i++) {
+                int digit = Character.digit(in.getByte(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                size = size * 16 + digit;
+                if (size > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("The response chunk is too long");
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Writes a slice of the body to the file, and stops reading while the disk is behind.
+         */
+        private void toFile(ByteBuf slice) {
+
+            FileSink current = sink;
+            current.write(slice.nioBuffer(), slice::release);
+            if (current.pending() > FileSink.HIGH_WATERMARK && channel.config().isAutoRead()) {
+                channel.config().setAutoRead(false);
+                current.whenDrained(() -> channel.eventLoop().execute(() -> channel.config().setAutoRead(true)));
+            }
+        }
+
+        /** @return the body read, an empty one if it went to the file. */
+        private ByteBuf takeBody() {
+
+            ByteBuf content = (body != null) ? body : Unpooled.EMPTY_BUFFER;
+            body = null;
+            return content;
+        }
+
+        private void complete(ChannelHandlerContext context, ByteBuf content) {
+
+            Exchange exchange = inFlight.poll();
+            ResponseHead responseHead = head;
+            ByteBuf bytes = headBytes;
+            boolean reusable = keepAlive;
+            head = null;
+            headBytes = null;
+            sink = null;
+            // the connection is free before the caller gets the response
+            pool.release(this, reusable);
+            if (!reusable) {
+                context.close();
+            }
+            exchange.completed(responseHead, bytes, content);
+        }
+
+        private void protocolError(ChannelHandlerContext context, String message) {
+
+            Exchange exchange = inFlight.poll();
+            if (exchange != null) {
+                exchange.fail(new IOException(message + " (" + pool.name + ")"));
+            }
+            context.close();
+        }
+
+        @Override
+        protected void decodeLast(ChannelHandlerContext context, ByteBuf in, List<Object> out) {
+
+            if (in.isReadable()) {
+                decode(context, in, out);
+            }
+            if (head != null && mode == UNTIL_CLOSE) {
+                complete(context, takeBody());
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext context) throws Exception {
+
+            // the cumulation is decoded first, completing a response delimited by the close
+            super.channelInactive(context);
+            closed();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+
+            logger.debug("Closing the connection to {}: {}", pool.name, cause.toString());
+            context.close();
+        }
+
+        /**
+         * Sends the requests in flight again if they can be, fails the others. Once, on the event loop.
+         */
+        private void closed() {
+
+            if (inactive) {
+                return;
+            }
+            inactive = true;
+            if (headBytes != null) {
+                headBytes.release();
+                headBytes = null;
+                head = null;
+            }
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            List<Exchange> pending = new ArrayList<>(inFlight);
+            inFlight.clear();
+            for (Exchange exchange : pending) {
+                exchange.connection = null;
+                if (exchange.isIdempotent() && !exchange.retried && !exchange.isHeadersReceived() && !exchange.result.isDone()) {
+                    exchange.retried = true;
+                    pool.requeue(exchange);
+                } else {
+                    exchange.fail(new IOException("The connection closed before the response completed"));
+                }
+            }
+            pool.remove(this);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * A key-value store outside of the Java heap, the second tier of a ResponseCache.
+ *
+ * Records are appended to a ring buffer, either a direct ByteBuffer or a memory-mapped file, and the oldest records
+ * are overwritten when it is full. Only the index (key to position) lives on the heap.
+ * A file-backed store survives a restart of the process: the index is rebuilt from the file when it is opened again.
+ *
+ * Each record is self-describing: a magic number, the lengths of the key and value, a CRC32 and the key and value bytes.
+ * Records that fail the check, e.g. after a crash during a write, end the recovery.
+ *
+ * The capacity of a store is limited to 2GB.
+ */
+public class OffHeapStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapStore.class);
+
+    private static final int FILE_MAGIC = 0x4A4D5043;
+    private static final int VERSION = 1;
+    private static final int RECORD_MAGIC = 0x4A4D5052;
+    private static final int REMOVED_MAGIC = 0x4A4D5058;
+    private static final int WRAP_MAGIC = 0x4A4D5057;
+    /** magic, version, capacity, head, tail, number of records */
+    static final int HEADER_SIZE = 32;
+    /** magic, key length, value length, crc */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+    private final Path file;
+    private final int capacity;
+    private final ConcurrentMap<String, Integer> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int head = HEADER_SIZE;
+    private int tail = HEADER_SIZE;
+    private int records;
+
+    private OffHeapStore(ByteBuffer buffer, FileChannel channel, Path file) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.file = file;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * A store in a direct ByteBuffer. Its content is lost when the process exits.
+     * @param capacity the size of the buffer in bytes.
+     */
+    public static OffHeapStore direct(int capacity) {
+
+        checkCapacity(capacity);
+        OffHeapStore store = new OffHeapStore(ByteBuffer.allocateDirect(capacity), null, null);
+        store.writeHeader();
+        return store;
+    }
+
+    /**
+     * A store in a memory-mapped file. An existing file written by a store of the same capacity is recovered,
+     * otherwise the file is reset.
+     * @param file the path of the file, created if missing.
+     * @param capacity the size of the file in bytes.
+     */
+    public static OffHeapStore mapped(Path file, int capacity) throws IOException {
+
+        checkCapacity(capacity);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean existing = channel.size() == capacity;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            OffHeapStore store = new OffHeapStore(buffer, channel, file);
+            if (existing && store.recover()) {
+                logger.info("Recovered {} cached records from {}", store.index.size(), file);
+            } else {
+                store.writeHeader();
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void checkCapacity(int capacity) {
+        if (capacity <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Capacity is too small: " + capacity);
+        }
+    }
+
+    /**
+     * Appends the value, overwriting the oldest records if needed. A value too large for the store is not stored.
+     * @return true if the value was stored.
+     */
+    public boolean put(String key, byte[] value) {
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+        if (size > capacity - HEADER_SIZE) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+
+        lock.writeLock().lock();
+        try {
+            if (head + size > capacity) {
+                evict(head, capacity);
+                if (head + 4 <= capacity) {
+                    buffer.putInt(head, WRAP_MAGIC);
+                }
+                head = HEADER_SIZE;
+            }
+            evict(head, head + size);
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(head);
+            record.putInt(RECORD_MAGIC).putInt(keyBytes.length).putInt(value.length).putInt((int) crc.getValue());
+            record.put(keyBytes).put(value);
+
+            if (records == 0) {
+                tail = head;
+            }
+            index.put(key, head);
+            records++;
+            head += size;
+            writeHeader();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the value, or null if the key is missing or was overwritten.
+     */
+    public byte[] get(String key) {
+
+        lock.readLock().lock();
+        try {
+            Integer position = index.get(key);
+            if (position == null) {
+                return null;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            int keyLength = record.getInt();
+            int valueLength = record.getInt();
+            record.position(position + RECORD_HEADER_SIZE + keyLength);
+            byte[] value = new byte[valueLength];
+            record.get(value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the key. The record is marked as removed, so it is not recovered,
+     * and its space is reclaimed when the ring wraps around.
+     */
+    public boolean remove(String key) {
+
+        lock.writeLock().lock();
+        try {
+            Integer position = index.remove(key);
+            if (position != null) {
+                buffer.putInt(position, REMOVED_MAGIC);
+            }
+            return position != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeIf(Predicate<String> filter) {
+        index.keySet().stream().filter(filter).forEach(this::remove);
+    }
+
+    public void clear() {
+        removeIf(key -> true);
+    }
+
+    /**
+     * @return the keys in the store, a read only live view.
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * @return the number of keys in the store.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the file of a memory-mapped store, null for a direct one.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Flushes a memory-mapped store to its file and closes it. The buffer stays mapped until it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (channel != null) {
+            lock.writeLock().lock();
+            try {
+                ((MappedByteBuffer) buffer).force();
+                channel.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops the records from the tail while it is within [from, to).
+     */
+    private void evict(int from, int to) {
+
+        while (records > 0 && tail >= from && tail < to) {
+            if (tail + RECORD_HEADER_SIZE > capacity || buffer.getInt(tail) == WRAP_MAGIC) {
+                tail = HEADER_SIZE;
+                continue;
+            }
+            int size = RECORD_HEADER_SIZE + buffer.getInt(tail + 4) + buffer.getInt(tail + 8);
+            index.remove(readKey(tail), tail);
+            records--;
+            tail += size;
+        }
+        if (records == 0) {
+            tail = head;
+        }
+    }
+
+    private String readKey(int position) {
+
+        byte[] key = new byte[buffer.getInt(position + 4)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + RECORD_HEADER_SIZE);
+        record.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, FILE_MAGIC).putInt(4, VERSION).putLong(8, capacity).putInt(16, head).putInt(20, tail).putInt(24, records);
+    }
+
+    /**
+     * Rebuilds the index by walking the records from the tail to the head.
+     * @return false if the file is not a store of this capacity.
+     */
+    private boolean recover() {
+
+        if (buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != capacity) {
+            logger.warn("Not a cache file of {} bytes, resetting it", capacity);
+            return false;
+        }
+        int end = buffer.getInt(16);
+        int position = buffer.getInt(20);
+        int expected = buffer.getInt(24);
+        if (end < HEADER_SIZE || end > capacity || position < HEADER_SIZE || position > capacity) {
+            return false;
+        }
+        tail = position;
+        long walked = 0;
+        // the head is at the tail when the ring is full, so walk by number of records
+        while (records < expected && walked <= capacity) {
+            if (position + RECORD_HEADER_SIZE > capacity || buffer.getInt(position) == WRAP_MAGIC) {
+                walked += capacity - position;
+                position = HEADER_SIZE;
+                continue;
+            }
+            int size = validRecordSize(position);
+            if (size < 0) {
+                logger.warn("Corrupt cache record at {}, dropping the records after it", position);
+                break;
+            }
+            if (buffer.getInt(position) == RECORD_MAGIC) {
+                index.put(readKey(position), position);
+            } else {
+                index.remove(readKey(position));
+            }
+            records++;
+            position += size;
+            walked += size;
+        }
+        head = position;
+        if (records == 0) {
+            tail = head;
+        }
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * @return the size of the record at the position, or -1 if it is not a valid record.
+     */
+    private int validRecordSize(int position) {
+
+        if (buffer.getInt(position) != RECORD_MAGIC && buffer.getInt(position) != REMOVED_MAGIC) {
+            return -1;
+        }
+        int keyLength = buffer.getInt(position + 4);
+        int valueLength = buffer.getInt(position + 8);
+        if (keyLength < 0 || valueLength < 0 || (long) position + RECORD_HEADER_SIZE + keyLength + valueLength > capacity) {
+            return -1;
+        }
+        byte[] bytes = new byte[keyLength + valueLength];
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + RECORD_HEADER_SIZE);
+        record.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return ((int) crc.getValue() == buffer.getInt(position + 12)) ? RECORD_HEADER_SIZE + keyLength + valueLength : -1;
+    }
+}
@@ -0,0 +1,201 @@
+package net.centro.rtb.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connection pool settings, translated by each connector to its own pool:
+ * the Apache PoolingHttpClientConnectionManager, the Jetty HttpClient, the Grizzly AsyncHttpClientConfig
+ * and the connections of the Http2 and NettyEngine connectors.
+ *
+ * Settings left unset keep the connector's default. Not every connector supports every setting:
+ * Jetty, Http2 and NettyEngine have no total limit, Jetty has no connection TTL, the maximum of concurrent streams only
+ * applies to Http2, pipelining only to NettyEngine, and the Netty and HttpUrlConnection connectors have no pool of their
+ * own to configure.
+ *
+ * Pool settings are part of the client configuration, requests with different settings get different Clients.
+ * Instances are immutable; the with...() methods return a copy.
+ */
+public final class PoolSettings {
+
+    private static final PoolSettings DEFAULTS = new PoolSettings(0, 0, 0, 0, null, 0, 0);
+
+    private final int maxTotal;
+    private final int maxPerHost;
+    private final long idleTimeoutMillis;
+    private final long keepAliveTtlMillis;
+    private final Boolean tcpNoDelay;
+    private final int maxConcurrentStreams;
+    private final int pipelining;
+
+    private PoolSettings(int maxTotal, int maxPerHost, long idleTimeoutMillis, long keepAliveTtlMillis, Boolean tcpNoDelay,
+                         int maxConcurrentStreams, int pipelining) {
+        this.maxTotal = maxTotal;
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.keepAliveTtlMillis = keepAliveTtlMillis;
+        this.tcpNoDelay = tcpNoDelay;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.pipelining = pipelining;
+    }
+
+    /**
+     * @return settings that keep all of the connector's defaults.
+     */
+    public static PoolSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * The maximum number of connections, to all hosts.
+     */
+    public PoolSettings withMaxTotal(int maxTotal) {
+        return new PoolSettings(positive(maxTotal), maxPerHost, idleTimeoutMillis, keepAliveTtlMillis, tcpNoDelay, maxConcurrentStreams, pipelining);
+    }
+
+    /**
+     * The maximum number of connections to a single host (scheme, host and port).
+     */
+    public PoolSettings withMaxPerHost(int maxPerHost) {
+        return new PoolSettings(maxTotal, positive(maxPerHost), idleTimeoutMillis, keepAliveTtlMillis, tcpNoDelay, maxConcurrentStreams, pipelining);
+    }
+
+    /**
+     * Closes the connections that stay idle in the pool longer than the timeout.
+     */
+    public PoolSettings withIdleTimeout(long timeout, TimeUnit unit) {
+        return new PoolSettings(maxTotal, maxPerHost, positive(unit.toMillis(timeout)), keepAliveTtlMillis, tcpNoDelay, maxConcurrentStreams, pipelining);
+    }
+
+    /**
+     * Stops reusing a connection once it is older than the TTL, e.g. to follow DNS changes behind a load balancer.
+     */
+    public PoolSettings withKeepAliveTtl(long ttl, TimeUnit unit) {
+        return new PoolSettings(maxTotal, maxPerHost, idleTimeoutMillis, positive(unit.toMillis(ttl)), tcpNoDelay, maxConcurrentStreams, pipelining);
+    }
+
+    /**
+     * Sets TCP_NODELAY on the connections, disabling Nagle's algorithm.
+     */
+    public PoolSettings withTcpNoDelay(boolean tcpNoDelay) {
+        return new PoolSettings(maxTotal, maxPerHost, idleTimeoutMillis, keepAliveTtlMillis, tcpNoDelay, maxConcurrentStreams, pipelining);
+    }
+
+    /**
+     * The maximum number of requests in flight on a single HTTP/2 connection, Http2 only.
+     * A host gets another connection once all of its connections are at the maximum. The server may set a lower one.
+     */
+    public PoolSettings withMaxConcurrentStreams(int maxConcurrentStreams) {
+        return new PoolSettings(maxTotal, maxPerHost, idleTimeoutMillis, keepAliveTtlMillis, tcpNoDelay, positive(maxConcurrentStreams), pipelining);
+    }
+
+    /**
+     * The maximum number of idempotent requests sent on a single HTTP/1.1 connection before their responses arrive,
+     * NettyEngine only. A host gets another connection once all of its connections have that many in flight.
+     * 1 turns pipelining off, the default. The server must answer pipelined requests in order, as HTTP/1.1 requires.
+     */
+    public PoolSettings withPipelining(int depth) {
+        return new PoolSettings(maxTotal, maxPerHost, idleTimeoutMillis, keepAliveTtlMillis, tcpNoDelay, maxConcurrentStreams, positive(depth));
+    }
+
+    private static int positive(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Expecting a positive value: " + value);
+        }
+        return value;
+    }
+
+    private static long positive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Expecting a positive value: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the maximum number of connections, or 0 if unset.
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * @return the maximum number of connections per host, or 0 if unset.
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * @return the idle timeout, or 0 if unset.
+     */
+    public long getIdleTimeout(TimeUnit unit) {
+        return unit.convert(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the keep-alive TTL, or 0 if unset.
+     */
+    public long getKeepAliveTtl(TimeUnit unit) {
+        return unit.convert(keepAliveTtlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the TCP_NODELAY setting, or null if unset.
+     */
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return the maximum number of concurrent streams per HTTP/2 connection, or 0 if unset.
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * @return the pipelining depth of an HTTP/1.1 connection, or 0 if unset.
+     */
+    public int getPipelining() {
+        return pipelining;
+    }
+
+    public boolean isDefault() {
+        return equals(DEFAULTS);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PoolSettings)) return false;
+
+        PoolSettings that = (PoolSettings) o;
+
+        return maxTotal == that.maxTotal
+                && maxPerHost == that.maxPerHost
+                && idleTimeoutMillis == that.idleTimeoutMillis
+                && keepAliveTtlMillis == that.keepAliveTtlMillis
+                && (tcpNoDelay != null ? tcpNoDelay.equals(that.tcpNoDelay) : that.tcpNoDelay == null)
+                && maxConcurrentStreams == that.maxConcurrentStreams
+                && pipelining == that.pipelining;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = maxTotal;
+        result = 31 * result + maxPerHost;
+        result = 31 * result + Long.hashCode(idleTimeoutMillis);
+        result = 31 * result + Long.hashCode(keepAliveTtlMillis);
+        result = 31 * result + (tcpNoDelay != null ? tcpNoDelay.hashCode() : 0);
+        result = 31 * result + maxConcurrentStreams;
+        result = 31 * result + pipelining;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolSettings{maxTotal=" + maxTotal + ", maxPerHost=" + maxPerHost + ", idleTimeout=" + idleTimeoutMillis
+                + "ms, keepAliveTtl=" + keepAliveTtlMillis + "ms, tcpNoDelay=" + tcpNoDelay + ", maxConcurrentStreams=" + maxConcurrentStreams
+                + ", pipelining=" + pipelining + "}";
+    }
+}
@@ -0,0 +1,60 @@
+package net.centro.rtb.http;
+
+/**
+ * A snapshot of the connection pool of one host: the connections in use, the idle connections kept alive,
+ * the requests waiting for a connection and the maximum number of connections.
+ */
+public final class PoolStats {
+
+    private final String host;
+    private final int leased;
+    private final int idle;
+    private final int pending;
+    private final int max;
+
+    PoolStats(String host, int leased, int idle, int pending, int max) {
+        this.host = host;
+        this.leased = leased;
+        this.idle = idle;
+        this.pending = pending;
+        this.max = max;
+    }
+
+    /**
+     * @return the sum of the two snapshots of the same host, e.g. from two Clients.
+     */
+    PoolStats add(PoolStats other) {
+        return new PoolStats(host, leased + other.leased, idle + other.idle, pending + other.pending, max + other.max);
+    }
+
+    /**
+     * @return the host and port.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return the maximum number of connections to the host, or 0 if the connector does not tell.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return host + "{leased=" + leased + ", idle=" + idle + ", pending=" + pending + ", max=" + max + "}";
+    }
+}
@@ -0,0 +1,553 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable, compiled form of an HttpConnectorBuilder.
+ *
+ * The URI, headers, media type and the Client profile are resolved once, when the request is prepared, into a
+ * template the connectors compile once: per call only the body and the values of the variable headers change
+ * (HttpConnectorBuilder.addVariableHeader()).
+ * A PreparedRequest is thread-safe and is meant to be kept and executed many times, concurrently;
+ * every execution returns its own HttpResult.
+ *
+ * Should be instantiated using HttpConnectorBuilder.prepare().
+ */
+public class PreparedRequest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreparedRequest.class);
+
+    private final RequestTemplate template;
+    private final URI uri;
+    private final Http.HttpMethod httpMethod;
+    private final RequestHeaders headers;
+    private final MultivaluedMap<String, Object> headerMap;
+    private final MediaType mediaType;
+    private final Object body;
+    private final boolean storeCookies;
+    private final Deadline deadline;
+    private final HedgePolicy hedgePolicy;
+    private final ResponseCache responseCache;
+    private final ClientProfile clientProfile;
+
+    protected PreparedRequest(HttpConnectorBuilder builder) {
+
+        template = builder.getTemplate();
+        uri = template.getURI();
+        httpMethod = template.getMethod();
+        body = builder.getBody();
+        storeCookies = builder.isStoreCookies();
+        deadline = builder.getDeadline();
+        hedgePolicy = builder.getHedgePolicy();
+        responseCache = builder.getResponseCache();
+
+        headers = template.getHeaders();
+        headerMap = headerMap(headers);
+        mediaType = template.getMediaType();
+
+        clientProfile = builder.getClientProfile();
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        template.target(client);
+        client.release();
+
+        logger.debug("\nPREPARED REQUEST:" + uri + " \n|METHOD| " + httpMethod + " \n|HEADER| " + headers + "\n");
+    }
+
+    private PreparedRequest(PreparedRequest source, RequestTemplate template) {
+
+        this.template = template;
+        uri = template.getURI();
+        httpMethod = template.getMethod();
+        body = null;
+        storeCookies = source.storeCookies;
+        deadline = source.deadline;
+        hedgePolicy = null;
+        responseCache = null;
+        headers = template.getHeaders();
+        headerMap = headerMap(headers);
+        mediaType = template.getMediaType();
+        clientProfile = source.clientProfile;
+    }
+
+    /**
+     * @return a request to the same URI, with the same headers, Client and Deadline, but another method and one more
+     * variable header declared last (null for none). It has no body, HedgePolicy nor ResponseCache.
+     */
+    PreparedRequest with(Http.HttpMethod method, String variableHeader) {
+        return new PreparedRequest(this, template.with(method, variableHeader));
+    }
+
+    private static MultivaluedMap<String, Object> headerMap(RequestHeaders headers) {
+
+        MultivaluedMap<String, Object> copy = new MultivaluedHashMap<>();
+        headers.forEach((name, value) -> copy.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value));
+        copy.replaceAll((name, values) -> Collections.unmodifiableList(values));
+        return new UnmodifiableMultivaluedMap<>(copy);
+    }
+
+    /**
+     * Executes the request with the body set in the builder.
+     * If a Deadline was set, a request that runs out of time fails with a ProcessingException caused by a DeadlineExceededException.
+     * If a HedgePolicy was set and the method is idempotent, the request is hedged.
+     * If a ResponseCache was set, a GET may be served from the cache.
+     * @return the result of this execution.
+     */
+    public HttpResult execute() {
+        return execute(body);
+    }
+
+    /**
+     * Executes the request with a different body. All other properties are the ones set in the builder.
+     * @param body the request body of this execution. A streamed body (see HttpConnectorBuilder.setBody()) is read
+     * once, it is passed to each execution rather than set in the builder.
+     * @return the result of this execution.
+     */
+    public <E> HttpResult execute(E body) {
+
+        // the engines of the JdkHttpClient and NettyEngine connectors complete asynchronously either way
+        if (deadline != null || isHedged(body) || responseCache != null || HttpEngine.handles(clientProfile.getConnectorProvider())) {
+            return await(executeAsync(body));
+        }
+
+        long start = System.currentTimeMillis();
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        try {
+            Response response = newInvocation(template.target(client), body, null, storeCookies ? HttpConnectorCookieManager.getCookies() : null, null).invoke();
+
+            if (storeCookies) {
+                HttpConnectorCookieManager.addCookies(response.getCookies());
+            }
+            return HttpResult.read(response, start);
+        } finally {
+            client.release();
+        }
+    }
+
+    /**
+     * Executes the request asynchronously, with the body set in the builder.
+     * The returned future completes once the response is fully read, so the HttpResult accessors never block.
+     * Cancelling the future cancels the in-flight request.
+     * If a HedgePolicy was set and the method is idempotent, a backup request is sent when the response is late,
+     * and the future completes with the first successful response.
+     * @return a future of the result of this execution.
+     */
+    public CompletableFuture<HttpResult> executeAsync() {
+        return executeAsync(body);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body.
+     * @param body the request body of this execution.
+     * @return a future of the result of this execution.
+     */
+    public <E> CompletableFuture<HttpResult> executeAsync(E body) {
+        return executeAsync(body, deadline);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body and deadline, e.g. the time left in an auction.
+     * The future completes exceptionally with a DeadlineExceededException, and the request is cancelled, when the deadline passes.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @return a future of the result of this execution.
+     */
+    public <E> CompletableFuture<HttpResult> executeAsync(E body, Deadline deadline) {
+        return executeAsync(body, deadline, (String[]) null);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body and deadline, and values of its own for the
+     * variable headers declared with HttpConnectorBuilder.addVariableHeader(), e.g. a request id.
+     * All the other headers are the ones of the template, serialized once.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @param headerValues the values of the variable headers, in the order they were declared. A missing or null
+     *                     value sends the one set in the builder, if any.
+     * @return a future of the result of this execution.
+     * @throws IllegalArgumentException if there are more values than variable headers, or a value has a line break.
+     */
+    public <E> CompletableFuture<HttpResult> executeAsync(E body, Deadline deadline, String... headerValues) {
+
+        template.check(headerValues);
+        if (responseCache != null) {
+            if (httpMethod == Http.HttpMethod.GET) {
+                return responseCache.execute(httpMethod.name(), uri, template.headers(headerValues),
+                        conditional -> send(body, deadline, headerValues, conditional));
+            }
+            if (httpMethod != Http.HttpMethod.OPTIONS && httpMethod != Http.HttpMethod.HEAD) {
+                return send(body, deadline, headerValues, null).thenApply(result -> {
+                    if (result.getStatus() < 400) {
+                        responseCache.invalidate(uri);
+                    }
+                    return result;
+                });
+            }
+        }
+        return send(body, deadline, headerValues, null);
+    }
+
+    private <E> CompletableFuture<HttpResult> send(E body, Deadline deadline, String[] headerValues, Map<String, String> conditional) {
+
+        // cookies come from, and go to, the store of the calling thread, also for a hedge sent by the timer
+        Map<String, NewCookie> cookieStore = storeCookies ? HttpConnectorCookieManager.getCookies() : null;
+        // one lease for all the attempts of the execution
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        CompletableFuture<HttpResult> future;
+        try {
+            if (isHedged(body)) {
+                future = HedgedExecution.submit(hedgePolicy, uri, deadline,
+                        attemptDeadline -> submit(client, body, headerValues, cookieStore, conditional, attemptDeadline));
+            } else {
+                future = submit(client, body, headerValues, cookieStore, conditional, deadline);
+            }
+        } catch (RuntimeException e) {
+            client.release();
+            throw e;
+        }
+        future.whenComplete((result, throwable) -> client.release());
+        return future;
+    }
+
+    /**
+     * Executes the request asynchronously, handing the response body over as a buffer rather than copying it to an HttpResult.
+     * With the NettyEngine connector it is the pooled buffer the response was read into, with the Jersey connectors a
+     * pooled buffer the decoded body is read into, with the JdkHttpClient connector the body of an HttpResult.
+     * The response must be released once done with, see BufferedResponse. The Deadline applies, the HedgePolicy and
+     * ResponseCache do not.
+     * @return a future of the response of this execution.
+     */
+    public CompletableFuture<BufferedResponse> executeBuffered() {
+        return executeBuffered(body, deadline);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body, the response body handed over as a buffer.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @return a future of the response of this execution.
+     */
+    public <E> CompletableFuture<BufferedResponse> executeBuffered(E body, Deadline deadline) {
+        return executeBuffered(body, deadline, (String[]) null);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body, and values of its own for the variable headers,
+     * the response body handed over as a buffer.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @param headerValues the values of the variable headers, in the order they were declared.
+     * @return a future of the response of this execution.
+     */
+    public <E> CompletableFuture<BufferedResponse> executeBuffered(E body, Deadline deadline, String... headerValues) {
+        return executeBuffered(body, deadline, headerValues, null);
+    }
+
+    /**
+     * Executes the request asynchronously, the response body handed over as a buffer once the status and headers
+     * passed the check. A response that fails it completes the future exceptionally, its body not read; with the
+     * JdkHttpClient connector the check is of the response once read.
+     * @param check the check of the status and headers, null for none.
+     */
+    <E> CompletableFuture<BufferedResponse> executeBuffered(E body, Deadline deadline, String[] headerValues, ResponseCheck check) {
+
+        template.check(headerValues);
+        Map<String, NewCookie> cookieStore = storeCookies ? HttpConnectorCookieManager.getCookies() : null;
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        CompletableFuture<BufferedResponse> future;
+        try {
+            HttpEngine engine = client.getEngine();
+            future = (engine != null)
+                    ? engine.sendBuffered(template, headerValues, body, null, cookieStore, cookieStore, deadline, check)
+                    : AsyncExecution.buffered(newInvocation(template.target(client), body, headerValues, cookieStore, null),
+                            cookieStore, deadline, clientProfile.getConnectorProvider(), check);
+        } catch (RuntimeException e) {
+            client.release();
+            throw e;
+        }
+        future.whenComplete((response, throwable) -> client.release());
+        return future;
+    }
+
+    /**
+     * Executes the request asynchronously, the JSON body of a 2xx response bound to the type as it is read, with a
+     * Jackson reader kept per type and no String or byte[] copy of the body: from the connection's (decoded) stream
+     * with the Jersey connectors, in place from the pooled buffer with the NettyEngine connector.
+     * A 2xx response without a body completes with null, any other response exceptionally with a ProcessingException.
+     * The Deadline applies, the HedgePolicy and ResponseCache do not.
+     * @param type the type of object the response should be mapped to.
+     * @return a future of the body of this execution.
+     */
+    public <T> CompletableFuture<T> executeJson(Class<T> type) {
+        return executeJson(body, deadline, type);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body and deadline, the JSON body of a 2xx response bound to
+     * the type as it is read.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @param type the type of object the response should be mapped to.
+     * @return a future of the body of this execution.
+     */
+    public <E, T> CompletableFuture<T> executeJson(E body, Deadline deadline, Class<T> type) {
+        return decode(body, deadline, type);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body and deadline, the JSON body of a 2xx response bound to
+     * a generic type as it is read. (Ex. executeJson(body, deadline, new GenericType&lt;List&lt;Bid&gt;&gt;() {}))
+     * @return a future of the body of this execution.
+     */
+    public <E, T> CompletableFuture<T> executeJson(E body, Deadline deadline, GenericType<T> type) {
+        return decode(body, deadline, type.getType());
+    }
+
+    private <E, T> CompletableFuture<T> decode(E body, Deadline deadline, Type type) {
+
+        Map<String, NewCookie> cookieStore = storeCookies ? HttpConnectorCookieManager.getCookies() : null;
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        CompletableFuture<T> future;
+        try {
+            HttpEngine engine = client.getEngine();
+            future = (engine != null)
+                    ? decode(engine.sendBuffered(template, null, body, null, cookieStore, cookieStore, deadline), type)
+                    : AsyncExecution.decode(newInvocation(template.target(client), body, null, cookieStore, null),
+                            cookieStore, deadline, clientProfile.getConnectorProvider(), type);
+        } catch (RuntimeException e) {
+            client.release();
+            throw e;
+        }
+        future.whenComplete((result, throwable) -> client.release());
+        return future;
+    }
+
+    /**
+     * Binds the body of the engine's response in place, on the thread it was read on, and releases it. The response
+     * is released even if the returned future was cancelled first, which cancels the request.
+     */
+    private static <T> CompletableFuture<T> decode(CompletableFuture<BufferedResponse> sent, Type type) {
+
+        CompletableFuture<T> decoded = new CompletableFuture<>();
+        sent.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                decoded.completeExceptionally((throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable);
+                return;
+            }
+            try (BufferedResponse buffered = response) {
+                if (!buffered.isSuccessful()) {
+                    throw new ProcessingException("Unexpected response: " + buffered.getStatus() + " " + buffered.getReasonPhrase());
+                }
+                decoded.complete(buffered.decode(type));
+            } catch (RuntimeException e) {
+                decoded.completeExceptionally(e);
+            }
+        });
+        decoded.whenComplete((value, throwable) -> {
+            if (throwable != null) {
+                sent.cancel(true);
+            }
+        });
+        return decoded;
+    }
+
+    /**
+     * Executes the request asynchronously, the body of a 2xx response written to a local file as it arrives, see
+     * HttpConnector.saveToFileAsync(). The Deadline applies, the HedgePolicy and ResponseCache do not.
+     * @param path the file to write, created or truncated.
+     * @return a future of the result of this execution, its body empty if it went to the file.
+     */
+    public CompletableFuture<HttpResult> saveToFileAsync(java.nio.file.Path path) {
+        return saveToFileAsync(body, deadline, path);
+    }
+
+    /**
+     * Executes the request asynchronously with a different body and deadline, the body of a 2xx response written
+     * to a local file as it arrives.
+     * @param body the request body of this execution.
+     * @param deadline the time budget of this execution, overriding the one set in the builder.
+     * @param path the file to write, created or truncated.
+     * @return a future of the result of this execution, its body empty if it went to the file.
+     */
+    public <E> CompletableFuture<HttpResult> saveToFileAsync(E body, Deadline deadline, java.nio.file.Path path) {
+
+        Map<String, NewCookie> cookieStore = storeCookies ? HttpConnectorCookieManager.getCookies() : null;
+        ManagedClient client = ClientFactory.acquire(clientProfile);
+        CompletableFuture<HttpResult> future;
+        try {
+            HttpEngine engine = client.getEngine();
+            future = (engine != null)
+                    ? engine.download(template, null, body, null, cookieStore, cookieStore, deadline, path)
+                    : AsyncExecution.download(newInvocation(template.target(client), body, null, cookieStore, null),
+                            cookieStore, deadline, clientProfile.getConnectorProvider(), path);
+        } catch (RuntimeException e) {
+            client.release();
+            throw e;
+        }
+        future.whenComplete((result, throwable) -> client.release());
+        return future;
+    }
+
+    /**
+     * Submits a single attempt, to the HttpEngine of the client if it has one, as a Jersey invocation otherwise.
+     */
+    private <E> CompletableFuture<HttpResult> submit(ManagedClient client, E body, String[] headerValues, Map<String, NewCookie> cookieStore,
+                                                     Map<String, String> conditional, Deadline deadline) {
+
+        HttpEngine engine = client.getEngine();
+        if (engine != null) {
+            return engine.send(template, headerValues, body, conditional, cookieStore, cookieStore, deadline);
+        }
+        return AsyncExecution.submit(newInvocation(template.target(client), body, headerValues, cookieStore, conditional),
+                cookieStore, deadline, clientProfile.getConnectorProvider());
+    }
+
+    /**
+     * Executes the request asynchronously. The returned future completes exceptionally with a
+     * java.util.concurrent.TimeoutException, and the request is cancelled, if no response was read within the timeout.
+     * @param timeout the maximum time to wait for the result.
+     * @param unit the time unit of the timeout argument.
+     * @return a future of the result of this execution.
+     */
+    public CompletableFuture<HttpResult> executeAsync(long timeout, TimeUnit unit) {
+        return HttpTimer.within(executeAsync(body), timeout, unit);
+    }
+
+    /**
+     * Waits for an async execution, the way a sync Jersey invocation reports failures.
+     */
+    private static HttpResult await(CompletableFuture<HttpResult> future) {
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ProcessingException(e.getCause());
+        }
+    }
+
+    /**
+     * Only idempotent methods with a body that can be sent twice are hedged, see HedgedExecution.applies().
+     */
+    private boolean isHedged(Object body) {
+        return HedgedExecution.applies(hedgePolicy, httpMethod, body);
+    }
+
+    private <E> Invocation newInvocation(WebTarget target, E body, String[] headerValues, Map<String, NewCookie> cookieStore,
+                                         Map<String, String> conditional) {
+
+        Invocation.Builder invoke = target.request();
+        template.setHeaders(invoke, headerValues);
+        StreamingBody.setChunked(invoke, body);
+        if (conditional != null) {
+            conditional.forEach(invoke::header);
+        }
+        if (cookieStore != null) {
+            cookieStore.values().forEach(invoke::cookie);
+        }
+
+        switch (httpMethod) {
+            case GET:
+                return invoke.buildGet();
+            case DELETE:
+                return (body == null) ? invoke.buildDelete() : invoke.build("DELETE", entity(body));
+            case HEAD:
+                return invoke.build("HEAD");
+            case OPTIONS:
+                return invoke.build("OPTIONS");
+            default:
+                return invoke.build(httpMethod.name(), entity(body));
+        }
+    }
+
+    private <E> Entity<E> entity(E body) {
+        return (mediaType == null) ? Entity.text(body) : Entity.entity(body, mediaType);
+    }
+
+    public URI getURI() {
+        return uri;
+    }
+
+    public Http.HttpMethod getHttpMethod() {
+        return httpMethod;
+    }
+
+    /**
+     * @return the request headers. The returned map is read only.
+     */
+    public MultivaluedMap<String, Object> getRequestHeaders() {
+        return headerMap;
+    }
+
+    /**
+     * @return the request headers, as sent.
+     */
+    public RequestHeaders getHeaders() {
+        return headers;
+    }
+
+    public Object getBody() {
+        return body;
+    }
+
+    RequestTemplate getTemplate() {
+        return template;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns the raw Client object. This is for experimental use only.
+     * It is not leased, and is closed once evicted from the ClientFactory: see ClientFactory.leaseClient().
+     * @return raw Client object.
+     */
+    public Client getRawClient() {
+        return ClientFactory.client(clientProfile);
+    }
+
+    public ClientProfile getClientProfile() {
+        return clientProfile;
+    }
+
+    /**
+     * Read only view of a MultivaluedMap, so the headers can be shared safely between executions.
+     */
+    private static class UnmodifiableMultivaluedMap<K, V> extends javax.ws.rs.core.AbstractMultivaluedMap<K, V> {
+
+        UnmodifiableMultivaluedMap(MultivaluedMap<K, V> map) {
+            super(Collections.unmodifiableMap(map));
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Downloads a large file over several connections at once, in byte ranges, and resumes an interrupted download
+ * where it stopped.
+ *
+ * A HEAD request probes the Content-Length and Accept-Ranges of the file. The target file is then preallocated to
+ * that length and the segments are fetched concurrently with Range requests, each written to its own memory-mapped
+ * region of the file and forced to disk. The completed segments are recorded in a sidecar file next to the target
+ * (the target's name with ".ranges" appended), so a download started again after a failure fetches only the missing
+ * ones, as long as the length and ETag, or Last-Modified, of the file did not change. The sidecar is deleted once the
+ * download is complete. A failed segment is retried a few times before the download fails.
+ *
+ * The Range requests are sent with If-Range, the strong ETag or else the Last-Modified of the file, so a file that
+ * changed during the download is answered in full rather than in pieces of two versions. The status and Content-Range
+ * of a segment are checked before its body is read: a response that is not the range asked for fails the segment
+ * without being buffered.
+ *
+ * A server that does not accept ranges, or does not tell the length, is downloaded over one connection, as by
+ * PreparedRequest.saveToFileAsync().
+ *
+ * A RangeDownloader is immutable and thread-safe, the with...() methods return a copy.
+ */
+public final class RangeDownloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(RangeDownloader.class);
+
+    static final String SIDECAR_SUFFIX = ".ranges";
+
+    private final PreparedRequest probe;
+    private final PreparedRequest ranges;
+    private final int parallelism;
+    private final long segmentSize;
+    private final int attempts;
+
+    private RangeDownloader(PreparedRequest probe, PreparedRequest ranges, int parallelism, long segmentSize, int attempts) {
+        this.probe = probe;
+        this.ranges = ranges;
+        this.parallelism = parallelism;
+        this.segmentSize = segmentSize;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @param request the file to download: its URI, headers, Client and Deadline, the Deadline applying to each
+     *                request. Its method and body are not used.
+     */
+    public static RangeDownloader of(PreparedRequest request) {
+        return new RangeDownloader(request.with(Http.HttpMethod.HEAD, null), request.with(Http.HttpMethod.GET, "range"),
+                4, 8 * 1024 * 1024, 3);
+    }
+
+    /**
+     * The number of segments fetched at once, at most the pool's maximum per host. Defaults to 4.
+     */
+    public RangeDownloader withParallelism(int parallelism) {
+
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Expecting a positive parallelism: " + parallelism);
+        }
+        return new RangeDownloader(probe, ranges, parallelism, segmentSize, attempts);
+    }
+
+    /**
+     * The size of a segment, each one held in memory while it is fetched. Defaults to 8MB.
+     */
+    public RangeDownloader withSegmentSize(long segmentSize) {
+
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Expecting a segment size between 1 and 2GB: " + segmentSize);
+        }
+        return new RangeDownloader(probe, ranges, parallelism, segmentSize, attempts);
+    }
+
+    /**
+     * The number of times a segment is requested before the download fails. Defaults to 3.
+     */
+    public RangeDownloader withAttempts(int attempts) {
+
+        if (attempts <= 0) {
+            throw new IllegalArgumentException("Expecting a positive number of attempts: " + attempts);
+        }
+        return new RangeDownloader(probe, ranges, parallelism, segmentSize, attempts);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Downloads the file, resuming a download of it to the same target that did not complete.
+     * @param target the file to write. The sidecar file recording its progress is kept next to it until done.
+     * @return a future of the length of the file. Cancelling it stops the download, which can be resumed later.
+     */
+    public CompletableFuture<Long> downloadAsync(Path target) {
+
+        Path path = target.toAbsolutePath().normalize();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        probe.executeAsync().whenComplete((head, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(unwrap(throwable));
+            } else if (!head.isSuccessful()) {
+                result.completeExceptionally(new ProcessingException("Failed to probe " + probe.getURI() + ": " + head.getStatus() + " " + head.getReasonPhrase()));
+            } else {
+                start(head, path, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Downloads the file, and waits for it.
+     * @return the length of the file.
+     */
+    public long download(Path target) throws IOException {
+
+        try {
+            return downloadAsync(target).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted downloading " + ranges.getURI(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to download " + ranges.getURI(), cause);
+        }
+    }
+
+    private void start(HttpResult head, Path path, CompletableFuture<Long> result) {
+
+        long length = contentLength(head);
+        if (length < 0 || !"bytes".equalsIgnoreCase(head.getHeader("accept-ranges"))) {
+            logger.debug("{} does not accept ranges, downloading it over one connection", ranges.getURI());
+            ranges.saveToFileAsync(path).whenComplete((single, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(unwrap(throwable));
+                } else if (!single.isSuccessful()) {
+                    result.completeExceptionally(new ProcessingException("Failed to download " + ranges.getURI() + ": " + single.getStatus() + " " + single.getReasonPhrase()));
+                } else {
+                    try {
+                        result.complete(Files.size(path));
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+            return;
+        }
+        try {
+            String etag = head.getHeader("etag");
+            String lastModified = head.getHeader("last-modified");
+            // If-Range compares the ETag strongly, a weak one would never match
+            String ifRange = (etag != null && !etag.trim().startsWith("W/")) ? etag : lastModified;
+            new Download(path, length, (etag != null) ? etag : lastModified, ifRange, result).start();
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static long contentLength(HttpResult head) {
+
+        String value = head.getHeader("content-length");
+        try {
+            return (value != null) ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return (throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+    }
+
+    /**
+     * A download in progress: the mapped file, the segments left and the sidecar recording the ones done.
+     */
+    private final class Download {
+
+        private final Path path;
+        private final Path sidecar;
+        private final long length;
+        private final String validator;
+        private final String ifRange;
+        private final PreparedRequest segmentRequest;
+        private final int segments;
+        private final CompletableFuture<Long> result;
+        private final BitSet done;
+        private final Queue<Integer> left = new ArrayDeque<>();
+        private volatile RandomAccessFile file;
+        private int running;
+
+        Download(Path path, long length, String validator, String ifRange, CompletableFuture<Long> result) {
+            this.path = path;
+            this.sidecar = path.resolveSibling(path.getFileName() + SIDECAR_SUFFIX);
+            this.length = length;
+            this.validator = validator;
+            this.ifRange = ifRange;
+            this.segmentRequest = (ifRange != null) ? ranges.with(Http.HttpMethod.GET, "if-range") : ranges;
+            this.segments = (int) ((length + segmentSize - 1) / segmentSize);
+            this.result = result;
+            this.done = new BitSet(segments);
+        }
+
+        void start() throws IOException {
+
+            boolean resumed = load();
+            file = new RandomAccessFile(path.toFile(), "rw");
+            if (!resumed) {
+                file.setLength(0);
+            }
+            // preallocated, so the segments are mapped to their place in the file
+            file.setLength(length);
+            for (int segment = done.nextClearBit(0); segment < segments; segment = done.nextClearBit(segment + 1)) {
+                left.add(segment);
+            }
+            if (resumed) {
+                logger.info("Resuming the download of {}, {} segments of {} left", ranges.getURI(), left.size(), segments);
+            }
+            result.whenComplete((size, throwable) -> close());
+            synchronized (this) {
+                if (left.isEmpty()) {
+                    complete();
+                    return;
+                }
+                while (running < parallelism && !left.isEmpty()) {
+                    fetch(left.poll(), 1);
+                }
+            }
+        }
+
+        /**
+         * Sends the Range request of a segment, and writes the body to its region of the file off the connector's thread.
+         * Called holding the lock.
+         */
+        private void fetch(int segment, int attempt) {
+
+            long from = segment * segmentSize;
+            long to = Math.min(from + segmentSize, length) - 1;
+            RequestTemplate template = segmentRequest.getTemplate();
+            String[] values = new String[template.getVariableCount()];
+            for (int i = 0; i < values.length; i++) {
+                if (template.getVariable(i).equals("range")) {
+                    values[i] = "bytes=" + from + "-" + to;
+                } else if (template.getVariable(i).equals("if-range")) {
+                    values[i] = ifRange;
+                }
+            }
+            running++;
+            CompletableFuture<BufferedResponse> response;
+            try {
+                response = segmentRequest.executeBuffered(null, ranges.getDeadline(), values,
+                        (status, header) -> checkRange(status, header, from, to));
+            } catch (RuntimeException e) {
+                running--;
+                result.completeExceptionally(e);
+                return;
+            }
+            response.thenAcceptAsync(buffered -> {
+                try (BufferedResponse body = buffered) {
+                    write(body, from, to);
+                }
+            }, AsyncExecution.bodyReader).whenComplete((ignored, throwable) -> fetched(segment, attempt, throwable));
+        }
+
+        /**
+         * Checks the response of a segment on its headers, before the body is read. A 200 is the whole file: the
+         * server ignored the range, or the file changed since the download started.
+         */
+        private void checkRange(int status, Function<String, String> header, long from, long to) {
+
+            if (status == 200 && ifRange != null) {
+                throw new ProcessingException(ranges.getURI() + " changed since the download started, not " + ifRange + " anymore");
+            }
+            if (status != 206) {
+                throw new ProcessingException("Range " + from + "-" + to + " of " + ranges.getURI() + ": " + status);
+            }
+            String contentRange = header.apply("content-range");
+            if (contentRange == null || !contentRange.trim().startsWith("bytes " + from + "-" + to + "/")) {
+                throw new ProcessingException("Unexpected range of " + ranges.getURI() + ": " + contentRange + ", expecting " + from + "-" + to);
+            }
+        }
+
+        private void write(BufferedResponse response, long from, long to) {
+
+            if (response.getBodyLength() != to - from + 1) {
+                throw new ProcessingException("Range " + from + "-" + to + " of " + ranges.getURI() + " is " + response.getBodyLength() + " bytes long");
+            }
+            try {
+                MappedByteBuffer region = file.getChannel().map(FileChannel.MapMode.READ_WRITE, from, to - from + 1);
+                region.put(response.getBody());
+                // on disk before the segment is recorded as done
+                region.force();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private synchronized void fetched(int segment, int attempt, Throwable throwable) {
+
+            running--;
+            if (result.isDone()) {
+                return;
+            }
+            if (throwable != null) {
+                Throwable cause = unwrap(throwable);
+                if (attempt >= attempts) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                logger.debug("Segment {} of {} failed, attempt {}: {}", segment, ranges.getURI(), attempt, cause.getMessage());
+                fetch(segment, attempt + 1);
+                return;
+            }
+            done.set(segment);
+            try {
+                save();
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (!left.isEmpty()) {
+                fetch(left.poll(), 1);
+            } else if (running == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+
+            try {
+                close();
+                Files.deleteIfExists(sidecar);
+                result.complete(length);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return true if the sidecar is of this very file, its segments done then set.
+         */
+        private boolean load() throws IOException {
+
+            if (!Files.exists(sidecar) || !Files.exists(path)) {
+                return false;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(sidecar)) {
+                properties.load(in);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (!String.valueOf(length).equals(properties.getProperty("length"))
+                    || !String.valueOf(segmentSize).equals(properties.getProperty("segmentSize"))
+                    || !Objects.equals(validator, properties.getProperty("validator"))) {
+                logger.info("{} changed since it was partially downloaded, downloading it again", ranges.getURI());
+                return false;
+            }
+            for (String segment : properties.getProperty("done", "").split(",")) {
+                if (!segment.isEmpty()) {
+                    done.set(Integer.parseInt(segment));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Replaces the sidecar atomically, so an interrupted save leaves the previous one.
+         */
+        private void save() throws IOException {
+
+            Properties properties = new Properties();
+            properties.setProperty("uri", ranges.getURI().toString());
+            properties.setProperty("length", String.valueOf(length));
+            properties.setProperty("segmentSize", String.valueOf(segmentSize));
+            if (validator != null) {
+                properties.setProperty("validator", validator);
+            }
+            StringBuilder segmentsDone = new StringBuilder();
+            for (int segment = done.nextSetBit(0); segment >= 0; segment = done.nextSetBit(segment + 1)) {
+                segmentsDone.append((segmentsDone.length() > 0) ? "," : "").append(segment);
+            }
+            properties.setProperty("done", segmentsDone.toString());
+
+            Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private synchronized void close() {
+
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close {}: {}", path, e.getMessage());
+                }
+                file = null;
+            }
+        }
+    }
+}
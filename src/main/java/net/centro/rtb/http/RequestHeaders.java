@@ -0,0 +1,294 @@
+package net.centro.rtb.http;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The request headers of a connector, in order, as two arrays of names and values.
+ *
+ * Immutable: with() and without() return a new set, so a set is shared as is between the executions of a
+ * PreparedRequest and the engines read it without copying it. Names are case insensitive, kept in lower case and
+ * interned for the standard ones; values are kept as given. The Content-Type is parsed once, and the HTTP/1.1 lines of
+ * the headers are encoded once, for the engines writing requests themselves.
+ */
+public final class RequestHeaders {
+
+    private static final RequestHeaders EMPTY = new RequestHeaders(new String[0], new String[0]);
+
+    private static final String CONTENT_TYPE = "content-type";
+    // the parsed Content-Type of a set without one
+    private static final MediaType NO_MEDIA_TYPE = new MediaType("none", "none");
+
+    /** The standard request header names, by their lower case form, so the sets share their instances. */
+    private static final Map<String, String> STANDARD = new HashMap<>();
+
+    /** Written by the engines themselves, not taken from the request headers. */
+    private static final String[] FRAMING = {"host", "content-length", "transfer-encoding", "connection"};
+
+    static {
+        for (String name : new String[]{"accept", "accept-charset", "accept-encoding", "accept-language", "authorization",
+                "cache-control", "connection", "content-encoding", "content-length", "content-type", "cookie", "expect",
+                "host", "if-match", "if-modified-since", "if-none-match", "if-unmodified-since", "origin", "pragma",
+                "range", "referer", "te", "transfer-encoding", "upgrade", "user-agent", "x-forwarded-for",
+                "x-http-method-override", "x-request-id"}) {
+            STANDARD.put(name, name);
+        }
+    }
+
+    private final String[] names;
+    private final String[] values;
+    // derived on first use, racy but idempotent
+    private volatile MediaType mediaType;
+    private volatile byte[] encoded;
+
+    private RequestHeaders(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @return a set without headers.
+     */
+    public static RequestHeaders empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return a set of the headers of the map, the values converted with toString().
+     */
+    public static RequestHeaders of(Map<String, ? extends List<?>> headers) {
+
+        RequestHeaders set = EMPTY;
+        for (Map.Entry<String, ? extends List<?>> entry : headers.entrySet()) {
+            for (Object value : entry.getValue()) {
+                set = set.with(entry.getKey(), String.valueOf(value));
+            }
+        }
+        return set;
+    }
+
+    /**
+     * @return a set with the header added after the others, the ones of the same name are kept.
+     * @throws IllegalArgumentException if the name is empty, or the name or the value has a line break.
+     */
+    public RequestHeaders with(String name, String value) {
+
+        if (name == null || name.isEmpty() || value == null) {
+            throw new IllegalArgumentException("Expecting a header name and value: " + name + "=" + value);
+        }
+        if (hasLineBreak(name) || hasLineBreak(value)) {
+            throw new IllegalArgumentException("Line break in the header " + name);
+        }
+        String[] names = Arrays.copyOf(this.names, this.names.length + 1);
+        String[] values = Arrays.copyOf(this.values, this.values.length + 1);
+        names[this.names.length] = intern(name);
+        values[this.values.length] = value;
+        return new RequestHeaders(names, values);
+    }
+
+    /**
+     * @return a set without the headers of the name, this one if there are none.
+     */
+    public RequestHeaders without(String name) {
+
+        int count = 0;
+        for (String header : names) {
+            if (header.equalsIgnoreCase(name)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return this;
+        }
+        String[] names = new String[this.names.length - count];
+        String[] values = new String[names.length];
+        int index = 0;
+        for (int i = 0; i < this.names.length; i++) {
+            if (!this.names[i].equalsIgnoreCase(name)) {
+                names[index] = this.names[i];
+                values[index++] = this.values[i];
+            }
+        }
+        return new RequestHeaders(names, values);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    /**
+     * @return the lower case name of the header at the index.
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /**
+     * @return the first value of the header, null if it is missing. Names are case insensitive.
+     */
+    public String get(String name) {
+
+        int index = indexOf(name, 0);
+        return (index < 0) ? null : values[index];
+    }
+
+    /**
+     * @return the values of the header, in order.
+     */
+    public List<String> getAll(String name) {
+
+        List<String> all = null;
+        for (int index = indexOf(name, 0); index >= 0; index = indexOf(name, index + 1)) {
+            if (all == null) {
+                all = new ArrayList<>(2);
+            }
+            all.add(values[index]);
+        }
+        return (all != null) ? all : Collections.emptyList();
+    }
+
+    /**
+     * @return the media type of the Content-Type header, parsed once, null if there is none.
+     */
+    public MediaType getMediaType() {
+
+        MediaType parsed = mediaType;
+        if (parsed == null) {
+            String contentType = get(CONTENT_TYPE);
+            parsed = (contentType != null) ? MediaType.valueOf(contentType) : NO_MEDIA_TYPE;
+            mediaType = parsed;
+        }
+        return (parsed != NO_MEDIA_TYPE) ? parsed : null;
+    }
+
+    /**
+     * Calls the action with each name and value, in order.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+
+        for (int i = 0; i < names.length; i++) {
+            action.accept(names[i], values[i]);
+        }
+    }
+
+    /**
+     * @return the headers in a map of their own, e.g. to be changed.
+     */
+    public MultivaluedMap<String, Object> toMap() {
+
+        MultivaluedMap<String, Object> map = new MultivaluedHashMap<>();
+        forEach(map::add);
+        return map;
+    }
+
+    /**
+     * @return the "name: value\r\n" lines of the headers but the framing ones (Host, Content-Length,
+     * Transfer-Encoding and Connection), in ISO-8859-1. Encoded on the first call, not to be modified.
+     */
+    byte[] getEncoded() {
+
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (!isFraming(names[i])) {
+                    lines.append(names[i]).append(": ").append(values[i]).append("\r\n");
+                }
+            }
+            bytes = lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true for the headers the engines write themselves: Host, Content-Length, Transfer-Encoding and Connection.
+     */
+    static boolean isFraming(String name) {
+
+        for (String framing : FRAMING) {
+            if (framing.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(String name, int from) {
+
+        for (int i = from; i < names.length; i++) {
+            // interned names compare by reference
+            if (names[i] == name || names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lower case form of the header name, the shared instance for the standard ones.
+     */
+    static String intern(String name) {
+
+        String standard = STANDARD.get(name);
+        if (standard != null) {
+            return standard;
+        }
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        return STANDARD.getOrDefault(lowerCase, lowerCase);
+    }
+
+    private static boolean hasLineBreak(String text) {
+        return text.indexOf('\r') >= 0 || text.indexOf('\n') >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RequestHeaders that = (RequestHeaders) o;
+        return Arrays.equals(names, that.names) && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            text.append((i > 0) ? ", " : "").append(names[i]).append('=').append(values[i]);
+        }
+        return text.append('}').toString();
+    }
+}
@@ -0,0 +1,237 @@
+package net.centro.rtb.http;
+
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The parts of a request that are the same on every call: method, URI and headers, resolved once from a builder and
+ * shared by the PreparedRequest and the HttpConnectors built from it. Only the body and the values of the declared
+ * variable headers (HttpConnectorBuilder.addVariableHeader()) change from call to call.
+ *
+ * Each engine compiles the template once to a form of its own, e.g. the NettyEngine connector serializes the request
+ * line, Host and fixed headers to bytes and per call only appends the variable headers, Content-Length and body.
+ * The Jersey connectors reuse the WebTarget of the URI for as long as the client is leased.
+ */
+final class RequestTemplate {
+
+    static final String USER_AGENT = "http-client";
+
+    private final Http.HttpMethod method;
+    private final URI uri;
+    private final RequestHeaders headers;
+    private final RequestHeaders fixedHeaders;
+    private final String[] variables;
+    private final String[] defaults;
+    private final MediaType mediaType;
+    private volatile Target target;
+    private volatile Compiled<?> compiled;
+
+    private RequestTemplate(Http.HttpMethod method, URI uri, RequestHeaders headers, List<String> variables) {
+
+        this.method = method;
+        this.uri = uri;
+        this.headers = headers.contains("user-agent") ? headers : headers.with("user-agent", USER_AGENT);
+        this.variables = new String[variables.size()];
+        this.defaults = new String[variables.size()];
+        RequestHeaders fixed = this.headers;
+        for (int i = 0; i < this.variables.length; i++) {
+            this.variables[i] = RequestHeaders.intern(variables.get(i));
+            this.defaults[i] = this.headers.get(this.variables[i]);
+            fixed = fixed.without(this.variables[i]);
+        }
+        this.fixedHeaders = fixed;
+        this.mediaType = this.headers.getMediaType();
+    }
+
+    static RequestTemplate of(HttpConnectorBuilder builder) {
+
+        Http.HttpMethod method = (builder.getHttpMethod() != null) ? builder.getHttpMethod() : Http.HttpMethod.GET;
+        return new RequestTemplate(method, builder.getURI(), builder.getHeaders(), builder.getVariableHeaders());
+    }
+
+    /**
+     * @return a template of the URI without headers but the User-Agent, e.g. the probes of a ConnectionWarmer.
+     */
+    static RequestTemplate of(Http.HttpMethod method, URI uri) {
+        return new RequestTemplate(method, uri, RequestHeaders.empty(), Collections.emptyList());
+    }
+
+    /**
+     * @return a template of the same URI and headers with another method, and one more variable header, declared last
+     * (null for none). E.g. the Range requests of a RangeDownloader.
+     */
+    RequestTemplate with(Http.HttpMethod method, String variable) {
+
+        List<String> all = new ArrayList<>(Arrays.asList(variables));
+        if (variable != null && !all.contains(RequestHeaders.intern(variable))) {
+            all.add(variable);
+        }
+        return new RequestTemplate(method, uri, headers, all);
+    }
+
+    Http.HttpMethod getMethod() {
+        return method;
+    }
+
+    URI getURI() {
+        return uri;
+    }
+
+    /**
+     * @return all the headers, the variable ones with the value set in the builder.
+     */
+    RequestHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the headers that are not variable.
+     */
+    RequestHeaders getFixedHeaders() {
+        return fixedHeaders;
+    }
+
+    /**
+     * @return the media type of the Content-Type header, null if there is none.
+     */
+    MediaType getMediaType() {
+        return mediaType;
+    }
+
+    int getVariableCount() {
+        return variables.length;
+    }
+
+    /**
+     * @return the lower case name of the variable header at the index.
+     */
+    String getVariable(int index) {
+        return variables[index];
+    }
+
+    /**
+     * @param values the values of the variable headers of a call, in the order they were declared, null for none.
+     * @return the value of the variable header at the index: the one of the call, or else the one set in the builder,
+     * null to leave it out.
+     */
+    String value(int index, String[] values) {
+        return (values != null && index < values.length && values[index] != null) ? values[index] : defaults[index];
+    }
+
+    /**
+     * Checks the values of the variable headers of a call.
+     * @throws IllegalArgumentException if there are more values than variable headers, or a value has a line break.
+     */
+    void check(String[] values) {
+
+        if (values == null) {
+            return;
+        }
+        if (values.length > variables.length) {
+            throw new IllegalArgumentException("Expecting at most " + variables.length + " variable header values, got " + values.length);
+        }
+        for (String value : values) {
+            if (value != null && (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)) {
+                throw new IllegalArgumentException("Line break in a variable header value");
+            }
+        }
+    }
+
+    /**
+     * @return the headers of a call, the shared set if it has no values of its own.
+     */
+    RequestHeaders headers(String[] values) {
+
+        if (values == null || values.length == 0) {
+            return headers;
+        }
+        RequestHeaders all = fixedHeaders;
+        for (int i = 0; i < variables.length; i++) {
+            String value = value(i, values);
+            if (value != null) {
+                all = all.with(variables[i], value);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Sets the headers of a call on a Jersey invocation, header by header so Jersey never gets hold of the shared ones.
+     */
+    void setHeaders(Invocation.Builder invoke, String[] values) {
+
+        if (values == null || values.length == 0) {
+            headers.forEach(invoke::header);
+            return;
+        }
+        fixedHeaders.forEach(invoke::header);
+        for (int i = 0; i < variables.length; i++) {
+            String value = value(i, values);
+            if (value != null) {
+                invoke.header(variables[i], value);
+            }
+        }
+    }
+
+    /**
+     * @return the target of the URI on the leased client, reused as long as the client is.
+     */
+    WebTarget target(ManagedClient client) {
+
+        Target current = target;
+        if (current == null || current.client != client) {
+            current = new Target(client, client.getClient().target(uri));
+            target = current;
+        }
+        return current.webTarget;
+    }
+
+    /**
+     * @return the form of the template compiled by the owner, compiled on the first call of the owner.
+     * A template is compiled again if it is used with another owner, e.g. the engine of a recreated client.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T compiled(Object owner, Function<RequestTemplate, T> compiler) {
+
+        Compiled<?> current = compiled;
+        if (current == null || current.owner != owner) {
+            current = new Compiled<>(owner, compiler.apply(this));
+            compiled = current;
+        }
+        return (T) current.value;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri + " " + headers + ((variables.length > 0) ? " variable " + String.join(",", variables) : "");
+    }
+
+    private static final class Target {
+
+        private final ManagedClient client;
+        private final WebTarget webTarget;
+
+        Target(ManagedClient client, WebTarget webTarget) {
+            this.client = client;
+            this.webTarget = webTarget;
+        }
+    }
+
+    private static final class Compiled<T> {
+
+        private final Object owner;
+        private final T value;
+
+        Compiled(Object owner, T value) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+}
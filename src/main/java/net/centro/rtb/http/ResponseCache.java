@@ -0,0 +1,704 @@
+package net.centro.rtb.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * An in-memory HTTP response cache for GET requests, bounded by the size of the cached responses in bytes.
+ *
+ * Responses are keyed by method, URI and the request headers named by the response's Vary header, and cached
+ * following their Cache-Control (max-age, no-cache, no-store, must-revalidate, stale-while-revalidate), Expires and Age headers.
+ * A stale response with an ETag or Last-Modified validator is revalidated with a conditional request, a 304 refreshes it.
+ * Within its stale-while-revalidate window a stale response is served right away and revalidated in the background.
+ * A successful POST, PUT or DELETE to a URI invalidates its cached responses.
+ *
+ * Eviction is least recently used, by the Guava cache. A ResponseCache is thread-safe and meant to be shared:
+ * set the same instance on all the builders of the requests it applies to.
+ *
+ * With an OffHeapStore the responses are stored outside of the heap, and only the responses read again (the hot ones)
+ * are promoted to the heap tier, as long as they are smaller than 1/16 of it. A file-backed store keeps the cache
+ * across restarts of the process.
+ */
+public class ResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    /** Cacheable by default, RFC 7231 section 6.1. */
+    private static final Set<Integer> CACHEABLE_STATUS = new HashSet<>(Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final Cache<Key, Entry> cache;
+    private final ConcurrentMap<URI, List<String>> varyByUri = new ConcurrentHashMap<>();
+    private final long maximumBytes;
+    private final OffHeapStore offHeap;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder offHeapHits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    private ResponseCache(long maximumBytes, OffHeapStore offHeap) {
+
+        this.maximumBytes = maximumBytes;
+        this.offHeap = offHeap;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Key key, Entry entry) -> entry.weight)
+                .recordStats()
+                .build();
+
+        if (offHeap != null) {
+            // the Vary headers of the responses recovered from a file
+            for (String id : offHeap.keys()) {
+                byte[] bytes = offHeap.get(id);
+                if (bytes != null) {
+                    Stored stored = decode(bytes);
+                    if (stored != null && !stored.vary.isEmpty()) {
+                        varyByUri.put(stored.key.uri, stored.vary);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maximumBytes the maximum size of the cached responses (bodies, headers and a small overhead per entry).
+     */
+    public static ResponseCache create(long maximumBytes) {
+
+        if (maximumBytes <= 0) {
+            throw new IllegalArgumentException("Maximum bytes must be positive");
+        }
+        return new ResponseCache(maximumBytes, null);
+    }
+
+    /**
+     * A cache with a second tier outside of the heap.
+     * @param maximumHeapBytes the maximum size of the responses on the heap.
+     * @param offHeap the store of the responses, a direct buffer or a memory-mapped file.
+     */
+    public static ResponseCache create(long maximumHeapBytes, OffHeapStore offHeap) {
+
+        if (maximumHeapBytes <= 0) {
+            throw new IllegalArgumentException("Maximum bytes must be positive");
+        }
+        return new ResponseCache(maximumHeapBytes, offHeap);
+    }
+
+    /**
+     * Serves the request from the cache, revalidates or fetches it.
+     * @param network sends the request, with the given conditional headers (or null).
+     */
+    CompletableFuture<HttpResult> execute(String method, URI uri, RequestHeaders requestHeaders,
+                                          Function<Map<String, String>, CompletableFuture<HttpResult>> network) {
+
+        CacheControl requestControl = CacheControl.parse(values(requestHeaders, "cache-control"));
+        if (requestControl.noStore) {
+            return network.apply(null);
+        }
+
+        Key key = key(method, uri, requestHeaders);
+        Entry entry = requestControl.noCache ? null : lookup(key);
+        long now = System.currentTimeMillis();
+
+        if (entry != null && entry.isFresh(now)) {
+            hits.increment();
+            return CompletableFuture.completedFuture(entry.serve());
+        }
+        if (entry != null && entry.isStaleWhileRevalidate(now)) {
+            staleHits.increment();
+            if (entry.revalidating.compareAndSet(false, true)) {
+                revalidate(key, requestHeaders, entry, network).whenComplete((result, throwable) -> entry.revalidating.set(false));
+            }
+            return CompletableFuture.completedFuture(entry.serve());
+        }
+
+        misses.increment();
+        if (entry != null && entry.hasValidator()) {
+            return revalidate(key, requestHeaders, entry, network);
+        }
+        return network.apply(null).thenApply(result -> store(key, requestHeaders, result));
+    }
+
+    private CompletableFuture<HttpResult> revalidate(Key key, RequestHeaders requestHeaders, Entry entry,
+                                                     Function<Map<String, String>, CompletableFuture<HttpResult>> network) {
+
+        Map<String, String> conditional = new HashMap<>();
+        if (entry.etag != null) {
+            conditional.put("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            conditional.put("If-Modified-Since", entry.lastModified);
+        }
+        return network.apply(conditional).thenApply(result -> {
+            if (result.getStatus() == 304) {
+                logger.debug("Not modified: {}", key.uri);
+                revalidations.increment();
+                Entry refreshed = entry.refresh(result, System.currentTimeMillis());
+                put(key, refreshed, true);
+                return refreshed.serve();
+            }
+            return store(key, requestHeaders, result);
+        });
+    }
+
+    private HttpResult store(Key key, RequestHeaders requestHeaders, HttpResult result) {
+
+        if (!CACHEABLE_STATUS.contains(result.getStatus())) {
+            return result;
+        }
+        CacheControl control = CacheControl.parse(values(result.getHeaders(), "cache-control"));
+        List<String> vary = varyNames(values(result.getHeaders(), "vary"));
+        if (control.noStore || vary.contains("*")) {
+            return result;
+        }
+
+        Entry entry = Entry.of(result, control, System.currentTimeMillis());
+        if (!entry.isFresh(entry.storedAt) && !entry.hasValidator() && control.staleWhileRevalidate <= 0) {
+            // nothing to gain from caching it
+            return result;
+        }
+        if (entry.weight > maximumBytes && offHeap == null) {
+            return result;
+        }
+
+        if (!vary.equals(varyByUri.getOrDefault(key.uri, Collections.emptyList()))) {
+            // only the URIs with a Vary header are kept in the map
+            if (vary.isEmpty()) {
+                varyByUri.remove(key.uri);
+            } else {
+                varyByUri.put(key.uri, vary);
+            }
+            key = key(key.method, key.uri, requestHeaders);
+        }
+        put(key, entry, false);
+        // the cached result is never handed out, the caller may modify the body of the one it gets
+        return entry.serve();
+    }
+
+    private Entry lookup(Key key) {
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null || offHeap == null) {
+            return entry;
+        }
+        byte[] bytes = offHeap.get(key.id());
+        Stored stored = (bytes != null) ? decode(bytes) : null;
+        if (stored == null) {
+            return null;
+        }
+        offHeapHits.increment();
+        if (stored.entry.weight <= promoteLimit()) {
+            cache.put(key, stored.entry);
+        }
+        return stored.entry;
+    }
+
+    /**
+     * Without an off-heap tier the entry goes to the heap. Otherwise it goes to the off-heap store,
+     * and to the heap only if it is hot and small enough.
+     */
+    private void put(Key key, Entry entry, boolean hot) {
+
+        if (offHeap == null) {
+            cache.put(key, entry);
+            return;
+        }
+        offHeap.put(key.id(), encode(key, varyByUri.getOrDefault(key.uri, Collections.emptyList()), entry));
+        if (hot && entry.weight <= promoteLimit()) {
+            cache.put(key, entry);
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
+    private long promoteLimit() {
+        return maximumBytes / 16;
+    }
+
+    /**
+     * Removes all the cached responses of the URI.
+     */
+    public void invalidate(URI uri) {
+
+        cache.asMap().keySet().removeIf(key -> key.uri.equals(uri));
+        if (offHeap != null) {
+            String prefix = " " + uri + "\n";
+            offHeap.removeIf(id -> id.startsWith(prefix, id.indexOf(' ')));
+        }
+    }
+
+    public void invalidateAll() {
+
+        cache.invalidateAll();
+        if (offHeap != null) {
+            offHeap.clear();
+        }
+    }
+
+    private Key key(String method, URI uri, RequestHeaders requestHeaders) {
+
+        List<String> vary = varyByUri.getOrDefault(uri, Collections.emptyList());
+        List<String> varyValues = new ArrayList<>(vary.size());
+        for (String name : vary) {
+            varyValues.add(values(requestHeaders, name));
+        }
+        return new Key(method, uri, varyValues);
+    }
+
+    /**
+     * @return the number of requests served from the cache with a fresh response.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests served from the off-heap tier, fresh or stale.
+     */
+    public long getOffHeapHitCount() {
+        return offHeapHits.sum();
+    }
+
+    /**
+     * @return the number of requests served a stale response while it was revalidated in the background.
+     */
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return the number of requests sent to the server, including conditional requests.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of conditional requests answered with a 304, the cached response was reused.
+     */
+    public long getRevalidationCount() {
+        return revalidations.sum();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * @return the number of cached responses on the heap.
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of cached responses in the off-heap tier, 0 without one.
+     */
+    public long getOffHeapSize() {
+        return (offHeap != null) ? offHeap.size() : 0;
+    }
+
+    public OffHeapStore getOffHeapStore() {
+        return offHeap;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{size=" + getSize() + ", hits=" + getHitCount() + ", staleHits=" + getStaleHitCount()
+                + ", misses=" + getMissCount() + ", revalidations=" + getRevalidationCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    /**
+     * @return all the values of the request header, comma separated, or null.
+     */
+    private static String values(RequestHeaders headers, String name) {
+
+        List<String> values = headers.getAll(name);
+        return values.isEmpty() ? null : String.join(",", values);
+    }
+
+    /**
+     * @return all the values of the header, comma separated, or null.
+     */
+    private static <V> String values(MultivaluedMap<String, V> headers, String name) {
+
+        if (headers == null) {
+            return null;
+        }
+        StringBuilder joined = null;
+        for (Map.Entry<String, List<V>> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name)) {
+                for (V value : header.getValue()) {
+                    joined = (joined == null) ? new StringBuilder() : joined.append(',');
+                    joined.append(value);
+                }
+            }
+        }
+        return (joined != null) ? joined.toString() : null;
+    }
+
+    private static List<String> varyNames(String vary) {
+
+        if (vary == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : vary.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static long parseDate(String date) {
+
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Serializes a cached response for the off-heap tier, with its key and the names of its Vary headers.
+     */
+    private static byte[] encode(Key key, List<String> vary, Entry entry) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.weight);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key.method);
+            out.writeUTF(key.uri.toString());
+            writeStrings(out, key.varyValues);
+            writeStrings(out, vary);
+            out.writeLong(entry.storedAt);
+            out.writeLong(entry.freshUntil);
+            out.writeLong(entry.staleUntil);
+            writeString(out, entry.etag);
+            writeString(out, entry.lastModified);
+
+            HttpResult result = entry.result;
+            out.writeInt(result.getStatus());
+            writeString(out, result.getReasonPhrase());
+            out.writeLong(result.getResponseTime());
+            out.writeInt(result.getHeaders().size());
+            for (Map.Entry<String, List<String>> header : result.getHeaders().entrySet()) {
+                out.writeUTF(header.getKey());
+                writeStrings(out, header.getValue());
+            }
+            out.writeInt(result.getBodyBytes().length);
+            out.write(result.getBodyBytes());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached response, or null if it can't be read, e.g. written by another version.
+     */
+    private static Stored decode(byte[] bytes) {
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Key key = new Key(in.readUTF(), URI.create(in.readUTF()), readStrings(in));
+            List<String> vary = readStrings(in);
+            long storedAt = in.readLong();
+            long freshUntil = in.readLong();
+            long staleUntil = in.readLong();
+            String etag = readString(in);
+            String lastModified = readString(in);
+
+            int status = in.readInt();
+            String reasonPhrase = readString(in);
+            long responseTime = in.readLong();
+            MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                headers.put(in.readUTF(), readStrings(in));
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+
+            HttpResult result = new HttpResult(status, reasonPhrase, headers, Collections.emptyMap(), body, responseTime);
+            return new Stored(key, vary, new Entry(result, storedAt, freshUntil, staleUntil, etag, lastModified));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Unreadable off-heap cache entry: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * An entry read from the off-heap tier.
+     */
+    private static final class Stored {
+
+        private final Key key;
+        private final List<String> vary;
+        private final Entry entry;
+
+        Stored(Key key, List<String> vary, Entry entry) {
+            this.key = key;
+            this.vary = vary;
+            this.entry = entry;
+        }
+    }
+
+    private static final class Key {
+
+        private final String method;
+        private final URI uri;
+        private final List<String> varyValues;
+        private final int hash;
+
+        Key(String method, URI uri, List<String> varyValues) {
+            this.method = method;
+            this.uri = uri;
+            this.varyValues = varyValues;
+            this.hash = Objects.hash(method, uri, varyValues);
+        }
+
+        /**
+         * @return the key of the off-heap store: the method, the uri and a line per Vary value.
+         */
+        String id() {
+
+            StringBuilder id = new StringBuilder(method).append(' ').append(uri).append('\n');
+            for (String value : varyValues) {
+                id.append(value != null ? value : "\0").append('\n');
+            }
+            return id.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && method.equals(key.method) && uri.equals(key.uri) && varyValues.equals(key.varyValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached response and its freshness, in System.currentTimeMillis() time.
+     */
+    private static final class Entry {
+
+        private final HttpResult result;
+        private final long storedAt;
+        private final long freshUntil;
+        private final long staleUntil;
+        private final String etag;
+        private final String lastModified;
+        private final int weight;
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        private Entry(HttpResult result, long storedAt, long freshUntil, long staleUntil, String etag, String lastModified) {
+
+            this.result = result;
+            this.storedAt = storedAt;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+            this.etag = etag;
+            this.lastModified = lastModified;
+
+            long weight = ENTRY_OVERHEAD + result.getBodyBytes().length;
+            for (Map.Entry<String, List<String>> header : result.getHeaders().entrySet()) {
+                weight += header.getKey().length();
+                for (String value : header.getValue()) {
+                    weight += value.length();
+                }
+            }
+            this.weight = (int) Math.min(Integer.MAX_VALUE, weight);
+        }
+
+        static Entry of(HttpResult result, CacheControl control, long now) {
+
+            long freshFor = 0;
+            if (!control.noCache) {
+                if (control.maxAge >= 0) {
+                    freshFor = control.maxAge * 1000;
+                } else {
+                    long expires = parseDate(result.getHeader("expires"));
+                    long date = parseDate(result.getHeader("date"));
+                    freshFor = (expires > 0) ? expires - ((date > 0) ? date : now) : 0;
+                }
+                freshFor -= age(result) * 1000;
+            }
+            long freshUntil = now + Math.max(0, freshFor);
+            long staleUntil = control.mustRevalidate ? freshUntil : freshUntil + Math.max(0, control.staleWhileRevalidate) * 1000;
+            return new Entry(result, now, freshUntil, staleUntil, result.getHeader("etag"), result.getHeader("last-modified"));
+        }
+
+        /**
+         * The cached response with the freshness and validators of a 304.
+         */
+        Entry refresh(HttpResult notModified, long now) {
+
+            // a 304 without freshness headers keeps the cached response's
+            boolean updatesFreshness = values(notModified.getHeaders(), "cache-control") != null || notModified.getHeader("expires") != null;
+            HttpResult source = updatesFreshness ? notModified : result;
+            Entry updated = Entry.of(source, CacheControl.parse(values(source.getHeaders(), "cache-control")), now);
+            String etag = (notModified.getHeader("etag") != null) ? notModified.getHeader("etag") : this.etag;
+            String modified = (notModified.getHeader("last-modified") != null) ? notModified.getHeader("last-modified") : this.lastModified;
+            return new Entry(result, now, updated.freshUntil, updated.staleUntil, etag, modified);
+        }
+
+        /**
+         * @return the cached response with a copy of its body, the cached array is never handed out.
+         */
+        HttpResult serve() {
+            return result.copy();
+        }
+
+        boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        boolean isStaleWhileRevalidate(long now) {
+            return now < staleUntil;
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        private static long age(HttpResult result) {
+            try {
+                String age = result.getHeader("age");
+                return (age != null) ? Math.max(0, Long.parseLong(age.trim())) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * The Cache-Control directives the cache acts on.
+     */
+    private static final class CacheControl {
+
+        private static final CacheControl NONE = new CacheControl();
+
+        private boolean noStore;
+        private boolean noCache;
+        private boolean mustRevalidate;
+        private long maxAge = -1;
+        private long staleWhileRevalidate = -1;
+
+        static CacheControl parse(String header) {
+
+            if (header == null) {
+                return NONE;
+            }
+            CacheControl control = new CacheControl();
+            for (String directive : header.split(",")) {
+                String[] nameValue = directive.trim().split("=", 2);
+                String name = nameValue[0].trim().toLowerCase(Locale.ROOT);
+                String value = (nameValue.length > 1) ? nameValue[1].trim().replace("\"", "") : null;
+                switch (name) {
+                    case "no-store":
+                        control.noStore = true;
+                        break;
+                    case "no-cache":
+                        control.noCache = true;
+                        break;
+                    case "must-revalidate":
+                    case "proxy-revalidate":
+                        control.mustRevalidate = true;
+                        break;
+                    case "max-age":
+                        control.maxAge = seconds(value);
+                        break;
+                    case "stale-while-revalidate":
+                        control.staleWhileRevalidate = seconds(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return control;
+        }
+
+        private static long seconds(String value) {
+            try {
+                return (value != null) ? Long.parseLong(value) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.centro.rtb.http;
+
+import java.util.function.Function;
+
+/**
+ * Checks the status and headers of a response before its body is read, so that a response the caller would discard
+ * fails the request rather than being buffered first. See PreparedRequest.executeBuffered().
+ */
+@FunctionalInterface
+interface ResponseCheck {
+
+    /**
+     * @param status the status code of the response.
+     * @param header the first value of a response header by its name, case insensitive, null if it is missing.
+     * @throws javax.ws.rs.ProcessingException if the response is not the one expected: the request fails with it,
+     * and the body is not read.
+     */
+    void check(int status, Function<String, String> header);
+}
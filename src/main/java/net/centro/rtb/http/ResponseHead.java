@@ -0,0 +1,238 @@
+package net.centro.rtb.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The status line and headers of an HTTP/1.x response, kept as the bytes read off the connection and parsed on demand.
+ * A lookup scans the bytes for the header name, without building a map or any String but the value returned.
+ *
+ * The bytes run from the status line to the empty line ending the headers, and are owned by the caller.
+ */
+final class ResponseHead {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final ByteBuf bytes;
+    private final int status;
+    private final int headers;
+
+    ResponseHead(ByteBuf bytes) {
+
+        this.bytes = bytes;
+        int lf = ByteBufUtil.indexOf(bytes, 0, bytes.writerIndex(), LF);
+        this.headers = (lf < 0) ? bytes.writerIndex() : lf + 1;
+        this.status = parseStatus(bytes, lf);
+    }
+
+    /** HTTP/1.x nnn, -1 for anything else. */
+    private static int parseStatus(ByteBuf bytes, int lf) {
+
+        if (lf < 12 || bytes.getByte(0) != 'H' || bytes.getByte(1) != 'T' || bytes.getByte(2) != 'T' || bytes.getByte(3) != 'P'
+                || bytes.getByte(4) != '/' || bytes.getByte(8) != ' ') {
+            return -1;
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            byte digit = bytes.getByte(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            status = status * 10 + digit - '0';
+        }
+        return status;
+    }
+
+    /**
+     * @return the status code, -1 if the status line is not HTTP/1.x.
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true for an HTTP/1.0 response, which closes the connection unless it says otherwise.
+     */
+    boolean isHttp10() {
+        return status > 0 && bytes.getByte(5) == '1' && bytes.getByte(7) == '0';
+    }
+
+    /**
+     * @return the reason phrase of the status line, empty if there is none.
+     */
+    String getReasonPhrase() {
+
+        int end = trimEnd(13, headers - 1);
+        return (end > 13) ? bytes.toString(13, end - 13, StandardCharsets.ISO_8859_1) : "";
+    }
+
+    /**
+     * @return the first value of the header, null if it is missing. Names are case insensitive.
+     */
+    String get(CharSequence name) {
+
+        int value = find(name, headers);
+        return (value < 0) ? null : string(value);
+    }
+
+    /**
+     * @return the values of the header, in order.
+     */
+    List<String> getAll(CharSequence name) {
+
+        List<String> values = null;
+        int value = find(name, headers);
+        while (value >= 0) {
+            if (values == null) {
+                values = new ArrayList<>(2);
+            }
+            values.add(string(value));
+            value = find(name, lineEnd(value) + 1);
+        }
+        return (values != null) ? values : Collections.emptyList();
+    }
+
+    /**
+     * @return the Content-Length, -1 if it is missing or invalid.
+     */
+    long getContentLength() {
+
+        int value = find("content-length", headers);
+        if (value < 0) {
+            return -1;
+        }
+        int end = trimEnd(value, lineEnd(value));
+        if (end == value) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = value; i < end; i++) {
+            byte digit = bytes.getByte(i);
+            if (digit < '0' || digit > '9' || length > Long.MAX_VALUE / 10) {
+                return -1;
+            }
+            length = length * 10 + digit - '0';
+        }
+        return length;
+    }
+
+    /**
+     * @return true if one of the comma separated values of the header is the token, e.g. "chunked" or "close".
+     */
+    boolean hasToken(CharSequence name, CharSequence token) {
+
+        for (int value = find(name, headers); value >= 0; value = find(name, lineEnd(value) + 1)) {
+            int end = trimEnd(value, lineEnd(value));
+            int from = value;
+            while (from < end) {
+                int comma = ByteBufUtil.indexOf(bytes, from, end, (byte) ',');
+                int to = (comma < 0) ? end : comma;
+                int start = skipSpaces(from, to);
+                if (equalsIgnoreCase(start, trimEnd(start, to), token)) {
+                    return true;
+                }
+                from = to + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return all the headers, in a map of their own.
+     */
+    MultivaluedMap<String, String> toMap() {
+
+        MultivaluedMap<String, String> map = new MultivaluedHashMap<>();
+        int line = headers;
+        int limit = bytes.writerIndex();
+        while (line < limit) {
+            int lf = ByteBufUtil.indexOf(bytes, line, limit, LF);
+            int end = (lf < 0) ? limit : lf;
+            int colon = ByteBufUtil.indexOf(bytes, line, end, (byte) ':');
+            if (colon > line) {
+                map.add(bytes.toString(line, colon - line, StandardCharsets.ISO_8859_1), string(skipSpaces(colon + 1, end)));
+            }
+            line = end + 1;
+        }
+        return map;
+    }
+
+    /**
+     * @return the index of the value of the first header with the name, from the line starting at the index, -1 if none.
+     */
+    private int find(CharSequence name, int from) {
+
+        int length = name.length();
+        int line = from;
+        int limit = bytes.writerIndex();
+        while (line < limit) {
+            int lf = ByteBufUtil.indexOf(bytes, line, limit, LF);
+            int end = (lf < 0) ? limit : lf;
+            if (end - line > length && bytes.getByte(line + length) == ':' && equalsIgnoreCase(line, line + length, name)) {
+                return skipSpaces(line + length + 1, end);
+            }
+            line = end + 1;
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, CharSequence text) {
+
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int a = bytes.getByte(start + i);
+            int b = text.charAt(i);
+            if (a != b && toLowerCase(a) != toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private String string(int value) {
+
+        int end = trimEnd(value, lineEnd(value));
+        return bytes.toString(value, end - value, StandardCharsets.ISO_8859_1);
+    }
+
+    private int lineEnd(int index) {
+
+        int lf = ByteBufUtil.indexOf(bytes, index, bytes.writerIndex(), LF);
+        return (lf < 0) ? bytes.writerIndex() : lf;
+    }
+
+    private int skipSpaces(int index, int end) {
+
+        while (index < end && (bytes.getByte(index) == ' ' || bytes.getByte(index) == '\t')) {
+            index++;
+        }
+        return index;
+    }
+
+    private int trimEnd(int start, int end) {
+
+        while (end > start && (bytes.getByte(end - 1) == ' ' || bytes.getByte(end - 1) == '\t' || bytes.getByte(end - 1) == CR)) {
+            end--;
+        }
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return bytes.toString(0, trimEnd(0, headers - 1), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,257 @@
+package net.centro.rtb.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Fans a request out to many endpoints at once, e.g. a bid request to all the bidders of an auction,
+ * and gathers whatever came back when the deadline passed, or as soon as the first K accepted responses arrived.
+ * Requests still in flight at that point are cancelled.
+ *
+ * The result holds an EndpointResult per endpoint, in the order of the endpoints, with its outcome and latency.
+ *
+ * A ScatterGather is immutable and thread-safe, the with...() methods return a copy,
+ * so it can be set up once and executed for every auction.
+ */
+public class ScatterGather {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScatterGather.class);
+
+    private final List<PreparedRequest> requests;
+    private final Deadline deadline;
+    private final int firstK;
+    private final Predicate<HttpResult> accept;
+
+    private ScatterGather(List<PreparedRequest> requests, Deadline deadline, int firstK, Predicate<HttpResult> accept) {
+        this.requests = requests;
+        this.deadline = deadline;
+        this.firstK = firstK;
+        this.accept = accept;
+    }
+
+    /**
+     * @param requests the endpoints, one PreparedRequest each.
+     */
+    public static ScatterGather of(List<PreparedRequest> requests) {
+
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints to scatter to");
+        }
+        return new ScatterGather(Collections.unmodifiableList(new ArrayList<>(requests)), null, 0, HttpResult::isSuccessful);
+    }
+
+    public static ScatterGather of(PreparedRequest... requests) {
+        return of(Arrays.asList(requests));
+    }
+
+    /**
+     * Gathers the responses received within the deadline. Each endpoint also gets the deadline as its own,
+     * overriding the one set in its builder.
+     */
+    public ScatterGather withDeadline(Deadline deadline) {
+        return new ScatterGather(requests, deadline, firstK, accept);
+    }
+
+    public ScatterGather withDeadline(long timeout, TimeUnit unit) {
+        return withDeadline(Deadline.of(timeout, unit));
+    }
+
+    /**
+     * Completes as soon as k endpoints returned a successful (2xx) response.
+     */
+    public ScatterGather withFirstK(int k) {
+        return withFirstK(k, HttpResult::isSuccessful);
+    }
+
+    /**
+     * Completes as soon as k endpoints returned a response accepted by the predicate, e.g. a bid rather than a 204 no-bid.
+     */
+    public ScatterGather withFirstK(int k, Predicate<HttpResult> accept) {
+
+        if (k <= 0) {
+            throw new IllegalArgumentException("K must be positive");
+        }
+        return new ScatterGather(requests, deadline, k, accept);
+    }
+
+    public List<PreparedRequest> getRequests() {
+        return requests;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public int getFirstK() {
+        return firstK;
+    }
+
+    /**
+     * Sends every endpoint the body set in its builder.
+     * @return a future of the results of all the endpoints, which never completes exceptionally.
+     * Cancelling it cancels all the requests in flight.
+     */
+    public CompletableFuture<List<EndpointResult>> executeAsync() {
+        return new Gathering(null, false).start();
+    }
+
+    /**
+     * Sends every endpoint the same body.
+     * @param body the request body, e.g. the bid request.
+     * @return a future of the results of all the endpoints, which never completes exceptionally.
+     */
+    public <E> CompletableFuture<List<EndpointResult>> executeAsync(E body) {
+        return new Gathering(body, true).start();
+    }
+
+    /**
+     * Sends every endpoint the same body and waits for the results.
+     */
+    public <E> List<EndpointResult> execute(E body) {
+        return executeAsync(body).join();
+    }
+
+    public List<EndpointResult> execute() {
+        return executeAsync().join();
+    }
+
+    /**
+     * The state of a single execution.
+     */
+    private class Gathering {
+
+        private final Object body;
+        private final boolean overrideBody;
+        private final CompletableFuture<List<EndpointResult>> gathered = new CompletableFuture<>();
+        private final AtomicReferenceArray<EndpointResult> results = new AtomicReferenceArray<>(requests.size());
+        private final AtomicReferenceArray<CompletableFuture<HttpResult>> futures = new AtomicReferenceArray<>(requests.size());
+        private final AtomicInteger pending = new AtomicInteger(requests.size());
+        private final AtomicInteger accepted = new AtomicInteger();
+        private final long startNanos = System.nanoTime();
+
+        Gathering(Object body, boolean overrideBody) {
+            this.body = body;
+            this.overrideBody = overrideBody;
+        }
+
+        CompletableFuture<List<EndpointResult>> start() {
+
+            ScheduledFuture<?> timer = (deadline != null)
+                    ? HttpTimer.schedule(() -> finish(Http.Outcome.TIMED_OUT), deadline.getTimeout(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                    : null;
+
+            for (int i = 0; i < requests.size() && !gathered.isDone(); i++) {
+                dispatch(i);
+            }
+            gathered.whenComplete((list, throwable) -> {
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                if (throwable != null) {
+                    // the caller cancelled the whole execution
+                    for (int i = 0; i < requests.size(); i++) {
+                        cancel(i);
+                    }
+                }
+            });
+            return gathered;
+        }
+
+        private void dispatch(int index) {
+
+            PreparedRequest request = requests.get(index);
+            Deadline endpointDeadline = (deadline != null) ? deadline : request.getDeadline();
+            Object endpointBody = overrideBody ? body : request.getBody();
+
+            CompletableFuture<HttpResult> future;
+            try {
+                future = request.executeAsync(endpointBody, endpointDeadline);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.set(index, future);
+            future.whenComplete((result, throwable) -> complete(index, result, throwable));
+            if (gathered.isDone()) {
+                // cut while it was being dispatched
+                future.cancel(true);
+            }
+        }
+
+        private void cancel(int index) {
+            CompletableFuture<HttpResult> future = futures.get(index);
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        private void complete(int index, HttpResult result, Throwable throwable) {
+
+            EndpointResult endpointResult;
+            if (throwable == null) {
+                endpointResult = endpoint(index, Http.Outcome.COMPLETED, result, null);
+            } else {
+                Throwable cause = (throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+                if (cause instanceof DeadlineExceededException) {
+                    endpointResult = endpoint(index, Http.Outcome.TIMED_OUT, null, null);
+                } else if (cause instanceof CancellationException) {
+                    endpointResult = endpoint(index, Http.Outcome.CANCELLED, null, null);
+                } else {
+                    endpointResult = endpoint(index, Http.Outcome.FAILED, null, cause);
+                }
+            }
+
+            if (!results.compareAndSet(index, null, endpointResult)) {
+                // already cut by the deadline or first K
+                return;
+            }
+            if (result != null && firstK > 0 && accept.test(result) && accepted.incrementAndGet() == firstK) {
+                finish(Http.Outcome.CANCELLED);
+            }
+            if (pending.decrementAndGet() == 0) {
+                finish(null);
+            }
+        }
+
+        /**
+         * Completes the execution, the endpoints without a result yet get the straggler outcome and are cancelled.
+         */
+        private void finish(Http.Outcome stragglers) {
+
+            if (gathered.isDone()) {
+                return;
+            }
+            List<EndpointResult> list = new ArrayList<>(requests.size());
+            int cut = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                if (stragglers != null && results.compareAndSet(i, null, endpoint(i, stragglers, null, null))) {
+                    cancel(i);
+                    cut++;
+                }
+                list.add(results.get(i));
+            }
+            if (cut > 0) {
+                logger.debug("{} of {} endpoints {}", cut, requests.size(), stragglers);
+            }
+            gathered.complete(Collections.unmodifiableList(list));
+        }
+
+        private EndpointResult endpoint(int index, Http.Outcome outcome, HttpResult result, Throwable error) {
+            return new EndpointResult(index, requests.get(index).getURI(), outcome, result, error,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+}
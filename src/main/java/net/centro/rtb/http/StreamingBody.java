@@ -0,0 +1,183 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The request bodies that are streamed rather than held in memory: an InputStream, a ReadableByteChannel (a
+ * FileChannel from its position to its end), the file of a Path, and a ByteBuffer[] sent as one gather write.
+ *
+ * A streamed body is read once and closed by the request, so a request with one is not sent again after a failure
+ * and an HttpConnector built with one executes once. The Jersey connectors write it with the Writer below and chunked
+ * transfer encoding, rather than buffering it for a Content-Length. The NettyEngine connector sends a file with
+ * sendfile (FileChannel.transferTo) on http connections, a ByteBuffer[] as a gather write, and the bodies of unknown
+ * length with chunked transfer encoding; a body to compress is still compressed in memory.
+ */
+final class StreamingBody {
+
+    static final int CHUNK_SIZE = 8192;
+
+    private StreamingBody() {
+    }
+
+    /**
+     * @return true if the body is one of the streamed types.
+     */
+    static boolean isStreaming(Object body) {
+        return body instanceof InputStream || body instanceof ReadableByteChannel || body instanceof Path || body instanceof ByteBuffer[];
+    }
+
+    /**
+     * Has a Jersey invocation write a streamed body with chunked transfer encoding, rather than buffer it.
+     */
+    static void setChunked(Invocation.Builder invoke, Object body) {
+        if (isStreaming(body)) {
+            invoke.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+        }
+    }
+
+    /**
+     * @return true if the body is a file, sent from its current position to its end.
+     */
+    static boolean isFile(Object body) {
+        return body instanceof FileChannel || body instanceof Path;
+    }
+
+    /**
+     * @return the length of the body, -1 if it is unknown until the body is read: an InputStream or a channel other
+     * than a FileChannel.
+     */
+    static long length(Object body) throws IOException {
+
+        if (body instanceof ByteBuffer[]) {
+            long length = 0;
+            for (ByteBuffer buffer : (ByteBuffer[]) body) {
+                length += buffer.remaining();
+            }
+            return length;
+        }
+        if (body instanceof FileChannel) {
+            FileChannel channel = (FileChannel) body;
+            return Math.max(channel.size() - channel.position(), 0);
+        }
+        if (body instanceof Path) {
+            return Files.size((Path) body);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the channel of a file body, opened for a Path.
+     */
+    static FileChannel fileChannel(Object body) throws IOException {
+        return (body instanceof Path) ? FileChannel.open((Path) body, StandardOpenOption.READ) : (FileChannel) body;
+    }
+
+    /**
+     * @return a stream of an InputStream, channel or Path body, e.g. to compress it.
+     */
+    static InputStream inputStream(Object body) throws IOException {
+
+        if (body instanceof InputStream) {
+            return (InputStream) body;
+        }
+        if (body instanceof Path) {
+            return Files.newInputStream((Path) body);
+        }
+        return Channels.newInputStream((ReadableByteChannel) body);
+    }
+
+    /**
+     * Closes an InputStream or channel body, quietly. A Path body is opened and closed by the request itself.
+     */
+    static void close(Object body) {
+
+        if (body instanceof Closeable) {
+            try {
+                ((Closeable) body).close();
+            } catch (IOException e) {
+                // nothing more to read from it anyway
+            }
+        }
+    }
+
+    /**
+     * Writes the channel, Path, ByteBuffer and ByteBuffer[] bodies of the Jersey connectors, which have no
+     * MessageBodyWriter for them. The InputStream ones are written by Jersey's own.
+     */
+    @Produces({"application/octet-stream", "*/*"})
+    static final class Writer implements MessageBodyWriter<Object> {
+
+        @Override
+        public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return ReadableByteChannel.class.isAssignableFrom(type) || Path.class.isAssignableFrom(type)
+                    || ByteBuffer.class.isAssignableFrom(type) || type == ByteBuffer[].class;
+        }
+
+        @Override
+        public long getSize(Object body, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(Object body, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                            MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+
+            if (body instanceof ByteBuffer) {
+                write(((ByteBuffer) body).duplicate(), entityStream);
+            } else if (body instanceof ByteBuffer[]) {
+                for (ByteBuffer buffer : (ByteBuffer[]) body) {
+                    write(buffer.duplicate(), entityStream);
+                }
+            } else if (isFile(body)) {
+                try (FileChannel channel = fileChannel(body)) {
+                    WritableByteChannel out = Channels.newChannel(entityStream);
+                    long position = channel.position();
+                    long end = channel.size();
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, out);
+                    }
+                }
+            } else {
+                try (ReadableByteChannel channel = (ReadableByteChannel) body) {
+                    ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        entityStream.write(buffer.array(), 0, buffer.limit());
+                        buffer.clear();
+                    }
+                }
+            }
+        }
+
+        private static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                Channels.newChannel(out).write(buffer);
+            }
+        }
+    }
+}
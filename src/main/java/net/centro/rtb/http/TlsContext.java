@@ -0,0 +1,433 @@
+package net.centro.rtb.http;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SSLContext of an HTTPS Client, applying its TlsSettings and measuring its handshakes.
+ *
+ * The settings of the session cache are those of the context. The protocols and cipher suites are enabled on every
+ * socket and engine the context creates, so they apply to all the connectors: the Apache and HttpUrlConnection
+ * connectors use its sockets, the Jetty, Grizzly, Netty and Http2 connectors its engines.
+ * A handshake is timed from the creation of the socket or engine, once connected, to its completion, and counted
+ * as resumed if its session was created before it started.
+ */
+final class TlsContext extends SSLContext {
+
+    private final Spi spi;
+
+    private TlsContext(Spi spi) {
+        super(spi, spi.delegate.getProvider(), spi.delegate.getProtocol());
+        this.spi = spi;
+    }
+
+    /**
+     * @param trustAll trusts every certificate, for testing.
+     */
+    static TlsContext create(TlsSettings settings, boolean trustAll) {
+
+        try {
+            SSLContext delegate = SSLContext.getInstance("TLS");
+            delegate.init(null, trustAll ? new TrustManager[]{new TrustAll()} : null, null);
+            if (settings.getSessionCacheSize() > 0) {
+                delegate.getClientSessionContext().setSessionCacheSize(settings.getSessionCacheSize());
+            }
+            if (settings.getSessionTimeout(TimeUnit.SECONDS) > 0) {
+                delegate.getClientSessionContext().setSessionTimeout((int) settings.getSessionTimeout(TimeUnit.SECONDS));
+            }
+            return new TlsContext(new Spi(delegate, settings));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to create the SSL context: " + e.getMessage(), e);
+        }
+    }
+
+    TlsStats getStats() {
+        return new TlsStats(spi.handshakes.sum(), spi.resumed.sum(), spi.handshakeNanos.sum(), spi.maxHandshakeNanos.get());
+    }
+
+    private static final class Spi extends SSLContextSpi {
+
+        final SSLContext delegate;
+        final TlsSettings settings;
+        final LongAdder handshakes = new LongAdder();
+        final LongAdder resumed = new LongAdder();
+        final LongAdder handshakeNanos = new LongAdder();
+        final LongAccumulator maxHandshakeNanos = new LongAccumulator(Math::max, 0);
+        final SSLSocketFactory socketFactory;
+
+        Spi(SSLContext delegate, TlsSettings settings) {
+            this.delegate = delegate;
+            this.settings = settings;
+            this.socketFactory = new SocketFactory(this, delegate.getSocketFactory());
+        }
+
+        void configure(SSLParameters parameters) {
+
+            if (!settings.getProtocols().isEmpty()) {
+                parameters.setProtocols(settings.getProtocols().toArray(new String[0]));
+            }
+            if (!settings.getCipherSuites().isEmpty()) {
+                parameters.setCipherSuites(settings.getCipherSuites().toArray(new String[0]));
+            }
+        }
+
+        void completed(SSLSession session, long startNanos, long startMillis) {
+
+            long nanos = System.nanoTime() - startNanos;
+            handshakes.increment();
+            handshakeNanos.add(nanos);
+            maxHandshakeNanos.accumulate(nanos);
+            if (session.getCreationTime() < startMillis) {
+                resumed.increment();
+            }
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom random) {
+            throw new IllegalStateException("Already initialized, see TlsContext.create()");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return socketFactory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new Engine(this, delegate.createSSLEngine(), null, -1);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new Engine(this, delegate.createSSLEngine(host, port), host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            SSLParameters parameters = delegate.getDefaultSSLParameters();
+            configure(parameters);
+            return parameters;
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return delegate.getSupportedSSLParameters();
+        }
+    }
+
+    /** Configures and measures the sockets of the Apache and HttpUrlConnection connectors. */
+    private static final class SocketFactory extends SSLSocketFactory {
+
+        private final Spi spi;
+        private final SSLSocketFactory delegate;
+
+        SocketFactory(Spi spi, SSLSocketFactory delegate) {
+            this.spi = spi;
+            this.delegate = delegate;
+        }
+
+        private Socket measured(Socket socket) {
+
+            if (socket instanceof SSLSocket) {
+                SSLSocket ssl = (SSLSocket) socket;
+                SSLParameters parameters = ssl.getSSLParameters();
+                spi.configure(parameters);
+                ssl.setSSLParameters(parameters);
+
+                long startNanos = System.nanoTime();
+                long startMillis = System.currentTimeMillis();
+                AtomicBoolean done = new AtomicBoolean();
+                ssl.addHandshakeCompletedListener(event -> {
+                    // the first handshake of the socket, not a renegotiation
+                    if (done.compareAndSet(false, true)) {
+                        spi.completed(event.getSession(), startNanos, startMillis);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return measured(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return measured(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return measured(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return measured(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return measured(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return measured(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+    /** Configures and measures the engines of the Jetty, Grizzly, Netty and Http2 connectors. */
+    private static final class Engine extends SSLEngine {
+
+        private final Spi spi;
+        private final SSLEngine delegate;
+        private final long startNanos = System.nanoTime();
+        private final long startMillis = System.currentTimeMillis();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Engine(Spi spi, SSLEngine delegate, String host, int port) {
+            super(host, port);
+            this.spi = spi;
+            this.delegate = delegate;
+            SSLParameters parameters = delegate.getSSLParameters();
+            spi.configure(parameters);
+            delegate.setSSLParameters(parameters);
+        }
+
+        private SSLEngineResult measured(SSLEngineResult result) {
+
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && done.compareAndSet(false, true)) {
+                spi.completed(delegate.getSession(), startNanos, startMillis);
+            }
+            return result;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] sources, int offset, int length, ByteBuffer destination) throws SSLException {
+            return measured(delegate.wrap(sources, offset, length, destination));
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer source, ByteBuffer[] destinations, int offset, int length) throws SSLException {
+            return measured(delegate.unwrap(source, destinations, offset, length));
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return delegate.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            delegate.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return delegate.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            delegate.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return delegate.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return delegate.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return delegate.getHandshakeSession();
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            delegate.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return delegate.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return delegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return delegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return delegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return delegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return delegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters parameters) {
+            delegate.setSSLParameters(parameters);
+        }
+
+        @Override
+        public String getApplicationProtocol() {
+            return delegate.getApplicationProtocol();
+        }
+
+        @Override
+        public String getHandshakeApplicationProtocol() {
+            return delegate.getHandshakeApplicationProtocol();
+        }
+    }
+
+    /** Trusts every certificate and host, for testing. */
+    private static final class TrustAll extends X509ExtendedTrustManager {
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.centro.rtb.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS settings of a Client: the size and timeout of its session cache, so connections to a host resume the
+ * session of an earlier one rather than paying for a full handshake, and the protocols and cipher suites to enable.
+ *
+ * Each HTTPS Client gets an SSLContext of its own, with these settings applied to every connection, whatever the connector.
+ * Settings left unset keep the JDK's defaults.
+ *
+ * TLS settings are part of the client configuration, requests with different settings get different Clients.
+ * Instances are immutable; the with...() methods return a copy.
+ */
+public final class TlsSettings {
+
+    private static final TlsSettings DEFAULTS = new TlsSettings(0, 0, Collections.emptyList(), Collections.emptyList());
+
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+    private final List<String> protocols;
+    private final List<String> cipherSuites;
+
+    private TlsSettings(int sessionCacheSize, int sessionTimeoutSeconds, List<String> protocols, List<String> cipherSuites) {
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
+    /**
+     * @return settings that keep all of the JDK's defaults.
+     */
+    public static TlsSettings defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * The maximum number of sessions cached for resumption, one per host is enough.
+     */
+    public TlsSettings withSessionCacheSize(int size) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("Expecting a positive size: " + size);
+        }
+        return new TlsSettings(size, sessionTimeoutSeconds, protocols, cipherSuites);
+    }
+
+    /**
+     * How long a session may be resumed.
+     */
+    public TlsSettings withSessionTimeout(long timeout, TimeUnit unit) {
+
+        long seconds = unit.toSeconds(timeout);
+        if (seconds <= 0 || seconds > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Expecting a timeout between 1 second and " + Integer.MAX_VALUE + " seconds: " + timeout + " " + unit);
+        }
+        return new TlsSettings(sessionCacheSize, (int) seconds, protocols, cipherSuites);
+    }
+
+    /**
+     * The protocols to enable, e.g. "TLSv1.3", "TLSv1.2". The JDK must support them.
+     */
+    public TlsSettings withProtocols(String... protocols) {
+        return new TlsSettings(sessionCacheSize, sessionTimeoutSeconds, copy(protocols), cipherSuites);
+    }
+
+    /**
+     * The cipher suites to enable, e.g. "TLS_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256".
+     * The JDK must support them.
+     */
+    public TlsSettings withCipherSuites(String... cipherSuites) {
+        return new TlsSettings(sessionCacheSize, sessionTimeoutSeconds, protocols, copy(cipherSuites));
+    }
+
+    private static List<String> copy(String... values) {
+
+        if (values.length == 0) {
+            throw new IllegalArgumentException("Expecting at least one value");
+        }
+        return Collections.unmodifiableList(Arrays.asList(values.clone()));
+    }
+
+    /**
+     * @return the maximum number of cached sessions, or 0 if unset.
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * @return the session timeout, or 0 if unset.
+     */
+    public long getSessionTimeout(TimeUnit unit) {
+        return unit.convert(sessionTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the protocols to enable, empty if unset.
+     */
+    public List<String> getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * @return the cipher suites to enable, empty if unset.
+     */
+    public List<String> getCipherSuites() {
+        return cipherSuites;
+    }
+
+    public boolean isDefault() {
+        return equals(DEFAULTS);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TlsSettings)) return false;
+
+        TlsSettings that = (TlsSettings) o;
+
+        return sessionCacheSize == that.sessionCacheSize
+                && sessionTimeoutSeconds == that.sessionTimeoutSeconds
+                && protocols.equals(that.protocols)
+                && cipherSuites.equals(that.cipherSuites);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sessionCacheSize;
+        result = 31 * result + sessionTimeoutSeconds;
+        result = 31 * result + protocols.hashCode();
+        result = 31 * result + cipherSuites.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsSettings{sessionCacheSize=" + sessionCacheSize + ", sessionTimeout=" + sessionTimeoutSeconds
+                + "s, protocols=" + protocols + ", cipherSuites=" + cipherSuites + "}";
+    }
+}
@@ -0,0 +1,66 @@
+package net.centro.rtb.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the TLS handshakes of HTTPS connections: how many, how many resumed an earlier session,
+ * and how long they took, from the start of the handshake (after the TCP connect) to its completion.
+ */
+public final class TlsStats {
+
+    static final TlsStats EMPTY = new TlsStats(0, 0, 0, 0);
+
+    private final long handshakes;
+    private final long resumed;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    TlsStats(long handshakes, long resumed, long totalNanos, long maxNanos) {
+        this.handshakes = handshakes;
+        this.resumed = resumed;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return the sum of the two snapshots, e.g. from two Clients.
+     */
+    TlsStats add(TlsStats other) {
+        return new TlsStats(handshakes + other.handshakes, resumed + other.resumed, totalNanos + other.totalNanos, Math.max(maxNanos, other.maxNanos));
+    }
+
+    /**
+     * @return the number of completed handshakes, full or resumed.
+     */
+    public long getHandshakeCount() {
+        return handshakes;
+    }
+
+    /**
+     * @return the number of handshakes that resumed a cached session.
+     */
+    public long getResumedCount() {
+        return resumed;
+    }
+
+    /**
+     * @return the resumed handshakes out of all of them, between 0 and 1.
+     */
+    public double getResumptionRatio() {
+        return (handshakes > 0) ? (double) resumed / handshakes : 0;
+    }
+
+    public long getAverageHandshakeTime(TimeUnit unit) {
+        return (handshakes > 0) ? unit.convert(totalNanos / handshakes, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxHandshakeTime(TimeUnit unit) {
+        return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "TlsStats{handshakes=" + handshakes + ", resumed=" + resumed + ", averageHandshake="
+                + getAverageHandshakeTime(TimeUnit.MICROSECONDS) + "us, maxHandshake=" + getMaxHandshakeTime(TimeUnit.MICROSECONDS) + "us}";
+    }
+}
@@ -0,0 +1,493 @@
+package net.centro.rtb.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The gzip and deflate streams of the request and response bodies, on pooled Deflaters and Inflaters.
+ *
+ * A GZIPOutputStream or InflaterInputStream allocates a native zlib context and its buffers for every body. Here the
+ * Deflater or Inflater, the buffer and the CRC32 of a stream are borrowed from a pool, and reset and returned when the
+ * stream is closed. A pool keeps up to twice the processors idle and ends the extra ones. Deflaters are pooled per
+ * compression level and strategy, both fixed when the Deflater is created.
+ *
+ * The gzip streams are the format of GZIPOutputStream and GZIPInputStream: a minimal header on the way out, and the
+ * optional header fields, trailer check and concatenated members on the way in. "deflate" is the zlib format.
+ */
+final class Zlib {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] GZIP_HEADER = {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    // keyed by the format, level and strategy
+    private static final ConcurrentHashMap<Integer, Pool<Deflating>> deflaters = new ConcurrentHashMap<>();
+    private static final Pool<Inflating> gzipInflaters = new Pool<>(() -> new Inflating(true), inflating -> inflating.inflater.end());
+    private static final Pool<Inflating> zlibInflaters = new Pool<>(() -> new Inflating(false), inflating -> inflating.inflater.end());
+
+    private Zlib() {
+    }
+
+    /**
+     * @param level Deflater.DEFAULT_COMPRESSION or 0 (no compression) to 9 (best compression).
+     */
+    static int checkLevel(int level) {
+
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return level;
+    }
+
+    /**
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY.
+     */
+    static int checkStrategy(int strategy) {
+
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid compression strategy: " + strategy);
+        }
+        return strategy;
+    }
+
+    /**
+     * @param encoding GZIP or DEFLATE.
+     * @return a stream compressing to out, closing out and returning its Deflater to the pool when closed.
+     */
+    static OutputStream compress(OutputStream out, Http.Encoding encoding, int level, int strategy) throws IOException {
+
+        boolean gzip = encoding == Http.Encoding.GZIP;
+        int key = (gzip ? 1 : 0) | (level + 1) << 1 | strategy << 5;
+        Pool<Deflating> pool = deflaters.get(key);
+        if (pool == null) {
+            pool = deflaters.computeIfAbsent(key, k -> new Pool<>(() -> new Deflating(gzip, level, strategy), deflating -> deflating.deflater.end()));
+        }
+        return new DeflatingStream(out, pool, gzip);
+    }
+
+    /**
+     * @param encoding GZIP or DEFLATE.
+     * @return a stream decompressing in, closing in and returning its Inflater to the pool when closed. The gzip
+     * header is read right away.
+     */
+    static InputStream decompress(InputStream in, Http.Encoding encoding) throws IOException {
+        return (encoding == Http.Encoding.GZIP) ? new InflatingStream(in, gzipInflaters, true) : new InflatingStream(in, zlibInflaters, false);
+    }
+
+    /**
+     * @return the number of idle Deflaters, of all the levels and strategies.
+     */
+    static int idleDeflaters() {
+        return deflaters.values().stream().mapToInt(pool -> pool.idle.size()).sum();
+    }
+
+    /**
+     * @return the number of idle Inflaters.
+     */
+    static int idleInflaters() {
+        return gzipInflaters.idle.size() + zlibInflaters.idle.size();
+    }
+
+    private static final class Pool<T> {
+
+        final ArrayBlockingQueue<T> idle = new ArrayBlockingQueue<>(MAX_IDLE);
+        final Supplier<T> factory;
+        final Consumer<T> disposer;
+
+        Pool(Supplier<T> factory, Consumer<T> disposer) {
+            this.factory = factory;
+            this.disposer = disposer;
+        }
+
+        T borrow() {
+
+            T entry = idle.poll();
+            return (entry != null) ? entry : factory.get();
+        }
+
+        /**
+         * @param entry reset by the caller.
+         */
+        void release(T entry) {
+
+            if (!idle.offer(entry)) {
+                disposer.accept(entry);
+            }
+        }
+    }
+
+    private static final class Deflating {
+
+        final Deflater deflater;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final CRC32 crc = new CRC32();
+
+        Deflating(boolean gzip, int level, int strategy) {
+
+            // gzip writes its own header and trailer around the raw deflate data
+            deflater = new Deflater(level, gzip);
+            deflater.setStrategy(strategy);
+        }
+
+        void reset() {
+            deflater.reset();
+            crc.reset();
+        }
+    }
+
+    private static final class Inflating {
+
+        final Inflater inflater;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final CRC32 crc = new CRC32();
+
+        Inflating(boolean gzip) {
+            inflater = new Inflater(gzip);
+        }
+
+        void reset() {
+            inflater.reset();
+            crc.reset();
+        }
+    }
+
+    private static final class DeflatingStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Pool<Deflating> pool;
+        private final Deflating deflating;
+        private final Deflater deflater;
+        private final boolean gzip;
+        private byte[] single;
+        private boolean finished;
+        private boolean closed;
+
+        DeflatingStream(OutputStream out, Pool<Deflating> pool, boolean gzip) throws IOException {
+
+            this.out = out;
+            this.pool = pool;
+            this.deflating = pool.borrow();
+            this.deflater = deflating.deflater;
+            this.gzip = gzip;
+            if (gzip) {
+                try {
+                    out.write(GZIP_HEADER);
+                } catch (IOException | RuntimeException e) {
+                    release();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+
+            if (single == null) {
+                single = new byte[1];
+            }
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if (closed || finished) {
+                throw new IOException(closed ? "Stream closed" : "Write beyond end of stream");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (gzip) {
+                deflating.crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        private void deflate() throws IOException {
+
+            int length = deflater.deflate(deflating.buffer, 0, deflating.buffer.length);
+            if (length > 0) {
+                out.write(deflating.buffer, 0, length);
+            }
+        }
+
+        private void finish() throws IOException {
+
+            if (finished) {
+                return;
+            }
+            finished = true;
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (gzip) {
+                byte[] trailer = deflating.buffer;
+                writeInt(trailer, 0, (int) deflating.crc.getValue());
+                writeInt(trailer, 4, (int) deflater.getBytesRead());
+                out.write(trailer, 0, 8);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    release();
+                }
+            }
+        }
+
+        private void release() {
+            deflating.reset();
+            pool.release(deflating);
+        }
+
+        private static void writeInt(byte[] bytes, int offset, int value) {
+
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+            bytes[offset + 2] = (byte) (value >> 16);
+            bytes[offset + 3] = (byte) (value >> 24);
+        }
+    }
+
+    private static final class InflatingStream extends InputStream {
+
+        private final InputStream in;
+        private final Pool<Inflating> pool;
+        private final Inflating inflating;
+        private final Inflater inflater;
+        private final byte[] buffer;
+        private final boolean gzip;
+        // the bytes of the buffer read from in but not yet given to the inflater, the tail of the last input after it finished
+        private int position;
+        private int limit;
+        private byte[] single;
+        private boolean eof;
+        private boolean closed;
+
+        InflatingStream(InputStream in, Pool<Inflating> pool, boolean gzip) throws IOException {
+
+            this.in = in;
+            this.pool = pool;
+            this.inflating = pool.borrow();
+            this.inflater = inflating.inflater;
+            this.buffer = inflating.buffer;
+            this.gzip = gzip;
+            if (gzip) {
+                try {
+                    readHeader();
+                } catch (IOException | RuntimeException e) {
+                    release();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            if (single == null) {
+                single = new byte[1];
+            }
+            return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = inflater.inflate(b, off, len);
+                } catch (DataFormatException e) {
+                    throw new ZipException((e.getMessage() != null) ? e.getMessage() : "Invalid ZLIB data format");
+                }
+                if (length > 0) {
+                    if (gzip) {
+                        inflating.crc.update(b, off, length);
+                    }
+                    return length;
+                }
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    position = limit - inflater.getRemaining();
+                    if (!gzip || !readTrailer()) {
+                        eof = true;
+                        return -1;
+                    }
+                } else if (inflater.needsInput()) {
+                    if (position == limit && !fill()) {
+                        throw new EOFException("Unexpected end of ZLIB input stream");
+                    }
+                    inflater.setInput(buffer, position, limit - position);
+                    position = limit;
+                }
+            }
+        }
+
+        /**
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+
+            int length = in.read(buffer, 0, buffer.length);
+            if (length < 0) {
+                return false;
+            }
+            position = 0;
+            limit = length;
+            return true;
+        }
+
+        private int readByte() throws IOException {
+
+            while (position == limit) {
+                if (!fill()) {
+                    throw new EOFException();
+                }
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        private int readShort() throws IOException {
+            return readByte() | readByte() << 8;
+        }
+
+        private long readInt() throws IOException {
+            return (readShort() | (long) readShort() << 16) & 0xffffffffL;
+        }
+
+        private void readHeader() throws IOException {
+
+            if (readShort() != GZIP_MAGIC) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readByte() != Deflater.DEFLATED) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte();
+            // modification time, extra flags and operating system
+            for (int i = 0; i < 6; i++) {
+                readByte();
+            }
+            if ((flags & FEXTRA) != 0) {
+                for (int length = readShort(); length > 0; length--) {
+                    readByte();
+                }
+            }
+            if ((flags & FNAME) != 0) {
+                while (readByte() != 0) {
+                    // up to the end of the file name
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readByte() != 0) {
+                    // up to the end of the comment
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                readShort();
+            }
+        }
+
+        /**
+         * Checks the trailer of a member, and reads the header of the next one if there is one.
+         * @return true if another member follows.
+         */
+        private boolean readTrailer() throws IOException {
+
+            if (readInt() != inflating.crc.getValue() || readInt() != (inflater.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            if (position == limit && in.available() <= 0) {
+                return false;
+            }
+            try {
+                readHeader();
+            } catch (IOException e) {
+                // not another member, trailing bytes are ignored as GZIPInputStream does
+                return false;
+            }
+            inflater.reset();
+            inflating.crc.reset();
+            return true;
+        }
+
+        @Override
+        public int available() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return eof ? 0 : 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            inflating.reset();
+            pool.release(inflating);
+        }
+    }
+}
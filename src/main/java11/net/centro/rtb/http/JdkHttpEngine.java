@@ -0,0 +1,387 @@
+package net.centro.rtb.http;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.io.ByteStreams;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.message.internal.Statuses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the requests of the JdkHttpClient connector with java.net.http.HttpClient, around the Jersey client:
+ * no provider lookups, MessageBodyWriters or Invocation builders, byte[] bodies both ways but for the streamed
+ * request bodies (StreamingBody), and the JDK client's own async completion.
+ *
+ * https requests negotiate HTTP/2 with ALPN and fall back to HTTP/1.1, http requests use HTTP/1.1.
+ * It shares the SSLContext of the Jersey client, so the TLS settings and metrics apply. Its connection pool
+ * is configured JVM-wide (jdk.httpclient.* system properties), the PoolSettings and HostResolver are ignored.
+ */
+final class JdkHttpEngine extends HttpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdkHttpEngine.class);
+    private static final byte[] EMPTY = new byte[0];
+
+    static final String UNSUPPORTED = "The JdkHttpClient connector needs Java 11 or later";
+
+    /** Set by the JDK client itself, it refuses them in a request. */
+    private static final Set<String> RESTRICTED = Set.of("connection", "content-length", "date", "expect", "from", "host", "upgrade", "via", "warning");
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Http.Encoding encoding;
+    private final int compressionLevel;
+    private final int compressionStrategy;
+    private final Duration readTimeout;
+
+    private JdkHttpEngine(HttpClient client, ExecutorService executor, Http.Encoding encoding, int compressionLevel,
+                          int compressionStrategy, Duration readTimeout) {
+        this.client = client;
+        this.executor = executor;
+        this.encoding = encoding;
+        this.compressionLevel = compressionLevel;
+        this.compressionStrategy = compressionStrategy;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @return true if the JDK HTTP client is available, on Java 11 and later.
+     */
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * @param profile the settings of the client.
+     * @param client the Jersey client of the profile, the engine shares its SSLContext and properties.
+     */
+    static JdkHttpEngine create(ClientProfile profile, Client client) {
+
+        Map<String, Object> properties = client.getConfiguration().getProperties();
+        // the JDK client completes the responses on this executor, closed with the engine
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "jumper-jdk-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .executor(executor)
+                .sslContext(client.getSslContext())
+                .followRedirects(ClientProperties.getValue(properties, ClientProperties.FOLLOW_REDIRECTS, Boolean.TRUE)
+                        ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+        int connectTimeout = ClientProperties.getValue(properties, ClientProperties.CONNECT_TIMEOUT, 0);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        int readTimeout = ClientProperties.getValue(properties, ClientProperties.READ_TIMEOUT, 0);
+
+        return new JdkHttpEngine(builder.build(), executor, profile.getEncoding(),
+                profile.getCompressionLevel(), profile.getCompressionStrategy(), (readTimeout > 0) ? Duration.ofMillis(readTimeout) : null);
+    }
+
+    @Override
+    CompletableFuture<HttpResult> send(RequestTemplate template, String[] headerValues, Object body,
+                                       Map<String, String> conditional, Map<String, NewCookie> cookies,
+                                       Map<String, NewCookie> cookieStore, Deadline deadline) {
+
+        template.check(headerValues);
+        Http.HttpMethod method = template.getMethod();
+        // the URI, version and fixed headers set once for all the calls of the template
+        HttpRequest.Builder request = template.compiled(this, JdkHttpEngine::compile).copy();
+        for (int i = 0; i < template.getVariableCount(); i++) {
+            String value = template.value(i, headerValues);
+            if (value != null && !RESTRICTED.contains(template.getVariable(i))) {
+                request.header(template.getVariable(i), value);
+            }
+        }
+        if (conditional != null) {
+            conditional.forEach(request::header);
+        }
+        String cookie = cookieHeader(cookies);
+        if (cookie != null) {
+            request.header("Cookie", cookie);
+        }
+
+        // the JDK timeout runs until the response headers, as the read timeout of the other connectors
+        Duration timeout = (deadline != null) ? Duration.ofNanos(deadline.getFirstByteBudget(TimeUnit.NANOSECONDS)) : readTimeout;
+        if (timeout != null) {
+            request.timeout(timeout);
+        }
+
+        if (hasBody(method, body)) {
+            if (template.getMediaType() == null) {
+                // Entity.text(), as with the Jersey client
+                request.header("Content-Type", MediaType.TEXT_PLAIN);
+            }
+            if (encoding == Http.Encoding.GZIP || encoding == Http.Encoding.DEFLATE) {
+                request.header("Content-Encoding", encoding.name().toLowerCase(Locale.ROOT));
+                request.method(method.name(), HttpRequest.BodyPublishers.ofByteArray(compress(bytes(body, template))));
+            } else {
+                request.method(method.name(), publisher(body, template));
+            }
+        } else {
+            request.method(method.name(), HttpRequest.BodyPublishers.noBody());
+        }
+
+        return new Exchange(cookieStore, deadline).send(request.build());
+    }
+
+    /**
+     * @return the builder of the template's requests, copied by each call.
+     */
+    private static HttpRequest.Builder compile(RequestTemplate template) {
+
+        URI uri = template.getURI();
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri);
+        if (!"https".equalsIgnoreCase(uri.getScheme())) {
+            // no h2c upgrade, HTTP/1.1 servers may fail a request with a body that asks for one
+            request.version(HttpClient.Version.HTTP_1_1);
+        }
+        RequestHeaders headers = template.getFixedHeaders();
+        for (int i = 0; i < headers.size(); i++) {
+            if (!RESTRICTED.contains(headers.getName(i))) {
+                request.header(headers.getName(i), headers.getValue(i));
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @return the publisher of the body: the streamed ones are read as the JDK client sends them, with chunked
+     * transfer encoding unless their length is known, the others are written to a byte[].
+     */
+    private static HttpRequest.BodyPublisher publisher(Object body, RequestTemplate template) {
+
+        try {
+            if (body instanceof Path) {
+                return HttpRequest.BodyPublishers.ofFile((Path) body);
+            }
+            if (body instanceof ByteBuffer[]) {
+                List<byte[]> arrays = new ArrayList<>();
+                for (ByteBuffer buffer : (ByteBuffer[]) body) {
+                    arrays.add(bytes(buffer));
+                }
+                return HttpRequest.BodyPublishers.ofByteArrays(arrays);
+            }
+            if (StreamingBody.isStreaming(body)) {
+                long length = StreamingBody.length(body);
+                InputStream in = StreamingBody.inputStream(body);
+                HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> in);
+                return (length >= 0) ? HttpRequest.BodyPublishers.fromPublisher(stream, length) : stream;
+            }
+        } catch (FileNotFoundException e) {
+            throw new ProcessingException("Failed to open the request body", e);
+        } catch (IOException e) {
+            StreamingBody.close(body);
+            throw new ProcessingException("Failed to open the request body", e);
+        }
+        return HttpRequest.BodyPublishers.ofByteArray(bytes(body, template));
+    }
+
+    private static byte[] bytes(ByteBuffer body) {
+
+        ByteBuffer buffer = body.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(Object body, RequestTemplate template) {
+
+        if (body instanceof byte[]) {
+            return (byte[]) body;
+        }
+        if (body instanceof ByteBuffer) {
+            return bytes((ByteBuffer) body);
+        }
+        if (body instanceof ByteBuffer[]) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (ByteBuffer buffer : (ByteBuffer[]) body) {
+                out.writeBytes(bytes(buffer));
+            }
+            return out.toByteArray();
+        }
+        if (StreamingBody.isStreaming(body)) {
+            try (InputStream in = StreamingBody.inputStream(body)) {
+                return ByteStreams.toByteArray(in);
+            } catch (IOException e) {
+                throw new ProcessingException("Failed to read the request body", e);
+            }
+        }
+        MediaType mediaType = mediaType(template);
+        if (isJson(body, mediaType)) {
+            try {
+                return JsonCodec.MAPPER.writeValueAsBytes(body);
+            } catch (JsonProcessingException e) {
+                throw new ProcessingException("Failed to write the request body as JSON", e);
+            }
+        }
+        return body.toString().getBytes(charset(mediaType));
+    }
+
+    private byte[] compress(byte[] bytes) {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2 + 32);
+        try (OutputStream out = Zlib.compress(buffer, encoding, compressionLevel, compressionStrategy)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to compress the request body", e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static byte[] decode(byte[] body, String contentEncoding) throws IOException {
+
+        Http.Encoding encoding = (contentEncoding != null) ? Http.Encoding.fromString(contentEncoding) : null;
+        if (body.length == 0 || encoding == null || encoding == Http.Encoding.NONE) {
+            return body;
+        }
+        try (InputStream in = HttpConnector.getInputStreamDecoded(new ByteArrayInputStream(body), encoding)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Override
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * A single request on the JDK client.
+     */
+    private final class Exchange extends HttpEngine.Exchange<HttpResult> {
+
+        private final Map<String, NewCookie> cookieStore;
+
+        Exchange(Map<String, NewCookie> cookieStore, Deadline deadline) {
+            super(deadline);
+            this.cookieStore = cookieStore;
+        }
+
+        CompletableFuture<HttpResult> send(HttpRequest request) {
+
+            start();
+            CompletableFuture<HttpResponse<byte[]>> response = client.sendAsync(request, info -> {
+                headersReceived();
+                return HttpResponse.BodySubscribers.ofByteArray();
+            });
+            response.whenComplete((httpResponse, throwable) -> {
+                if (throwable != null) {
+                    failed(throwable);
+                } else {
+                    completed(httpResponse);
+                }
+            });
+            result.whenComplete((httpResult, throwable) -> {
+                if (throwable != null) {
+                    response.cancel(true);
+                }
+            });
+            return result;
+        }
+
+        private void completed(HttpResponse<byte[]> response) {
+
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+                response.headers().map().forEach((name, values) -> {
+                    if (!name.startsWith(":")) {
+                        headers.addAll(name, values);
+                    }
+                });
+                Map<String, NewCookie> cookies = cookies(response.headers().allValues("set-cookie"));
+                if (cookieStore != null) {
+                    cookieStore.putAll(cookies);
+                }
+                byte[] body = decode((response.body() != null) ? response.body() : EMPTY, response.headers().firstValue("content-encoding").orElse(null));
+                result.complete(new HttpResult(response.statusCode(), Statuses.from(response.statusCode()).getReasonPhrase(),
+                        headers, Collections.unmodifiableMap(cookies), body, System.currentTimeMillis() - start));
+            } catch (IOException e) {
+                result.completeExceptionally(new ProcessingException("Failed to read the response body", e));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void failed(Throwable throwable) {
+
+            if (result.isDone()) {
+                return;
+            }
+            Throwable cause = (throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+            if (deadline != null && cause instanceof HttpTimeoutException) {
+                // the JDK timeout, set from the deadline's first byte budget
+                Http.RequestPhase phase = (cause instanceof HttpConnectTimeoutException) ? Http.RequestPhase.CONNECT : Http.RequestPhase.FIRST_BYTE;
+                DeadlineExceededException exception = new DeadlineExceededException(phase, elapsed(), deadline);
+                exception.initCause(cause);
+                result.completeExceptionally(exception);
+                return;
+            }
+
+            logger.warn("Request failed: " + cause.getMessage());
+            result.completeExceptionally(new ProcessingException(translate(cause)));
+        }
+
+        /**
+         * The JDK client does not report when the connection is established, so until the headers arrive
+         * the request is considered connecting for as long as it is within the connect budget.
+         */
+        @Override
+        Http.RequestPhase currentPhase() {
+
+            if (isHeadersReceived()) {
+                return Http.RequestPhase.BODY;
+            }
+            return (System.nanoTime() - startNanos < deadline.getConnectBudget(TimeUnit.NANOSECONDS)) ? Http.RequestPhase.CONNECT : Http.RequestPhase.FIRST_BYTE;
+        }
+    }
+
+    /**
+     * The JDK timeouts as the SocketTimeoutException the other connectors fail with.
+     */
+    private static Throwable translate(Throwable cause) {
+
+        if (cause instanceof HttpTimeoutException) {
+            SocketTimeoutException timeout = new SocketTimeoutException((cause instanceof HttpConnectTimeoutException) ? "connect timed out" : "Read timed out");
+            timeout.initCause(cause);
+            return timeout;
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,198 @@
+package net.centro.rtb.http;
+
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ResourceLeakDetector;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pooled response bodies of the Jersey connectors, and the leak detection of unreleased responses.
+ */
+public class BufferedResponseTest extends JerseyTest {
+
+    private static final byte[] DATA = new byte[100 * 1024 + 17];
+
+    static {
+        new Random(24).nextBytes(DATA);
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("sized")
+        public byte[] sized() {
+            return DATA;
+        }
+
+        @GET
+        @Path("chunked")
+        public StreamingOutput chunked() {
+            return out -> {
+                for (int offset = 0; offset < DATA.length; offset += 4096) {
+                    out.write(DATA, offset, Math.min(4096, DATA.length - offset));
+                    out.flush();
+                }
+            };
+        }
+
+        @GET
+        @Path("gzip")
+        public Response gzip() throws Exception {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(DATA);
+            }
+            return Response.ok(bytes.toByteArray()).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("missing")
+        public Response missing() {
+            return Response.status(404).header("x-reason", "gone").cookie(new NewCookie("seen", "1")).build();
+        }
+
+        @GET
+        @Path("latin")
+        public Response latin() {
+            return Response.ok("caf\u00e9", "text/plain; charset=ISO-8859-1").build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    /**
+     * @param maxPerHost distinct for each test, for clients of its own: the connections pooled by the other tests are
+     * to servers since stopped.
+     */
+    private static HttpConnectorBuilder builder(String path, Http.ConnectorProvider provider, int maxPerHost) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(provider)
+                .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost));
+    }
+
+    private static final Http.ConnectorProvider[] PROVIDERS = {Http.ConnectorProvider.HttpUrlConnector, Http.ConnectorProvider.Apache};
+
+    private static byte[] bytes(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testPooledBody() throws Exception {
+
+        long leaked = BufferedResponse.leaked();
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            for (String path : new String[]{"sized", "chunked"}) {
+                String message = provider.name() + " " + path;
+                BufferedResponse response = builder(path, provider, 51).prepare().executeBuffered().get();
+                try {
+                    assertEquals(message, 200, response.getStatus());
+                    assertEquals(message, DATA.length, response.getBodyLength());
+                    ByteBuffer body = response.getBody();
+                    assertTrue(message, body.isReadOnly());
+                    assertArrayEquals(message, DATA, bytes(body));
+                    // a view of its own each call
+                    assertEquals(message, DATA.length, response.getBody().remaining());
+                } finally {
+                    response.release();
+                }
+                assertTrue(message, response.isReleased());
+                try {
+                    response.getBody();
+                    fail(message + ": expecting a released body to fail");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
+        }
+        assertEquals(leaked, BufferedResponse.leaked());
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+
+        // the Apache connector decodes a gzip body twice, on its own and in the client
+        try (BufferedResponse response = builder("gzip", Http.ConnectorProvider.HttpUrlConnector, 52).prepare().executeBuffered().get()) {
+            assertArrayEquals(DATA, bytes(response.getBody()));
+        }
+    }
+
+    @Test
+    public void testStatusAndHeaders() throws Exception {
+
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            try (BufferedResponse response = builder("missing", provider, 53).prepare().executeBuffered().get()) {
+                assertEquals(provider.name(), 404, response.getStatus());
+                assertFalse(provider.name(), response.isSuccessful());
+                assertEquals(provider.name(), "gone", response.getHeader("X-Reason"));
+                assertEquals(provider.name(), "1", response.getCookies().get("seen").getValue());
+                assertEquals(provider.name(), 0, response.getBodyLength());
+            }
+        }
+    }
+
+    @Test
+    public void testInputStreamOfText() throws Exception {
+
+        HttpConnector connector = builder("latin", Http.ConnectorProvider.HttpUrlConnector, 54).build().execute();
+        assertEquals("caf\u00e9", connector.getResponseBody());
+        try (InputStream in = connector.getResponseBody(InputStream.class)) {
+            assertArrayEquals("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1), ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testLeakDetection() throws Exception {
+
+        // every response is tracked in paranoid mode, as the build runs the tests
+        Assume.assumeTrue(ResourceLeakDetector.getLevel() == ResourceLeakDetector.Level.PARANOID);
+
+        long leaked = BufferedResponse.leaked();
+        newResponse();
+        // the leaks are reported as the next responses are tracked
+        for (int i = 0; i < 100 && BufferedResponse.leaked() == leaked; i++) {
+            System.gc();
+            Thread.sleep(20);
+            newResponse().release();
+        }
+        assertEquals(leaked + 1, BufferedResponse.leaked());
+    }
+
+    /**
+     * @return a response of an untracked buffer, so that only the response itself is reported.
+     */
+    private static BufferedResponse newResponse() {
+        return new BufferedResponse(200, "OK", new MultivaluedHashMap<>(), Collections.emptyMap(),
+                Unpooled.EMPTY_BUFFER, 0);
+    }
+}
@@ -1,5 +1,7 @@
 package net.centro.rtb.http;
 
+import com.google.common.cache.CacheStats;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -7,6 +9,7 @@ import javax.ws.rs.client.Client;
 
 import java.net.URISyntaxException;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static org.junit.Assert.*;
 
@@ -19,6 +22,21 @@ public class ClientFactoryTest {
     public void purgeCache() {
         ClientFactory.setCacheStaleTimeout(1, TimeUnit.MINUTES);
     }
+
+    @After
+    public void restoreDefaults() {
+        ClientFactory.setDrainTimeout(1, TimeUnit.MINUTES);
+        ClientFactory.setMaximumSize(64);
+        // the test classes run after this one would have their clients evicted after a second idle
+        ClientFactory.setCacheStaleTimeout(1, TimeUnit.MINUTES);
+    }
+
+    private static void awaitClosed(ManagedClient client) throws InterruptedException {
+        for (int i = 0; i < 100 && !client.isClosed(); i++) {
+            Thread.sleep(20);
+        }
+    }
+
     @Test
     public void testGetUncachedClient() throws Exception {
 
@@ -105,4 +123,134 @@ public class ClientFactoryTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testProfileIsInterned() throws Exception {
+
+        HttpConnectorBuilder builder = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost")
+                .setReadTimeout(100);
+        ClientProfile profile = builder.getClientProfile();
+        assertSame(profile, builder.getClientProfile());
+
+        HttpConnectorBuilder other = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost/other")
+                .setReadTimeout(100);
+        assertSame(profile, other.getClientProfile());
+        assertSame(ClientFactory.getClient(builder), ClientFactory.getClient(other));
+
+        // a change of a setting resolves a new profile
+        builder.setReadTimeout(200);
+        assertNotSame(profile, builder.getClientProfile());
+        assertEquals(200, builder.getClientProfile().getProperties().get("jersey.config.client.readTimeout"));
+    }
+
+    @Test
+    public void testProfileSettings() throws Exception {
+
+        ClientProfile plain = HttpConnectorBuilder.newBuilder().url("https://localhost").getClientProfile();
+        ClientProfile trustAll = HttpConnectorBuilder.newBuilder().url("https://localhost").trustAllSslContext().getClientProfile();
+        ClientProfile multipart = HttpConnectorBuilder.newBuilder().url("https://localhost")
+                .addHeaderProperty("Content-Type", "multipart/form-data").getClientProfile();
+        ClientProfile gzip = HttpConnectorBuilder.newBuilder().url("https://localhost").compress(Http.Encoding.GZIP).getClientProfile();
+        ClientProfile fastGzip = HttpConnectorBuilder.newBuilder().url("https://localhost")
+                .compress(Http.Encoding.GZIP, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY).getClientProfile();
+
+        assertNotEquals(plain, trustAll);
+        assertNotEquals(plain.hashCode(), trustAll.hashCode());
+        assertTrue(multipart.isMultipart());
+        assertNotEquals(plain, multipart);
+        assertNotEquals(plain.hashCode(), multipart.hashCode());
+        assertNotEquals(plain, gzip);
+        assertNotEquals(plain.hashCode(), gzip.hashCode());
+        assertNotEquals(gzip, fastGzip);
+        assertEquals(Deflater.BEST_SPEED, fastGzip.getCompressionLevel());
+    }
+
+    @Test
+    public void testEvictedClientIsClosedOnceDrained() throws Exception {
+
+        ClientFactory.setMaximumSize(1);
+        long closed = ClientFactory.getClosedCount();
+        ClientProfile first = HttpConnectorBuilder.newBuilder().url("http://localhost").getClientProfile();
+        ClientProfile second = HttpConnectorBuilder.newBuilder().url("http://localhost").setReadTimeout(10).getClientProfile();
+
+        ManagedClient leased = ClientFactory.acquire(first);
+        ClientFactory.getClient(second);
+        assertEquals(1, ClientFactory.getCacheSize());
+        assertTrue(leased.isRetired());
+        assertFalse(leased.isClosed());
+        assertEquals(1, leased.getInFlight());
+
+        leased.release();
+        awaitClosed(leased);
+        assertTrue(leased.isClosed());
+        assertFalse(leased.acquire());
+        for (int i = 0; i < 100 && ClientFactory.getClosedCount() == closed; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(ClientFactory.getClosedCount() > closed);
+
+        // a new client for the evicted profile
+        ManagedClient again = ClientFactory.acquire(first);
+        assertNotSame(leased, again);
+        again.release();
+    }
+
+    @Test
+    public void testLeasedClientOutlivesEviction() throws Exception {
+
+        ClientFactory.setMaximumSize(1);
+        ClientProfile first = HttpConnectorBuilder.newBuilder().url("http://localhost").getClientProfile();
+        ClientProfile second = HttpConnectorBuilder.newBuilder().url("http://localhost").setReadTimeout(10).getClientProfile();
+
+        Client client;
+        try (ClientLease lease = ClientFactory.leaseClient(first)) {
+            client = lease.getClient();
+            ClientFactory.leaseClient(second).close();
+            assertEquals(1, ClientFactory.getCacheSize());
+            // evicted, still open
+            assertNotNull(client.target("http://localhost"));
+        }
+        // closed on the closer thread, after the clients retired by the other tests
+        boolean closed = false;
+        for (int i = 0; i < 500 && !closed; i++) {
+            try {
+                client.target("http://localhost");
+                Thread.sleep(20);
+            } catch (IllegalStateException e) {
+                closed = true;
+            }
+        }
+        assertTrue(closed);
+    }
+
+    @Test
+    public void testDrainTimeout() throws Exception {
+
+        ClientFactory.setDrainTimeout(100, TimeUnit.MILLISECONDS);
+        ManagedClient leased = ClientFactory.acquire(HttpConnectorBuilder.newBuilder().url("http://localhost").getClientProfile());
+
+        // never released
+        ClientFactory.setCacheStaleTimeout(1, TimeUnit.MINUTES);
+        assertTrue(leased.isRetired());
+        awaitClosed(leased);
+        assertTrue(leased.isClosed());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+
+        HttpConnectorBuilder builder = HttpConnectorBuilder.newBuilder().url("http://localhost");
+        ClientFactory.getClient(builder);
+        ClientFactory.getClient(builder);
+        ClientFactory.getClient(builder);
+
+        CacheStats stats = ClientFactory.getCacheStats();
+        assertEquals(2, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.loadSuccessCount());
+        assertTrue(stats.totalLoadTime() > 0);
+        assertEquals(0, stats.evictionCount());
+    }
+
+}
@@ -0,0 +1,133 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pool settings of each connector and the per-host pool gauges.
+ */
+public class ConnectionPoolsTest extends JerseyTest {
+
+    final static int SLOW = 300;
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("fast")
+        public String fast() {
+            return "fast";
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            Thread.sleep(SLOW);
+            return "slow";
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static PreparedRequest prepare(Http.ConnectorProvider provider, String path, PoolSettings settings) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(provider)
+                .pool(settings)
+                .prepare();
+    }
+
+    private static void assertGauges(Http.ConnectorProvider provider) throws Exception {
+
+        PoolSettings settings = PoolSettings.defaults().withMaxPerHost(2).withIdleTimeout(30, TimeUnit.SECONDS).withTcpNoDelay(true);
+        PreparedRequest slow = prepare(provider, "slow", settings);
+
+        List<CompletableFuture<HttpResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(slow.executeAsync());
+        }
+        Thread.sleep(SLOW / 2);
+        PoolStats inFlight = ClientFactory.getPoolStats(slow.getClientProfile()).get("localhost:9998");
+        assertNotNull(inFlight);
+        assertEquals(2, inFlight.getMax());
+        assertTrue(inFlight.getLeased() <= 2);
+        assertTrue(inFlight.getLeased() + inFlight.getPending() > 0);
+
+        for (CompletableFuture<HttpResult> future : futures) {
+            assertEquals("slow", future.get().getBody());
+        }
+        PoolStats done = ClientFactory.getPoolStats(slow.getClientProfile()).get("localhost:9998");
+        assertEquals(0, done.getPending());
+        assertTrue(done.getIdle() > 0);
+        assertTrue(ClientFactory.getPoolStats().containsKey("localhost:9998"));
+    }
+
+    @Test
+    public void testApache() throws Exception {
+        assertGauges(Http.ConnectorProvider.Apache);
+    }
+
+    @Test
+    public void testJetty() throws Exception {
+        assertGauges(Http.ConnectorProvider.Jetty);
+    }
+
+    @Test
+    public void testApacheIdleEviction() throws Exception {
+
+        PreparedRequest request = prepare(Http.ConnectorProvider.Apache, "fast",
+                PoolSettings.defaults().withIdleTimeout(200, TimeUnit.MILLISECONDS));
+        assertEquals("fast", request.execute().getBody());
+        assertEquals(1, ClientFactory.getPoolStats(request.getClientProfile()).get("localhost:9998").getIdle());
+
+        Thread.sleep(600);
+        // the pool of a host is dropped once it has no connections left
+        PoolStats evicted = ClientFactory.getPoolStats(request.getClientProfile()).get("localhost:9998");
+        assertTrue(evicted == null || evicted.getIdle() == 0);
+    }
+
+    @Test
+    public void testConnectorsWithoutGauges() throws Exception {
+
+        PoolSettings settings = PoolSettings.defaults().withMaxTotal(10).withMaxPerHost(5)
+                .withKeepAliveTtl(1, TimeUnit.MINUTES).withTcpNoDelay(true);
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Grizzly, Http.ConnectorProvider.Netty}) {
+            PreparedRequest request = prepare(provider, "fast", settings);
+            assertEquals("fast", request.execute().getBody());
+            Map<String, PoolStats> stats = ClientFactory.getPoolStats(request.getClientProfile());
+            assertTrue(stats.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSettingsForkTheClient() throws Exception {
+
+        ClientProfile defaults = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/").getClientProfile();
+        ClientProfile pooled = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/")
+                .pool(PoolSettings.defaults().withMaxPerHost(10)).getClientProfile();
+        ClientProfile same = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/")
+                .pool(PoolSettings.defaults().withMaxPerHost(10)).getClientProfile();
+
+        assertNotSame(defaults, pooled);
+        assertSame(pooled, same);
+        assertTrue(PoolSettings.defaults().isDefault());
+        assertFalse(pooled.getPoolSettings().isDefault());
+    }
+}
@@ -0,0 +1,167 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests warming up and keeping warm the pooled connections of endpoints.
+ */
+public class ConnectionWarmerTest extends JerseyTest {
+
+    static final AtomicInteger healthChecks = new AtomicInteger();
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @POST
+        @Path("bid")
+        public String bid() {
+            return "bid";
+        }
+
+        @HEAD
+        @Path("bid")
+        public Response probe() throws InterruptedException {
+            // slow enough for the probes of a warm-up to overlap
+            Thread.sleep(100);
+            return Response.ok().build();
+        }
+
+        @HEAD
+        @Path("health")
+        public Response health() {
+            healthChecks.incrementAndGet();
+            return Response.ok().build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static PreparedRequest bidder(PoolSettings settings) throws Exception {
+        return bidder(Http.ConnectorProvider.Apache, settings);
+    }
+
+    private static PreparedRequest bidder(Http.ConnectorProvider provider, PoolSettings settings) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/bid")
+                .setConnectorProvider(provider)
+                .setMethod(Http.HttpMethod.POST)
+                .pool(settings)
+                .prepare();
+    }
+
+    /**
+     * @return the connections to the test server, a probe that just completed may not be back in the pool yet.
+     */
+    private static int open(PreparedRequest request) {
+        PoolStats stats = ClientFactory.getPoolStats(request.getClientProfile()).get("localhost:9998");
+        return (stats != null) ? stats.getIdle() + stats.getLeased() : 0;
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+
+        PreparedRequest bidder = bidder(PoolSettings.defaults().withMaxPerHost(10));
+        assertEquals(0, open(bidder));
+
+        assertEquals(3, ConnectionWarmer.of(bidder).withConnections(3).warmUp());
+        assertEquals(3, open(bidder));
+
+        // the live traffic reuses the parked connections
+        assertEquals("bid", bidder.execute("request").getBody());
+        assertEquals(3, open(bidder));
+    }
+
+    @Test
+    public void testWarmUpTheEngine() throws Exception {
+
+        // the probes go through the engine, its pool is the one the requests use
+        PreparedRequest bidder = bidder(Http.ConnectorProvider.NettyEngine, PoolSettings.defaults().withMaxPerHost(13));
+        assertEquals(0, open(bidder));
+
+        assertEquals(3, ConnectionWarmer.of(bidder).withConnections(3).warmUp());
+        assertEquals(3, open(bidder));
+
+        assertEquals("bid", bidder.execute("request").getBody());
+        assertEquals(3, open(bidder));
+    }
+
+    @Test
+    public void testEndpointsOfAHostAreProbedOnce() throws Exception {
+
+        PreparedRequest bidder = bidder(PoolSettings.defaults().withMaxPerHost(11));
+        PreparedRequest other = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/health")
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .pool(PoolSettings.defaults().withMaxPerHost(11))
+                .prepare();
+
+        healthChecks.set(0);
+        assertEquals(2, ConnectionWarmer.of(bidder, other).withProbePath("/health").withConnections(2).warmUp());
+        assertEquals(2, healthChecks.get());
+    }
+
+    @Test
+    public void testUnreachableHost() throws Exception {
+
+        PreparedRequest down = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9997/bid")
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .prepare();
+
+        assertEquals(0, ConnectionWarmer.of(down).withTimeout(500, TimeUnit.MILLISECONDS).warmUp());
+    }
+
+    @Test
+    public void testKeepWarm() throws Exception {
+
+        PreparedRequest bidder = bidder(PoolSettings.defaults().withMaxPerHost(12).withIdleTimeout(500, TimeUnit.MILLISECONDS));
+        ScheduledFuture<?> heartbeat = ConnectionWarmer.of(bidder).withProbePath("/health").keepWarm(150, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(1200);
+        assertEquals(1, open(bidder));
+
+        heartbeat.cancel(false);
+        Thread.sleep(1200);
+        assertEquals(0, open(bidder));
+    }
+
+    @Test
+    public void testHead() throws Exception {
+
+        healthChecks.set(0);
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/health")
+                .setMethod(Http.HttpMethod.HEAD)
+                .prepare()
+                .execute();
+
+        assertEquals(200, result.getStatus());
+        assertEquals(1, healthChecks.get());
+
+        HttpConnector connector = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/health")
+                .setMethod(Http.HttpMethod.HEAD)
+                .build()
+                .execute();
+        assertEquals(200, connector.getResponseCode());
+        assertEquals(2, healthChecks.get());
+    }
+}
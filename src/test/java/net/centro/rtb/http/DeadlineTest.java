@@ -0,0 +1,180 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests per-request deadlines and their phase budgets.
+ */
+public class DeadlineTest extends JerseyTest {
+
+    final static int SLOW = 1000;
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("fast")
+        public String getHelloFast() {
+            return "Hello fast";
+        }
+
+        @GET
+        @Path("slow")
+        public String getHelloSlow() throws InterruptedException {
+            Thread.sleep(SLOW);
+            return "Hello slow";
+        }
+
+        @GET
+        @Path("trickle")
+        public StreamingOutput trickle() {
+            return (OutputStream out) -> {
+                // past the server's buffer, so the headers go out right away
+                out.write(new byte[16 * 1024]);
+                out.flush();
+                try {
+                    Thread.sleep(SLOW);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                out.write(" trickle".getBytes());
+            };
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static DeadlineExceededException deadlineExceeded(CompletableFuture<HttpResult> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof DeadlineExceededException);
+            return (DeadlineExceededException) e.getCause();
+        }
+        fail("Expected the deadline to be exceeded");
+        return null;
+    }
+
+    @Test
+    public void testWithinDeadline() throws Exception {
+
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/fast")
+                .deadline(2, TimeUnit.SECONDS)
+                .prepare()
+                .executeAsync()
+                .get();
+        assertEquals("Hello fast", result.getBody());
+    }
+
+    @Test
+    public void testTotalDeadline() throws Exception {
+
+        long start = System.currentTimeMillis();
+        DeadlineExceededException e = deadlineExceeded(HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .deadline(200, TimeUnit.MILLISECONDS)
+                .prepare()
+                .executeAsync());
+
+        assertEquals(Http.RequestPhase.FIRST_BYTE, e.getPhase());
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    @Test
+    public void testFirstByteBudget() throws Exception {
+
+        long start = System.currentTimeMillis();
+        DeadlineExceededException e = deadlineExceeded(HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .deadline(Deadline.of(3, TimeUnit.SECONDS).withFirstByteBudget(100, TimeUnit.MILLISECONDS))
+                .build()
+                .executeAsync());
+
+        assertEquals(Http.RequestPhase.FIRST_BYTE, e.getPhase());
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    @Test
+    public void testBodyBudget() throws Exception {
+
+        long start = System.currentTimeMillis();
+        DeadlineExceededException e = deadlineExceeded(HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/trickle")
+                .deadline(Deadline.of(3, TimeUnit.SECONDS).withBodyBudget(200, TimeUnit.MILLISECONDS))
+                .prepare()
+                .executeAsync());
+
+        assertEquals(Http.RequestPhase.BODY, e.getPhase());
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    @Test
+    public void testPerExecutionDeadline() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .deadline(5, TimeUnit.SECONDS)
+                .prepare();
+
+        deadlineExceeded(request.executeAsync(null, Deadline.of(100, TimeUnit.MILLISECONDS)));
+        assertEquals("Hello slow", request.executeAsync().get().getBody());
+    }
+
+    @Test
+    public void testSyncExecute() throws Exception {
+
+        try {
+            HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9998/slow")
+                    .deadline(100, TimeUnit.MILLISECONDS)
+                    .prepare()
+                    .execute();
+            fail();
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+    }
+
+    @Test
+    public void testDeadlinesShareTheClient() throws Exception {
+
+        HttpConnectorBuilder.newBuilder().url("http://localhost:9998/fast").prepare();
+        long size = ClientFactory.getCacheSize();
+
+        HttpConnectorBuilder.newBuilder().url("http://localhost:9998/fast").deadline(100, TimeUnit.MILLISECONDS).prepare();
+        HttpConnectorBuilder.newBuilder().url("http://localhost:9998/fast").deadline(250, TimeUnit.MILLISECONDS).build();
+        HttpConnectorBuilder.newBuilder().url("http://localhost:9998/fast")
+                .deadline(Deadline.of(1, TimeUnit.SECONDS).withConnectBudget(50, TimeUnit.MILLISECONDS)).prepare();
+
+        assertEquals(size, ClientFactory.getCacheSize());
+    }
+
+    @Test
+    public void testBudgetsAreBounded() {
+
+        Deadline deadline = Deadline.of(100, TimeUnit.MILLISECONDS).withConnectBudget(1, TimeUnit.SECONDS);
+        assertEquals(100, deadline.getConnectBudget(TimeUnit.MILLISECONDS));
+        assertEquals(100, deadline.getFirstByteBudget(TimeUnit.MILLISECONDS));
+        assertEquals(100, deadline.getBodyBudget(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,224 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests saving response bodies to files, with the Jersey connectors and the engines.
+ */
+public class FileSinkTest extends JerseyTest {
+
+    // larger than FileSink.HIGH_WATERMARK, so the NettyEngine connector pauses reading
+    private static final byte[] DATA = new byte[6 * 1024 * 1024 + 31];
+
+    static {
+        new Random(21).nextBytes(DATA);
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("length")
+        public byte[] length() {
+            return DATA;
+        }
+
+        @GET
+        @Path("chunked")
+        public StreamingOutput chunked() {
+            return out -> {
+                for (int offset = 0; offset < DATA.length; offset += 100_000) {
+                    out.write(DATA, offset, Math.min(100_000, DATA.length - offset));
+                    out.flush();
+                }
+            };
+        }
+
+        @GET
+        @Path("gzip")
+        public Response gzip() throws Exception {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(DATA);
+            }
+            return Response.ok(bytes.toByteArray()).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("empty")
+        public Response empty() {
+            return Response.noContent().build();
+        }
+
+        @GET
+        @Path("missing")
+        public Response missing() {
+            return Response.status(404).entity("not here").build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    /**
+     * @param maxPerHost distinct for each test, for clients of its own: the connections pooled by the other tests are
+     * to servers since stopped.
+     */
+    private static HttpConnectorBuilder builder(String path, Http.ConnectorProvider provider, int maxPerHost) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(provider)
+                .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost));
+    }
+
+    private static List<Http.ConnectorProvider> providers() {
+
+        List<Http.ConnectorProvider> providers = new ArrayList<>(Arrays.asList(Http.ConnectorProvider.HttpUrlConnector,
+                Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine));
+        if (JdkHttpEngine.isSupported()) {
+            providers.add(Http.ConnectorProvider.JdkHttpClient);
+        }
+        return providers;
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try {
+            for (Http.ConnectorProvider provider : providers()) {
+                for (String path : new String[]{"length", "chunked"}) {
+                    Files.write(file, new byte[]{1, 2, 3});
+                    HttpResult result = builder(path, provider, 21).prepare().saveToFileAsync(file).get(30, TimeUnit.SECONDS);
+
+                    assertEquals(provider.name() + " " + path, 200, result.getStatus());
+                    assertEquals(provider.name() + " " + path, 0, result.getBody().length());
+                    assertArrayEquals(provider.name() + " " + path, DATA, Files.readAllBytes(file));
+                }
+
+                // with an HttpConnector, the file set in the builder
+                HttpConnector connector = builder("length", provider, 21).saveToFile(file).build();
+                Files.delete(file);
+                assertEquals(provider.name(), 200, connector.saveToFileAsync().get(30, TimeUnit.SECONDS).getStatus());
+                assertEquals(provider.name(), 200, connector.getResponseCode());
+                assertArrayEquals(provider.name(), DATA, Files.readAllBytes(file));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testEncodedAndEmptyBodies() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try {
+            List<Http.ConnectorProvider> providers = providers();
+            // the Apache connector decodes a gzip body twice, on its own and in the client
+            providers.remove(Http.ConnectorProvider.Apache);
+            for (Http.ConnectorProvider provider : providers) {
+                // the NettyEngine connector decodes it in memory, then writes it
+                builder("gzip", provider, 22).prepare().saveToFileAsync(file).get(30, TimeUnit.SECONDS);
+                assertArrayEquals(provider.name(), DATA, Files.readAllBytes(file));
+
+                // the file is created, or truncated
+                assertEquals(provider.name(), 204, builder("empty", provider, 22).prepare().saveToFileAsync(file).get(30, TimeUnit.SECONDS).getStatus());
+                assertEquals(provider.name(), 0, Files.size(file));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testErrorKeepsItsBody() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try {
+            for (Http.ConnectorProvider provider : providers()) {
+                Files.write(file, new byte[]{1, 2, 3});
+                HttpResult result = builder("missing", provider, 23).prepare().saveToFileAsync(file).get(30, TimeUnit.SECONDS);
+
+                assertEquals(provider.name(), 404, result.getStatus());
+                assertEquals(provider.name(), "not here", result.getBody());
+                assertArrayEquals(provider.name(), new byte[]{1, 2, 3}, Files.readAllBytes(file));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSaveResponse() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try {
+            Response response = target("chunked").request().get();
+            assertEquals(Long.valueOf(DATA.length), HttpConnector.saveToFileAsync(response, file).get(30, TimeUnit.SECONDS));
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+
+            // the blocking one
+            HttpConnector connector = builder("length", Http.ConnectorProvider.HttpUrlConnector, 24).build().execute();
+            Files.delete(file);
+            connector.saveToFile(file);
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSinkBackPressure() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try {
+            FileSink sink = new FileSink(file);
+            boolean paused = false;
+            CompletableFuture<Void> resumed = new CompletableFuture<>();
+            for (int offset = 0; offset < DATA.length; offset += 1024 * 1024) {
+                sink.write(ByteBuffer.wrap(DATA, offset, Math.min(1024 * 1024, DATA.length - offset)), () -> { });
+                if (!paused && sink.pending() > FileSink.HIGH_WATERMARK) {
+                    paused = true;
+                    sink.whenDrained(() -> resumed.complete(null));
+                }
+            }
+            CompletableFuture<Long> done = sink.finish();
+            assertEquals(Long.valueOf(DATA.length), done.get(30, TimeUnit.SECONDS));
+            assertEquals(0, sink.pending());
+            assertEquals(paused, resumed.isDone());
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+
+            // a stream, through the copy buffers
+            assertEquals(Long.valueOf(DATA.length), new FileSink(file).copyAsync(new ByteArrayInputStream(DATA, 0, DATA.length)).get(30, TimeUnit.SECONDS));
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Application;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests hedged requests and the hedge rate cap.
+ */
+public class HedgePolicyTest extends JerseyTest {
+
+    final static int SLOW = 1000;
+    final static ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    // the responses are delayed off the server's worker threads, a slow call never holds up its hedge
+    private static final ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hedge-policy-test");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        /**
+         * The first call is slow, the following ones are fast.
+         */
+        @GET
+        @Path("hedge/{id}")
+        public void getHedge(@PathParam("id") String id, @Suspended AsyncResponse response) {
+            hedge(id, "", response);
+        }
+
+        @POST
+        @Path("hedge/{id}")
+        public void postHedge(@PathParam("id") String id, String body, @Suspended AsyncResponse response) {
+            hedge(id, "", response);
+        }
+
+        @PUT
+        @Path("hedge/{id}")
+        public void putHedge(@PathParam("id") String id, String body, @Suspended AsyncResponse response) {
+            hedge(id, " " + body, response);
+        }
+
+        @GET
+        @Path("sleep/{id}")
+        public void getSleep(@PathParam("id") String id, @Suspended AsyncResponse response) {
+            count(id);
+            delays.schedule(() -> response.resume("slept"), 200, TimeUnit.MILLISECONDS);
+        }
+
+        private static void hedge(String id, String suffix, AsyncResponse response) {
+            int call = count(id);
+            if (call == 1) {
+                delays.schedule(() -> response.resume("call " + call + suffix), SLOW, TimeUnit.MILLISECONDS);
+            } else {
+                response.resume("call " + call + suffix);
+            }
+        }
+
+        private static int count(String id) {
+            return calls.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static int calls(String id) {
+        return calls.getOrDefault(id, new AtomicInteger()).get();
+    }
+
+    @Test
+    public void testHedgeWins() throws Exception {
+
+        long start = System.currentTimeMillis();
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/wins")
+                .hedge(HedgePolicy.afterDelay(100, TimeUnit.MILLISECONDS))
+                .prepare()
+                .executeAsync()
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals("call 2", result.getBody());
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+        assertEquals(2, calls("wins"));
+    }
+
+    @Test
+    public void testSyncExecute() throws Exception {
+
+        long start = System.currentTimeMillis();
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/sync")
+                .hedge(HedgePolicy.afterDelay(100, TimeUnit.MILLISECONDS))
+                .prepare()
+                .execute();
+
+        assertEquals("call 2", result.getBody());
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+    }
+
+    @Test
+    public void testHttpConnector() throws Exception {
+
+        HttpConnector connector = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/connector")
+                .hedge(HedgePolicy.afterDelay(100, TimeUnit.MILLISECONDS))
+                .build();
+
+        assertEquals("call 2", connector.executeAsync().get(5, TimeUnit.SECONDS).getBody());
+    }
+
+    @Test
+    public void testNoHedgeWhenFast() throws Exception {
+
+        HedgePolicy policy = HedgePolicy.afterDelay(300, TimeUnit.MILLISECONDS);
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/fast")
+                .hedge(policy)
+                .prepare();
+
+        request.execute();
+        // the slow first call was hedged, the second is fast
+        assertEquals("call 3", request.execute().getBody());
+        Thread.sleep(500);
+        assertEquals(3, calls("fast"));
+    }
+
+    @Test
+    public void testPostIsNotHedged() throws Exception {
+
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/post")
+                .setMethod(Http.HttpMethod.POST)
+                .hedge(HedgePolicy.afterDelay(50, TimeUnit.MILLISECONDS))
+                .prepare()
+                .executeAsync()
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals("call 1", result.getBody());
+        assertEquals(1, calls("post"));
+    }
+
+    @Test
+    public void testStreamingBodyIsNotHedged() throws Exception {
+
+        // the backup would send what the primary left of the stream
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/stream")
+                .setMethod(Http.HttpMethod.PUT)
+                // a pool of its own: a streamed body is not retried on a connection kept alive to a server since stopped
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .pool(PoolSettings.defaults().withMaxPerHost(71))
+                .hedge(HedgePolicy.afterDelay(50, TimeUnit.MILLISECONDS))
+                .prepare()
+                .executeAsync(new ByteArrayInputStream("streamed".getBytes(StandardCharsets.UTF_8)))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals("call 1 streamed", result.getBody());
+        Thread.sleep(200);
+        assertEquals(1, calls("stream"));
+    }
+
+    @Test
+    public void testFileBodyIsHedged() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("hedge", ".txt");
+        try {
+            Files.write(file, "from a file".getBytes(StandardCharsets.UTF_8));
+            HttpResult result = HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9998/hedge/file")
+                    .setMethod(Http.HttpMethod.PUT)
+                    .setConnectorProvider(Http.ConnectorProvider.NettyEngine)
+                    .pool(PoolSettings.defaults().withMaxPerHost(72))
+                    .hedge(HedgePolicy.afterDelay(100, TimeUnit.MILLISECONDS))
+                    .prepare()
+                    .executeAsync(file)
+                    .get(5, TimeUnit.SECONDS);
+
+            // the file is sent whole again
+            assertEquals("call 2 from a file", result.getBody());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testHedgeRateCap() throws Exception {
+
+        int requests = 40;
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/sleep/cap")
+                .hedge(HedgePolicy.afterDelay(20, TimeUnit.MILLISECONDS).withMaxHedgeRate(0.1))
+                .prepare();
+
+        List<CompletableFuture<HttpResult>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(request.executeAsync());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        int hedges = calls("cap") - requests;
+        assertTrue("hedges: " + hedges, hedges > 0);
+        assertTrue("hedges: " + hedges, hedges <= HedgePolicy.BURST + requests / 10);
+    }
+
+    @Test
+    public void testPercentileDelay() throws Exception {
+
+        HedgePolicy policy = HedgePolicy.afterPercentile(90, 2, TimeUnit.SECONDS);
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/hedge/percentile")
+                .hedge(policy)
+                .prepare();
+        URI uri = request.getURI();
+
+        assertEquals(2, policy.getDelay(uri, TimeUnit.SECONDS));
+        for (int i = 0; i < 64; i++) {
+            request.execute();
+        }
+        // learnt from the fast responses, the slow first one is only one sample
+        assertTrue(policy.getDelay(uri, TimeUnit.MILLISECONDS) < SLOW);
+    }
+
+    @Test
+    public void testCancelledPrimariesAreSampled() throws Exception {
+
+        HedgePolicy policy = HedgePolicy.afterPercentile(90, 50, TimeUnit.MILLISECONDS).withMaxHedgeRate(1);
+        URI uri = null;
+        // every primary is slow and beaten by its hedge
+        for (int i = 0; i < 32; i++) {
+            PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9998/hedge/censored-" + i)
+                    .hedge(policy)
+                    .prepare();
+            uri = request.getURI();
+            assertEquals("call 2", request.executeAsync().get(5, TimeUnit.SECONDS).getBody());
+        }
+        // the fast hedges alone would bring the delay down to their own latency
+        assertTrue(policy.getDelay(uri, TimeUnit.MILLISECONDS) >= 50);
+    }
+
+    @Test
+    public void testHedgeIsBoundedByTheDeadline() throws Exception {
+
+        try {
+            HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9998/sleep/deadline")
+                    .hedge(HedgePolicy.afterDelay(50, TimeUnit.MILLISECONDS))
+                    .deadline(150, TimeUnit.MILLISECONDS)
+                    .prepare()
+                    .executeAsync()
+                    .get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        assertEquals(2, calls("deadline"));
+    }
+}
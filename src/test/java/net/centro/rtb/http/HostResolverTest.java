@@ -0,0 +1,289 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the host resolver against a stub lookup, and the connectors using it.
+ */
+public class HostResolverTest extends JerseyTest {
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("bid")
+        public String bid() {
+            return "bid";
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    /**
+     * Answers the lookups of any host with its current records, after a delay.
+     */
+    static class StubLookup implements HostResolver.Lookup {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile String host;
+        volatile HostResolver.Records records;
+        volatile long delay;
+
+        StubLookup(long ttlMillis, String... addresses) throws UnknownHostException {
+            answer(ttlMillis, addresses);
+        }
+
+        void answer(long ttlMillis, String... addresses) throws UnknownHostException {
+            List<InetAddress> list = new ArrayList<>();
+            for (String address : addresses) {
+                list.add(InetAddress.getByName(address));
+            }
+            records = HostResolver.Records.of(ttlMillis, TimeUnit.MILLISECONDS, list);
+        }
+
+        @Override
+        public HostResolver.Records lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            this.host = host;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (host.endsWith(".invalid")) {
+                throw new UnknownHostException(host);
+            }
+            return records;
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+
+        StubLookup stub = new StubLookup(60000, "127.0.0.1");
+        stub.delay = 50;
+        HostResolver resolver = HostResolver.create(stub);
+
+        assertEquals(InetAddress.getByName("127.0.0.1"), resolver.resolve("bidder.test").get(0));
+        assertEquals(InetAddress.getByName("127.0.0.1"), resolver.resolve("BIDDER.test").get(0));
+
+        assertEquals(1, stub.lookups.get());
+        assertEquals(1, resolver.getLookupCount());
+        assertEquals(1, resolver.getMissCount());
+        assertEquals(1, resolver.getHitCount());
+        assertEquals(1, resolver.getSize());
+        assertTrue(resolver.getAverageLookupTime(TimeUnit.MILLISECONDS) >= 50);
+        assertTrue(resolver.getMaxLookupTime(TimeUnit.MILLISECONDS) >= 50);
+
+        resolver.invalidate("bidder.test");
+        resolver.resolve("bidder.test");
+        assertEquals(2, stub.lookups.get());
+    }
+
+    @Test
+    public void testLiteralAddressesAreNotLookedUp() throws Exception {
+
+        StubLookup stub = new StubLookup(60000, "127.0.0.1");
+        HostResolver resolver = HostResolver.create(stub);
+
+        assertEquals(InetAddress.getByName("10.1.2.3"), resolver.resolve("10.1.2.3").get(0));
+        assertEquals(0, stub.lookups.get());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+
+        HostResolver resolver = HostResolver.create(new StubLookup(60000, "127.0.0.1", "127.0.0.2", "127.0.0.3"));
+
+        List<InetAddress> first = resolver.resolve("bidder.test");
+        List<InetAddress> second = resolver.resolve("bidder.test");
+        List<InetAddress> third = resolver.resolve("bidder.test");
+        List<InetAddress> fourth = resolver.resolve("bidder.test");
+
+        assertEquals(3, second.size());
+        assertNotEquals(first.get(0), second.get(0));
+        assertNotEquals(second.get(0), third.get(0));
+        assertNotEquals(first.get(0), third.get(0));
+        assertEquals(first, fourth);
+        // all the addresses, as a fallback
+        assertTrue(second.containsAll(first));
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+
+        StubLookup stub = new StubLookup(400, "127.0.0.1");
+        HostResolver resolver = HostResolver.create(stub);
+        resolver.resolve("bidder.test");
+
+        // past 3/4 of the TTL, the cached address is served and refreshed
+        Thread.sleep(320);
+        stub.answer(400, "127.0.0.2");
+        stub.delay = 100;
+        CompletableFuture<List<InetAddress>> refreshing = resolver.resolveAsync("bidder.test");
+        assertTrue(refreshing.isDone());
+        assertEquals(InetAddress.getByName("127.0.0.1"), refreshing.get().get(0));
+
+        Thread.sleep(200);
+        assertEquals(2, stub.lookups.get());
+        assertEquals(1, resolver.getRefreshCount());
+        assertEquals(InetAddress.getByName("127.0.0.2"), resolver.resolveAsync("bidder.test").get().get(0));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+
+        StubLookup stub = new StubLookup(100, "127.0.0.1");
+        HostResolver resolver = HostResolver.create(stub);
+        resolver.resolve("bidder.test");
+
+        Thread.sleep(150);
+        stub.answer(100, "127.0.0.2");
+        assertEquals(InetAddress.getByName("127.0.0.2"), resolver.resolve("bidder.test").get(0));
+        assertEquals(2, resolver.getMissCount());
+    }
+
+    @Test
+    public void testHostNamesAreLowerCasedInAnyLocale() throws Exception {
+
+        Locale locale = Locale.getDefault();
+        try {
+            // "I" lower cases to a dotless i
+            Locale.setDefault(new Locale("tr", "TR"));
+            StubLookup stub = new StubLookup(60000, "127.0.0.1");
+            HostResolver resolver = HostResolver.create(stub);
+
+            resolver.resolve("BIDDER.test");
+            assertEquals("bidder.test", stub.host);
+            resolver.resolve("bidder.test");
+            assertEquals(1, stub.lookups.get());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testExpiredHostsAreDropped() throws Exception {
+
+        StubLookup stub = new StubLookup(100, "127.0.0.1");
+        HostResolver resolver = HostResolver.create(stub);
+        resolver.resolve("bidder.test");
+        try {
+            resolver.resolve("bidder.invalid");
+            fail("Expecting an UnknownHostException");
+        } catch (UnknownHostException e) {
+            // the entry of a host never cached
+        }
+        stub.answer(60000, "127.0.0.1");
+        resolver.resolve("other.test");
+
+        assertEquals(2, resolver.getSize());
+        // past the TTL of bidder.test
+        resolver.sweep(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(1, resolver.getSize());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCoalesced() throws Exception {
+
+        StubLookup stub = new StubLookup(60000, "127.0.0.1");
+        stub.delay = 100;
+        HostResolver resolver = HostResolver.create(stub);
+
+        List<CompletableFuture<List<InetAddress>>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(resolver.resolveAsync("bidder.test"));
+        }
+        for (CompletableFuture<List<InetAddress>> future : futures) {
+            assertEquals(InetAddress.getByName("127.0.0.1"), future.get().get(0));
+        }
+        assertEquals(1, stub.lookups.get());
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+
+        HostResolver resolver = HostResolver.create(new StubLookup(60000, "127.0.0.1"));
+        try {
+            resolver.resolve("bidder.invalid");
+            fail("Expecting an UnknownHostException");
+        } catch (UnknownHostException e) {
+            assertTrue(e.getMessage().contains("bidder.invalid"));
+        }
+        assertEquals(1, resolver.getFailureCount());
+        assertEquals(0, resolver.getSize());
+    }
+
+    @Test
+    public void testConnectors() throws Exception {
+
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Apache, Http.ConnectorProvider.Jetty}) {
+            StubLookup stub = new StubLookup(60000, "127.0.0.1");
+            HostResolver resolver = HostResolver.create(stub);
+            PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                    .url("http://bidder.example.com:9998/bid")
+                    .setConnectorProvider(provider)
+                    .resolver(resolver)
+                    .prepare();
+
+            assertEquals(provider.name(), "bid", request.execute().getBody());
+            assertEquals(provider.name(), "bid", request.executeAsync().get().getBody());
+            assertEquals(provider.name(), 1, stub.lookups.get());
+        }
+    }
+
+    @Test
+    public void testFallbackToTheNextAddress() throws Exception {
+
+        // the test server listens on 127.0.0.1 only, 127.0.0.2 refuses the connections
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine}) {
+            HostResolver resolver = HostResolver.create(new StubLookup(60000, "127.0.0.2", "127.0.0.1"));
+            // two clients, two connects: the rotation puts the refusing address first for one of them at least
+            for (int maxPerHost : new int[]{91, 92}) {
+                PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                        .url("http://bidder.example.com:9998/bid")
+                        .setConnectorProvider(provider)
+                        .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost))
+                        .resolver(resolver)
+                        .prepare();
+
+                assertEquals(provider.name(), "bid", request.executeAsync().get(10, TimeUnit.SECONDS).getBody());
+            }
+        }
+    }
+
+    @Test
+    public void testResolverForksTheClient() throws Exception {
+
+        HostResolver resolver = HostResolver.create(new StubLookup(60000, "127.0.0.1"));
+        ClientProfile defaults = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/").getClientProfile();
+        ClientProfile custom = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/").resolver(resolver).getClientProfile();
+
+        assertSame(HostResolver.getDefault(), defaults.getHostResolver());
+        assertSame(resolver, custom.getHostResolver());
+        assertNotSame(defaults, custom);
+    }
+}
@@ -0,0 +1,208 @@
+package net.centro.rtb.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.ws.rs.ProcessingException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Http2 connector against a local HTTP/2 server, h2c and h2 over TLS.
+ */
+public class Http2ConnectorTest {
+
+    static final int H2C_PORT = 9996;
+    static final int H2_PORT = 9995;
+
+    Http2TestServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new Http2TestServer(H2C_PORT, false);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    private static HttpConnectorBuilder builder(String path) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:" + H2C_PORT + path)
+                .setConnectorProvider(Http.ConnectorProvider.Http2);
+    }
+
+    private static List<HttpResult> concurrently(PreparedRequest request, int count) throws Exception {
+
+        List<CompletableFuture<HttpResult>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(request.executeAsync());
+        }
+        List<HttpResult> results = new ArrayList<>();
+        for (CompletableFuture<HttpResult> future : futures) {
+            results.add(future.get(5, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+
+        PreparedRequest get = builder("/bid?id=1&site=a%20b").addHeaderProperty("x-test", "value").prepare();
+        HttpResult result = get.execute();
+        assertEquals(200, result.getStatus());
+        assertEquals("GET /bid?id=1&site=a%20b", result.getBody());
+        assertEquals("value", result.getHeader("x-test"));
+        assertEquals("text/plain", result.getHeader("Content-Type"));
+        assertEquals("GET /bid?id=1&site=a%20b", get.executeAsync().get().getBody());
+
+        PreparedRequest post = builder("/bid").setMethod(Http.HttpMethod.POST).setBody("request").prepare();
+        assertEquals("POST /bid request", post.execute().getBody());
+        assertEquals("POST /bid other", post.executeAsync("other").get().getBody());
+
+        // all on the same connection
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testMultiplexing() throws Exception {
+
+        PreparedRequest request = builder("/slow").prepare();
+        long start = System.currentTimeMillis();
+        for (HttpResult result : concurrently(request, 50)) {
+            assertEquals("GET /slow", result.getBody());
+            assertEquals("1", result.getHeader("x-connection"));
+        }
+
+        // 50 requests of 100ms each in parallel, on a single connection
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, server.connections.get());
+        assertTrue(server.maxStreams.get() > 1);
+    }
+
+    @Test
+    public void testMaxConcurrentStreams() throws Exception {
+
+        PreparedRequest request = builder("/slow").pool(PoolSettings.defaults().withMaxConcurrentStreams(10)).prepare();
+        concurrently(request, 30);
+        assertEquals(3, server.connections.get());
+        assertTrue(server.maxStreams.get() <= 10);
+    }
+
+    @Test
+    public void testRequestsWaitForAStream() throws Exception {
+
+        PreparedRequest request = builder("/slow").pool(PoolSettings.defaults().withMaxPerHost(1).withMaxConcurrentStreams(5)).prepare();
+        long start = System.currentTimeMillis();
+        assertEquals(15, concurrently(request, 15).size());
+
+        // three rounds of 5 streams
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(1, server.connections.get());
+        assertTrue(server.maxStreams.get() <= 5);
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+
+        PreparedRequest request = builder("/stalled").setReadTimeout(500).prepare();
+        try {
+            request.execute();
+            fail("Expecting a read timeout");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+        }
+
+        // the stream was reset, the connection is still in use: the same timeout, for the same client
+        assertEquals("GET /bid", builder("/bid").setReadTimeout(500).prepare().execute().getBody());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+
+        try {
+            builder("/slow").deadline(50, TimeUnit.MILLISECONDS).prepare().executeAsync().get();
+            fail("Expecting the deadline to be exceeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof DeadlineExceededException);
+        }
+    }
+
+    @Test
+    public void testPoolStats() throws Exception {
+
+        PreparedRequest request = builder("/bid").pool(PoolSettings.defaults().withIdleTimeout(300, TimeUnit.MILLISECONDS)).prepare();
+        request.execute();
+
+        PoolStats stats = ClientFactory.getPoolStats(request.getClientProfile()).get("localhost:" + H2C_PORT);
+        assertEquals(1, stats.getIdle());
+        assertEquals(0, stats.getLeased());
+
+        // closed once idle
+        Thread.sleep(800);
+        assertEquals(0, ClientFactory.getPoolStats(request.getClientProfile()).get("localhost:" + H2C_PORT).getIdle());
+        assertEquals(0, server.open.get());
+    }
+
+    @Test
+    public void testUnreachableHost() throws Exception {
+
+        try {
+            HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9997/bid")
+                    .setConnectorProvider(Http.ConnectorProvider.Http2)
+                    .prepare()
+                    .execute();
+            fail("Expecting a connection failure");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof ConnectException);
+        }
+    }
+
+    @Test
+    public void testAlpn() throws Exception {
+
+        try (Http2TestServer tls = new Http2TestServer(H2_PORT, true, "h2")) {
+            PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                    .url("https://localhost:" + H2_PORT + "/bid")
+                    .setConnectorProvider(Http.ConnectorProvider.Http2)
+                    .trustAllSslContext()
+                    .prepare();
+            long handshakes = ClientFactory.getTlsStats(request.getClientProfile()).getHandshakeCount();
+            for (HttpResult result : concurrently(request, 10)) {
+                assertEquals("GET /bid", result.getBody());
+            }
+            assertEquals(1, tls.connections.get());
+            assertEquals(handshakes + 1, ClientFactory.getTlsStats(request.getClientProfile()).getHandshakeCount());
+        }
+    }
+
+    @Test
+    public void testServerWithoutHttp2() throws Exception {
+
+        // an HTTP/1.1 server that does not negotiate any protocol
+        try (Http2TestServer tls = new Http2TestServer(H2_PORT, true)) {
+            HttpConnectorBuilder.newBuilder()
+                    .url("https://localhost:" + H2_PORT + "/bid")
+                    .setConnectorProvider(Http.ConnectorProvider.Http2)
+                    .trustAllSslContext()
+                    .prepare()
+                    .execute();
+            fail("Expecting ALPN to fail");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SSLHandshakeException);
+            assertTrue(e.getCause().getMessage().contains("HTTP/2"));
+        }
+    }
+}
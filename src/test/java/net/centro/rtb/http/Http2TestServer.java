@@ -0,0 +1,167 @@
+package net.centro.rtb.http;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A Netty HTTP/2 server for the tests, h2c with prior knowledge or h2 over TLS negotiated with ALPN.
+ * Answers every request with its method, path and body, and echoes the x-test header. /slow answers after 100ms, /stalled after 2s.
+ */
+final class Http2TestServer implements AutoCloseable {
+
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger open = new AtomicInteger();
+    final LongAccumulator maxStreams = new LongAccumulator(Math::max, 0);
+
+    private final EventLoopGroup group = new NioEventLoopGroup(2);
+    private final Channel channel;
+
+    /**
+     * @param secure h2 over TLS rather than h2c.
+     * @param protocols the ALPN protocols of the server, none to not negotiate any.
+     */
+    Http2TestServer(int port, boolean secure, String... protocols) throws Exception {
+
+        SSLContext context = secure ? sslContext() : null;
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        int id = connections.incrementAndGet();
+                        open.incrementAndGet();
+                        channel.closeFuture().addListener(future -> open.decrementAndGet());
+                        if (context != null) {
+                            SSLEngine engine = context.createSSLEngine();
+                            engine.setUseClientMode(false);
+                            if (protocols.length > 0) {
+                                SSLParameters parameters = engine.getSSLParameters();
+                                parameters.setApplicationProtocols(protocols);
+                                engine.setSSLParameters(parameters);
+                            }
+                            channel.pipeline().addLast(new SslHandler(engine));
+                        }
+                        channel.pipeline().addLast(new Handler(id).handler);
+                    }
+                })
+                .bind("localhost", port).sync().channel();
+    }
+
+    private static SSLContext sslContext() throws Exception {
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = Http2TestServer.class.getResourceAsStream("/localhost.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "changeit".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    @Override
+    public void close() throws Exception {
+        channel.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    /** The streams of a connection. */
+    private final class Handler extends Http2FrameAdapter {
+
+        final int connection;
+        final Http2ConnectionHandler handler;
+        final Map<Integer, Http2Headers> headers = new HashMap<>();
+        final Map<Integer, ByteBuf> bodies = new HashMap<>();
+
+        Handler(int connection) {
+            this.connection = connection;
+            this.handler = new Http2ConnectionHandlerBuilder().server(true).frameListener(this).build();
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int padding, boolean endOfStream) {
+
+            this.headers.put(streamId, headers);
+            bodies.put(streamId, Unpooled.buffer());
+            maxStreams.accumulate(handler.connection().numActiveStreams());
+            if (endOfStream) {
+                respond(context, streamId);
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext context, int streamId, Http2Headers headers, int streamDependency,
+                                  short weight, boolean exclusive, int padding, boolean endOfStream) {
+            onHeadersRead(context, streamId, headers, padding, endOfStream);
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext context, int streamId, ByteBuf data, int padding, boolean endOfStream) {
+
+            int processed = data.readableBytes() + padding;
+            bodies.get(streamId).writeBytes(data);
+            if (endOfStream) {
+                respond(context, streamId);
+            }
+            return processed;
+        }
+
+        private void respond(ChannelHandlerContext context, int streamId) {
+
+            Http2Headers request = headers.remove(streamId);
+            ByteBuf body = bodies.remove(streamId);
+            String path = request.path().toString();
+            String text = request.method() + " " + path + (body.isReadable() ? " " + body.toString(StandardCharsets.UTF_8) : "");
+
+            Http2Headers response = new DefaultHttp2Headers()
+                    .status("200")
+                    .set("content-type", "text/plain")
+                    .setInt("x-connection", connection);
+            if (request.get("x-test") != null) {
+                response.set("x-test", request.get("x-test"));
+            }
+            Runnable write = () -> {
+                handler.encoder().writeHeaders(context, streamId, response, 0, false, context.newPromise());
+                handler.encoder().writeData(context, streamId, Unpooled.copiedBuffer(text, StandardCharsets.UTF_8), 0, true, context.newPromise());
+                context.channel().flush();
+            };
+            if (path.startsWith("/slow")) {
+                context.executor().schedule(write, 100, TimeUnit.MILLISECONDS);
+            } else if (path.startsWith("/stalled")) {
+                context.executor().schedule(write, 2, TimeUnit.SECONDS);
+            } else {
+                write.run();
+            }
+        }
+    }
+}
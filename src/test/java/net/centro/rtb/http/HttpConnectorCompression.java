@@ -11,7 +11,6 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
-import javax.activation.MimetypesFileTypeMap;
 import javax.inject.Singleton;
 import javax.ws.rs.*;
 import javax.ws.rs.container.ContainerRequestContext;
@@ -26,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
@@ -77,12 +77,13 @@ public class HttpConnectorCompression extends JerseyTest {
         @GET
         @Path("file")
         @Produces("application/zip")
-        public Response getFile(@QueryParam("path") String path) {
+        public Response getFile(@QueryParam("path") String path) throws IOException {
 
             File f = new File(path);
-            String mt = new MimetypesFileTypeMap().getContentType(f);
+            // javax.activation is not part of the JDK from 11 on
+            String mt = Files.probeContentType(f.toPath());
 
-            return Response.ok(f,mt).build();
+            return Response.ok(f, (mt != null) ? mt : MediaType.APPLICATION_OCTET_STREAM).build();
         }
 
         @GET
@@ -20,11 +20,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.junit.rules.TemporaryFolder;
-import javax.activation.MimetypesFileTypeMap;
 import javax.imageio.ImageIO;
 import javax.inject.Singleton;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
+import javax.ws.rs.client.Client;
 import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
@@ -39,6 +39,8 @@ import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.InflaterInputStream;
@@ -89,12 +91,13 @@ public class HttpConnectorTest extends JerseyTest {
         @GET
         @Path("file")
         @Produces("application/zip")
-        public Response getFile(@QueryParam("path") String path) {
+        public Response getFile(@QueryParam("path") String path) throws IOException {
 
             File f = new File(path);
-            String mt = new MimetypesFileTypeMap().getContentType(f);
+            // javax.activation is not part of the JDK from 11 on
+            String mt = Files.probeContentType(f.toPath());
 
-            return Response.ok(f,mt).build();
+            return Response.ok(f, (mt != null) ? mt : MediaType.APPLICATION_OCTET_STREAM).build();
         }
 
         @GET
@@ -130,6 +133,12 @@ public class HttpConnectorTest extends JerseyTest {
             //return Response.status(201).build();
         }
 
+        @GET
+        @Path("empty")
+        public Response getEmpty() {
+            return Response.noContent().build();
+        }
+
         @GET
         @Path("list")
         @Produces(MediaType.APPLICATION_JSON)
@@ -284,6 +293,60 @@ public class HttpConnectorTest extends JerseyTest {
     }
 
 
+    @Test
+    public void getCookieAsync() throws Exception {
+
+        HttpConnectorCookieManager.reset();
+        HttpConnector http = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/cookie")
+                .storeCookies()
+                .async()
+                .build()
+                .execute();
+
+        // execute() does not wait for the response, the cookie arrives with it
+        http.getFuture().get();
+        Thread.sleep(100);
+        Assert.assertEquals("passed", HttpConnectorCookieManager.getCookie("test").getValue());
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+
+        HttpConnector http = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .build();
+
+        CompletableFuture<HttpResult> future = http.executeAsync();
+        // nothing blocks while the request is in flight
+        Assert.assertEquals(0, http.getResponseCode());
+        Assert.assertNull(http.getResponseBody());
+
+        HttpResult result = future.get();
+        Assert.assertEquals(200, result.getStatus());
+        Assert.assertEquals("Hello slow", result.getBody());
+
+        Thread.sleep(100);
+        Assert.assertEquals(200, http.getResponseCode());
+        Assert.assertEquals("Hello slow", http.getResponseBody());
+        Assert.assertTrue(http.isAsyncDone());
+        Assert.assertTrue(http.geResponseTime() >= SLOW);
+    }
+
+    @Test
+    public void testExecuteAsyncPost() throws Exception {
+
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/add")
+                .setMethod(Http.HttpMethod.POST)
+                .setBody("{\"a\":\"5\",\"b\":\"5\"}")
+                .addHeaderProperty("Content-Type", "application/json")
+                .build()
+                .executeAsync(5, TimeUnit.SECONDS)
+                .get();
+        Assert.assertEquals(201, result.getStatus());
+        Assert.assertEquals(Integer.valueOf(10), result.getBody(Integer.class));
+    }
+
     @Test
     public void testGetResponseCode() throws URISyntaxException {
 
@@ -622,6 +685,101 @@ public class HttpConnectorTest extends JerseyTest {
                 .execute();
     }
 
+    /**
+     * @return the leases of the cached client of the profile, other than the one taken to count them.
+     */
+    private static int leases(ClientProfile profile) {
+
+        ManagedClient client = ClientFactory.acquire(profile);
+        client.release();
+        return client.getInFlight();
+    }
+
+    private static int awaitLeases(ClientProfile profile, int leases) throws InterruptedException {
+
+        for (int i = 0; i < 100 && leases(profile) != leases; i++) {
+            Thread.sleep(20);
+        }
+        return leases(profile);
+    }
+
+    /**
+     * @return a builder of a client of its own, with the Apache connector's pool.
+     */
+    private static HttpConnectorBuilder leaseBuilder(String path) throws URISyntaxException {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .pool(PoolSettings.defaults().withMaxPerHost(81));
+    }
+
+    @Test
+    public void testClientLease() throws Exception {
+
+        // leased until the body is read, once per execution
+        HttpConnectorBuilder builder = leaseBuilder("fast");
+        HttpConnector connector = builder.build();
+        // with the default properties build() applied
+        ClientProfile profile = builder.getClientProfile();
+        assertEquals(0, leases(profile));
+        connector.execute();
+        assertEquals(1, leases(profile));
+        assertEquals("Hello fast", connector.getResponseBody());
+        assertEquals(0, leases(profile));
+        connector.execute();
+        assertEquals(1, leases(profile));
+        try (InputStream in = connector.getResponseBody(InputStream.class)) {
+            assertEquals("Hello fast", CharStreams.toString(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        }
+        assertEquals(0, leases(profile));
+
+        // the status only, closed
+        connector.execute();
+        assertEquals(200, connector.getResponseCode());
+        connector.close();
+        assertEquals(0, leases(profile));
+
+        // the status only of a response without a body
+        assertEquals(204, leaseBuilder("empty").build().execute().getResponseCode());
+        assertEquals(0, leases(profile));
+
+        // async, with no callback: the status only, closed
+        HttpConnector async = leaseBuilder("fast").async().build().execute();
+        assertEquals(200, async.getResponseCode());
+        assertEquals(1, leases(profile));
+        async.close();
+        assertEquals(0, leases(profile));
+
+        // fire and forget, of a response without a body
+        leaseBuilder("empty").async().build().execute();
+        assertEquals(0, awaitLeases(profile, 0));
+
+        // a callback reading the body
+        CompletableFuture<String> read = new CompletableFuture<>();
+        leaseBuilder("fast").async(new InvocationCallback<Response>() {
+            @Override
+            public void completed(Response response) {
+                read.complete(HttpConnector.getResponseBody(response, String.class));
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                read.completeExceptionally(throwable);
+            }
+        }).build().execute();
+        assertEquals("Hello fast", read.get(5, TimeUnit.SECONDS));
+        assertEquals(0, awaitLeases(profile, 0));
+
+        // executed again once the cached client is retired: on the client cached since
+        Client retired = connector.getRawClient();
+        ClientFactory.setCacheStaleTimeout(1, TimeUnit.MINUTES);
+        connector.execute();
+        assertNotSame(retired, connector.getRawClient());
+        assertEquals(1, leases(profile));
+        assertEquals("Hello fast", connector.getResponseBody());
+        assertEquals(0, leases(profile));
+    }
+
     @Test
     public void testGenericType() throws URISyntaxException {
 
@@ -0,0 +1,171 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+import javax.ws.rs.core.*;
+import java.io.ByteArrayOutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the JdkHttpClient connector. Only the Java 8 fallback is tested on Java 8.
+ */
+public class JdkHttpEngineTest extends JerseyTest {
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("fast")
+        public String getHelloFast() {
+            return "Hello fast";
+        }
+
+        @GET
+        @Path("slow")
+        public String getHelloSlow() throws InterruptedException {
+            Thread.sleep(500);
+            return "Hello slow";
+        }
+
+        @POST
+        @Path("echo")
+        public Response echo(String body, @HeaderParam("x-token") String token, @HeaderParam("content-type") String contentType) {
+            return Response.status(201).entity(body + ":" + token + ":" + contentType).build();
+        }
+
+        @GET
+        @Path("gzip")
+        public Response gzip() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write("Hello gzip".getBytes(StandardCharsets.UTF_8));
+            }
+            return Response.ok(bytes.toByteArray(), MediaType.TEXT_PLAIN).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("login")
+        public Response login() {
+            return Response.ok("logged in").cookie(new NewCookie("session", "s1")).build();
+        }
+
+        @GET
+        @Path("whoami")
+        public String whoami(@CookieParam("session") String session) {
+            return "session " + session;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class).register(JacksonFeature.class);
+    }
+
+    private static HttpConnectorBuilder builder(String path) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(Http.ConnectorProvider.JdkHttpClient);
+    }
+
+    @Test
+    public void testUnsupportedBeforeJava11() throws Exception {
+
+        assumeTrue(!JdkHttpEngine.isSupported());
+        try {
+            builder("fast");
+            fail("Expecting the connector to be unsupported");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("Java 11"));
+        }
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        PreparedRequest get = builder("fast").prepare();
+        for (int i = 0; i < 5; i++) {
+            HttpResult result = get.execute();
+            assertEquals(200, result.getStatus());
+            assertEquals("OK", result.getReasonPhrase());
+            assertEquals("Hello fast", result.getBody());
+        }
+        assertEquals("Hello fast", get.executeAsync().get().getBody());
+
+        PreparedRequest post = builder("echo").setMethod(Http.HttpMethod.POST).addHeaderProperty("x-token", "secret").prepare();
+        assertEquals(201, post.execute("body").getStatus());
+        assertEquals("body:secret:text/plain", post.execute("body").getBody());
+        assertEquals("bytes:secret:text/plain", post.execute("bytes".getBytes(StandardCharsets.UTF_8)).getBody());
+        assertEquals("buffer:secret:text/plain", post.executeAsync(ByteBuffer.wrap("buffer".getBytes(StandardCharsets.UTF_8))).get().getBody());
+
+        PreparedRequest json = builder("echo").setMethod(Http.HttpMethod.POST).addHeaderProperty("content-type", "application/json").prepare();
+        assertEquals("{\"key\":\"value\"}:null:application/json", json.execute(Collections.singletonMap("key", "value")).getBody());
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        assertEquals("Hello gzip", builder("gzip").prepare().execute().getBody());
+    }
+
+    @Test
+    public void testCookies() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        HttpConnector.clearCookies();
+        HttpResult login = builder("login").storeCookies().prepare().execute();
+        assertEquals("s1", login.getCookies().get("session").getValue());
+        assertEquals("session s1", builder("whoami").storeCookies().prepare().execute().getBody());
+        HttpConnector.clearCookies();
+    }
+
+    @Test
+    public void testHttpConnector() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        HttpConnector connector = builder("echo").setMethod(Http.HttpMethod.POST).setBody("connector").build();
+        HttpResult result = connector.executeAsync().get();
+        assertEquals("connector:null:text/plain", result.getBody());
+        assertEquals(201, connector.getResponseCode());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        try {
+            builder("slow").setReadTimeout(100).prepare().execute();
+            fail("Expecting a read timeout");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+
+        assumeTrue(JdkHttpEngine.isSupported());
+        try {
+            builder("slow").deadline(100, TimeUnit.MILLISECONDS).prepare().executeAsync().get();
+            fail("Expecting the deadline to be exceeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof DeadlineExceededException);
+        }
+    }
+}
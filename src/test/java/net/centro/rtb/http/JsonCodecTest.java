@@ -0,0 +1,202 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests binding JSON response bodies with the readers kept per type, with the Jersey connectors and the engine.
+ */
+public class JsonCodecTest extends JerseyTest {
+
+    private static final String BID = "{\"id\":\"b-1\",\"price\":1.25,\"adm\":\"<img src=\\\"x\\\">\"}";
+
+    public static class Bid {
+        public String id;
+        public double price;
+        public String adm;
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("bid")
+        @Produces(MediaType.APPLICATION_JSON)
+        public String bid() {
+            return BID;
+        }
+
+        @GET
+        @Path("bids")
+        @Produces(MediaType.APPLICATION_JSON)
+        public String bids() {
+            return "[" + BID + "," + BID.replace("b-1", "b-2") + "]";
+        }
+
+        @GET
+        @Path("gzip")
+        public Response gzip() throws Exception {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(BID.getBytes(StandardCharsets.UTF_8));
+            }
+            return Response.ok(bytes.toByteArray(), MediaType.APPLICATION_JSON).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("nobid")
+        public Response noBid() {
+            return Response.noContent().build();
+        }
+
+        @GET
+        @Path("error")
+        public Response error() {
+            return Response.serverError().entity("{\"error\":true}").build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    /**
+     * @param maxPerHost distinct for each test, for clients of its own: the connections pooled by the other tests are
+     * to servers since stopped.
+     */
+    private static HttpConnectorBuilder builder(String path, Http.ConnectorProvider provider, int maxPerHost) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(provider)
+                .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost));
+    }
+
+    private static final Http.ConnectorProvider[] PROVIDERS = {Http.ConnectorProvider.HttpUrlConnector,
+            Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine};
+
+    private static void assertBid(String message, String id, Bid bid) {
+        assertEquals(message, id, bid.id);
+        assertEquals(message, 1.25, bid.price, 0);
+        assertEquals(message, "<img src=\"x\">", bid.adm);
+    }
+
+    @Test
+    public void testExecuteJson() throws Exception {
+
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            assertBid(provider.name(), "b-1", builder("bid", provider, 41).prepare().executeJson(Bid.class).get());
+
+            List<Bid> bids = builder("bids", provider, 41).prepare().executeJson(null, null, new GenericType<List<Bid>>() { }).get();
+            assertEquals(provider.name(), 2, bids.size());
+            assertBid(provider.name(), "b-2", bids.get(1));
+
+            // no bid
+            assertNull(provider.name(), builder("nobid", provider, 41).prepare().executeJson(Bid.class).get());
+        }
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+
+        // the Apache connector decodes a gzip body twice, on its own and in the client
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.HttpUrlConnector, Http.ConnectorProvider.NettyEngine}) {
+            assertBid(provider.name(), "b-1", builder("gzip", provider, 42).prepare().executeJson(Bid.class).get());
+            assertBid(provider.name(), "b-1", builder("gzip", provider, 42).build().execute().decodeResponseBody(Bid.class));
+        }
+    }
+
+    @Test
+    public void testErrorStatus() throws Exception {
+
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            try {
+                builder("error", provider, 43).prepare().executeJson(Bid.class).get();
+                fail(provider.name() + ": expecting a 500 to fail");
+            } catch (ExecutionException e) {
+                assertTrue(provider.name(), e.getCause() instanceof ProcessingException);
+                assertTrue(provider.name(), e.getCause().getMessage().contains("500"));
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeResponseBody() throws Exception {
+
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            // from the connection
+            HttpConnector connector = builder("bid", provider, 44).build().execute();
+            Bid bid = connector.decodeResponseBody(Bid.class);
+            assertBid(provider.name(), "b-1", bid);
+            assertSame(provider.name(), bid, connector.getResponseBody(Bid.class));
+            // bound again to another type
+            assertEquals(provider.name(), "b-1", connector.decodeResponseBody(Map.class).get("id"));
+            assertSame(provider.name(), bid, connector.decodeResponseBody(Bid.class));
+
+            // after executeAsync(), from the result
+            HttpConnector async = builder("bids", provider, 44).build();
+            async.executeAsync().get();
+            assertEquals(provider.name(), 2, async.decodeResponseBody(new GenericType<List<Bid>>() { }).size());
+
+            // the body already read as text
+            HttpConnector text = builder("bid", provider, 44).build().execute();
+            assertEquals(provider.name(), BID, text.getResponseBody());
+            assertBid(provider.name(), "b-1", text.decodeResponseBody(Bid.class));
+
+            // no body, after getResponseBody() gave its placeholder text
+            HttpConnector empty = builder("nobid", provider, 44).build().execute();
+            assertTrue(provider.name(), empty.getResponseBody(String.class).startsWith("Empty response"));
+            assertNull(provider.name(), empty.decodeResponseBody(Bid.class));
+        }
+    }
+
+    @Test
+    public void testBufferedResponse() throws Exception {
+
+        for (Http.ConnectorProvider provider : PROVIDERS) {
+            try (BufferedResponse response = builder("bid", provider, 45).prepare().executeBuffered().get()) {
+                assertBid(provider.name(), "b-1", response.getBody(Bid.class));
+            }
+        }
+        try (BufferedResponse response = builder("nobid", Http.ConnectorProvider.NettyEngine, 45).prepare().executeBuffered().get()) {
+            assertNull(response.getBody(Bid.class));
+        }
+    }
+
+    @Test
+    public void testReaders() throws Exception {
+
+        assertSame(JsonCodec.reader(Bid.class), JsonCodec.reader(Bid.class));
+        assertSame(JsonCodec.reader(new GenericType<List<Bid>>() { }.getType()), JsonCodec.reader(new GenericType<List<Bid>>() { }.getType()));
+
+        // in place, a direct buffer and a slice of an array
+        byte[] bytes = ("xx" + BID).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).position(2);
+        assertBid("direct", "b-1", JsonCodec.read(direct, Bid.class));
+        assertEquals(2, direct.position());
+        assertBid("array", "b-1", JsonCodec.read(ByteBuffer.wrap(bytes, 2, bytes.length - 2), Bid.class));
+    }
+}
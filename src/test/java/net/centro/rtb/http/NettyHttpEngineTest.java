@@ -0,0 +1,376 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+import javax.ws.rs.core.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the NettyEngine connector, against the test container and a raw socket server for what the container does not do.
+ */
+public class NettyHttpEngineTest extends JerseyTest {
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("fast")
+        public String getHelloFast(@QueryParam("name") String name) {
+            return (name != null) ? "Hello " + name : "Hello fast";
+        }
+
+        @GET
+        @Path("slow")
+        public String getHelloSlow() throws InterruptedException {
+            Thread.sleep(500);
+            return "Hello slow";
+        }
+
+        @GET
+        @Path("ordered/{id}")
+        public String ordered(@PathParam("id") int id) throws InterruptedException {
+            // later requests answer faster, pipelined responses must still come back in order
+            Thread.sleep(50 - id * 5);
+            return "id " + id;
+        }
+
+        @POST
+        @Path("echo")
+        public Response echo(String body, @HeaderParam("x-token") String token, @HeaderParam("content-type") String contentType) {
+            return Response.status(201).entity(body + ":" + token + ":" + contentType).header("x-echo", "Mixed Case").build();
+        }
+
+        @GET
+        @Path("chunked")
+        public Response chunked() {
+            StreamingOutput output = out -> {
+                for (int i = 0; i < 100; i++) {
+                    out.write(("chunk " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            };
+            return Response.ok(output, MediaType.TEXT_PLAIN).build();
+        }
+
+        @GET
+        @Path("gzip")
+        public Response gzip() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write("Hello gzip".getBytes(StandardCharsets.UTF_8));
+            }
+            return Response.ok(bytes.toByteArray(), MediaType.TEXT_PLAIN).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("empty")
+        public Response empty() {
+            return Response.noContent().build();
+        }
+
+        @GET
+        @Path("login")
+        public Response login() {
+            return Response.ok("logged in").cookie(new NewCookie("session", "s1")).build();
+        }
+
+        @GET
+        @Path("whoami")
+        public String whoami(@CookieParam("session") String session) {
+            return "session " + session;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class).register(JacksonFeature.class);
+    }
+
+    private static HttpConnectorBuilder builder(String path) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(Http.ConnectorProvider.NettyEngine);
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+
+        PreparedRequest get = builder("fast").prepare();
+        for (int i = 0; i < 5; i++) {
+            HttpResult result = get.execute();
+            assertEquals(200, result.getStatus());
+            assertEquals("OK", result.getReasonPhrase());
+            assertEquals("Hello fast", result.getBody());
+        }
+        assertEquals("Hello fast", get.executeAsync().get().getBody());
+        assertEquals("Hello a b", builder("fast?name=a%20b").prepare().execute().getBody());
+
+        PreparedRequest post = builder("echo").setMethod(Http.HttpMethod.POST).addHeaderProperty("x-token", "secret").prepare();
+        HttpResult created = post.execute("body");
+        assertEquals(201, created.getStatus());
+        assertEquals("body:secret:text/plain", created.getBody());
+        assertEquals("Mixed Case", created.getHeader("X-Echo"));
+        assertEquals("bytes:secret:text/plain", post.execute("bytes".getBytes(StandardCharsets.UTF_8)).getBody());
+        assertEquals("buffer:secret:text/plain", post.executeAsync(ByteBuffer.wrap("buffer".getBytes(StandardCharsets.UTF_8))).get().getBody());
+
+        PreparedRequest json = builder("echo").setMethod(Http.HttpMethod.POST).addHeaderProperty("content-type", "application/json").prepare();
+        assertEquals("{\"key\":\"value\"}:null:application/json", json.execute(Collections.singletonMap("key", "value")).getBody());
+
+        // all on one kept-alive connection
+        PoolStats stats = ClientFactory.getPoolStats(get.getClientProfile()).get("localhost:9998");
+        assertEquals(1, stats.getIdle() + stats.getLeased());
+    }
+
+    @Test
+    public void testBufferedResponse() throws Exception {
+
+        PreparedRequest get = builder("fast").prepare();
+        BufferedResponse released;
+        try (BufferedResponse response = get.executeBuffered().get()) {
+            assertEquals(200, response.getStatus());
+            assertEquals("OK", response.getReasonPhrase());
+            assertTrue(response.getHeader("content-type").startsWith("text/plain"));
+            assertNull(response.getHeader("x-missing"));
+            ByteBuffer body = response.getBody();
+            assertTrue(body.isReadOnly());
+            assertEquals("Hello fast", StandardCharsets.UTF_8.decode(body).toString());
+            assertEquals(10, response.getBodyLength());
+            try {
+                response.getBody().put((byte) 0);
+                fail("Expecting a read only body");
+            } catch (ReadOnlyBufferException e) {
+                // expected
+            }
+            released = response;
+        }
+        assertTrue(released.isReleased());
+        try {
+            released.getBody();
+            fail("Expecting the body to be released");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // from an HttpResult with the Jersey connectors
+        PreparedRequest jersey = HttpConnectorBuilder.newBuilder().url("http://localhost:9998/fast").prepare();
+        try (BufferedResponse response = jersey.executeBuffered().get()) {
+            assertEquals("Hello fast", response.getBodyAsString());
+            assertEquals("OK", response.getReasonPhrase());
+        }
+    }
+
+    @Test
+    public void testChunkedAndEncoded() throws Exception {
+
+        HttpResult chunked = builder("chunked").prepare().execute();
+        assertEquals(200, chunked.getStatus());
+        String[] lines = chunked.getBody().split("\n");
+        assertEquals(100, lines.length);
+        assertEquals("chunk 99", lines[99]);
+
+        assertEquals("Hello gzip", builder("gzip").prepare().execute().getBody());
+
+        HttpResult empty = builder("empty").prepare().execute();
+        assertEquals(204, empty.getStatus());
+        assertEquals(0, empty.getBodyBytes().length);
+
+        // the connection is still usable after all of them
+        assertEquals("Hello fast", builder("fast").prepare().execute().getBody());
+    }
+
+    @Test
+    public void testCookies() throws Exception {
+
+        HttpConnector.clearCookies();
+        HttpResult login = builder("login").storeCookies().prepare().execute();
+        assertEquals("s1", login.getCookies().get("session").getValue());
+        assertEquals("session s1", builder("whoami").storeCookies().prepare().execute().getBody());
+        HttpConnector.clearCookies();
+    }
+
+    @Test
+    public void testHttpConnector() throws Exception {
+
+        HttpConnector connector = builder("echo").setMethod(Http.HttpMethod.POST).setBody("connector").build();
+        HttpResult result = connector.executeAsync().get();
+        assertEquals("connector:null:text/plain", result.getBody());
+        assertEquals(201, connector.getResponseCode());
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+
+        PreparedRequest[] requests = new PreparedRequest[8];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = builder("ordered/" + i).pool(PoolSettings.defaults().withPipelining(8).withMaxPerHost(1)).prepare();
+        }
+        // the connection first, so all of the requests go on it
+        assertEquals("id 0", requests[0].execute().getBody());
+
+        List<CompletableFuture<HttpResult>> futures = new ArrayList<>();
+        for (PreparedRequest request : requests) {
+            futures.add(request.executeAsync());
+        }
+        for (int i = 0; i < requests.length; i++) {
+            assertEquals("id " + i, futures.get(i).get(5, TimeUnit.SECONDS).getBody());
+        }
+        PoolStats stats = ClientFactory.getPoolStats(requests[0].getClientProfile()).get("localhost:9998");
+        assertEquals(1, stats.getIdle() + stats.getLeased());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+
+        try {
+            builder("slow").setReadTimeout(100).prepare().execute();
+            fail("Expecting a read timeout");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+
+        try {
+            builder("slow").deadline(100, TimeUnit.MILLISECONDS).prepare().executeAsync().get();
+            fail("Expecting the deadline to be exceeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof DeadlineExceededException);
+            assertEquals(Http.RequestPhase.FIRST_BYTE, ((DeadlineExceededException) e.getCause()).getPhase());
+        }
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+
+        try {
+            HttpConnectorBuilder.newBuilder().url("http://localhost:9994/")
+                    .setConnectorProvider(Http.ConnectorProvider.NettyEngine).prepare().execute();
+            fail("Expecting the connection to be refused");
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof java.net.ConnectException);
+        }
+    }
+
+    /**
+     * A server that answers each connection once, without saying it closes it, then closes it:
+     * an HTTP/1.0 response delimited by the close, then stale keep-alive connections.
+     */
+    @Test
+    public void testCloseDelimitedAndStaleConnection() throws Exception {
+
+        AtomicInteger accepted = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        int count = accepted.incrementAndGet();
+                        readRequestHead(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        if (count == 1) {
+                            out.write("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nuntil close".getBytes(StandardCharsets.US_ASCII));
+                        } else {
+                            out.write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfresh".getBytes(StandardCharsets.US_ASCII));
+                        }
+                        out.flush();
+                    } catch (Exception e) {
+                        // closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            PreparedRequest request = HttpConnectorBuilder.newBuilder().url("http://127.0.0.1:" + server.getLocalPort() + "/")
+                    .setConnectorProvider(Http.ConnectorProvider.NettyEngine).prepare();
+            assertEquals("until close", request.execute().getBody());
+            // the server closes the connections it kept alive: whether the client noticed yet or the request
+            // went on the closed connection and was sent again, the next requests get a fresh one
+            for (int i = 0; i < 3; i++) {
+                assertEquals("fresh", request.execute().getBody());
+            }
+            assertTrue(accepted.get() >= 4);
+        }
+    }
+
+    /**
+     * A body longer than a buffer can hold goes to the file: the server announces 3 GiB, sends some, then closes.
+     */
+    @Test
+    public void testBodyOver2GiBToFile() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("download", ".bin");
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    readRequestHead(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 3221225472\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.write(new byte[64 * 1024]);
+                    out.flush();
+                } catch (Exception e) {
+                    // closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            try {
+                HttpConnectorBuilder.newBuilder().url("http://127.0.0.1:" + server.getLocalPort() + "/")
+                        .setConnectorProvider(Http.ConnectorProvider.NettyEngine)
+                        .prepare()
+                        .saveToFileAsync(file)
+                        .get(10, TimeUnit.SECONDS);
+                fail("Expecting the body to be cut short");
+            } catch (ExecutionException e) {
+                // streamed until the server closed the connection, rather than refused on its length
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("closed before the response completed"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Reads up to the end of the request head.
+     */
+    private static void readRequestHead(InputStream in) throws IOException {
+
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            if (b < 0) {
+                return;
+            }
+            state = (b == (state % 2 == 0 ? '\r' : '\n')) ? state + 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.centro.rtb.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the off-heap ring buffer store and its recovery from a file.
+ */
+public class OffHeapStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] value(int i, int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+
+        OffHeapStore store = OffHeapStore.direct(4096);
+        assertTrue(store.put("a", "alpha".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(store.put("b", "beta".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(store.put("a", "alpha2".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("alpha2", new String(store.get("a"), StandardCharsets.UTF_8));
+        assertEquals("beta", new String(store.get("b"), StandardCharsets.UTF_8));
+        assertNull(store.get("c"));
+
+        assertTrue(store.remove("b"));
+        assertNull(store.get("b"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testOldestAreOverwritten() throws Exception {
+
+        OffHeapStore store = OffHeapStore.direct(1024);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(store.put("key" + i, value(i, 100)));
+        }
+        assertNull(store.get("key0"));
+        assertTrue(store.size() < 10);
+        for (int i = 50 - store.size(); i < 50; i++) {
+            assertArrayEquals(value(i, 100), store.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+
+        OffHeapStore store = OffHeapStore.direct(1024);
+        assertFalse(store.put("big", new byte[1024]));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+
+        Path file = folder.newFile("cache.bin").toPath();
+        OffHeapStore store = OffHeapStore.mapped(file, 2048);
+        // wraps around the ring a few times
+        for (int i = 0; i < 40; i++) {
+            store.put("key" + i, value(i, 150));
+        }
+        int size = store.size();
+        store.close();
+
+        OffHeapStore recovered = OffHeapStore.mapped(file, 2048);
+        assertEquals(size, recovered.size());
+        assertArrayEquals(value(39, 150), recovered.get("key39"));
+        assertNull(recovered.get("key0"));
+
+        // and keeps going from where it stopped
+        recovered.put("key40", value(40, 150));
+        assertArrayEquals(value(40, 150), recovered.get("key40"));
+        assertArrayEquals(value(39, 150), recovered.get("key39"));
+        recovered.close();
+    }
+
+    @Test
+    public void testRemovalIsRecovered() throws Exception {
+
+        Path file = folder.newFile("removed.bin").toPath();
+        OffHeapStore store = OffHeapStore.mapped(file, 4096);
+        store.put("kept", value(1, 100));
+        store.put("removed", value(2, 100));
+        store.remove("removed");
+        store.close();
+
+        OffHeapStore recovered = OffHeapStore.mapped(file, 4096);
+        assertArrayEquals(value(1, 100), recovered.get("kept"));
+        assertNull(recovered.get("removed"));
+        assertEquals(1, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void testCorruptRecordEndsRecovery() throws Exception {
+
+        Path file = folder.newFile("corrupt.bin").toPath();
+        OffHeapStore store = OffHeapStore.mapped(file, 4096);
+        store.put("first", value(1, 100));
+        store.put("second", value(2, 100));
+        store.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            // a byte of the value of the second record
+            int second = OffHeapStore.HEADER_SIZE + 16 + "first".length() + 100;
+            raf.seek(second + 16 + "second".length() + 10);
+            raf.write(7);
+        }
+
+        OffHeapStore recovered = OffHeapStore.mapped(file, 4096);
+        assertArrayEquals(value(1, 100), recovered.get("first"));
+        assertNull(recovered.get("second"));
+        recovered.close();
+    }
+
+    @Test
+    public void testOtherCapacityResets() throws Exception {
+
+        Path file = folder.newFile("resize.bin").toPath();
+        OffHeapStore store = OffHeapStore.mapped(file, 4096);
+        store.put("key", value(1, 100));
+        store.close();
+
+        OffHeapStore resized = OffHeapStore.mapped(file, 8192);
+        assertEquals(0, resized.size());
+        resized.close();
+    }
+}
@@ -0,0 +1,290 @@
+package net.centro.rtb.http;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+import javax.ws.rs.core.*;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the PreparedRequest, executed many times and by many threads.
+ */
+public class PreparedRequestTest extends JerseyTest {
+
+    final static int SLOW = 500;
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("fast")
+        public String getHelloFast() {
+            return "Hello fast";
+        }
+
+        @GET
+        @Path("slow")
+        public String getHelloSlow() throws InterruptedException {
+            Thread.sleep(SLOW);
+            return "Hello slow";
+        }
+
+        @POST
+        @Path("echo")
+        public Response echo(String body, @HeaderParam("x-token") String token) {
+            return Response.status(201).entity(body + ":" + token).build();
+        }
+
+        @GET
+        @Path("json")
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response json() {
+            return Response.ok("{\"key\":\"value\"}").build();
+        }
+
+        @GET
+        @Path("list")
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getList() {
+            List<Integer> l = new ArrayList<>(Arrays.asList(1,2,3,4,5,6,7,8,9,10));
+            return Response.status(200).entity(l).build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class).register(JacksonFeature.class);
+    }
+
+    @Test
+    public void testExecuteManyTimes() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/fast")
+                .prepare();
+
+        for (int i = 0; i < 10; i++) {
+            HttpResult result = request.execute();
+            assertEquals(200, result.getStatus());
+            assertEquals("OK", result.getReasonPhrase());
+            assertEquals("Hello fast", result.getBody());
+            assertTrue(result.getResponseTime() >= 0);
+        }
+    }
+
+    @Test
+    public void testExecuteConcurrently() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/echo")
+                .setMethod(Http.HttpMethod.POST)
+                .addHeaderProperty("x-token", "secret")
+                .prepare();
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<HttpResult>> results = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            final String body = "body" + i;
+            results.add(executor.submit((Callable<HttpResult>) () -> request.execute(body)));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            HttpResult result = results.get(i).get();
+            assertEquals(201, result.getStatus());
+            assertEquals("body" + i + ":secret", result.getBody());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBuilderChangesDoNotLeak() throws Exception {
+
+        HttpConnectorBuilder builder = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/echo")
+                .setMethod(Http.HttpMethod.POST)
+                .setBody("first")
+                .addHeaderProperty("x-token", "one");
+        PreparedRequest request = builder.prepare();
+
+        builder.addHeaderProperty("x-token", "two").setBody("second");
+
+        assertEquals("first:one", request.execute().getBody());
+        assertEquals("first", request.getBody());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testHeadersAreReadOnly() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/fast")
+                .addHeaderProperty("x-token", "one")
+                .prepare();
+
+        request.getRequestHeaders().add("x-token", "two");
+    }
+
+    @Test
+    public void testResultIsReadOnly() throws Exception {
+
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/json")
+                .prepare()
+                .execute();
+
+        try {
+            result.getHeaders().add("x-token", "one");
+            fail("Expecting an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // the headers are unmodifiable
+        }
+        try {
+            result.getHeaders().get("Content-Type").clear();
+            fail("Expecting an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // and so are their values
+        }
+        result.getBody(byte[].class)[0] = 'x';
+        assertEquals("{\"key\":\"value\"}", result.getBody());
+    }
+
+    @Test
+    public void testMapping() throws Exception {
+
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/json")
+                .prepare()
+                .execute();
+        Assert.assertEquals("value", result.getBody(ObjectNode.class).get("key").asText());
+        Assert.assertTrue(result.getHeader("Content-Type").startsWith(MediaType.APPLICATION_JSON));
+        // untyped, not the stream of the body
+        Assert.assertEquals("value", ((Map<?, ?>) result.getBody(Object.class)).get("key"));
+        Assert.assertTrue(result.getBody(InputStream.class) instanceof ByteArrayInputStream);
+
+        List<Integer> l = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/list")
+                .prepare()
+                .execute()
+                .getBody(new GenericType<List<Integer>>() {});
+        Assert.assertEquals(10, l.size());
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .prepare();
+
+        long start = System.currentTimeMillis();
+        CompletableFuture<HttpResult> future = request.executeAsync();
+        // the call returns before the response
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+
+        CompletableFuture<Integer> length = future.thenApply(HttpResult::getBody).thenApply(String::length);
+        assertEquals(Integer.valueOf("Hello slow".length()), length.get(5, TimeUnit.SECONDS));
+        assertEquals(200, future.get().getStatus());
+    }
+
+    @Test
+    public void testExecuteAsyncConcurrently() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/echo")
+                .setMethod(Http.HttpMethod.POST)
+                .addHeaderProperty("x-token", "async")
+                .prepare();
+
+        List<CompletableFuture<HttpResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(request.executeAsync("body" + i));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("body" + i + ":async", futures.get(i).getNow(null).getBody());
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncTimeout() throws Exception {
+
+        CompletableFuture<HttpResult> future = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .prepare()
+                .executeAsync(50, TimeUnit.MILLISECONDS);
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncCancel() throws Exception {
+
+        CompletableFuture<HttpResult> future = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .prepare()
+                .executeAsync();
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testExecuteAsyncFailure() throws Exception {
+
+        CompletableFuture<HttpResult> future = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:1/fast")
+                .prepare()
+                .executeAsync();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(future.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testClientRetiredWhileInFlight() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/slow")
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .prepare();
+        CompletableFuture<HttpResult> inFlight = request.executeAsync();
+
+        // retires the cached clients, the request in flight keeps its client until it is done
+        ClientFactory.setCacheStaleTimeout(1, TimeUnit.MINUTES);
+        assertEquals("Hello slow", inFlight.get().getBody());
+
+        // and the next execution gets a new client
+        assertEquals("Hello slow", request.execute().getBody());
+    }
+}
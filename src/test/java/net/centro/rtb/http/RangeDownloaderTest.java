@@ -0,0 +1,229 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the segmented downloads, their resumption and the fallback to one connection.
+ */
+public class RangeDownloaderTest extends JerseyTest {
+
+    private static final byte[] DATA = new byte[1024 * 1024 + 4097];
+    private static final int SEGMENT = 128 * 1024;
+
+    // the ranges requested and their If-Range, and the segment failed once by the server, -1 for none
+    private static final Queue<String> requested = new ConcurrentLinkedQueue<>();
+    private static final Queue<String> ifRanges = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger failing = new AtomicInteger(-1);
+
+    static {
+        new Random(22).nextBytes(DATA);
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @HEAD
+        @Path("file")
+        public Response head() {
+            return Response.ok().header("Accept-Ranges", "bytes").header("ETag", "\"v1\"").header("Content-Length", DATA.length).build();
+        }
+
+        @GET
+        @Path("file")
+        public Response get(@HeaderParam("range") String range, @HeaderParam("if-range") String ifRange) {
+            return range(range, ifRange, "\"v1\"");
+        }
+
+        @HEAD
+        @Path("changed")
+        public Response headChanged() {
+            return head();
+        }
+
+        /** A new version of the file since the HEAD request. */
+        @GET
+        @Path("changed")
+        public Response getChanged(@HeaderParam("range") String range, @HeaderParam("if-range") String ifRange) {
+            return range(range, ifRange, "\"v2\"");
+        }
+
+        private static Response range(String range, String ifRange, String etag) {
+
+            if (range == null) {
+                return Response.ok(DATA).header("ETag", etag).build();
+            }
+            requested.add(range);
+            if (ifRange != null) {
+                ifRanges.add(ifRange);
+                if (!ifRange.equals(etag)) {
+                    return Response.ok(DATA).header("ETag", etag).build();
+                }
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int from = Integer.parseInt(bounds[0]);
+            int to = Integer.parseInt(bounds[1]);
+            if (failing.compareAndSet(from / SEGMENT, -1)) {
+                return Response.serverError().build();
+            }
+            return Response.status(206).entity(Arrays.copyOfRange(DATA, from, to + 1)).header("ETag", etag)
+                    .header("Content-Range", "bytes " + from + "-" + to + "/" + DATA.length).build();
+        }
+
+        @GET
+        @Path("plain")
+        public byte[] plain() {
+            return DATA;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    @Before
+    public void reset() {
+        requested.clear();
+        ifRanges.clear();
+        failing.set(-1);
+    }
+
+    private static PreparedRequest request(String path, Http.ConnectorProvider provider, int maxPerHost) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setConnectorProvider(provider)
+                // clients of their own, the connections pooled by the other tests are to servers since stopped
+                .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost))
+                .prepare();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("ranges", ".bin");
+        try {
+            for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.HttpUrlConnector,
+                    Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine}) {
+                requested.clear();
+                RangeDownloader downloader = RangeDownloader.of(request("file", provider, 31)).withSegmentSize(SEGMENT).withParallelism(3);
+
+                assertEquals(provider.name(), DATA.length, downloader.download(file));
+                assertArrayEquals(provider.name(), DATA, Files.readAllBytes(file));
+                assertEquals(provider.name(), 9, requested.size());
+                assertTrue(provider.name(), requested.contains("bytes=1048576-1052672"));
+                assertTrue(provider.name(), ifRanges.contains("\"v1\""));
+                assertFalse(provider.name(), Files.exists(file.resolveSibling(file.getFileName() + RangeDownloader.SIDECAR_SUFFIX)));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("ranges", ".bin");
+        try {
+            failing.set(4);
+            RangeDownloader downloader = RangeDownloader.of(request("file", Http.ConnectorProvider.NettyEngine, 32)).withSegmentSize(SEGMENT);
+
+            assertEquals(DATA.length, downloader.downloadAsync(file).get(30, TimeUnit.SECONDS).longValue());
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+            assertEquals(10, requested.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("ranges", ".bin");
+        java.nio.file.Path sidecar = file.resolveSibling(file.getFileName() + RangeDownloader.SIDECAR_SUFFIX);
+        try {
+            failing.set(5);
+            RangeDownloader downloader = RangeDownloader.of(request("file", Http.ConnectorProvider.Apache, 33))
+                    .withSegmentSize(SEGMENT).withParallelism(1).withAttempts(1);
+            try {
+                downloader.downloadAsync(file).get(30, TimeUnit.SECONDS);
+                fail("Expecting the failed segment to fail the download");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            assertTrue(Files.exists(sidecar));
+            assertEquals(DATA.length, Files.size(file));
+
+            // only the segments left are fetched
+            requested.clear();
+            assertEquals(DATA.length, downloader.download(file));
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+            assertEquals(4, requested.size());
+            assertTrue(requested.contains("bytes=655360-786431"));
+            assertFalse(Files.exists(sidecar));
+        } finally {
+            Files.deleteIfExists(sidecar);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testChanged() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("ranges", ".bin");
+        java.nio.file.Path sidecar = file.resolveSibling(file.getFileName() + RangeDownloader.SIDECAR_SUFFIX);
+        try {
+            for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine}) {
+                RangeDownloader downloader = RangeDownloader.of(request("changed", provider, 35)).withSegmentSize(SEGMENT).withAttempts(1);
+                try {
+                    downloader.downloadAsync(file).get(30, TimeUnit.SECONDS);
+                    fail(provider.name() + ": expecting the whole file in answer to If-Range to fail the download");
+                } catch (ExecutionException e) {
+                    assertTrue(provider.name() + ": " + e.getCause(), e.getCause().getMessage().contains("changed since the download started"));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(sidecar);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testWithoutRanges() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("ranges", ".bin");
+        try {
+            assertEquals(DATA.length, RangeDownloader.of(request("plain", Http.ConnectorProvider.NettyEngine, 34)).download(file));
+            assertArrayEquals(DATA, Files.readAllBytes(file));
+            assertTrue(requested.isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSegmentSize() throws Exception {
+        RangeDownloader.of(request("file", Http.ConnectorProvider.HttpUrlConnector, 31)).withSegmentSize(0);
+    }
+}
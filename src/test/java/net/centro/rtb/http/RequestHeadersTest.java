@@ -0,0 +1,121 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.MediaType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the request header set, and that every connector sends the values as given.
+ */
+public class RequestHeadersTest extends JerseyTest {
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("headers")
+        public String headers(@HeaderParam("x-token") String token, @HeaderParam("authorization") String authorization) {
+            return token + "|" + authorization;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+
+        RequestHeaders headers = RequestHeaders.empty()
+                .with("Content-Type", "Application/JSON; charset=UTF-8")
+                .with("X-Token", "AbC=")
+                .with("x-token", "dEf=");
+
+        assertEquals(3, headers.size());
+        assertEquals("content-type", headers.getName(0));
+        assertEquals("Application/JSON; charset=UTF-8", headers.get("CONTENT-TYPE"));
+        assertEquals("AbC=", headers.get("x-token"));
+        assertEquals(Arrays.asList("AbC=", "dEf="), headers.getAll("X-TOKEN"));
+        assertEquals(Collections.emptyList(), headers.getAll("x-missing"));
+        assertNull(headers.get("x-missing"));
+        assertTrue(headers.contains("X-Token"));
+
+        assertTrue(headers.getMediaType().isCompatible(MediaType.APPLICATION_JSON_TYPE));
+        assertEquals("UTF-8", headers.getMediaType().getParameters().get("charset"));
+        assertNull(RequestHeaders.empty().getMediaType());
+
+        assertEquals(Arrays.asList("AbC=", "dEf="), headers.toMap().get("x-token"));
+        assertEquals(Arrays.asList("AbC=", "dEf="), RequestHeaders.of(headers.toMap()).getAll("X-Token"));
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+
+        RequestHeaders headers = RequestHeaders.empty().with("x-token", "one");
+        RequestHeaders more = headers.with("x-other", "two");
+        RequestHeaders less = more.without("X-Token");
+
+        assertEquals(1, headers.size());
+        assertEquals(2, more.size());
+        assertEquals(1, less.size());
+        assertEquals("two", less.get("x-other"));
+        assertSame(less, less.without("x-token"));
+        assertTrue(RequestHeaders.empty().isEmpty());
+    }
+
+    @Test
+    public void testInternedNames() throws Exception {
+
+        RequestHeaders headers = RequestHeaders.empty().with("User-Agent", "one");
+        assertSame(RequestHeaders.empty().with("USER-AGENT", "two").getName(0), headers.getName(0));
+    }
+
+    @Test
+    public void testEncoded() throws Exception {
+
+        RequestHeaders headers = RequestHeaders.empty()
+                .with("Host", "example.com")
+                .with("Accept", "text/plain")
+                .with("Content-Length", "10")
+                .with("X-Token", "AbC");
+
+        byte[] encoded = headers.getEncoded();
+        assertEquals("accept: text/plain\r\nx-token: AbC\r\n", new String(encoded, StandardCharsets.ISO_8859_1));
+        assertSame(encoded, headers.getEncoded());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLineBreak() throws Exception {
+        RequestHeaders.empty().with("x-token", "one\r\nx-injected: two");
+    }
+
+    @Test
+    public void testValuesAreSentAsGiven() throws Exception {
+
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.HttpUrlConnector,
+                Http.ConnectorProvider.Apache, Http.ConnectorProvider.Jetty, Http.ConnectorProvider.NettyEngine}) {
+            HttpConnectorBuilder builder = HttpConnectorBuilder.newBuilder()
+                    .url("http://localhost:9998/headers")
+                    .setConnectorProvider(provider)
+                    .addHeaderProperty("X-Token", "AbC+dEf=")
+                    .addHeaderProperty("Authorization", "Bearer MiXeD");
+
+            assertEquals(provider.name(), "AbC+dEf=|Bearer MiXeD", builder.prepare().execute().getBody());
+            assertEquals(provider.name(), "AbC+dEf=|Bearer MiXeD", builder.build().executeAsync().get().getBody());
+        }
+    }
+}
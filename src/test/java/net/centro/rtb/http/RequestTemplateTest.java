@@ -0,0 +1,109 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the request templates: variable headers, and the template shared by the connectors of a builder.
+ */
+public class RequestTemplateTest extends JerseyTest {
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @POST
+        @Path("echo")
+        public String echo(String body, @HeaderParam("x-request-id") String id, @HeaderParam("x-trace") String trace,
+                           @HeaderParam("x-token") String token, @HeaderParam("user-agent") String userAgent) {
+            return body + "|" + id + "|" + trace + "|" + token + "|" + userAgent;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static HttpConnectorBuilder builder(Http.ConnectorProvider provider) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/echo")
+                .setMethod(Http.HttpMethod.POST)
+                .setConnectorProvider(provider)
+                // clients of their own, the connections pooled by the other tests are to servers since stopped
+                .pool(PoolSettings.defaults().withMaxPerHost(3))
+                .addHeaderProperty("x-token", "Fixed")
+                .addHeaderProperty("x-request-id", "default")
+                .addVariableHeader("X-Request-Id")
+                .addVariableHeader("x-trace");
+    }
+
+    @Test
+    public void testVariableHeaders() throws Exception {
+
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.HttpUrlConnector,
+                Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine}) {
+            PreparedRequest request = builder(provider).prepare();
+
+            assertEquals(provider.name(), "a|id-1|t1|Fixed|http-client", request.executeAsync("a", null, "id-1", "t1").get().getBody());
+            assertEquals(provider.name(), "b|id-2|t2|Fixed|http-client", request.executeAsync("b", null, "id-2", "t2").get().getBody());
+            // the value set in the builder, or none
+            assertEquals(provider.name(), "c|default|null|Fixed|http-client", request.executeAsync("c", null).get().getBody());
+            assertEquals(provider.name(), "d|default|t4|Fixed|http-client", request.executeAsync("d", null, null, "t4").get().getBody());
+            assertEquals(provider.name(), "e|default|null|Fixed|http-client", request.execute("e").getBody());
+            try (BufferedResponse response = request.executeBuffered("f", null, "id-6").get()) {
+                assertEquals(provider.name(), "f|id-6|null|Fixed|http-client", response.getBodyAsString());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidValues() throws Exception {
+
+        PreparedRequest request = builder(Http.ConnectorProvider.NettyEngine).prepare();
+        try {
+            request.executeAsync("a", null, "1", "2", "3");
+            fail("Expecting too many values to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            request.executeAsync("a", null, "1\r\nx-injected: 2");
+            fail("Expecting a line break to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFramingHeaderIsNotVariable() throws Exception {
+        HttpConnectorBuilder.newBuilder().addVariableHeader("Content-Length");
+    }
+
+    @Test
+    public void testTemplateIsShared() throws Exception {
+
+        HttpConnectorBuilder builder = builder(Http.ConnectorProvider.HttpUrlConnector).setBody("body");
+        HttpConnector first = builder.build();
+        first.execute();
+        HttpConnector second = builder.build();
+        second.execute();
+        assertEquals("body|default|null|Fixed|http-client", first.getResponseBody());
+        assertEquals("body|default|null|Fixed|http-client", second.getResponseBody());
+
+        RequestTemplate template = builder.getTemplate();
+        assertSame(template, builder.prepare().getTemplate());
+        builder.addHeaderProperty("x-other", "value");
+        assertNotSame(template, builder.getTemplate());
+        assertEquals("value", builder.getTemplate().getHeaders().get("x-other"));
+    }
+}
@@ -0,0 +1,333 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the response cache against Cache-Control, Expires, ETag and Vary headers.
+ */
+public class ResponseCacheTest extends JerseyTest {
+
+    final static ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @GET
+        @Path("maxage/{id}")
+        public Response maxAge(@PathParam("id") String id) {
+            return Response.ok("call " + count(id)).header("Cache-Control", "max-age=60").build();
+        }
+
+        @POST
+        @Path("maxage/{id}")
+        public Response update(@PathParam("id") String id, String body) {
+            return Response.noContent().build();
+        }
+
+        @GET
+        @Path("expires/{id}")
+        public Response expires(@PathParam("id") String id) {
+            String expires = ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Response.ok("call " + count(id)).header("Expires", expires).build();
+        }
+
+        @GET
+        @Path("etag/{id}")
+        public Response etag(@PathParam("id") String id, @HeaderParam("If-None-Match") String ifNoneMatch,
+                             @HeaderParam("x-max-age") String maxAge) {
+            int call = count(id);
+            String control = (maxAge != null) ? "max-age=0, stale-while-revalidate=" + maxAge : "no-cache";
+            if ("\"v1\"".equals(ifNoneMatch)) {
+                return Response.notModified().header("ETag", "\"v1\"").header("Cache-Control", control).build();
+            }
+            return Response.ok("call " + call).header("ETag", "\"v1\"").header("Cache-Control", control).build();
+        }
+
+        @GET
+        @Path("nostore/{id}")
+        public Response noStore(@PathParam("id") String id) {
+            return Response.ok("call " + count(id)).header("Cache-Control", "no-store, max-age=60").build();
+        }
+
+        @GET
+        @Path("vary/{id}")
+        public Response vary(@PathParam("id") String id, @HeaderParam("accept-language") String language) {
+            count(id);
+            return Response.ok(language).header("Cache-Control", "max-age=60").header("Vary", "Accept-Language").build();
+        }
+
+        @GET
+        @Path("big/{id}")
+        public Response big(@PathParam("id") String id) {
+            return Response.ok(new byte[1024]).header("Cache-Control", "max-age=60").build();
+        }
+
+        private static int count(String id) {
+            return calls.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static int calls(String id) {
+        return calls.getOrDefault(id, new AtomicInteger()).get();
+    }
+
+    private static PreparedRequest get(ResponseCache cache, String path) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .cache(cache)
+                .prepare();
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        PreparedRequest request = get(cache, "maxage/fresh");
+
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals("call 1", get(cache, "maxage/fresh").executeAsync().get().getBody());
+
+        assertEquals(1, calls("fresh"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testServedResultsDoNotChangeTheEntry() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        PreparedRequest fresh = get(cache, "maxage/snapshot-fresh");
+        PreparedRequest revalidated = get(cache, "etag/snapshot-etag");
+
+        for (PreparedRequest request : new PreparedRequest[]{fresh, revalidated}) {
+            // the miss, then a fresh hit or a 304
+            for (int i = 0; i < 2; i++) {
+                HttpResult result = request.execute();
+                result.getBodyBytes()[0] = 'x';
+                try {
+                    result.getHeaders().putSingle("Cache-Control", "no-store");
+                    fail("Expecting an UnsupportedOperationException");
+                } catch (UnsupportedOperationException e) {
+                    // the headers are unmodifiable
+                }
+            }
+            HttpResult next = request.execute();
+            assertEquals("call 1", next.getBody());
+        }
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        get(cache, "expires/expires").execute();
+        assertEquals("call 1", get(cache, "expires/expires").execute().getBody());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testETagRevalidation() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        PreparedRequest request = get(cache, "etag/etag");
+
+        assertEquals("call 1", request.execute().getBody());
+        // no-cache, revalidated every time and answered with a 304
+        HttpResult result = request.execute();
+        assertEquals(200, result.getStatus());
+        assertEquals("call 1", result.getBody());
+
+        assertEquals(2, calls("etag"));
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/etag/swr")
+                .addHeaderProperty("x-max-age", "60")
+                .cache(cache)
+                .prepare();
+
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals(1, cache.getStaleHitCount());
+
+        // the background revalidation
+        for (int i = 0; i < 50 && cache.getRevalidationCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, calls("swr"));
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        get(cache, "nostore/nostore").execute();
+        assertEquals("call 2", get(cache, "nostore/nostore").execute().getBody());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testNoCacheRequest() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        get(cache, "maxage/reload").execute();
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/maxage/reload")
+                .addHeaderProperty("Cache-Control", "no-cache")
+                .cache(cache)
+                .prepare()
+                .execute();
+        assertEquals("call 2", result.getBody());
+    }
+
+    @Test
+    public void testVary() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        for (int i = 0; i < 2; i++) {
+            for (String language : new String[]{"en", "fr"}) {
+                HttpResult result = HttpConnectorBuilder.newBuilder()
+                        .url("http://localhost:9998/vary/vary")
+                        .addHeaderProperty("Accept-Language", language)
+                        .cache(cache)
+                        .prepare()
+                        .execute();
+                assertEquals(language, result.getBody());
+            }
+        }
+        assertEquals(2, calls("vary"));
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024);
+        get(cache, "maxage/invalidate").execute();
+
+        HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/maxage/invalidate")
+                .setMethod(Http.HttpMethod.POST)
+                .setBody("update")
+                .cache(cache)
+                .prepare()
+                .execute();
+
+        assertEquals("call 2", get(cache, "maxage/invalidate").execute().getBody());
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(8 * 1024);
+        for (int i = 0; i < 20; i++) {
+            get(cache, "big/" + i).execute();
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getSize() < 8);
+    }
+
+    @Test
+    public void testOffHeapTier() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(1024 * 1024, OffHeapStore.direct(1024 * 1024));
+        PreparedRequest request = get(cache, "maxage/offheap");
+
+        assertEquals("call 1", request.execute().getBody());
+        // stored off the heap only
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getOffHeapSize());
+
+        // read again, promoted to the heap
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals(1, cache.getOffHeapHitCount());
+        assertEquals(1, cache.getSize());
+
+        assertEquals("call 1", request.execute().getBody());
+        assertEquals(1, cache.getOffHeapHitCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, calls("offheap"));
+    }
+
+    @Test
+    public void testLargeResponsesStayOffHeap() throws Exception {
+
+        ResponseCache cache = ResponseCache.create(8 * 1024, OffHeapStore.direct(1024 * 1024));
+        PreparedRequest request = get(cache, "big/offheap");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1024, request.execute().getBodyBytes().length);
+        }
+        assertEquals(0, cache.getSize());
+        assertEquals(2, cache.getOffHeapHitCount());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+
+        java.nio.file.Path file = folder.newFile("responses.bin").toPath();
+        OffHeapStore store = OffHeapStore.mapped(file, 1024 * 1024);
+        ResponseCache cache = ResponseCache.create(1024 * 1024, store);
+        get(cache, "maxage/restart").execute();
+        HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/vary/restart")
+                .addHeaderProperty("Accept-Language", "de")
+                .cache(cache)
+                .prepare()
+                .execute();
+        store.close();
+
+        ResponseCache restarted = ResponseCache.create(1024 * 1024, OffHeapStore.mapped(file, 1024 * 1024));
+        assertEquals("call 1", get(restarted, "maxage/restart").execute().getBody());
+        HttpResult result = HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/vary/restart")
+                .addHeaderProperty("Accept-Language", "de")
+                .cache(restarted)
+                .prepare()
+                .execute();
+        assertEquals("de", result.getBody());
+
+        assertEquals(2, calls("restart"));
+        assertEquals(2, restarted.getOffHeapHitCount());
+        assertEquals(0, restarted.getMissCount());
+        restarted.getOffHeapStore().close();
+    }
+}
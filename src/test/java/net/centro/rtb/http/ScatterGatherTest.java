@@ -0,0 +1,159 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the fan-out of a request to many endpoints.
+ */
+public class ScatterGatherTest extends JerseyTest {
+
+    final static int SLOW = 1000;
+
+    // the responses are delayed off the server's worker threads, a slow bidder never holds up the others
+    private static final ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "scatter-gather-test");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // completed once the no-bid response was gathered, the bids of testFirstK are only sent after it
+    private static volatile CompletableFuture<Void> noBidGathered = new CompletableFuture<>();
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @POST
+        @Path("bid/{delay}")
+        public void bid(@PathParam("delay") int delay, String body, @Suspended AsyncResponse response) {
+            delays.schedule(() -> response.resume(body + " " + delay), delay, TimeUnit.MILLISECONDS);
+        }
+
+        @POST
+        @Path("bid-after-nobid/{delay}")
+        public void bidAfterNoBid(@PathParam("delay") int delay, String body, @Suspended AsyncResponse response) {
+            noBidGathered.thenRun(() -> bid(delay, body, response));
+        }
+
+        @POST
+        @Path("nobid")
+        public Response noBid(String body) {
+            return Response.noContent().build();
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static PreparedRequest bidder(String path) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setMethod(Http.HttpMethod.POST)
+                .prepare();
+    }
+
+    @Test
+    public void testGatherAll() throws Exception {
+
+        List<PreparedRequest> bidders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            bidders.add(bidder("bid/" + (i * 5)));
+        }
+
+        List<EndpointResult> results = ScatterGather.of(bidders)
+                .withDeadline(5, TimeUnit.SECONDS)
+                .execute("bid");
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++) {
+            EndpointResult result = results.get(i);
+            assertEquals(i, result.getIndex());
+            assertEquals(Http.Outcome.COMPLETED, result.getOutcome());
+            assertEquals("bid " + (i * 5), result.getResult().getBody());
+            assertTrue(result.getLatency() >= i * 5);
+        }
+    }
+
+    @Test
+    public void testDeadlineCutsStragglers() throws Exception {
+
+        long start = System.currentTimeMillis();
+        List<EndpointResult> results = ScatterGather.of(bidder("bid/0"), bidder("bid/" + SLOW), bidder("nobid"))
+                .withDeadline(200, TimeUnit.MILLISECONDS)
+                .executeAsync("bid")
+                .get(5, TimeUnit.SECONDS);
+
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+        assertEquals(Http.Outcome.COMPLETED, results.get(0).getOutcome());
+        assertEquals(Http.Outcome.TIMED_OUT, results.get(1).getOutcome());
+        assertNull(results.get(1).getResult());
+        assertTrue(results.get(1).getLatency() >= 200);
+        assertEquals(204, results.get(2).getResult().getStatus());
+    }
+
+    @Test
+    public void testFirstK() throws Exception {
+
+        noBidGathered = new CompletableFuture<>();
+        long start = System.currentTimeMillis();
+        List<EndpointResult> results = ScatterGather.of(bidder("nobid"), bidder("bid/" + SLOW), bidder("bid-after-nobid/100"), bidder("bid-after-nobid/200"))
+                .withDeadline(5, TimeUnit.SECONDS)
+                .withFirstK(2, result -> {
+                    if (result.getStatus() == 204) {
+                        noBidGathered.complete(null);
+                    }
+                    return result.getStatus() == 200;
+                })
+                .execute("bid");
+
+        assertTrue(System.currentTimeMillis() - start < SLOW);
+        assertEquals(Http.Outcome.COMPLETED, results.get(0).getOutcome());
+        assertEquals(Http.Outcome.CANCELLED, results.get(1).getOutcome());
+        assertEquals("bid 100", results.get(2).getResult().getBody());
+        assertEquals("bid 200", results.get(3).getResult().getBody());
+    }
+
+    @Test
+    public void testFailedEndpoint() throws Exception {
+
+        List<EndpointResult> results = ScatterGather.of(bidder("bid/0"),
+                HttpConnectorBuilder.newBuilder().url("http://localhost:1/bid").setMethod(Http.HttpMethod.POST).prepare())
+                .withDeadline(2, TimeUnit.SECONDS)
+                .execute("bid");
+
+        assertTrue(results.get(0).isCompleted());
+        assertEquals(Http.Outcome.FAILED, results.get(1).getOutcome());
+        assertNotNull(results.get(1).getError());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+
+        CompletableFuture<List<EndpointResult>> future = ScatterGather.of(bidder("bid/" + SLOW), bidder("bid/" + SLOW))
+                .executeAsync("bid");
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,241 @@
+package net.centro.rtb.http;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the streamed request bodies with the Jersey connectors and the engines.
+ */
+public class StreamingBodyTest extends JerseyTest {
+
+    private static final byte[] DATA = new byte[1024 * 1024 + 17];
+
+    static {
+        new Random(20).nextBytes(DATA);
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @POST
+        @Path("upload")
+        public String upload(InputStream body, @HeaderParam("content-encoding") String contentEncoding) throws IOException {
+
+            InputStream in = "gzip".equals(contentEncoding) ? new GZIPInputStream(body) : body;
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+            return length + ":" + crc.getValue();
+        }
+
+        @POST
+        @Path("framing")
+        public String framing(byte[] body, @HeaderParam("content-length") String contentLength,
+                              @HeaderParam("transfer-encoding") String transferEncoding) {
+            return body.length + ":" + contentLength + ":" + transferEncoding;
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    /**
+     * @param maxPerHost distinct for each test, for clients of its own: the connections pooled by the other tests are
+     * to servers since stopped, and a streamed body is not sent again on a fresh connection.
+     */
+    private static HttpConnectorBuilder builder(String path, Http.ConnectorProvider provider, int maxPerHost) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url("http://localhost:9998/" + path)
+                .setMethod(Http.HttpMethod.POST)
+                .setConnectorProvider(provider)
+                .pool(PoolSettings.defaults().withMaxPerHost(maxPerHost))
+                .addHeaderProperty("content-type", "application/octet-stream");
+    }
+
+    private static String expected(int offset) {
+
+        CRC32 crc = new CRC32();
+        crc.update(DATA, offset, DATA.length - offset);
+        return (DATA.length - offset) + ":" + crc.getValue();
+    }
+
+    private static ByteBuffer[] buffers() {
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(1000);
+        direct.put(DATA, 4096, 1000).flip();
+        return new ByteBuffer[]{ByteBuffer.wrap(DATA, 0, 4096), direct, ByteBuffer.wrap(DATA, 5096, DATA.length - 5096)};
+    }
+
+    private static List<Http.ConnectorProvider> providers() {
+
+        List<Http.ConnectorProvider> providers = new ArrayList<>(Arrays.asList(Http.ConnectorProvider.HttpUrlConnector,
+                Http.ConnectorProvider.Apache, Http.ConnectorProvider.NettyEngine));
+        if (JdkHttpEngine.isSupported()) {
+            providers.add(Http.ConnectorProvider.JdkHttpClient);
+        }
+        return providers;
+    }
+
+    @Test
+    public void testStreamedBodies() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("upload", ".bin");
+        try {
+            Files.write(file, DATA);
+            for (Http.ConnectorProvider provider : providers()) {
+                PreparedRequest upload = builder("upload", provider, 11).prepare();
+
+                assertEquals(provider.name(), expected(0), upload.execute(new ByteArrayInputStream(DATA)).getBody());
+                assertEquals(provider.name(), expected(0), upload.execute(Channels.newChannel(new ByteArrayInputStream(DATA))).getBody());
+                assertEquals(provider.name(), expected(0), upload.execute(buffers()).getBody());
+                assertEquals(provider.name(), expected(0), upload.executeAsync(file).get().getBody());
+
+                // a FileChannel from its position
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                channel.position(1000);
+                assertEquals(provider.name(), expected(1000), upload.executeAsync(channel).get().getBody());
+                assertFalse(provider.name(), channel.isOpen());
+
+                // the body of the builder, with an HttpConnector
+                assertEquals(provider.name(), expected(0), builder("upload", provider, 11).setBody(file).build().executeAsync().get().getBody());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testEngineFraming() throws Exception {
+
+        java.nio.file.Path file = Files.createTempFile("upload", ".bin");
+        try {
+            Files.write(file, Arrays.copyOf(DATA, 100_000));
+            PreparedRequest framing = builder("framing", Http.ConnectorProvider.NettyEngine, 12).prepare();
+
+            // a file with sendfile and a ByteBuffer[] as a gather write, with their length
+            assertEquals("100000:100000:null", framing.execute(file).getBody());
+            assertEquals(DATA.length + ":" + DATA.length + ":null", framing.execute(buffers()).getBody());
+            // a stream of unknown length in chunks, then the connection is reused for a small body
+            assertEquals(DATA.length + ":null:chunked", framing.execute(new ByteArrayInputStream(DATA)).getBody());
+            assertEquals("0:null:chunked", framing.execute(new ByteArrayInputStream(new byte[0])).getBody());
+            assertEquals("5:5:null", framing.execute("small").getBody());
+
+            PoolStats stats = ClientFactory.getPoolStats(framing.getClientProfile()).get("localhost:9998");
+            assertEquals(1, stats.getIdle() + stats.getLeased());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCompressedStream() throws Exception {
+
+        List<Http.ConnectorProvider> providers = providers();
+        // the Apache connector sends the headers of a chunked entity before the interceptor adds the Content-Encoding
+        providers.remove(Http.ConnectorProvider.Apache);
+        for (Http.ConnectorProvider provider : providers) {
+            PreparedRequest upload = builder("upload", provider, 13).compress(Http.Encoding.GZIP).prepare();
+            assertEquals(provider.name(), expected(0), upload.execute(new ByteArrayInputStream(DATA)).getBody());
+        }
+    }
+
+    @Test
+    public void testStreamIsClosed() throws Exception {
+
+        for (Http.ConnectorProvider provider : providers()) {
+            boolean[] closed = new boolean[1];
+            InputStream in = new ByteArrayInputStream(DATA) {
+                @Override
+                public void close() throws IOException {
+                    closed[0] = true;
+                    super.close();
+                }
+            };
+            assertEquals(provider.name(), expected(0), builder("upload", provider, 14).prepare().execute(in).getBody());
+            assertTrue(provider.name(), closed[0]);
+        }
+    }
+
+    @Test
+    public void testBlockingStreamIsReadOffTheEventLoop() throws Exception {
+
+        PipedOutputStream producer = new PipedOutputStream();
+        CountDownLatch reading = new CountDownLatch(1);
+        List<String> readers = new CopyOnWriteArrayList<>();
+        InputStream in = new PipedInputStream(producer, 8192) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+                readers.add(Thread.currentThread().getName());
+                reading.countDown();
+                return super.read(buffer, offset, length);
+            }
+        };
+        CompletableFuture<HttpResult> upload = builder("upload", Http.ConnectorProvider.NettyEngine, 15).prepare().executeAsync(in);
+
+        // the stream waits for its producer, but not on the event loop of its connection
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        PreparedRequest framing = builder("framing", Http.ConnectorProvider.NettyEngine, 15).prepare();
+        assertEquals("5:5:null", framing.executeAsync("small").get(5, TimeUnit.SECONDS).getBody());
+        assertFalse(upload.isDone());
+
+        producer.write(DATA);
+        producer.close();
+        assertEquals(expected(0), upload.get(10, TimeUnit.SECONDS).getBody());
+        for (String reader : readers) {
+            assertEquals("jumper-body-reader", reader);
+        }
+    }
+
+    @Test
+    public void testNonBlockingChannelIsRefused() throws Exception {
+
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        try {
+            builder("upload", Http.ConnectorProvider.NettyEngine, 16).prepare().execute(pipe.source());
+            fail("A non-blocking channel was sent");
+        } catch (ProcessingException e) {
+            assertFalse(pipe.source().isOpen());
+        } finally {
+            pipe.sink().close();
+        }
+    }
+}
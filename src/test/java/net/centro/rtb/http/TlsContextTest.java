@@ -0,0 +1,164 @@
+package net.centro.rtb.http;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.ProcessingException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the per-client SSLContext against a local HTTPS server with a self-signed certificate.
+ * The server closes every connection, so every request pays for a handshake.
+ */
+public class TlsContextTest {
+
+    static HttpsServer server;
+    static String url;
+    static ExecutorService executor;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = TlsContextTest.class.getResourceAsStream("/localhost.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "changeit".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+
+        // a port of its own, not one a server of another test class may still hold
+        server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(context));
+        // handshakes run on the exchange threads, one connection left idle by a client must not hold up the others
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        // answers with the protocol and cipher suite of the connection
+        server.createContext("/", exchange -> {
+            byte[] body = (((HttpsExchange) exchange).getSSLSession().getProtocol() + " "
+                    + ((HttpsExchange) exchange).getSSLSession().getCipherSuite()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Connection", "close");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        url = "https://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static HttpConnectorBuilder builder(Http.ConnectorProvider provider, TlsSettings settings) throws Exception {
+        return HttpConnectorBuilder.newBuilder()
+                .url(url)
+                .setConnectorProvider(provider)
+                // a handshake stuck on a loaded machine fails the request rather than the build
+                .setConnectTimeout(5000)
+                .setReadTimeout(5000)
+                .trustAllSslContext()
+                .tls(settings);
+    }
+
+    private static TlsStats awaitHandshakes(ClientProfile profile, int handshakes) throws InterruptedException {
+
+        // the socket connectors report the handshakes from a thread of their own
+        long deadline = System.currentTimeMillis() + 5000;
+        TlsStats stats = ClientFactory.getTlsStats(profile);
+        while (stats.getHandshakeCount() < handshakes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            stats = ClientFactory.getTlsStats(profile);
+        }
+        return stats;
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+
+        long handshakes = 0;
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Apache,
+                Http.ConnectorProvider.Jetty, Http.ConnectorProvider.HttpUrlConnector}) {
+            PreparedRequest request = builder(provider, TlsSettings.defaults().withSessionCacheSize(100).withSessionTimeout(1, TimeUnit.HOURS)).prepare();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(provider.name(), request.execute().getBody().startsWith("TLS"));
+            }
+
+            TlsStats stats = awaitHandshakes(request.getClientProfile(), 3);
+            assertEquals(provider.name(), 3, stats.getHandshakeCount());
+            assertEquals(provider.name() + " " + stats, 2, stats.getResumedCount());
+            assertTrue(stats.getMaxHandshakeTime(TimeUnit.NANOSECONDS) > 0);
+            assertTrue(stats.getAverageHandshakeTime(TimeUnit.NANOSECONDS) <= stats.getMaxHandshakeTime(TimeUnit.NANOSECONDS));
+            handshakes += stats.getHandshakeCount();
+        }
+        // the totals also count the clients of the other tests
+        assertTrue(ClientFactory.getTlsStats().getHandshakeCount() >= handshakes);
+    }
+
+    @Test
+    public void testProtocolsAndCipherSuites() throws Exception {
+
+        TlsSettings tls12 = TlsSettings.defaults().withProtocols("TLSv1.2").withCipherSuites("TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.Apache,
+                Http.ConnectorProvider.Jetty, Http.ConnectorProvider.HttpUrlConnector, Http.ConnectorProvider.Grizzly, Http.ConnectorProvider.Netty}) {
+            assertEquals(provider.name(), "TLSv1.2 TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", builder(provider, tls12).prepare().execute().getBody());
+        }
+    }
+
+    @Test
+    public void testUntrustedCertificate() throws Exception {
+
+        PreparedRequest request = HttpConnectorBuilder.newBuilder()
+                .url(url)
+                .setConnectorProvider(Http.ConnectorProvider.Apache)
+                .prepare();
+        try {
+            request.execute();
+            fail("Expecting the self-signed certificate to be rejected");
+        } catch (ProcessingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTrustAllLeavesTheJvmDefaults() throws Exception {
+
+        builder(Http.ConnectorProvider.HttpUrlConnector, TlsSettings.defaults()).prepare().execute();
+        HttpConnectorBuilder.getTrustAllSslContext();
+
+        assertFalse(HttpsURLConnection.getDefaultSSLSocketFactory().getClass().getName().startsWith(TlsContext.class.getName()));
+        // the JDK's default verifier rejects every host, the certificate check does the work
+        assertFalse(HttpsURLConnection.getDefaultHostnameVerifier().verify("localhost", null));
+    }
+
+    @Test
+    public void testSettings() {
+
+        TlsSettings settings = TlsSettings.defaults().withSessionCacheSize(10).withProtocols("TLSv1.3", "TLSv1.2");
+        assertTrue(TlsSettings.defaults().isDefault());
+        assertFalse(settings.isDefault());
+        assertEquals(settings, TlsSettings.defaults().withSessionCacheSize(10).withProtocols("TLSv1.3", "TLSv1.2"));
+        assertEquals(0, settings.getSessionTimeout(TimeUnit.SECONDS));
+        assertTrue(settings.getCipherSuites().isEmpty());
+    }
+}
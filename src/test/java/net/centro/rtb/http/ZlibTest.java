@@ -0,0 +1,238 @@
+package net.centro.rtb.http;
+
+import com.google.common.io.ByteStreams;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Test;
+
+import javax.inject.Singleton;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the gzip and deflate streams on pooled Deflaters and Inflaters, against the JDK streams, and the compression
+ * level and strategy of the request bodies.
+ */
+public class ZlibTest extends JerseyTest {
+
+    private static final byte[] DATA = new byte[256 * 1024 + 13];
+
+    static {
+        // half random, half text, to compress to something in between
+        Random random = new Random(25);
+        random.nextBytes(DATA);
+        byte[] text = "{\"id\":\"b-1\",\"price\":1.25,\"adm\":\"<img src=\\\"x\\\">\"},".getBytes(StandardCharsets.UTF_8);
+        for (int i = DATA.length / 2; i < DATA.length; i++) {
+            DATA[i] = text[i % text.length];
+        }
+    }
+
+    @Singleton
+    @Path("/")
+    public static class testResource {
+
+        @POST
+        @Path("upload")
+        public String upload(byte[] body, @HeaderParam("content-encoding") String contentEncoding) throws IOException {
+
+            InputStream in = "gzip".equals(contentEncoding) ? new GZIPInputStream(new ByteArrayInputStream(body))
+                    : new InflaterInputStream(new ByteArrayInputStream(body));
+            return Arrays.equals(DATA, ByteStreams.toByteArray(in)) ? String.valueOf(body.length) : "mismatch";
+        }
+    }
+
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(testResource.class);
+    }
+
+    private static byte[] compress(byte[] data, Http.Encoding encoding, int level, int strategy) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = Zlib.compress(bytes, encoding, level, strategy)) {
+            // a few bytes one at a time, the rest in chunks
+            for (int i = 0; i < Math.min(10, data.length); i++) {
+                out.write(data[i]);
+            }
+            for (int offset = 10; offset < data.length; offset += 5000) {
+                out.write(data, offset, Math.min(5000, data.length - offset));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data, Http.Encoding encoding) throws IOException {
+
+        try (InputStream in = Zlib.decompress(new ByteArrayInputStream(data), encoding)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testJdkFormats() throws Exception {
+
+        byte[] gzip = compress(DATA, Http.Encoding.GZIP, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        assertArrayEquals(DATA, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        assertArrayEquals(DATA, decompress(gzip(DATA), Http.Encoding.GZIP));
+
+        byte[] deflate = compress(DATA, Http.Encoding.DEFLATE, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        assertArrayEquals(DATA, ByteStreams.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(DATA);
+        }
+        assertArrayEquals(DATA, decompress(bytes.toByteArray(), Http.Encoding.DEFLATE));
+
+        // empty
+        assertEquals(0, decompress(compress(new byte[0], Http.Encoding.GZIP, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY), Http.Encoding.GZIP).length);
+    }
+
+    @Test
+    public void testGzipMembersAndHeaderFields() throws Exception {
+
+        // two members, the second with extra, file name and comment fields
+        byte[] first = gzip(Arrays.copyOf(DATA, 1000));
+        byte[] second = gzip(Arrays.copyOfRange(DATA, 1000, DATA.length));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(first);
+        bytes.write(second, 0, 3);
+        bytes.write(second[3] | 4 | 8 | 16);
+        bytes.write(second, 4, 6);
+        bytes.write(new byte[]{2, 0, 'x', 'y'});
+        bytes.write("data.bin\0comment\0".getBytes(StandardCharsets.US_ASCII));
+        bytes.write(second, 10, second.length - 10);
+
+        assertArrayEquals(DATA, decompress(bytes.toByteArray(), Http.Encoding.GZIP));
+        assertArrayEquals(DATA, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void testInvalidInput() throws Exception {
+
+        try {
+            decompress("not gzip".getBytes(StandardCharsets.US_ASCII), Http.Encoding.GZIP);
+            fail("Expecting a ZipException");
+        } catch (ZipException e) {
+            // expected
+        }
+
+        byte[] gzip = gzip(DATA);
+        byte[] corrupt = gzip.clone();
+        corrupt[corrupt.length - 6]++;
+        try {
+            decompress(corrupt, Http.Encoding.GZIP);
+            fail("Expecting a corrupt trailer to fail");
+        } catch (ZipException e) {
+            assertEquals("Corrupt GZIP trailer", e.getMessage());
+        }
+
+        try {
+            decompress(Arrays.copyOf(gzip, gzip.length / 2), Http.Encoding.GZIP);
+            fail("Expecting a truncated body to fail");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPooled() throws Exception {
+
+        compress(DATA, Http.Encoding.GZIP, 1, Deflater.FILTERED);
+        decompress(gzip(DATA), Http.Encoding.GZIP);
+        int deflaters = Zlib.idleDeflaters();
+        int inflaters = Zlib.idleInflaters();
+        assertTrue(deflaters > 0);
+        assertTrue(inflaters > 0);
+
+        // reset and reused, not one more per stream
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(DATA, decompress(compress(DATA, Http.Encoding.GZIP, 1, Deflater.FILTERED), Http.Encoding.GZIP));
+        }
+        assertEquals(deflaters, Zlib.idleDeflaters());
+        assertEquals(inflaters, Zlib.idleInflaters());
+
+        // returned when failing too
+        try {
+            decompress(new byte[]{1, 2, 3}, Http.Encoding.GZIP);
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(inflaters, Zlib.idleInflaters());
+    }
+
+    @Test
+    public void testLevelsAndStrategies() throws Exception {
+
+        byte[] stored = compress(DATA, Http.Encoding.DEFLATE, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        byte[] fast = compress(DATA, Http.Encoding.DEFLATE, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        byte[] huffman = compress(DATA, Http.Encoding.GZIP, Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY);
+        assertTrue(stored.length > DATA.length);
+        assertTrue(fast.length < stored.length);
+        assertArrayEquals(DATA, decompress(stored, Http.Encoding.DEFLATE));
+        assertArrayEquals(DATA, decompress(fast, Http.Encoding.DEFLATE));
+        assertArrayEquals(DATA, decompress(huffman, Http.Encoding.GZIP));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() throws Exception {
+        HttpConnectorBuilder.newBuilder().compress(Http.Encoding.GZIP, 10, Deflater.DEFAULT_STRATEGY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStrategy() throws Exception {
+        HttpConnectorBuilder.newBuilder().compress(Http.Encoding.GZIP, Deflater.BEST_SPEED, 3);
+    }
+
+    @Test
+    public void testRequestLevel() throws Exception {
+
+        // the Apache connector sends the headers of a chunked entity before the interceptor adds the Content-Encoding
+        for (Http.ConnectorProvider provider : new Http.ConnectorProvider[]{Http.ConnectorProvider.HttpUrlConnector, Http.ConnectorProvider.NettyEngine}) {
+            int[] lengths = new int[2];
+            int[] levels = {Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION};
+            for (int i = 0; i < levels.length; i++) {
+                PreparedRequest upload = HttpConnectorBuilder.newBuilder()
+                        .url("http://localhost:9998/upload")
+                        .setMethod(Http.HttpMethod.POST)
+                        .setConnectorProvider(provider)
+                        // clients of their own, the connections pooled by the other tests are to servers since stopped
+                        .pool(PoolSettings.defaults().withMaxPerHost(61))
+                        .compress((i == 0) ? Http.Encoding.DEFLATE : Http.Encoding.GZIP, levels[i], Deflater.DEFAULT_STRATEGY)
+                        .prepare();
+                String body = upload.execute(DATA).getBody();
+                assertNotEquals(provider.name(), "mismatch", body);
+                lengths[i] = Integer.parseInt(body);
+            }
+            assertTrue(provider.name() + " " + Arrays.toString(lengths), lengths[0] > DATA.length);
+            assertTrue(provider.name() + " " + Arrays.toString(lengths), lengths[1] < DATA.length);
+        }
+    }
+}